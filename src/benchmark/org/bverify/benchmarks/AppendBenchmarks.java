@@ -0,0 +1,143 @@
+package org.bverify.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.aggregators.RecordHistoryTreeBuilder;
+import org.bverify.records.Record;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.storage.ArrayStore;
+
+/**
+ * Class for benchmarking the ingest path: appending records
+ * to a history tree and reading the root hash (the commitment)
+ * every commit interval records. Compares eager hashing of internal
+ * nodes with deferred hashing (see {@link RecordAggregation#deferred})
+ * and sequential appends with the parallel bulk builder
+ * (see {@link RecordHistoryTreeBuilder})
+ *
+ */
+public class AppendBenchmarks {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	/**
+	 * Returns the time in nanoseconds to append all of the records,
+	 * committing (calculating the root hash) every commitInterval records
+	 * @param records
+	 * @param commitInterval
+	 * @param deferHashing
+	 * @return
+	 */
+	public static long timeAppends(List<Record> records, int commitInterval, boolean deferHashing) {
+		CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator(deferHashing);
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation,Record>();
+		HistoryTree<RecordAggregation, Record> histtree = new HistoryTree<RecordAggregation, Record>(aggregator, store);
+		long start = System.nanoTime();
+		int outstanding = 0;
+		for(Record r : records) {
+			histtree.append(r);
+			outstanding++;
+			if(outstanding == commitInterval) {
+				histtree.agg().getHash();
+				outstanding = 0;
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	public static void benchmarkAppendThroughput(int numberOfRecords, int[] commitIntervals, String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("CommitInterval", "Hashing", "NumberRecords", "TimeMillis", "AppendsPerSecond"))
+		;)
+        {
+			List<Record> records = HistoryTreeSizeBenchmarks.makeListOfRecords(numberOfRecords, 10, 10);
+			for(int commitInterval : commitIntervals) {
+				for(boolean deferHashing : new boolean[] {false, true}) {
+					for(int round = 0; round < WARMUP_ROUNDS; round++) {
+						timeAppends(records, commitInterval, deferHashing);
+					}
+					long nanos = timeAppends(records, commitInterval, deferHashing);
+					double millis = nanos / 1e6;
+					double appendsPerSecond = records.size() / (nanos / 1e9);
+					String hashing = deferHashing ? "Deferred" : "Eager";
+					System.out.println("[Append] Commit Interval: "+commitInterval+" - "+hashing+
+							"\t\t| Time (ms): "+millis+" Appends/s: "+appendsPerSecond);
+					csvPrinter.printRecord(commitInterval, hashing, records.size(), millis, appendsPerSecond);
+				}
+			}
+			csvPrinter.flush();
+        } catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the time in nanoseconds to build a tree containing all of the
+	 * records and calculate its root hash
+	 * @param records
+	 * @param bulk - if true use the bulk builder, otherwise append one at a time
+	 * @return
+	 */
+	public static long timeBuild(List<Record> records, boolean bulk) {
+		long start = System.nanoTime();
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation,Record>();
+		HistoryTree<RecordAggregation, Record> histtree;
+		if(bulk) {
+			histtree = RecordHistoryTreeBuilder.build(records, store);
+		}else {
+			histtree = new HistoryTree<RecordAggregation, Record>(new CryptographicRecordAggregator(), store);
+			for(Record r : records) {
+				histtree.append(r);
+			}
+		}
+		histtree.agg().getHash();
+		return System.nanoTime() - start;
+	}
+
+	public static void benchmarkBuildThroughput(int[] numbersOfRecords, String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("Builder", "NumberRecords", "TimeMillis", "RecordsPerSecond"))
+		;)
+        {
+			for(int numberOfRecords : numbersOfRecords) {
+				List<Record> records = HistoryTreeSizeBenchmarks.makeListOfRecords(numberOfRecords, 10, 10);
+				for(boolean bulk : new boolean[] {false, true}) {
+					for(int round = 0; round < WARMUP_ROUNDS; round++) {
+						timeBuild(records, bulk);
+					}
+					long nanos = timeBuild(records, bulk);
+					double millis = nanos / 1e6;
+					double recordsPerSecond = records.size() / (nanos / 1e9);
+					String builder = bulk ? "Bulk" : "Sequential";
+					System.out.println("[Build] Records: "+numberOfRecords+" - "+builder+
+							"\t\t| Time (ms): "+millis+" Records/s: "+recordsPerSecond);
+					csvPrinter.printRecord(builder, records.size(), millis, recordsPerSecond);
+				}
+			}
+			csvPrinter.flush();
+        } catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		benchmarkAppendThroughput(100000, new int[] {1, 10, 100, 1000, 10000},
+				"./analysis/benchmarking/append_throughput.csv");
+		benchmarkBuildThroughput(new int[] {10000, 100000, 1000000},
+				"./analysis/benchmarking/build_throughput.csv");
+	}
+
+}
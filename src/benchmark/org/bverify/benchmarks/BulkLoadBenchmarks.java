@@ -0,0 +1,139 @@
+package org.bverify.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bverify.accounts.Account;
+import org.bverify.bverify.BVerifyServerUtils;
+import org.bverify.bverify.BulkRecordLoader;
+import org.bverify.records.Deposit;
+import org.bverify.records.Record;
+
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * Class for benchmarking a cold import of signed records: parsing and
+ * adding the records one at a time compared to the pipelined
+ * {@link BulkRecordLoader} as the number of worker threads increases
+ *
+ */
+public class BulkLoadBenchmarks {
+
+	private static final int WARMUP_ROUNDS = 1;
+
+	/**
+	 * Returns length-delimited signed deposits
+	 * @param numberOfRecords
+	 * @return
+	 */
+	public static byte[] getSignedRecords(int numberOfRecords) {
+		Account alice = new Account("Alice", 1);
+		Account bob = new Account("Bob", 2);
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < numberOfRecords; i++) {
+			Deposit deposit = new Deposit("CORN", i + 1, alice, bob);
+			deposit.signEmployee();
+			deposit.signRecipient();
+			records.add(deposit);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			BulkRecordLoader.writeDelimited(records, out);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not write records");
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the time in nanoseconds to parse, validate and add the
+	 * records one at a time
+	 * @param data
+	 * @return
+	 */
+	public static long timeSequentialLoad(byte[] data) {
+		BVerifyServerUtils server = new BVerifyServerUtils(null, false, 1000);
+		try {
+			long start = System.nanoTime();
+			CodedInputStream input = CodedInputStream.newInstance(new ByteArrayInputStream(data));
+			while(!input.isAtEnd()) {
+				Record r = Record.parseRecord(input.readByteArray());
+				input.resetSizeCounter();
+				if(r.isValid()) {
+					server.addRecord(r);
+				}
+			}
+			return System.nanoTime() - start;
+		} catch (IOException | InsufficientMoneyException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - benchmark failed");
+		}
+	}
+
+	/**
+	 * Returns the time in nanoseconds to load the records
+	 * with a {@link BulkRecordLoader}
+	 * @param data
+	 * @param threads
+	 * @return
+	 */
+	public static long timeBulkLoad(byte[] data, int threads) {
+		BVerifyServerUtils server = new BVerifyServerUtils(null, false, 1000);
+		BulkRecordLoader loader = new BulkRecordLoader(server, threads, BulkRecordLoader.DEFAULT_CHUNK_SIZE,
+				BulkRecordLoader.DEFAULT_QUEUE_CAPACITY);
+		try {
+			long start = System.nanoTime();
+			loader.loadDelimited(new ByteArrayInputStream(data));
+			return System.nanoTime() - start;
+		} catch (IOException | InsufficientMoneyException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - benchmark failed");
+		} finally {
+			loader.shutdown();
+		}
+	}
+
+	public static void benchmarkBulkLoad(int numberOfRecords, int[] threadCounts, String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("NumberRecords", "Threads", "SequentialRecordsPerSecond",
+                        		"BulkRecordsPerSecond"))
+		;)
+        {
+			byte[] data = getSignedRecords(numberOfRecords);
+			for(int round = 0; round < WARMUP_ROUNDS; round++) {
+				timeSequentialLoad(data);
+			}
+			double sequentialPerSecond = numberOfRecords / (timeSequentialLoad(data) / 1e9);
+			for(int threads : threadCounts) {
+				for(int round = 0; round < WARMUP_ROUNDS; round++) {
+					timeBulkLoad(data, threads);
+				}
+				double bulkPerSecond = numberOfRecords / (timeBulkLoad(data, threads) / 1e9);
+				System.out.println("[Threads] "+threads+"\t\t| Sequential Records/s: "+sequentialPerSecond+
+						" Bulk Records/s: "+bulkPerSecond);
+				csvPrinter.printRecord(numberOfRecords, threads, sequentialPerSecond, bulkPerSecond);
+			}
+			csvPrinter.flush();
+        } catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		int[] threadCounts = new int[] {1, 2, 4, 8};
+		benchmarkBulkLoad(5000, threadCounts, "./analysis/benchmarking/bulk_load.csv");
+	}
+
+}
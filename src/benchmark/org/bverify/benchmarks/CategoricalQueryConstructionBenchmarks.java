@@ -0,0 +1,128 @@
+package org.bverify.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.aggregators.RecordHistoryTree;
+import org.bverify.proofs.CategoricalQueryProof;
+import org.bverify.records.CategoricalAttributes;
+import org.bverify.records.NumericalAttributes;
+import org.bverify.records.Record;
+import org.bverify.records.SimpleRecord;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.ProofError;
+import edu.rice.historytree.storage.ArrayStore;
+
+/**
+ * Class for benchmarking the time to construct a categorical query proof
+ * depending on the number of records and the selectivity of the query:
+ * scanning every leaf of the tree compared to descending only into
+ * the subtrees that can contain a matching record (see {@link RecordHistoryTree})
+ *
+ */
+public class CategoricalQueryConstructionBenchmarks {
+
+	/** Use the same seed value so we get consistent benchmarking results */
+	public static int SEED_VAL = 52317;
+
+	private static final int NUMBER_CATEGORICAL_ATTRIBUTES = 8;
+	private static final int NUMBER_NUMERICAL_ATTRIBUTES = 2;
+	private static final int WARMUP_ROUNDS = 2;
+	private static final int ROUNDS = 5;
+
+	/**
+	 * Produce random records for the benchmark. Attribute 0 - the attribute queried -
+	 * is set with probability selectivity, the other attributes uniformly at random.
+	 * @param numberOfRecords
+	 * @param selectivity
+	 * @return
+	 */
+	public static ArrayList<Record> getListOfRandomRecords(int numberOfRecords, double selectivity) {
+		Random prng = new Random(SEED_VAL);
+		ArrayList<Record> res = new ArrayList<Record>();
+		for(int i = 0; i < numberOfRecords; i++) {
+			NumericalAttributes num = new NumericalAttributes(NUMBER_NUMERICAL_ATTRIBUTES);
+			CategoricalAttributes cat = new CategoricalAttributes(NUMBER_CATEGORICAL_ATTRIBUTES);
+			cat.setAttribute(0, prng.nextDouble() < selectivity);
+			for(int j = 1; j < NUMBER_CATEGORICAL_ATTRIBUTES; j++) {
+				cat.setAttribute(j, prng.nextBoolean());
+			}
+			res.add(new SimpleRecord(cat, num));
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the average time in nanoseconds to construct the proof
+	 */
+	public static long timeProofConstruction(CategoricalAttributes filter, HistoryTree<RecordAggregation, Record> tree,
+			int recordCommitmentNumber) throws ProofError {
+		for(int round = 0; round < WARMUP_ROUNDS; round++) {
+			new CategoricalQueryProof(filter, tree, 0, recordCommitmentNumber);
+		}
+		long start = System.nanoTime();
+		for(int round = 0; round < ROUNDS; round++) {
+			new CategoricalQueryProof(filter, tree, 0, recordCommitmentNumber);
+		}
+		return (System.nanoTime() - start) / ROUNDS;
+	}
+
+	public static void benchmarkQueryConstruction(int[] numbersOfRecords, double[] selectivities,
+			String fileName) {
+		CategoricalAttributes filter = new CategoricalAttributes(NUMBER_CATEGORICAL_ATTRIBUTES);
+		filter.setAttribute(0, true);
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("NumberRecords", "Selectivity", "NumberOfRecordsMatching",
+                        		"ScanMs", "DescendMs"))
+		;)
+        {
+			for(int numberOfRecords : numbersOfRecords) {
+				for(double selectivity : selectivities) {
+					ArrayList<Record> records = getListOfRandomRecords(numberOfRecords, selectivity);
+					CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
+					HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(
+							aggregator, new ArrayStore<RecordAggregation, Record>());
+					RecordHistoryTree searchableTree = new RecordHistoryTree(aggregator,
+							new ArrayStore<RecordAggregation, Record>());
+					for(Record r : records) {
+						tree.append(r);
+						searchableTree.append(r);
+					}
+					int recordCommitmentNumber = numberOfRecords - 1;
+					int numberOfRecordsMatching = new CategoricalQueryProof(filter, searchableTree, 0,
+							recordCommitmentNumber).getRecordNumbers().size();
+					double scanMs = timeProofConstruction(filter, tree, recordCommitmentNumber) / 1e6;
+					double descendMs = timeProofConstruction(filter, searchableTree, recordCommitmentNumber) / 1e6;
+
+					System.out.println("[Records] "+numberOfRecords+" [Selectivity] "+selectivity+
+							" ("+numberOfRecordsMatching+" matching)\t\t| Scan: "+scanMs+" ms | Descend: "+
+							descendMs+" ms");
+					csvPrinter.printRecord(numberOfRecords, selectivity, numberOfRecordsMatching,
+							scanMs, descendMs);
+				}
+			}
+			csvPrinter.flush();
+        } catch (IOException | ProofError e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		int[] numbersOfRecords = new int[] {1 << 12, 1 << 14, 1 << 16, 1 << 18};
+		double[] selectivities = new double[] {0.0001, 0.001, 0.01, 0.1, 1};
+		benchmarkQueryConstruction(numbersOfRecords, selectivities,
+				"./analysis/benchmarking/query_proof_construction.csv");
+	}
+
+}
@@ -120,7 +120,7 @@ public class CategoricalQueryProofSizeBenchmarks {
 		int numberOfRecordsMatching = 0;
 		for (Record r : records) {
 			int size = r.serializeRecord().length;
-			if (r.getCategoricalAttributes().hasAttributes(filter)) {
+			if (r.getCategoricalAttributes().containsAll(filter)) {
 				numberOfRecordsMatching = numberOfRecordsMatching + 1;
 				sizeOfRecordsMatching = sizeOfRecordsMatching + size;
 			}
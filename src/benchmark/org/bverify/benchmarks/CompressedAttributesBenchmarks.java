@@ -0,0 +1,173 @@
+package org.bverify.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.bverify.records.CategoricalAttributes;
+import org.bverify.records.CompressedCategoricalAttributes;
+import org.bverify.records.EncodingBuffer;
+
+/**
+ * Class for benchmarking the node size and filter check speed of
+ * {@link CategoricalAttributes} (fixed width bitmap) and
+ * {@link CompressedCategoricalAttributes} as the number of
+ * categorical attributes grows.
+ *
+ * Each leaf has a few attributes set uniformly at random and the
+ * attributes are ORed up a complete binary tree, so nodes higher up
+ * the tree have more attributes set. For each level the encoded size of
+ * a node and the time to check a filter against every node are measured.
+ *
+ */
+public class CompressedAttributesBenchmarks {
+
+	/** Use the same seed value so we get consistent benchmarking results */
+	public static int SEED_VAL = 91764;
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	/**
+	 * Returns the levels of a complete binary tree over random leaves,
+	 * level 0 are the leaves and node i of level l is the OR of
+	 * nodes 2i and 2i+1 of level l-1
+	 * @param numberOfLeaves - a power of 2
+	 * @param numberOfAttributes
+	 * @param attributesPerLeaf - number of attributes set in each leaf
+	 * @return
+	 */
+	public static CategoricalAttributes[][] getTree(int numberOfLeaves, int numberOfAttributes,
+			int attributesPerLeaf) {
+		Random prng = new Random(SEED_VAL);
+		int numberOfLevels = Integer.numberOfTrailingZeros(numberOfLeaves) + 1;
+		CategoricalAttributes[][] levels = new CategoricalAttributes[numberOfLevels][];
+		levels[0] = new CategoricalAttributes[numberOfLeaves];
+		for(int i = 0; i < numberOfLeaves; i++) {
+			levels[0][i] = new CategoricalAttributes(numberOfAttributes);
+			for(int j = 0; j < attributesPerLeaf; j++) {
+				levels[0][i].setAttribute(prng.nextInt(numberOfAttributes), true);
+			}
+		}
+		for(int l = 1; l < numberOfLevels; l++) {
+			levels[l] = new CategoricalAttributes[levels[l-1].length / 2];
+			for(int i = 0; i < levels[l].length; i++) {
+				levels[l][i] = levels[l-1][2*i].or(levels[l-1][2*i+1]);
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Returns the time in nanoseconds to check the filter
+	 * against every node, times is the number of passes
+	 */
+	public static long timeDenseChecks(CategoricalAttributes[] nodes, CategoricalAttributes filter, int times) {
+		int matches = 0;
+		long start = System.nanoTime();
+		for(int t = 0; t < times; t++) {
+			for(CategoricalAttributes node : nodes) {
+				if(node.containsAll(filter)) {
+					matches++;
+				}
+			}
+		}
+		long time = System.nanoTime() - start;
+		// so the checks are not optimized away
+		if(matches < 0) {
+			System.out.println(matches);
+		}
+		return time;
+	}
+
+	public static long timeCompressedChecks(CompressedCategoricalAttributes[] nodes,
+			CompressedCategoricalAttributes filter, int times) {
+		int matches = 0;
+		long start = System.nanoTime();
+		for(int t = 0; t < times; t++) {
+			for(CompressedCategoricalAttributes node : nodes) {
+				if(node.containsAll(filter)) {
+					matches++;
+				}
+			}
+		}
+		long time = System.nanoTime() - start;
+		if(matches < 0) {
+			System.out.println(matches);
+		}
+		return time;
+	}
+
+	public static void benchmarkNodeSizeAndQuerySpeed(int[] numbersOfAttributes, int numberOfLeaves,
+			int attributesPerLeaf, int checksPerLevel, String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("NumberAttributes", "Level", "LeavesPerNode", "AverageAttributesSet",
+                        		"DenseNodeBytes", "CompressedNodeBytes",
+                        		"DenseNsPerCheck", "CompressedNsPerCheck"))
+		;)
+        {
+			EncodingBuffer buffer = new EncodingBuffer();
+			for(int numberOfAttributes : numbersOfAttributes) {
+				CategoricalAttributes[][] levels = getTree(numberOfLeaves, numberOfAttributes, attributesPerLeaf);
+				// a filter on two attributes of the first leaf
+				CategoricalAttributes filter = new CategoricalAttributes(numberOfAttributes);
+				int first = levels[0][0].nextSetAttribute(0);
+				filter.setAttribute(first, true);
+				int second = levels[0][0].nextSetAttribute(first + 1);
+				if(second >= 0) {
+					filter.setAttribute(second, true);
+				}
+				CompressedCategoricalAttributes compressedFilter =
+						CompressedCategoricalAttributes.fromCategoricalAttributes(filter);
+
+				for(int l = 0; l < levels.length; l++) {
+					CategoricalAttributes[] nodes = levels[l];
+					CompressedCategoricalAttributes[] compressedNodes =
+							new CompressedCategoricalAttributes[nodes.length];
+					long denseBytes = 0;
+					long compressedBytes = 0;
+					long attributesSet = 0;
+					for(int i = 0; i < nodes.length; i++) {
+						compressedNodes[i] = CompressedCategoricalAttributes.fromCategoricalAttributes(nodes[i]);
+						nodes[i].writeTo(buffer.reset());
+						denseBytes += buffer.size();
+						compressedBytes += compressedNodes[i].getSerializedSize();
+						attributesSet += compressedNodes[i].cardinality();
+					}
+					int times = Math.max(1, checksPerLevel / nodes.length);
+					for(int round = 0; round < WARMUP_ROUNDS; round++) {
+						timeDenseChecks(nodes, filter, times);
+						timeCompressedChecks(compressedNodes, compressedFilter, times);
+					}
+					double numberOfChecks = (double) times * nodes.length;
+					double denseNs = timeDenseChecks(nodes, filter, times) / numberOfChecks;
+					double compressedNs = timeCompressedChecks(compressedNodes, compressedFilter, times) /
+							numberOfChecks;
+
+					System.out.println("[Attributes] "+numberOfAttributes+" [Level] "+l+"\t\t| Dense: "+
+							(denseBytes / nodes.length)+" bytes "+denseNs+" ns/check | Compressed: "+
+							(compressedBytes / nodes.length)+" bytes "+compressedNs+" ns/check");
+					csvPrinter.printRecord(numberOfAttributes, l, 1 << l,
+							(double) attributesSet / nodes.length,
+							(double) denseBytes / nodes.length, (double) compressedBytes / nodes.length,
+							denseNs, compressedNs);
+				}
+			}
+			csvPrinter.flush();
+        } catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		int[] numbersOfAttributes = new int[] {64, 256, 1024, 4096, 16384, 65536};
+		benchmarkNodeSizeAndQuerySpeed(numbersOfAttributes, 1024, 3, 1 << 20,
+				"./analysis/benchmarking/compressed_attributes.csv");
+	}
+
+}
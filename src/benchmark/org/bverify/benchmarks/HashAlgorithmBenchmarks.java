@@ -0,0 +1,124 @@
+package org.bverify.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.lang3.SerializationUtils;
+import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.proofs.RecordProof;
+import org.bverify.records.Record;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.ProofError;
+import edu.rice.historytree.storage.ArrayStore;
+
+/**
+ * Class for benchmarking the hash algorithms that can be used
+ * for the history tree (see {@link HashAlgorithm}). Measures append throughput
+ * (hashing every node as it is created) and the time for a client to verify
+ * record proofs (parsing the proof recalculates its hashes)
+ *
+ */
+public class HashAlgorithmBenchmarks {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	public static HistoryTree<RecordAggregation, Record> makeTree(List<Record> records,
+			HashAlgorithm hashAlgorithm) {
+		CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator(hashAlgorithm);
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation,Record>();
+		HistoryTree<RecordAggregation, Record> histtree = new HistoryTree<RecordAggregation, Record>(aggregator, store);
+		for(Record r : records) {
+			histtree.append(r);
+		}
+		return histtree;
+	}
+
+	/**
+	 * Returns the time in nanoseconds to append all of the records
+	 * @param records
+	 * @param hashAlgorithm
+	 * @return
+	 */
+	public static long timeAppends(List<Record> records, HashAlgorithm hashAlgorithm) {
+		long start = System.nanoTime();
+		makeTree(records, hashAlgorithm);
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns the time in nanoseconds to deserialize and check
+	 * all of the serialized record proofs
+	 * @param serializedProofs
+	 * @param commitment
+	 * @return
+	 */
+	public static long timeProofVerification(List<byte[]> serializedProofs, byte[] commitment) {
+		long start = System.nanoTime();
+		for(byte[] serializedProof : serializedProofs) {
+			RecordProof proof = (RecordProof) SerializationUtils.deserialize(serializedProof);
+			if(!proof.checkProof(commitment)) {
+				throw new RuntimeException("Error - invalid proof");
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	public static void benchmarkHashAlgorithms(int numberOfRecords, int numberOfProofs, String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("HashAlgorithm", "HashSize", "NumberRecords", "AppendsPerSecond",
+                        		"NumberProofs", "ProofVerificationMicros"))
+		;)
+        {
+			List<Record> records = HistoryTreeSizeBenchmarks.makeListOfRecords(numberOfRecords, 10, 10);
+			Random prng = new Random(1);
+			for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+				for(int round = 0; round < WARMUP_ROUNDS; round++) {
+					timeAppends(records, hashAlgorithm);
+				}
+				long appendNanos = timeAppends(records, hashAlgorithm);
+				double appendsPerSecond = records.size() / (appendNanos / 1e9);
+
+				HistoryTree<RecordAggregation, Record> histtree = makeTree(records, hashAlgorithm);
+				List<byte[]> proofs = new ArrayList<byte[]>();
+				for(int i = 0; i < numberOfProofs; i++) {
+					RecordProof proof = new RecordProof(prng.nextInt(numberOfRecords), 0,
+							histtree.version(), histtree);
+					proofs.add(SerializationUtils.serialize(proof));
+				}
+				byte[] commitment = histtree.agg().getHash();
+				for(int round = 0; round < WARMUP_ROUNDS; round++) {
+					timeProofVerification(proofs, commitment);
+				}
+				long proofNanos = timeProofVerification(proofs, commitment);
+				double microsPerProof = (proofNanos / 1e3) / numberOfProofs;
+
+				System.out.println("[Hash Algorithm] "+hashAlgorithm.getName()+
+						"\t\t| Appends/s: "+appendsPerSecond+" Proof Verification (us): "+microsPerProof);
+				csvPrinter.printRecord(hashAlgorithm.getName(), hashAlgorithm.hashSize(), numberOfRecords,
+						appendsPerSecond, numberOfProofs, microsPerProof);
+			}
+			csvPrinter.flush();
+        } catch (IOException e) {
+			e.printStackTrace();
+		} catch (ProofError e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		benchmarkHashAlgorithms(100000, 1000, "./analysis/benchmarking/hash_algorithms.csv");
+	}
+
+}
@@ -12,6 +12,7 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.bverify.aggregators.CryptographicRecordAggregator;
 import org.bverify.aggregators.RecordAggregation;
+import org.bverify.aggregators.RecordHistoryTreeBuilder;
 import org.bverify.records.Record;
 import org.bverify.records.SimpleRecord;
 
@@ -41,15 +42,10 @@ public class HistoryTreeSizeBenchmarks {
 	 */
 	public static HistoryTree<RecordAggregation, Record> makeHistoryTreeWithRecords(int numberOfRecords,
 			int numberOfCategoricalAttributes, int numberOfNumericalAttributes){
-		CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
+		List<Record> records = makeListOfRecords(numberOfRecords, numberOfCategoricalAttributes, 
+				numberOfNumericalAttributes);
 		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation,Record>();    
-		HistoryTree<RecordAggregation, Record> histtree = new HistoryTree<RecordAggregation, Record>(aggregator, store);
-		for(int i = 0; i < numberOfRecords; i++) {
-			// creates a random record 
-			Record record = new SimpleRecord(numberOfNumericalAttributes, numberOfCategoricalAttributes);
-			histtree.append(record);
-		}
-		return histtree;
+		return RecordHistoryTreeBuilder.build(records, store);
 		
 	}
 	
@@ -0,0 +1,128 @@
+package org.bverify.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.lang3.SerializationUtils;
+import org.bverify.accounts.Account;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.records.EncodingBuffer;
+import org.bverify.records.Record;
+import org.bverify.records.SimpleRecord;
+import org.bverify.records.Transfer;
+
+/**
+ * Class for benchmarking the throughput of leaf hashing.
+ * Compares the old leaf hash - SHA-256 over the Java serialization
+ * of the record - with the current leaf hash over the canonical
+ * leaf encoding (see {@link Record#writeLeafEncoding(EncodingBuffer)})
+ *
+ */
+public class LeafHashBenchmarks {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	public static List<Record> makeSimpleRecords(int numberOfRecords, int numberOfAttributes) {
+		List<Record> res = new ArrayList<Record>();
+		for(int i = 0; i < numberOfRecords; i++) {
+			res.add(new SimpleRecord(numberOfAttributes, numberOfAttributes));
+		}
+		return res;
+	}
+
+	public static List<Record> makeTransfers(int numberOfRecords) {
+		Account alice = new Account("Alice", 1);
+		Account bob = new Account("Bob", 2);
+		List<Record> res = new ArrayList<Record>();
+		for(int i = 0; i < numberOfRecords; i++) {
+			Transfer tf = new Transfer("CORN", i+1, alice, bob);
+			tf.signSender();
+			tf.signRecipient();
+			res.add(tf);
+		}
+		return res;
+	}
+
+	/**
+	 * The leaf hash as it was calculated before the canonical
+	 * leaf encoding was introduced
+	 * @param record
+	 * @return
+	 */
+	public static byte[] javaSerializationLeafHash(Record record) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(SerializationUtils.serialize(record));
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			throw new RuntimeException("FATAL BUG");
+		}
+	}
+
+	/**
+	 * Returns the time in nanoseconds to hash all of the records
+	 * @param records
+	 * @param canonical - if true use the canonical leaf encoding,
+	 * 			otherwise Java serialization
+	 * @return
+	 */
+	public static long timeLeafHashes(List<Record> records, boolean canonical) {
+		long start = System.nanoTime();
+		for(Record r : records) {
+			if(canonical) {
+				new RecordAggregation(r);
+			}else {
+				javaSerializationLeafHash(r);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	public static void benchmarkLeafHashThroughput(int numberOfRecords, String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("RecordType", "Encoding", "NumberRecords", "TimeMillis", "HashesPerSecond"))
+		;)
+        {
+			List<Record> simpleRecords = makeSimpleRecords(numberOfRecords, 10);
+			List<Record> transfers = makeTransfers(numberOfRecords);
+			String[] recordTypes = {"SimpleRecord", "Transfer"};
+			List<List<Record>> recordSets = new ArrayList<List<Record>>();
+			recordSets.add(simpleRecords);
+			recordSets.add(transfers);
+			for(int i = 0; i < recordTypes.length; i++) {
+				for(boolean canonical : new boolean[] {false, true}) {
+					List<Record> records = recordSets.get(i);
+					for(int round = 0; round < WARMUP_ROUNDS; round++) {
+						timeLeafHashes(records, canonical);
+					}
+					long nanos = timeLeafHashes(records, canonical);
+					double millis = nanos / 1e6;
+					double hashesPerSecond = records.size() / (nanos / 1e9);
+					String encoding = canonical ? "Canonical" : "JavaSerialization";
+					System.out.println("[Leaf Hash] "+recordTypes[i]+" - "+encoding+
+							"\t\t| Time (ms): "+millis+" Hashes/s: "+hashesPerSecond);
+					csvPrinter.printRecord(recordTypes[i], encoding, records.size(), millis, hashesPerSecond);
+				}
+			}
+			csvPrinter.flush();
+        } catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		benchmarkLeafHashThroughput(10000, "./analysis/benchmarking/leaf_hash_throughput.csv");
+	}
+
+}
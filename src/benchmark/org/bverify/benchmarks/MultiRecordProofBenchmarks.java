@@ -0,0 +1,143 @@
+package org.bverify.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.proofs.MultiRecordProof;
+import org.bverify.proofs.RecordProof;
+import org.bverify.records.Record;
+import org.bverify.records.SimpleRecord;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.ProofError;
+import edu.rice.historytree.storage.ArrayStore;
+
+/**
+ * Class for benchmarking the cost of auditing k records: k independent
+ * {@link RecordProof}s compared to a single {@link MultiRecordProof},
+ * for records chosen uniformly at random and for a contiguous range.
+ * Measures the total proof size and the time for the client to parse
+ * and check the proofs.
+ *
+ */
+public class MultiRecordProofBenchmarks {
+
+	/** Use the same seed value so we get consistent benchmarking results */
+	public static int SEED_VAL = 7219;
+
+	private static final int WARMUP_ROUNDS = 2;
+
+	public static HistoryTree<RecordAggregation, Record> makeTree(int numberOfRecords) {
+		CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation,Record>();
+		HistoryTree<RecordAggregation, Record> histtree = new HistoryTree<RecordAggregation, Record>(aggregator, store);
+		for(SimpleRecord r : SimpleRecord.simpleRecordFacotry(SEED_VAL, numberOfRecords, 2, 8, new Date(0))) {
+			histtree.append(r);
+		}
+		return histtree;
+	}
+
+	/**
+	 * Returns the time in nanoseconds to parse and check the record proofs
+	 */
+	public static long timeRecordProofs(List<byte[]> serializedProofs, byte[] commitment)
+			throws InvalidProtocolBufferException {
+		long start = System.nanoTime();
+		for(byte[] serializedProof : serializedProofs) {
+			if(!RecordProof.parseProof(serializedProof).checkProof(commitment)) {
+				throw new RuntimeException("Error - invalid proof");
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns the time in nanoseconds to parse and check the multi record proof
+	 */
+	public static long timeMultiRecordProof(byte[] serializedProof, byte[] commitment)
+			throws InvalidProtocolBufferException {
+		long start = System.nanoTime();
+		if(!MultiRecordProof.parseProof(serializedProof).checkProof(commitment)) {
+			throw new RuntimeException("Error - invalid proof");
+		}
+		return System.nanoTime() - start;
+	}
+
+	public static void benchmarkMultiRecordProofs(int numberOfRecords, int[] numbersOfProvenRecords,
+			String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("NumberRecords", "ProvenRecords", "Selection",
+                        		"RecordProofsBytes", "MultiRecordProofBytes",
+                        		"RecordProofsVerifyMs", "MultiRecordProofVerifyMs"))
+		;)
+        {
+			HistoryTree<RecordAggregation, Record> tree = makeTree(numberOfRecords);
+			int commitmentRecordNumber = numberOfRecords - 1;
+			byte[] commitment = tree.aggV(commitmentRecordNumber).getHash();
+			Random prng = new Random(SEED_VAL);
+			for(int k : numbersOfProvenRecords) {
+				for(String selection : new String[] {"random", "range"}) {
+					TreeSet<Integer> recordNumbers = new TreeSet<Integer>();
+					if(selection.equals("random")) {
+						while(recordNumbers.size() < k) {
+							recordNumbers.add(prng.nextInt(numberOfRecords));
+						}
+					}else {
+						int first = prng.nextInt(numberOfRecords - k + 1);
+						for(int i = first; i < first + k; i++) {
+							recordNumbers.add(i);
+						}
+					}
+					List<byte[]> recordProofs = new ArrayList<byte[]>();
+					long recordProofsBytes = 0;
+					for(int recordNumber : recordNumbers) {
+						byte[] proof = new RecordProof(recordNumber, 0, commitmentRecordNumber, tree)
+								.serializeProof();
+						recordProofs.add(proof);
+						recordProofsBytes += proof.length;
+					}
+					byte[] multiRecordProof = new MultiRecordProof(recordNumbers, 0, commitmentRecordNumber,
+							tree).serializeProof();
+
+					for(int round = 0; round < WARMUP_ROUNDS; round++) {
+						timeRecordProofs(recordProofs, commitment);
+						timeMultiRecordProof(multiRecordProof, commitment);
+					}
+					double recordProofsMs = timeRecordProofs(recordProofs, commitment) / 1e6;
+					double multiRecordProofMs = timeMultiRecordProof(multiRecordProof, commitment) / 1e6;
+
+					System.out.println("[Proven Records] "+k+" ("+selection+")\t\t| Record Proofs: "+
+							recordProofsBytes+" bytes "+recordProofsMs+" ms | Multi Record Proof: "+
+							multiRecordProof.length+" bytes "+multiRecordProofMs+" ms");
+					csvPrinter.printRecord(numberOfRecords, k, selection, recordProofsBytes,
+							multiRecordProof.length, recordProofsMs, multiRecordProofMs);
+				}
+			}
+			csvPrinter.flush();
+        } catch (IOException | ProofError e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		int[] numbersOfProvenRecords = new int[] {1, 10, 100, 1000, 10000};
+		benchmarkMultiRecordProofs(1 << 16, numbersOfProvenRecords,
+				"./analysis/benchmarking/multi_record_proofs.csv");
+	}
+
+}
@@ -0,0 +1,192 @@
+package org.bverify.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.bverify.accounts.Account;
+import org.bverify.accounts.PrecomputedKeyCache;
+
+/**
+ * Class for benchmarking ECDSA signing and signature verification
+ * throughput as the number of threads using the same account increases
+ * (see {@link Account#sign(byte[])}) and verification with precomputed
+ * tables for the keys of hot accounts
+ * (see {@link PrecomputedKeyCache})
+ *
+ */
+public class SigningBenchmarks {
+
+	private static final int WARMUP_ROUNDS = 2;
+
+	/**
+	 * Returns the time in nanoseconds for the threads to each
+	 * sign (or verify) the message operationsPerThread times with the account
+	 * @param account
+	 * @param threads
+	 * @param operationsPerThread
+	 * @param verify - if true check signatures instead of signing
+	 * @return
+	 */
+	public static long timeOperations(Account account, int threads, int operationsPerThread, boolean verify) {
+		byte[] message = "transfer 10 CORN from alice to bob".getBytes();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			byte[] signature = account.sign(message);
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for(int t = 0; t < threads; t++) {
+				tasks.add(() -> {
+					for(int i = 0; i < operationsPerThread; i++) {
+						if(verify) {
+							if(!account.checkSignature(message, signature)) {
+								throw new RuntimeException("Error - invalid signature");
+							}
+						}else {
+							account.sign(message);
+						}
+					}
+					return null;
+				});
+			}
+			long start = System.nanoTime();
+			for(Future<Void> f : executor.invokeAll(tasks)) {
+				f.get();
+			}
+			return System.nanoTime() - start;
+		} catch (GeneralSecurityException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - benchmark failed");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public static void benchmarkSigningThroughput(int[] threadCounts, int operationsPerThread, String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("Threads", "OperationsPerThread", "SignaturesPerSecond",
+                        		"VerificationsPerSecond"))
+		;)
+        {
+			Account account = new Account("Alice", 1);
+			for(int threads : threadCounts) {
+				for(int round = 0; round < WARMUP_ROUNDS; round++) {
+					timeOperations(account, threads, operationsPerThread, false);
+					timeOperations(account, threads, operationsPerThread, true);
+				}
+				long totalOperations = (long) threads * operationsPerThread;
+				double signaturesPerSecond = totalOperations /
+						(timeOperations(account, threads, operationsPerThread, false) / 1e9);
+				double verificationsPerSecond = totalOperations /
+						(timeOperations(account, threads, operationsPerThread, true) / 1e9);
+				System.out.println("[Threads] "+threads+"\t\t| Signatures/s: "+signaturesPerSecond+
+						" Verifications/s: "+verificationsPerSecond);
+				csvPrinter.printRecord(threads, operationsPerThread, signaturesPerSecond, verificationsPerSecond);
+			}
+			csvPrinter.flush();
+        } catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the time in nanoseconds to check the signatures, 
+	 * signature i was made by account i % accounts.length
+	 * @param accounts
+	 * @param message
+	 * @param signatures
+	 * @return
+	 */
+	public static long timeVerifications(Account[] accounts, byte[] message, List<byte[]> signatures) {
+		return timeVerifications(accounts, message, signatures, null);
+	}
+	
+	/**
+	 * Returns the time in nanoseconds to check the signatures 
+	 * with the precomputed tables (or the provider if null)
+	 * @see #timeVerifications(Account[], byte[], List)
+	 */
+	public static long timeVerifications(Account[] accounts, byte[] message, List<byte[]> signatures,
+			PrecomputedKeyCache precomputedKeys) {
+		try {
+			long start = System.nanoTime();
+			for(int i = 0; i < signatures.size(); i++) {
+				Account account = accounts[i % accounts.length];
+				boolean valid = precomputedKeys == null ? account.checkSignature(message, signatures.get(i)) :
+					precomputedKeys.checkSignature(account, message, signatures.get(i));
+				if(!valid) {
+					throw new RuntimeException("Error - invalid signature");
+				}
+			}
+			return System.nanoTime() - start;
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - benchmark failed");
+		}
+	}
+
+	public static void benchmarkPrecomputedVerification(int[] numbersOfAccounts, int numberOfSignatures,
+			String fileName) {
+		try(
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName));
+                CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
+                        .withHeader("NumberAccounts", "NumberSignatures", "ProviderVerificationsPerSecond",
+                        		"PrecomputedVerificationsPerSecond"))
+		;)
+        {
+			byte[] message = "transfer 10 CORN from alice to bob".getBytes();
+			for(int numberOfAccounts : numbersOfAccounts) {
+				Account[] accounts = new Account[numberOfAccounts];
+				for(int i = 0; i < numberOfAccounts; i++) {
+					accounts[i] = new Account("Employee "+i, i);
+				}
+				List<byte[]> signatures = new ArrayList<byte[]>();
+				for(int i = 0; i < numberOfSignatures; i++) {
+					signatures.add(accounts[i % numberOfAccounts].sign(message));
+				}
+				for(int round = 0; round < WARMUP_ROUNDS; round++) {
+					timeVerifications(accounts, message, signatures);
+				}
+				double providerPerSecond = numberOfSignatures / 
+						(timeVerifications(accounts, message, signatures) / 1e9);
+				
+				// the warm up builds the tables of every account
+				PrecomputedKeyCache precomputedKeys = new PrecomputedKeyCache(numberOfAccounts);
+				for(int round = 0; round < WARMUP_ROUNDS; round++) {
+					timeVerifications(accounts, message, signatures, precomputedKeys);
+				}
+				double precomputedPerSecond = numberOfSignatures / 
+						(timeVerifications(accounts, message, signatures, precomputedKeys) / 1e9);
+
+				System.out.println("[Accounts] "+numberOfAccounts+"\t\t| Provider Verifications/s: "+
+						providerPerSecond+" Precomputed Verifications/s: "+precomputedPerSecond);
+				csvPrinter.printRecord(numberOfAccounts, numberOfSignatures, providerPerSecond, 
+						precomputedPerSecond);
+			}
+			csvPrinter.flush();
+        } catch (IOException | GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) {
+		int[] threadCounts = new int[] {1, 2, 4, 8, 16};
+		benchmarkSigningThroughput(threadCounts, 500, "./analysis/benchmarking/signing_throughput.csv");
+		int[] numbersOfAccounts = new int[] {1, 10, 100};
+		benchmarkPrecomputedVerification(numbersOfAccounts, 2000, 
+				"./analysis/benchmarking/precomputed_verification.csv");
+	}
+
+}
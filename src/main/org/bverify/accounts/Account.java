@@ -1,7 +1,10 @@
 package org.bverify.accounts;
 
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.security.InvalidKeyException;
+import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
@@ -11,6 +14,14 @@ import java.security.SecureRandom;
 import java.security.Security;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+import org.bverify.serialization.BverifySerialization;
+import org.bverify.util.Sha256;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 public class Account implements Serializable {
 	
@@ -23,8 +34,21 @@ public class Account implements Serializable {
 	/** For signing - we use ECDSA with SHA 256 */
 	private KeyPair ecdsaKey; 
 	
-	// should not be serailized
-	private transient Signature ecdsaSignature;
+	/**
+	 * Signature objects are not thread safe, so each thread signs and 
+	 * verifies with its own instance. The instance is shared by all
+	 * accounts - it is initialized with the account's key on each use.
+	 */
+	private static final ThreadLocal<Signature> ECDSA_SIGNATURE = 
+			ThreadLocal.withInitial(Account::newSignature);
+	
+	/** Each thread draws the randomness for its signatures from its own source */
+	private static final ThreadLocal<SecureRandom> RANDOMNESS = 
+			ThreadLocal.withInitial(SecureRandom::new);
+	
+	// cached encodings of the public key
+	private transient byte[] encodedPubKey;
+	private transient byte[] fingerprint;
 	
 	static {
 		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
@@ -41,31 +65,152 @@ public class Account implements Serializable {
 			KeyPairGenerator ecdsaGen = KeyPairGenerator.getInstance("ECDSA", "BC");
 	        ecdsaGen.initialize(256, new SecureRandom());
 	        this.ecdsaKey = ecdsaGen.genKeyPair();
-	        this.ecdsaSignature = Signature.getInstance("SHA256withECDSA", "BC");
 		} catch(Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException("No SHA256 Provider");
 		}
 	}
 	
+	/**
+	 * Creates an account that only has a public key - e.g. an 
+	 * account parsed from a serialized record. Such an account can check 
+	 * signatures but cannot sign.
+	 * @param name
+	 * @param id
+	 * @param pubKey
+	 */
+	public Account(String name, long id, PublicKey pubKey) {
+		this(name, id, pubKey, null);
+	}
+	
+	Account(String name, long id, PublicKey pubKey, byte[] encodedPubKey) {
+		this.name = name;
+		this.id = id;
+		this.ecdsaKey = new KeyPair(pubKey, null);
+		this.encodedPubKey = encodedPubKey;
+	}
+	
+	/**
+	 * A deserialized account that only has a public key is resolved in 
+	 * the default {@link AccountRegistry}, so that it is shared like
+	 * the accounts of parsed records. Accounts that can sign are 
+	 * never interned.
+	 * @return
+	 * @throws ObjectStreamException
+	 */
+	private Object readResolve() throws ObjectStreamException {
+		if(this.canSign()) {
+			return this;
+		}
+		try {
+			return AccountRegistry.getDefault().resolve(this.name, this.id, this.getEncodedPubKey());
+		} catch (InvalidProtocolBufferException e) {
+			throw new InvalidObjectException(e.getMessage());
+		}
+	}
+	
 	public PublicKey getPubKey() {
 		return this.ecdsaKey.getPublic();
 	}
 
+	/**
+	 * @return the X.509 encoding of the public key - 
+	 * 		this should not be modified
+	 */
+	public byte[] getEncodedPubKey() {
+		if(this.encodedPubKey == null) {
+			this.encodedPubKey = this.ecdsaKey.getPublic().getEncoded();
+		}
+		return this.encodedPubKey;
+	}
+	
+	/**
+	 * @return the fingerprint of the public key - the SHA-256 hash of its 
+	 * 		X.509 encoding. This should not be modified
+	 */
+	public byte[] getFingerprint() {
+		if(this.fingerprint == null) {
+			this.fingerprint = Sha256.hash(this.getEncodedPubKey());
+		}
+		return this.fingerprint;
+	}
+	
+	/**
+	 * @return true if the account has a private key and can sign
+	 */
+	public boolean canSign() {
+		return this.ecdsaKey.getPrivate() != null;
+	}
+	
+	/**
+	 * Signs the message. Safe to call from many threads concurrently.
+	 * @param message
+	 * @return
+	 * @throws InvalidKeyException - if the account has no private key
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchProviderException
+	 * @throws SignatureException
+	 */
 	public byte[] sign(byte[] message) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
-		this.ensureSignatureLoaded();
+		return this.sign(message, 0, message.length);
+	}
+	
+	/**
+	 * Signs message[offset, offset + length) - e.g. a message 
+	 * written into a reusable buffer. Safe to call from many 
+	 * threads concurrently.
+	 * @param message
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws InvalidKeyException - if the account has no private key
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchProviderException
+	 * @throws SignatureException
+	 */
+	public byte[] sign(byte[] message, int offset, int length) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		if(!this.canSign()) {
+			throw new InvalidKeyException("Account "+this.id+" has no private key");
+		}
+		Signature ecdsaSignature = ECDSA_SIGNATURE.get();
 		// use new randomness for each signature 
-		this.ecdsaSignature.initSign(this.ecdsaKey.getPrivate(), new SecureRandom());
-        this.ecdsaSignature.update(message);
-        byte[] ecdsaSignatureBytes = this.ecdsaSignature.sign();
+		ecdsaSignature.initSign(this.ecdsaKey.getPrivate(), RANDOMNESS.get());
+        ecdsaSignature.update(message, offset, length);
+        byte[] ecdsaSignatureBytes = ecdsaSignature.sign();
         return ecdsaSignatureBytes;
 	}
 	
+	/**
+	 * Checks the signature of the message. Safe to call from 
+	 * many threads concurrently.
+	 * @param message
+	 * @param signature
+	 * @return
+	 * @throws SignatureException
+	 * @throws InvalidKeyException
+	 */
 	public boolean checkSignature(byte[] message, byte[] signature) throws SignatureException, InvalidKeyException {
-		this.ensureSignatureLoaded();
-		this.ecdsaSignature.initVerify(this.ecdsaKey.getPublic());
-		this.ecdsaSignature.update(message);
-		return this.ecdsaSignature.verify(signature);
+		return this.checkSignature(message, 0, message.length, signature);
+	}
+	
+	/**
+	 * Checks the signature of message[offset, offset + length). Safe to 
+	 * call from many threads concurrently. Signatures of hot accounts can
+	 * be verified faster with a {@link PrecomputedKeyCache}.
+	 * @param message
+	 * @param offset
+	 * @param length
+	 * @param signature
+	 * @return
+	 * @throws SignatureException
+	 * @throws InvalidKeyException
+	 */
+	public boolean checkSignature(byte[] message, int offset, int length, byte[] signature) 
+			throws SignatureException, InvalidKeyException {
+		Signature ecdsaSignature = ECDSA_SIGNATURE.get();
+		ecdsaSignature.initVerify(this.ecdsaKey.getPublic());
+		ecdsaSignature.update(message, offset, length);
+		return ecdsaSignature.verify(signature);
 	}
 
 	public String getName() {
@@ -77,18 +222,64 @@ public class Account implements Serializable {
 	}
 	
 	/**
-	 * When accounts are serialized we do not serialize the Signature 
-	 * (because this must be loaded fresh from a provider each time).
-	 * Thus we may need to setup a new Signature
+	 * Serializes the public information about the account 
+	 * (the private key is never included)
+	 * @return
 	 */
-	private void ensureSignatureLoaded() {
-		if(this.ecdsaSignature == null) {
-			try {
-				this.ecdsaSignature = Signature.getInstance("SHA256withECDSA", "BC");
-			} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-				e.printStackTrace();
-				throw new RuntimeException("No SHA256 Provider");
-			}
+	public BverifySerialization.Account serializeAccount() {
+		return BverifySerialization.Account.newBuilder()
+				.setId(this.id)
+				.setName(this.name)
+				.setPublicKey(ByteString.copyFrom(this.getEncodedPubKey()))
+				.build();
+	}
+	
+	/**
+	 * Parses a serialized account, resolving it in the 
+	 * default {@link AccountRegistry}. The resulting account 
+	 * only has a public key.
+	 * @param message
+	 * @return
+	 * @throws InvalidProtocolBufferException - if the public key is not valid
+	 */
+	public static Account parseAccount(BverifySerialization.Account message) 
+			throws InvalidProtocolBufferException {
+		return Account.parseAccount(message, AccountRegistry.getDefault());
+	}
+	
+	/**
+	 * Parses a serialized account, resolving it in the registry
+	 * @see #parseAccount(org.bverify.serialization.BverifySerialization.Account)
+	 */
+	public static Account parseAccount(BverifySerialization.Account message, AccountRegistry registry) 
+			throws InvalidProtocolBufferException {
+		return registry.resolve(message.getName(), message.getId(), 
+				message.getPublicKey().toByteArray());
+	}
+	
+	/**
+	 * Decodes an X.509 encoded ECDSA public key
+	 * @param encoded
+	 * @return
+	 * @throws InvalidProtocolBufferException - if the key is not valid
+	 */
+	public static PublicKey decodePublicKey(byte[] encoded) throws InvalidProtocolBufferException {
+		try {
+			return KeyFactory.getInstance("ECDSA", "BC").generatePublic(new X509EncodedKeySpec(encoded));
+		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+			e.printStackTrace();
+			throw new RuntimeException("No ECDSA Provider");
+		} catch (InvalidKeySpecException e) {
+			throw new InvalidProtocolBufferException("Invalid public key: "+e.getMessage());
+		}
+	}
+	
+	private static Signature newSignature() {
+		try {
+			return Signature.getInstance("SHA256withECDSA", "BC");
+		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+			e.printStackTrace();
+			throw new RuntimeException("No SHA256 Provider");
 		}
 	}
 	
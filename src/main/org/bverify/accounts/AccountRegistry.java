@@ -0,0 +1,99 @@
+package org.bverify.accounts;
+
+import java.nio.ByteBuffer;
+
+import org.bverify.util.LruCache;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Interns accounts so that all parsed records that reference an account share
+ * a single {@link Account} (and a single decoded public key) instead of
+ * each holding its own copy. Accounts are resolved when records are parsed
+ * (see {@link Account#parseAccount(org.bverify.serialization.BverifySerialization.Account)})
+ * and when accounts that only have a public key are deserialized.
+ *
+ * Resolved accounts are kept in a size-bounded cache of recently resolved
+ * accounts, keyed by their encoded public key - so accounts parsed from
+ * untrusted input can not fill up memory. An id is never bound to a key:
+ * an account is only shared with accounts that have the same id, name
+ * and key. Resolving always returns accounts that only have a public key.
+ *
+ * The registry is thread safe.
+ *
+ */
+public class AccountRegistry {
+
+	/** The default number of resolved accounts to cache */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final AccountRegistry DEFAULT = new AccountRegistry();
+
+	// recently resolved accounts, by encoded public key
+	private final LruCache<ByteBuffer, Account> resolvedAccounts;
+
+	public AccountRegistry() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity - maximum number of resolved accounts to cache
+	 */
+	public AccountRegistry(int capacity) {
+		this.resolvedAccounts = new LruCache<ByteBuffer, Account>(capacity);
+	}
+
+	/**
+	 * The registry used when parsing records and deserializing accounts
+	 * @return
+	 */
+	public static AccountRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns an account with the given id, name and encoded public key
+	 * that only has a public key. If the account was resolved recently
+	 * the same account is returned and its key is not decoded again.
+	 * @param name
+	 * @param id
+	 * @param encodedPubKey - X.509 encoded public key
+	 * @return
+	 * @throws InvalidProtocolBufferException - if the key is not valid
+	 */
+	public Account resolve(String name, long id, byte[] encodedPubKey) throws InvalidProtocolBufferException {
+		ByteBuffer key = ByteBuffer.wrap(encodedPubKey.clone());
+		synchronized(this.resolvedAccounts) {
+			Account cached = this.resolvedAccounts.get(key);
+			if(cached != null && cached.getId() == id && cached.getName().equals(name)) {
+				return cached;
+			}
+		}
+		Account account = new Account(name, id, Account.decodePublicKey(key.array()), key.array());
+		synchronized(this.resolvedAccounts) {
+			this.resolvedAccounts.put(key, account);
+		}
+		return account;
+	}
+
+	/**
+	 * The number of cached resolved accounts, at most the capacity
+	 * @return
+	 */
+	public int size() {
+		synchronized(this.resolvedAccounts) {
+			return this.resolvedAccounts.size();
+		}
+	}
+
+	public int getCapacity() {
+		return this.resolvedAccounts.getCapacity();
+	}
+
+	public void clear() {
+		synchronized(this.resolvedAccounts) {
+			this.resolvedAccounts.clear();
+		}
+	}
+
+}
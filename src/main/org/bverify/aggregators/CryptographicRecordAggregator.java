@@ -1,9 +1,12 @@
 package org.bverify.aggregators;
 
+import java.io.IOException;
+import java.util.List;
+
 import org.bverify.records.Record;
 
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
 
 import edu.rice.historytree.AggregationInterface;
 
@@ -12,7 +15,7 @@ import edu.rice.historytree.AggregationInterface;
  * It tracks two aggregates: netAmount - the net value of the records in the (sub)tree
  * and totalAmount - the total value of records in the (sub)tree. These values 
  * are calculated recursively and included as input to cryptographic hash function
- * (SHA-256) in the intermediate nodes.
+ * (SHA-256 by default) in the intermediate nodes.
  * 
  * 
  * See {@code RecordAggregation} for details
@@ -21,34 +24,121 @@ import edu.rice.historytree.AggregationInterface;
  * we will parse the raw bytes using this code. That means that if the records are 
  * manipulated we will compute the 'true' aggregation values which will be 
  * different than any previously stored value. This allows us to detect tampering
+ * 
+ * If constructed with deferHashing = true the hashes of internal nodes are 
+ * only calculated when they are first needed (e.g. when a commitment or proof 
+ * is made) rather than on every append - see {@link RecordAggregation#deferred}.
+ * The hashes are the same either way.
+ * 
+ * The hash function is configurable (see {@link HashAlgorithm}). The configuration 
+ * string of the aggregator ({@link #getConfig()}) is the name of the algorithm.
+ * 
+ * Leaf aggregations of records that are about to be appended can be 
+ * calculated ahead of time (e.g. in parallel, or from a {@link org.bverify.records.RecordBatch})
+ * and handed to the aggregator with {@link #precomputeLeaves(List, RecordAggregation[])}.
+ * They are only used by the thread that handed them over, and never by a 
+ * copy of the aggregator (see {@link #clone()}), so building a pruned tree 
+ * or aggregating on another thread during a batch can not consume them.
  *  
  * @author henryaspegren
  *
  */
 public class CryptographicRecordAggregator implements AggregationInterface<RecordAggregation, Record> {
 
+	private final HashAlgorithm hashAlgorithm;
+	private final boolean deferHashing;
+	
+	// leaf aggregations of the next records the thread appends
+	private final ThreadLocal<PrecomputedLeaves> precomputed = new ThreadLocal<PrecomputedLeaves>();
+	
+	public CryptographicRecordAggregator() {
+		this(HashAlgorithm.DEFAULT, false);
+	}
+	
+	public CryptographicRecordAggregator(boolean deferHashing) {
+		this(HashAlgorithm.DEFAULT, deferHashing);
+	}
+	
+	public CryptographicRecordAggregator(HashAlgorithm hashAlgorithm) {
+		this(hashAlgorithm, false);
+	}
+	
+	public CryptographicRecordAggregator(HashAlgorithm hashAlgorithm, boolean deferHashing) {
+		this.hashAlgorithm = hashAlgorithm;
+		this.deferHashing = deferHashing;
+	}
+	
+	public boolean isDeferHashing() {
+		return this.deferHashing;
+	}
+	
+	public HashAlgorithm getHashAlgorithm() {
+		return this.hashAlgorithm;
+	}
+
 	public String getName() {
 		return "CryptoRecordAgg";
 	}
 
 	public String getConfig() {
-		return "";
+		return this.hashAlgorithm.getName();
 	}
 	
+	/**
+	 * Returns an aggregator using the hash algorithm named by the 
+	 * config. An empty config is the default algorithm (SHA-256).
+	 */
 	public AggregationInterface<RecordAggregation, Record> setup(String config) {
-		return this;
+		HashAlgorithm configured = (config == null || config.isEmpty()) ? 
+				HashAlgorithm.DEFAULT : HashAlgorithm.fromName(config);
+		if(configured == this.hashAlgorithm) {
+			return this;
+		}
+		return new CryptographicRecordAggregator(configured, this.deferHashing);
 	}
 
 	public RecordAggregation aggChildren(RecordAggregation leftAnn, RecordAggregation rightAnn) {
+		if(this.deferHashing) {
+			return RecordAggregation.deferred(leftAnn, rightAnn);
+		}
 		return new RecordAggregation(leftAnn, rightAnn);
 	}
 
 	public RecordAggregation aggVal(Record event) {
-		return new RecordAggregation(event);
+		PrecomputedLeaves precomputed = this.precomputed.get();
+		if(precomputed != null) {
+			RecordAggregation leaf = precomputed.next(event);
+			if(leaf != null) {
+				return leaf;
+			}
+		}
+		return new RecordAggregation(event, this.hashAlgorithm);
+	}
+	
+	/**
+	 * Use precomputed leaf aggregations for the next records appended. 
+	 * When the record being aggregated is the next of the records the 
+	 * precomputed aggregation is returned, otherwise (e.g. after all of 
+	 * them have been appended) the record is aggregated normally.
+	 * Only applies to records aggregated by the calling thread, until it 
+	 * calls {@link #clearPrecomputedLeaves()}.
+	 * @param records
+	 * @param leaves - leaves[i] is the aggregation of records[i], 
+	 * 			calculated with this aggregator's hash algorithm
+	 */
+	public void precomputeLeaves(List<? extends Record> records, RecordAggregation[] leaves) {
+		if(records.size() != leaves.length) {
+			throw new RuntimeException("Error - number of records and leaf aggregations differ");
+		}
+		this.precomputed.set(new PrecomputedLeaves(records, leaves));
+	}
+	
+	public void clearPrecomputedLeaves() {
+		this.precomputed.remove();
 	}
 
 	public RecordAggregation emptyAgg() {
-		return new RecordAggregation();
+		return new RecordAggregation(this.hashAlgorithm);
 	}
 
 	
@@ -70,32 +160,68 @@ public class CryptographicRecordAggregator implements AggregationInterface<Recor
 	}
 
 
+	/**
+	 * Aggregations and records are decoded in a single pass 
+	 * straight from the ByteString - the bytes are not copied out 
+	 * and nested messages are not re-serialized to be parsed again
+	 */
 	public RecordAggregation parseAgg(ByteString b) {
-		RecordAggregation recordAgg = new RecordAggregation();
 		try {
-			recordAgg.parseFrom(b.toByteArray());
-		} catch (InvalidProtocolBufferException e) {
+			return RecordAggregation.readFrom(CryptographicRecordAggregator.newInput(b), this.hashAlgorithm);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return recordAgg;
-		
+		return new RecordAggregation(this.hashAlgorithm);
 	}
 
 	public Record parseVal(ByteString b) {
 		Record r;
 		try {
-			r = Record.parseRecord(b.toByteArray());
-		} catch (InvalidProtocolBufferException e) {
+			r = Record.parseRecord(CryptographicRecordAggregator.newInput(b));
+		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException("Fatal serialization error");
 		}
 		return r;
 	}
+	
+	private static CodedInputStream newInput(ByteString b) {
+		CodedInputStream input = b.newCodedInput();
+		// nested bytes fields can share the underlying buffer 
+		// since ByteStrings are immutable
+		input.enableAliasing(true);
+		return input;
+	}
 
+	/**
+	 * Returns a new aggregator with the same configuration, 
+	 * without any precomputed leaves
+	 */
 	public AggregationInterface<RecordAggregation, Record> clone() {
-		// this aggregator is stateless
-		return this;
+		return new CryptographicRecordAggregator(this.hashAlgorithm, this.deferHashing);
+	}
+	
+	private static class PrecomputedLeaves {
+		
+		private final List<? extends Record> records;
+		private final RecordAggregation[] leaves;
+		private int next;
+		
+		PrecomputedLeaves(List<? extends Record> records, RecordAggregation[] leaves) {
+			this.records = records;
+			this.leaves = leaves;
+			this.next = 0;
+		}
+		
+		/**
+		 * The leaf of the record if it is the next of the records, otherwise null
+		 */
+		RecordAggregation next(Record record) {
+			if(this.next < this.leaves.length && this.records.get(this.next) == record) {
+				return this.leaves[this.next++];
+			}
+			return null;
+		}
 	}
-
 
 }
@@ -0,0 +1,183 @@
+package org.bverify.aggregators;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.digests.Blake2sDigest;
+import org.bouncycastle.crypto.digests.SHA512tDigest;
+
+/**
+ * The hash functions that can be used to hash the nodes of
+ * a record history tree. The algorithm is part of the configuration
+ * of the {@link CryptographicRecordAggregator} and every
+ * {@link RecordAggregation} records the algorithm its hash was calculated with.
+ *
+ * Truncated variants use the first bytes of the full output.
+ *
+ * The root hash is published as a commitment in a single
+ * OP_RETURN output so no hash may be larger than {@link #MAX_HASH_SIZE}
+ *
+ */
+public enum HashAlgorithm {
+
+	SHA_256("SHA-256", 32) {
+		@Override
+		Digest newDigest() {
+			return new JcaDigest("SHA-256");
+		}
+	},
+	SHA_512_256("SHA-512/256", 32) {
+		@Override
+		Digest newDigest() {
+			return new SHA512tDigest(256);
+		}
+	},
+	BLAKE2B_256("BLAKE2b-256", 32) {
+		@Override
+		Digest newDigest() {
+			return new Blake2bDigest(256);
+		}
+	},
+	BLAKE2S_256("BLAKE2s-256", 32) {
+		@Override
+		Digest newDigest() {
+			return new Blake2sDigest(256);
+		}
+	},
+	BLAKE2B_160("BLAKE2b-160", 20) {
+		@Override
+		Digest newDigest() {
+			return new Blake2bDigest(160);
+		}
+	},
+	SHA_256_TRUNCATED_160("SHA-256/160", 20) {
+		@Override
+		Digest newDigest() {
+			return new JcaDigest("SHA-256");
+		}
+	},
+	SHA_512_256_TRUNCATED_160("SHA-512/256/160", 20) {
+		@Override
+		Digest newDigest() {
+			return new SHA512tDigest(256);
+		}
+	};
+
+	/**
+	 * The hash used unless otherwise configured. All
+	 * existing commitments are SHA-256 hashes.
+	 */
+	public static final HashAlgorithm DEFAULT = SHA_256;
+
+	/**
+	 * OP_RETURN outputs can carry at most 80 bytes
+	 * (see {@link org.catena.common.SimpleWallet#appendStatement(byte[])})
+	 */
+	public static final int MAX_HASH_SIZE = 80;
+
+	private final String name;
+	private final int hashSize;
+
+	private HashAlgorithm(String name, int hashSize) {
+		if(hashSize > MAX_HASH_SIZE) {
+			throw new RuntimeException("Error - hash does not fit in a commitment");
+		}
+		this.name = name;
+		this.hashSize = hashSize;
+	}
+
+	/**
+	 * Creates a new digest. Note that the digest output may be larger than
+	 * {@link #hashSize()} in which case the hash is truncated.
+	 * @return
+	 */
+	abstract Digest newDigest();
+
+	/**
+	 * The name of the algorithm, used as the configuration
+	 * string of the aggregator
+	 * @return
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Size of the hashes in bytes
+	 * @return
+	 */
+	public int hashSize() {
+		return this.hashSize;
+	}
+
+	/**
+	 * Returns the algorithm with the given name
+	 * @param name
+	 * @return
+	 */
+	public static HashAlgorithm fromName(String name) {
+		for(HashAlgorithm algorithm : HashAlgorithm.values()) {
+			if(algorithm.name.equals(name)) {
+				return algorithm;
+			}
+		}
+		throw new RuntimeException("Error - unknown hash algorithm: "+name);
+	}
+
+	/**
+	 * Adapts a JCA message digest (which can use the
+	 * hardware SHA instructions) to the BouncyCastle interface
+	 */
+	private static final class JcaDigest implements Digest {
+
+		private final MessageDigest md;
+
+		JcaDigest(String algorithm) {
+			try {
+				this.md = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+				throw new RuntimeException("FATAL BUG");
+			}
+		}
+
+		@Override
+		public String getAlgorithmName() {
+			return this.md.getAlgorithm();
+		}
+
+		@Override
+		public int getDigestSize() {
+			return this.md.getDigestLength();
+		}
+
+		@Override
+		public void update(byte in) {
+			this.md.update(in);
+		}
+
+		@Override
+		public void update(byte[] in, int inOff, int len) {
+			this.md.update(in, inOff, len);
+		}
+
+		@Override
+		public int doFinal(byte[] out, int outOff) {
+			try {
+				return this.md.digest(out, outOff, this.md.getDigestLength());
+			} catch (DigestException e) {
+				e.printStackTrace();
+				throw new RuntimeException("FATAL BUG");
+			}
+		}
+
+		@Override
+		public void reset() {
+			this.md.reset();
+		}
+	}
+
+}
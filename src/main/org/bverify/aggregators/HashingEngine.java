@@ -0,0 +1,159 @@
+package org.bverify.aggregators;
+
+import org.bouncycastle.crypto.Digest;
+import org.bverify.records.CategoricalAttributes;
+import org.bverify.records.EncodingBuffer;
+import org.bverify.records.NumericalAttributes;
+import org.bverify.records.Record;
+import org.bverify.records.RecordBatch;
+
+/**
+ * Computes the hashes of record aggregations without
+ * allocating intermediate objects. Each thread gets its own engine
+ * per hash algorithm (see {@link #get(HashAlgorithm)}) which holds a
+ * reusable digest and a scratch buffer. The entire input of a hash is
+ * written into the scratch buffer and digested in a single call.
+ *
+ * Engines are NOT thread safe and should never be shared between threads.
+ *
+ */
+public final class HashingEngine {
+
+	/**
+	 * Size of the hashes of the default algorithm (SHA-256)
+	 */
+	public static final int HASH_SIZE = 32;
+
+	private static final ThreadLocal<HashingEngine[]> ENGINES =
+			ThreadLocal.withInitial(() -> new HashingEngine[HashAlgorithm.values().length]);
+
+	private final HashAlgorithm algorithm;
+	private final Digest digest;
+	// holds the full digest output when the hash is truncated
+	private final byte[] fullOutput;
+	private final EncodingBuffer scratch;
+
+	private HashingEngine(HashAlgorithm algorithm) {
+		this.algorithm = algorithm;
+		this.digest = algorithm.newDigest();
+		this.fullOutput = new byte[this.digest.getDigestSize()];
+		this.scratch = new EncodingBuffer();
+	}
+
+	/**
+	 * Get the (default algorithm) hashing engine for the current thread
+	 * @return
+	 */
+	public static HashingEngine get() {
+		return HashingEngine.get(HashAlgorithm.DEFAULT);
+	}
+
+	/**
+	 * Get the hashing engine for the algorithm for the current thread
+	 * @param algorithm
+	 * @return
+	 */
+	public static HashingEngine get(HashAlgorithm algorithm) {
+		HashingEngine[] engines = ENGINES.get();
+		HashingEngine engine = engines[algorithm.ordinal()];
+		if(engine == null) {
+			engine = new HashingEngine(algorithm);
+			engines[algorithm.ordinal()] = engine;
+		}
+		return engine;
+	}
+
+	public HashAlgorithm getAlgorithm() {
+		return this.algorithm;
+	}
+
+	public int hashSize() {
+		return this.algorithm.hashSize();
+	}
+
+	/**
+	 * Hash of a leaf - the hash of the canonical leaf encoding
+	 * of the record
+	 * @param record
+	 * @return
+	 */
+	public byte[] hashLeaf(Record record) {
+		byte[] res = new byte[this.hashSize()];
+		this.hashLeaf(record, res, 0);
+		return res;
+	}
+
+	/**
+	 * Hash of a leaf, written directly into out
+	 * @param record
+	 * @param out
+	 * @param offset - where in out to write the hash
+	 */
+	public void hashLeaf(Record record, byte[] out, int offset) {
+		record.writeLeafEncoding(this.begin());
+		this.finish(out, offset);
+	}
+
+	/**
+	 * Hash of a leaf for a record of a batch, written directly into out
+	 * (see {@link RecordBatch#writeLeafEncoding(int, EncodingBuffer)})
+	 * @param batch
+	 * @param row - the record in the batch
+	 * @param out
+	 * @param offset - where in out to write the hash
+	 */
+	public void hashLeaf(RecordBatch batch, int row, byte[] out, int offset) {
+		batch.writeLeafEncoding(row, this.begin());
+		this.finish(out, offset);
+	}
+
+	/**
+	 * Hash of an internal node:
+	 * 		H(numerical attributes || categorical attributes ||
+	 * 				left hash || right hash)
+	 * @param numericalAttributes
+	 * @param categoricalAttributes
+	 * @param hashLeft
+	 * @param hashRight
+	 * @return
+	 */
+	public byte[] hashNode(NumericalAttributes numericalAttributes,
+			CategoricalAttributes categoricalAttributes, byte[] hashLeft, byte[] hashRight) {
+		EncodingBuffer input = this.begin();
+		numericalAttributes.writeHashInput(input);
+		categoricalAttributes.writeHashInput(input);
+		input.writeBytes(hashLeft);
+		input.writeBytes(hashRight);
+		byte[] res = new byte[this.hashSize()];
+		this.finish(res, 0);
+		return res;
+	}
+
+	/**
+	 * Start a new hash. The input of the hash should be
+	 * written into the returned buffer and the hash completed
+	 * by {@link #finish(byte[], int)}
+	 * @return
+	 */
+	EncodingBuffer begin() {
+		return this.scratch.reset();
+	}
+
+	/**
+	 * Digest everything written since {@link #begin()}
+	 * and write the hash into out
+	 * @param out
+	 * @param offset
+	 */
+	void finish(byte[] out, int offset) {
+		this.digest.update(this.scratch.array(), 0, this.scratch.size());
+		int hashSize = this.hashSize();
+		if(this.fullOutput.length == hashSize) {
+			this.digest.doFinal(out, offset);
+		}else {
+			this.digest.doFinal(this.fullOutput, 0);
+			System.arraycopy(this.fullOutput, 0, out, offset, hashSize);
+		}
+	}
+
+}
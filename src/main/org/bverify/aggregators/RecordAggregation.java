@@ -1,20 +1,22 @@
 package org.bverify.aggregators;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.bouncycastle.util.Arrays;
 import org.bverify.records.CategoricalAttributes;
+import org.bverify.records.EncodingBuffer;
 import org.bverify.records.NumericalAttributes;
 import org.bverify.records.Record;
+import org.bverify.records.RecordBatch;
 import org.bverify.serialization.BverifySerialization;
 
-import com.google.common.primitives.Ints;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 
 /**
  * Represents a recursive aggregation of records. 
@@ -24,7 +26,8 @@ import com.google.protobuf.InvalidProtocolBufferException;
  *  Here is the recursion for calculating hashes
  *  
  *  BASE CASES(records)
- * 		hash = SHA-256(Record -> to Bytes)	
+ * 		hash = H(canonical leaf encoding of the record)	
+ * 		(see {@link Record#writeLeafEncoding(org.bverify.records.EncodingBuffer)})
  * 
  * 	RECURSIVE CASE
  * 		Agg(RecordAggregation a, RecordAggregation b) : 
@@ -33,10 +36,37 @@ import com.google.protobuf.InvalidProtocolBufferException;
  * 
  * 			new categorical attributes = a.attributes BITWISE OR b.attributes
  * 			
- * 			hash = SHA-256(new numerical attributes || 
+ * 			hash = H(new numerical attributes || 
  * 							new categorical attributes || 
  * 											a.hash || b.hash )
  * 
+ * 	H is the hash algorithm of the aggregator (SHA-256 by default, see
+ * 	{@link HashAlgorithm}). Every aggregation records its algorithm and
+ * 	only aggregations with the same algorithm can be combined.
+ *
+ * 	REPRESENTATION
+ * 		Since a tree contains a very large number of aggregations
+ * 		each aggregation is stored as a single flat byte array (the slab):
+ *
+ * 			number of numerical attributes (4 bytes) |
+ * 			number of categorical attributes (4 bytes) |
+ * 			numerical attributes (4 bytes each) |
+ * 			categorical attributes (bitmap, ceil(number/8) bytes) |
+ * 			hash (hash size of the algorithm, e.g. 32 bytes for SHA-256)
+ *
+ * 		The numerical and categorical regions are laid out exactly as
+ * 		they are input into the hash. Use the read-only accessors
+ * 		(e.g. {@link #getNumericalAttribute(int)}) to avoid copying.
+ *
+ * 	DEFERRED HASHING
+ * 		An aggregation created by {@link #deferred(RecordAggregation, RecordAggregation)}
+ * 		calculates its attributes immediately but keeps references to its
+ * 		children and only calculates its hash the first time the hash is
+ * 		needed (read, compared, serialized or used as input to the
+ * 		parent's hash). Since appending to a history tree recomputes the
+ * 		aggregations along the right spine on every append, most of these
+ * 		are replaced before their hash is ever needed. The resulting hashes are
+ * 		identical to eagerly calculated ones.
  * 
  * @author henryaspegren
  *
@@ -44,34 +74,56 @@ import com.google.protobuf.InvalidProtocolBufferException;
 public class RecordAggregation implements Serializable {
 	
 	// version
-	private static final long serialVersionUID = 3L;
+	private static final long serialVersionUID = 5L;
+
+	// 32 bytes for SHA-256 hash (other algorithms use
+	// the all zero hash of their size)
+	public static final byte[] NULL_HASH = new byte[HashingEngine.HASH_SIZE];
+
+	private static final int NUMERICAL_COUNT_OFFSET = 0;
+	private static final int CATEGORICAL_COUNT_OFFSET = 4;
+	private static final int NUMERICAL_OFFSET = 8;
 
-	// 32 bytes for SHA-256 hash
-	public static final byte[] NULL_HASH = new byte[32];
+	// wire format tags of the serialized RecordAggregation message
+	// tag = (field number << 3) | wire type
+	private static final int NUMERICAL_ATTRIBUTES_TAG =
+			(1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int CATEGORICAL_ATTRIBUTES_TAG =
+			(2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int HASH_TAG =
+			(3 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
 		
 	/**
-	 * Numerical Attributes
+	 * Attributes and hash - see class documentation for layout
 	 */
-	private NumericalAttributes numericalAttributes;
-	
-	/**
-	 * Categorical Attributes 
-	 */
-	private CategoricalAttributes categoricalAttributes;
+	private byte[] slab;
+
+	private HashAlgorithm hashAlgorithm;
 	
 	/**
-	 * Summary Hash
+	 * Set if the hash region of the slab has not been calculated yet,
+	 * in which case the children are kept until it is (deferred hashing)
 	 */
-	private byte[] hash;
+	private transient volatile boolean hashPending;
+	private transient RecordAggregation pendingLeft;
+	private transient RecordAggregation pendingRight;
 	
 	/**
 	 * Creates an empty record aggregation
 	 * 
 	 */
 	public RecordAggregation() {
-		this.hash = RecordAggregation.NULL_HASH;
-		this.categoricalAttributes = new CategoricalAttributes();
-		this.numericalAttributes = new NumericalAttributes();
+		this(HashAlgorithm.DEFAULT);
+	}
+
+	/**
+	 * Creates an empty record aggregation for the hash algorithm
+	 * (the hash is all zero)
+	 * @param hashAlgorithm
+	 */
+	public RecordAggregation(HashAlgorithm hashAlgorithm) {
+		this(new NumericalAttributes(), new CategoricalAttributes(),
+				new byte[hashAlgorithm.hashSize()], hashAlgorithm);
 	}
 	
 	/**
@@ -79,22 +131,37 @@ public class RecordAggregation implements Serializable {
 	 * @param leftval
 	 */
 	public RecordAggregation(Record val) {
-		this.categoricalAttributes = val.getCategoricalAttributes();
-		this.numericalAttributes = val.getNumericalAttributes();
+		this(val, HashAlgorithm.DEFAULT);
+	}
 
-		byte[] recordSerialization = SerializationUtils.serialize(val);
-		byte[] hashRes; 
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			md.update(recordSerialization);
-			hashRes = md.digest();
-			
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			hashRes = null;
-		}
-		this.hash = hashRes;
+	/**
+	 * Creates a record aggregation of a single record, hashed
+	 * with the hash algorithm
+	 * @param val
+	 * @param hashAlgorithm
+	 */
+	public RecordAggregation(Record val, HashAlgorithm hashAlgorithm) {
+		this.hashAlgorithm = hashAlgorithm;
+		this.slab = RecordAggregation.makeSlab(val.getNumericalAttributes(),
+				val.getCategoricalAttributes(), hashAlgorithm.hashSize());
+		HashingEngine.get(hashAlgorithm).hashLeaf(val, this.slab, this.hashOffset());
+	}
 
+	/**
+	 * Creates a record aggregation of a single record of a batch, 
+	 * read straight from the columns of the batch. Identical to the 
+	 * aggregation of the record itself.
+	 * @param batch
+	 * @param row - the record in the batch
+	 * @param hashAlgorithm
+	 */
+	public RecordAggregation(RecordBatch batch, int row, HashAlgorithm hashAlgorithm) {
+		this.hashAlgorithm = hashAlgorithm;
+		this.slab = RecordAggregation.allocateSlab(batch.numberOfNumericalAttributes(),
+				batch.numberOfCategoricalAttributes(), hashAlgorithm.hashSize());
+		batch.writeNumericalAttributes(row, this.slab, NUMERICAL_OFFSET);
+		batch.orCategoricalAttributesInto(row, this.slab, this.categoricalOffset());
+		HashingEngine.get(hashAlgorithm).hashLeaf(batch, row, this.slab, this.hashOffset());
 	}
 	
 	/**
@@ -106,11 +173,26 @@ public class RecordAggregation implements Serializable {
 	 * @param hash
 	 */
 	public RecordAggregation(int totalAmount, int netAmount, byte[] hash) {
-		this.numericalAttributes = new NumericalAttributes();
-		this.numericalAttributes.setAttribute(0, totalAmount);
-		this.numericalAttributes.setAttribute(1, netAmount);
-		this.hash = hash;
-		this.categoricalAttributes = new CategoricalAttributes();
+		NumericalAttributes numericalAttributes = new NumericalAttributes();
+		numericalAttributes.setAttribute(0, totalAmount);
+		numericalAttributes.setAttribute(1, netAmount);
+		this.hashAlgorithm = HashAlgorithm.DEFAULT;
+		this.slab = RecordAggregation.makeSlab(numericalAttributes, new CategoricalAttributes(),
+				this.hashAlgorithm.hashSize());
+		this.setHash(hash);
+	}
+
+	private RecordAggregation(NumericalAttributes numericalAttributes,
+			CategoricalAttributes categoricalAttributes, byte[] hash, HashAlgorithm hashAlgorithm) {
+		this.hashAlgorithm = hashAlgorithm;
+		this.slab = RecordAggregation.makeSlab(numericalAttributes, categoricalAttributes,
+				hashAlgorithm.hashSize());
+		this.setHash(hash);
+	}
+
+	private RecordAggregation(byte[] slab, HashAlgorithm hashAlgorithm) {
+		this.slab = slab;
+		this.hashAlgorithm = hashAlgorithm;
 	}
 	
 	/**
@@ -124,76 +206,241 @@ public class RecordAggregation implements Serializable {
 	 * @param rightagg - the 'right' record aggregation, may be null
 	 */
 	public RecordAggregation(RecordAggregation leftagg, RecordAggregation rightagg) {
-		NumericalAttributes numericalLeft, numericalRight;
-		CategoricalAttributes categoricalLeft, categoricalRight;
-		byte[] hashLeft, hashRight;
+		this(leftagg, rightagg, false);
+	}
 		
+	/**
+	 * Creates a record aggregation from two other record aggregations
+	 * but defers calculating the hash until it is first needed.
+	 * See the class documentation.
+	 * @param leftagg - the 'left' record aggregation, may be null (unusual case)
+	 * @param rightagg - the 'right' record aggregation, may be null
+	 * @return
+	 */
+	public static RecordAggregation deferred(RecordAggregation leftagg, RecordAggregation rightagg) {
+		return new RecordAggregation(leftagg, rightagg, true);
+	}
+
+	private RecordAggregation(RecordAggregation leftagg, RecordAggregation rightagg, boolean deferHash) {
 		// they should not both be null
 		assert(!(leftagg == null && rightagg == null));
 		
-		if(leftagg != null) {
-			numericalLeft = leftagg.getNumericalAttributes();
-			categoricalLeft = leftagg.getCategoricalAttributes();
-			hashLeft = leftagg.getHash();
-		}
-		else {
-			numericalLeft = new NumericalAttributes(rightagg.getNumericalAttributes().
-					numberOfAttributes());
-			categoricalLeft = new CategoricalAttributes(rightagg.getCategoricalAttributes()
-					.numberOfAttributes());
-			hashLeft = RecordAggregation.NULL_HASH;
-		}
-		if(rightagg != null) {
-			numericalRight = rightagg.getNumericalAttributes();
-			categoricalRight = rightagg.getCategoricalAttributes();
-			hashRight = rightagg.getHash();
-		}
-		else {
-			numericalRight = new NumericalAttributes(leftagg.getNumericalAttributes()
-					.numberOfAttributes());
-			categoricalRight = new CategoricalAttributes(leftagg.getCategoricalAttributes()
-					.numberOfAttributes());
-			hashRight = RecordAggregation.NULL_HASH;
+		RecordAggregation shape = (leftagg != null) ? leftagg : rightagg;
+		int numNumerical = shape.numberOfNumericalAttributes();
+		int numCategorical = shape.numberOfCategoricalAttributes();
+		if(leftagg != null && rightagg != null) {
+			if(leftagg.numberOfNumericalAttributes() != rightagg.numberOfNumericalAttributes()) {
+				throw new RuntimeException("Error - Trying to ADD two Numerical"
+						+ "Attributes with Different Numbers of Attributes!");
+			}
+			if(leftagg.numberOfCategoricalAttributes() != rightagg.numberOfCategoricalAttributes()) {
+				throw new RuntimeException("Error - Trying to OR two Categorical"
+						+ "Attributes with Different Numbers of Attributes!");
+			}
+			if(leftagg.hashAlgorithm != rightagg.hashAlgorithm) {
+				throw new RuntimeException("Error - Trying to combine aggregations"
+						+ " hashed with different hash algorithms!");
+			}
 		}
-		
+		this.hashAlgorithm = shape.hashAlgorithm;
+		this.slab = RecordAggregation.allocateSlab(numNumerical, numCategorical,
+				this.hashAlgorithm.hashSize());
+
 		// ADD the numerical attributes
-		this.numericalAttributes = numericalLeft.add(numericalRight);
+		for(int i = 0; i < numNumerical; i++) {
+			int left = (leftagg != null) ? leftagg.getNumericalAttribute(i) : 0;
+			int right = (rightagg != null) ? rightagg.getNumericalAttribute(i) : 0;
+			RecordAggregation.writeInt(this.slab, NUMERICAL_OFFSET + 4*i, left + right);
+		}
 		
 		// OR the categorical attributes
-		this.categoricalAttributes = categoricalLeft.or(categoricalRight);
+		int categoricalOffset = this.categoricalOffset();
+		int categoricalBytes = this.hashOffset() - categoricalOffset;
+		for(int i = 0; i < categoricalBytes; i++) {
+			int left = (leftagg != null) ? leftagg.slab[categoricalOffset + i] : 0;
+			int right = (rightagg != null) ? rightagg.slab[categoricalOffset + i] : 0;
+			this.slab[categoricalOffset + i] = (byte) (left | right);
+		}
 		
-		this.hash = RecordAggregation.calculateHash(this.numericalAttributes,
-				this.categoricalAttributes, hashLeft, hashRight);
-
-
+		if(deferHash) {
+			this.pendingLeft = leftagg;
+			this.pendingRight = rightagg;
+			this.hashPending = true;
+		}else {
+			this.calculateHash(leftagg, rightagg);
+		}
 	}	
 	
+	/**
+	 * Returns a copy of the categorical attributes
+	 * (copy is safe to mutate)
+	 * @return
+	 */
 	public CategoricalAttributes getCategoricalAttributes() {
-		return new CategoricalAttributes(this.categoricalAttributes);
+		int numCategorical = this.numberOfCategoricalAttributes();
+		CategoricalAttributes res = new CategoricalAttributes(numCategorical);
+		for(int i = 0; i < numCategorical; i++) {
+			if(this.getCategoricalAttribute(i)) {
+				res.setAttribute(i, true);
+			}
+		}
+		return res;
 	}
 	
+	/**
+	 * Returns a copy of the numerical attributes
+	 * (copy is safe to mutate)
+	 * @return
+	 */
 	public NumericalAttributes getNumericalAttributes(){
-		return new NumericalAttributes(this.numericalAttributes);
+		int numNumerical = this.numberOfNumericalAttributes();
+		NumericalAttributes res = new NumericalAttributes(numNumerical);
+		for(int i = 0; i < numNumerical; i++) {
+			res.setAttribute(i, this.getNumericalAttribute(i));
+		}
+		return res;
 	}
 	
-	public boolean hasCategoricalAttributes(CategoricalAttributes filter) {
-		return this.categoricalAttributes.hasAttributes(filter);
+	public int numberOfNumericalAttributes() {
+		return RecordAggregation.readInt(this.slab, NUMERICAL_COUNT_OFFSET);
 	}
 	
+	public int numberOfCategoricalAttributes() {
+		return RecordAggregation.readInt(this.slab, CATEGORICAL_COUNT_OFFSET);
+	}
+
+	/**
+	 * Read a single numerical attribute (does not copy)
+	 * @param attributeIdx
+	 * @return
+	 */
+	public int getNumericalAttribute(int attributeIdx) {
+		if(attributeIdx < 0 || attributeIdx >= this.numberOfNumericalAttributes()) {
+			throw new IndexOutOfBoundsException("Numerical attribute: "+attributeIdx);
+		}
+		return RecordAggregation.readInt(this.slab, NUMERICAL_OFFSET + 4*attributeIdx);
+	}
+
+	/**
+	 * Read a single categorical attribute (does not copy)
+	 * @param attributeIdx
+	 * @return
+	 */
+	public boolean getCategoricalAttribute(int attributeIdx) {
+		if(attributeIdx < 0 || attributeIdx >= this.numberOfCategoricalAttributes()) {
+			throw new IndexOutOfBoundsException("Categorical attribute: "+attributeIdx);
+		}
+		return (this.slab[this.categoricalOffset() + (attributeIdx >>> 3)] & (1 << (attributeIdx & 7))) != 0;
+	}
+
+	/**
+	 * Checks if this aggregation has all of the attributes in the
+	 * filter (satisfies the filter). Does not copy.
+	 * @param filter
+	 * @return
+	 */
+	public boolean hasCategoricalAttributes(CategoricalAttributes filter) {
+		if(filter.numberOfAttributes() != this.numberOfCategoricalAttributes()) {
+			throw new RuntimeException("Error - Trying to AND two Categorical"
+					+ "Attributes with Different Numbers of Attributes!");
+		}
+		return filter.isContainedIn(this.slab, this.categoricalOffset());
+	}
+
+	/**
+	 * Checks if this aggregation has exactly the attributes in 
+	 * match. Does not copy.
+	 * @param match
+	 * @return
+	 */
 	public boolean matchesCategoricalAttributes(CategoricalAttributes match) {
-		return this.categoricalAttributes.equals(match);
+		if(match.numberOfAttributes() != this.numberOfCategoricalAttributes()) {
+			return false;
+		}
+		return match.equalsBitmap(this.slab, this.categoricalOffset());
 	}
 	
 	public int getTotalAmount() {
-		return this.numericalAttributes.getAttribute(0);
+		return this.getNumericalAttribute(0);
 	}
 	
 	public int getNetAmount() {
-		return this.numericalAttributes.getAttribute(1);
+		return this.getNumericalAttribute(1);
 	}
 	
+	/**
+	 * Returns true if this aggregation was created with deferred
+	 * hashing and its hash has not been calculated yet
+	 * @return
+	 */
+	public boolean isHashPending() {
+		return this.hashPending;
+	}
+
+	/**
+	 * The children this aggregation's deferred hash will be
+	 * calculated from, or null if the hash is not pending
+	 * (used to hash a tree of deferred aggregations in parallel)
+	 * @return
+	 */
+	synchronized RecordAggregation getPendingLeft() {
+		return this.pendingLeft;
+	}
+
+	synchronized RecordAggregation getPendingRight() {
+		return this.pendingRight;
+	}
+
+	/**
+	 * Calculates the hash of this aggregation if it was deferred.
+	 * Any pending children are hashed first (bottom-up). Safe to
+	 * call from multiple threads - the hash is calculated exactly once.
+	 */
+	public void ensureHashed() {
+		if(!this.hashPending) {
+			return;
+		}
+		synchronized(this) {
+			if(this.hashPending) {
+				this.calculateHash(this.pendingLeft, this.pendingRight);
+				this.pendingLeft = null;
+				this.pendingRight = null;
+				this.hashPending = false;
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of the hash
+	 * @return
+	 */
 	public byte[] getHash() {
-		return this.hash;
+		this.ensureHashed();
+		int hashOffset = this.hashOffset();
+		return Arrays.copyOfRange(this.slab, hashOffset, this.slab.length);
+	}
+
+	/**
+	 * Writes the hash to out without copying it first - for
+	 * internal hashing paths, use {@link #getHash()} otherwise.
+	 * NOTE: the hash must already be calculated (see {@link #ensureHashed()}),
+	 * calculating it here could reuse a hashing engine in the middle of a hash
+	 * @param out
+	 */
+	void writeHashTo(EncodingBuffer out) {
+		if(this.hashPending) {
+			throw new RuntimeException("Error - hash has not been calculated");
+		}
+		int hashOffset = this.hashOffset();
+		out.writeBytes(this.slab, hashOffset, this.slab.length - hashOffset);
+	}
+
+	/**
+	 * The hash algorithm used to calculate the hash of this aggregation
+	 * @return
+	 */
+	public HashAlgorithm getHashAlgorithm() {
+		return this.hashAlgorithm;
 	}
 	
 	@Override
@@ -201,13 +448,13 @@ public class RecordAggregation implements Serializable {
 		StringBuilder sb = new StringBuilder();
 		sb.append("<RecordAggregation: ");
 		sb.append("|");
-		sb.append(this.categoricalAttributes);
+		sb.append(this.getCategoricalAttributes());
 		sb.append("|");
-		sb.append(this.numericalAttributes);
+		sb.append(this.getNumericalAttributes());
 		sb.append("|");
 		sb.append("Hash: ");
 		try {
-			sb.append(new String(this.hash, "UTF-8"));
+			sb.append(new String(this.getHash(), "UTF-8"));
 		} catch (UnsupportedEncodingException e) {
 			e.printStackTrace();
 		}
@@ -219,39 +466,89 @@ public class RecordAggregation implements Serializable {
 	public boolean equals(Object arg0) {
 		if(arg0 instanceof RecordAggregation) {
 			RecordAggregation arg = (RecordAggregation) arg0;
-			if(Arrays.areEqual(arg.getHash(), this.getHash()) &&
-					arg.categoricalAttributes.equals(this.categoricalAttributes) &&
-					arg.numericalAttributes.equals(this.numericalAttributes)) {
-				return true;
-			}
+			this.ensureHashed();
+			arg.ensureHashed();
+			return this.hashAlgorithm == arg.hashAlgorithm &&
+					Arrays.areEqual(arg.slab, this.slab);
 		}
 		return false;
 	}
+
+	@Override
+	public int hashCode() {
+		this.ensureHashed();
+		return Arrays.hashCode(this.slab);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		this.ensureHashed();
+		out.defaultWriteObject();
+	}
 	
 	
 	public static byte[] calculateHash(NumericalAttributes numericalAttributes,
 			CategoricalAttributes categoricalAttributes,
 			byte[] hashLeft, byte[] hashRight) {
-		try {
-			/**
-			 * NOTE that the hash is computed over the hashes of the children
-			 * AND over the attributes!
-			 */
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			
-			for(int i = 0; i < numericalAttributes.numberOfAttributes(); i ++) {
-				md.update(Ints.toByteArray(numericalAttributes.getAttribute(i)));
-			}
+		return RecordAggregation.calculateHash(HashAlgorithm.DEFAULT, numericalAttributes,
+				categoricalAttributes, hashLeft, hashRight);
+	}
 
-			md.update(categoricalAttributes.toByteArray());
-			md.update(hashLeft);
-			md.update(hashRight);
-			byte[] hashRes = md.digest();
-			return hashRes;
-			
-		}catch(NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			throw new RuntimeException("FATAL BUG");
+	public static byte[] calculateHash(HashAlgorithm hashAlgorithm,
+			NumericalAttributes numericalAttributes,
+			CategoricalAttributes categoricalAttributes,
+			byte[] hashLeft, byte[] hashRight) {
+		/**
+		 * NOTE that the hash is computed over the hashes of the children
+		 * AND over the attributes!
+		 */
+		return HashingEngine.get(hashAlgorithm).hashNode(numericalAttributes, categoricalAttributes,
+				hashLeft, hashRight);
+	}
+
+	/**
+	 * Calculates the hash of this (internal) aggregation directly from
+	 * the slabs, writing it into the hash region of this slab. The input
+	 * is identical to {@link #calculateHash(NumericalAttributes, CategoricalAttributes, byte[], byte[])}
+	 * @param leftagg - may be null
+	 * @param rightagg - may be null
+	 */
+	private void calculateHash(RecordAggregation leftagg, RecordAggregation rightagg) {
+		// deferred children must be hashed before this hash is started,
+		// since both use the same per-thread hashing engine
+		if(leftagg != null) {
+			leftagg.ensureHashed();
+		}
+		if(rightagg != null) {
+			rightagg.ensureHashed();
+		}
+		HashingEngine engine = HashingEngine.get(this.hashAlgorithm);
+		EncodingBuffer input = engine.begin();
+		int categoricalOffset = this.categoricalOffset();
+		int hashOffset = this.hashOffset();
+		// numerical attributes
+		input.writeBytes(this.slab, NUMERICAL_OFFSET, categoricalOffset - NUMERICAL_OFFSET);
+		// categorical attributes - trailing zero bytes are not included
+		int categoricalEnd = hashOffset;
+		while(categoricalEnd > categoricalOffset && this.slab[categoricalEnd - 1] == 0) {
+			categoricalEnd--;
+		}
+		input.writeBytes(this.slab, categoricalOffset, categoricalEnd - categoricalOffset);
+		int hashSize = this.slab.length - hashOffset;
+		RecordAggregation.writeHash(input, leftagg, hashSize);
+		RecordAggregation.writeHash(input, rightagg, hashSize);
+		engine.finish(this.slab, hashOffset);
+	}
+
+	/**
+	 * NOTE: the aggregation must already be hashed - calculating it
+	 * here would reuse the hashing engine in the middle of a hash
+	 */
+	private static void writeHash(EncodingBuffer out, RecordAggregation agg, int hashSize) {
+		if(agg == null) {
+			// the null hash is all zero
+			out.reserve(hashSize);
+		}else {
+			agg.writeHashTo(out);
 		}
 	}
 
@@ -265,22 +562,146 @@ public class RecordAggregation implements Serializable {
 	 */
 	public static RecordAggregation modifyRecordAggregation(RecordAggregation prevAgg,
 			int newTotal, int newNet) {
-		return new RecordAggregation(newTotal, newNet, prevAgg.getHash());
+		NumericalAttributes numericalAttributes = new NumericalAttributes();
+		numericalAttributes.setAttribute(0, newTotal);
+		numericalAttributes.setAttribute(1, newNet);
+		return new RecordAggregation(numericalAttributes, new CategoricalAttributes(),
+				prevAgg.getHash(), prevAgg.hashAlgorithm);
 	}
 	
 	public byte[] serializatRecordAggregation() {
+		this.ensureHashed();
 		BverifySerialization.RecordAggregation.Builder builder = BverifySerialization.RecordAggregation.newBuilder();
-		builder.setCategoricalAttributes(this.categoricalAttributes.serializeCategoricalAttributes());
-		builder.setHash(ByteString.copyFrom(this.hash));
-		builder.setNumericalAttributes(this.numericalAttributes.serializeNumericalAttributes());
+		builder.setCategoricalAttributes(this.getCategoricalAttributes().serializeCategoricalAttributes());
+		int hashOffset = this.hashOffset();
+		builder.setHash(ByteString.copyFrom(this.slab, hashOffset, this.slab.length - hashOffset));
+		builder.setNumericalAttributes(this.getNumericalAttributes().serializeNumericalAttributes());
 		return builder.build().toByteArray();
 	}
 	
 	public void parseFrom(byte[] data) throws InvalidProtocolBufferException {
-		BverifySerialization.RecordAggregation message = BverifySerialization.RecordAggregation.parseFrom(data);
-		this.categoricalAttributes = CategoricalAttributes.parseCategoricalAttributes(message.getCategoricalAttributes().toByteArray());
-		this.numericalAttributes = NumericalAttributes.parseNumericalAttributes(message.getNumericalAttributes().toByteArray());
-		this.hash = message.getHash().toByteArray();
+		try {
+			byte[] parsed = RecordAggregation.readFrom(CodedInputStream.newInstance(data),
+					this.hashAlgorithm).slab;
+			synchronized(this) {
+				this.slab = parsed;
+				this.pendingLeft = null;
+				this.pendingRight = null;
+				this.hashPending = false;
+			}
+		} catch (InvalidProtocolBufferException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new InvalidProtocolBufferException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Parses a serialized RecordAggregation message in a single pass,
+	 * reading the nested attribute messages straight from the stream
+	 * (they are not copied out and parsed a second time).
+	 * @param input - positioned at the start of the message, the
+	 * 			message must extend to the end of the stream or current limit
+	 * @return
+	 * @throws IOException
+	 */
+	public static RecordAggregation readFrom(CodedInputStream input) throws IOException {
+		return RecordAggregation.readFrom(input, HashAlgorithm.DEFAULT);
+	}
+
+	/**
+	 * See {@link #readFrom(CodedInputStream)}
+	 * @param input
+	 * @param hashAlgorithm - the algorithm the hash was calculated with
+	 * @return
+	 * @throws IOException
+	 */
+	public static RecordAggregation readFrom(CodedInputStream input, HashAlgorithm hashAlgorithm)
+			throws IOException {
+		NumericalAttributes numericalAttributes = null;
+		CategoricalAttributes categoricalAttributes = null;
+		ByteString hash = null;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == NUMERICAL_ATTRIBUTES_TAG) {
+				int oldLimit = input.pushLimit(input.readRawVarint32());
+				numericalAttributes = NumericalAttributes.readFrom(input);
+				input.popLimit(oldLimit);
+			}else if(tag == CATEGORICAL_ATTRIBUTES_TAG) {
+				int oldLimit = input.pushLimit(input.readRawVarint32());
+				categoricalAttributes = CategoricalAttributes.readFrom(input);
+				input.popLimit(oldLimit);
+			}else if(tag == HASH_TAG) {
+				hash = input.readBytes();
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		if(numericalAttributes == null || categoricalAttributes == null || hash == null) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
+		}
+		if(hash.size() != hashAlgorithm.hashSize()) {
+			throw new InvalidProtocolBufferException("Error - hash must be "+hashAlgorithm.hashSize()+" bytes");
+		}
+		RecordAggregation res = new RecordAggregation(
+				RecordAggregation.makeSlab(numericalAttributes, categoricalAttributes,
+						hashAlgorithm.hashSize()), hashAlgorithm);
+		hash.copyTo(res.slab, res.hashOffset());
+		return res;
+	}
+
+	private int categoricalOffset() {
+		return NUMERICAL_OFFSET + 4*this.numberOfNumericalAttributes();
+	}
+
+	private int hashOffset() {
+		return this.categoricalOffset() + (this.numberOfCategoricalAttributes() + 7) / 8;
+	}
+
+	private void setHash(byte[] hash) {
+		int hashOffset = this.hashOffset();
+		if(hash.length != this.slab.length - hashOffset) {
+			throw new RuntimeException("Error - hash must be "+(this.slab.length - hashOffset)+" bytes");
+		}
+		System.arraycopy(hash, 0, this.slab, hashOffset, hash.length);
+	}
+
+	private static byte[] allocateSlab(int numNumerical, int numCategorical, int hashSize) {
+		byte[] slab = new byte[NUMERICAL_OFFSET + 4*numNumerical + (numCategorical + 7) / 8
+		                       + hashSize];
+		RecordAggregation.writeInt(slab, NUMERICAL_COUNT_OFFSET, numNumerical);
+		RecordAggregation.writeInt(slab, CATEGORICAL_COUNT_OFFSET, numCategorical);
+		return slab;
+	}
+
+	/**
+	 * Creates a slab holding the attributes (the hash is left zeroed)
+	 * @param numericalAttributes
+	 * @param categoricalAttributes
+	 * @return
+	 */
+	private static byte[] makeSlab(NumericalAttributes numericalAttributes,
+			CategoricalAttributes categoricalAttributes, int hashSize) {
+		int numNumerical = numericalAttributes.numberOfAttributes();
+		byte[] slab = RecordAggregation.allocateSlab(numNumerical,
+				categoricalAttributes.numberOfAttributes(), hashSize);
+		for(int i = 0; i < numNumerical; i++) {
+			RecordAggregation.writeInt(slab, NUMERICAL_OFFSET + 4*i, numericalAttributes.getAttribute(i));
+		}
+		categoricalAttributes.orInto(slab, NUMERICAL_OFFSET + 4*numNumerical);
+		return slab;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return ((b[offset] & 0xff) << 24) | ((b[offset+1] & 0xff) << 16) |
+				((b[offset+2] & 0xff) << 8) | (b[offset+3] & 0xff);
+	}
+
+	private static void writeInt(byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset+1] = (byte) (v >>> 16);
+		b[offset+2] = (byte) (v >>> 8);
+		b[offset+3] = (byte) v;
 	}
 	
 }
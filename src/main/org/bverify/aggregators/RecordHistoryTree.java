@@ -0,0 +1,111 @@
+package org.bverify.aggregators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.bverify.records.Record;
+
+import edu.rice.historytree.AggregationInterface;
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A history tree of records that can be searched top-down. The categorical
+ * attributes of an internal node are the OR of the attributes of the records
+ * below it, so a subtree whose aggregation does not have the attributes
+ * of a query can not contain a matching record and is skipped. Finding
+ * k matching records out of n costs O(k log n) rather than reading every leaf.
+ * Searches and the checks of pruned trees (proofs) can be restricted to a
+ * range of leaves.
+ *
+ */
+public class RecordHistoryTree extends HistoryTree<RecordAggregation, Record> {
+
+	public RecordHistoryTree(AggregationInterface<RecordAggregation, Record> aggobj,
+			HistoryDataStoreInterface<RecordAggregation, Record> datastore) {
+		super(aggobj, datastore);
+	}
+
+	/**
+	 * Returns the leaves [0, version] whose aggregation satisfies the predicate,
+	 * in increasing order. Descends only into subtrees whose aggregation satisfies
+	 * the predicate - so the predicate must hold for an aggregation whenever
+	 * it holds for any of the leaves below it (e.g. having some categorical
+	 * attributes).
+	 * @param predicate
+	 * @param version - the last leaf to consider
+	 * @return
+	 */
+	public List<Integer> getMatchingLeaves(Predicate<RecordAggregation> predicate, int version) {
+		return this.getMatchingLeaves(predicate, 0, version);
+	}
+
+	/**
+	 * Returns the leaves [firstLeaf, lastLeaf] whose aggregation satisfies the
+	 * predicate, in increasing order. Subtrees outside the range are not visited.
+	 * @see #getMatchingLeaves(Predicate, int)
+	 */
+	public List<Integer> getMatchingLeaves(Predicate<RecordAggregation> predicate, int firstLeaf, int lastLeaf) {
+		List<Integer> res = new ArrayList<Integer>();
+		if(this.root != null) {
+			RecordHistoryTree.getMatchingLeaves(this.root, predicate, firstLeaf, lastLeaf, res);
+		}
+		return res;
+	}
+
+	private static void getMatchingLeaves(NodeCursor<RecordAggregation, Record> node,
+			Predicate<RecordAggregation> predicate, int firstLeaf, int lastLeaf, List<Integer> res) {
+		// the aggregation of a node can include leaves outside the range,
+		// it can only match more than its leaves in the range do
+		if(node == null || !RecordHistoryTree.overlaps(node, firstLeaf, lastLeaf) ||
+				!predicate.test(node.getAgg())) {
+			return;
+		}
+		if(node.isLeaf()) {
+			res.add(node.index());
+			return;
+		}
+		RecordHistoryTree.getMatchingLeaves(node.left(), predicate, firstLeaf, lastLeaf, res);
+		RecordHistoryTree.getMatchingLeaves(node.right(), predicate, firstLeaf, lastLeaf, res);
+	}
+
+	/**
+	 * For a pruned tree, checks that every stub (a node without children
+	 * or a leaf without a value) covering any of the leaves [firstLeaf, lastLeaf]
+	 * satisfies the predicate. Stubs entirely outside the range are not checked.
+	 * @param predicate
+	 * @param firstLeaf
+	 * @param lastLeaf
+	 * @return
+	 */
+	public boolean checkStubs(Predicate<RecordAggregation> predicate, int firstLeaf, int lastLeaf) {
+		return this.root == null || RecordHistoryTree.checkStubs(this.root, predicate, firstLeaf, lastLeaf);
+	}
+
+	private static boolean checkStubs(NodeCursor<RecordAggregation, Record> node,
+			Predicate<RecordAggregation> predicate, int firstLeaf, int lastLeaf) {
+		if(node == null || !RecordHistoryTree.overlaps(node, firstLeaf, lastLeaf)) {
+			return true;
+		}
+		if(node.isLeaf() && node.hasVal()) {
+			return true;
+		}
+		if(node.left() == null && node.right() == null) {
+			return predicate.test(node.getAgg());
+		}
+		return RecordHistoryTree.checkStubs(node.left(), predicate, firstLeaf, lastLeaf) &&
+				RecordHistoryTree.checkStubs(node.right(), predicate, firstLeaf, lastLeaf);
+	}
+
+	/**
+	 * Checks if any of the leaves below the node are in [firstLeaf, lastLeaf]
+	 */
+	private static boolean overlaps(NodeCursor<RecordAggregation, Record> node, int firstLeaf, int lastLeaf) {
+		long start = (long) node.index() << node.layer();
+		long end = start + (1L << node.layer()) - 1;
+		return start <= lastLeaf && end >= firstLeaf;
+	}
+
+}
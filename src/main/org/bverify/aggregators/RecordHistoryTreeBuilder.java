@@ -0,0 +1,177 @@
+package org.bverify.aggregators;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.bverify.records.Record;
+import org.bverify.records.RecordBatch;
+
+import edu.rice.historytree.storage.ArrayStore;
+
+/**
+ * Builds a history tree from an existing list of records
+ * (bulk loads, rebuilds, restarting from stored records) using all cores.
+ *
+ * The tree is built in three phases:
+ * 		1. the leaf aggregations (leaf hashes) of all records are calculated in parallel
+ * 			(for a {@link RecordBatch} straight from its columns)
+ * 		2. the records are appended in order - the precomputed leaf aggregations are
+ * 			used and internal nodes are created with deferred hashing, so this
+ * 			step only adds up attributes
+ * 		3. the hashes of the internal nodes are calculated bottom-up with fork/join,
+ * 			complete subtrees are hashed independently on different cores
+ *
+ * Since the records are appended in order the resulting tree is identical to
+ * one created by appending the records one at a time. Further appends to the
+ * tree use deferred hashing (see {@link CryptographicRecordAggregator}).
+ *
+ */
+public class RecordHistoryTreeBuilder {
+
+	/**
+	 * Subtrees with at most 2^SEQUENTIAL_HEIGHT leaves are
+	 * hashed by a single task
+	 */
+	private static final int SEQUENTIAL_HEIGHT = 10;
+
+	public static RecordHistoryTree build(List<? extends Record> records,
+			ArrayStore<RecordAggregation, Record> store) {
+		return RecordHistoryTreeBuilder.build(records, store, HashAlgorithm.DEFAULT, ForkJoinPool.commonPool());
+	}
+
+	public static RecordHistoryTree build(List<? extends Record> records,
+			ArrayStore<RecordAggregation, Record> store, HashAlgorithm hashAlgorithm) {
+		return RecordHistoryTreeBuilder.build(records, store, hashAlgorithm, ForkJoinPool.commonPool());
+	}
+
+	public static RecordHistoryTree build(List<? extends Record> records,
+			ArrayStore<RecordAggregation, Record> store, ForkJoinPool pool) {
+		return RecordHistoryTreeBuilder.build(records, store, HashAlgorithm.DEFAULT, pool);
+	}
+
+	public static RecordHistoryTree build(Stream<? extends Record> records,
+			ArrayStore<RecordAggregation, Record> store) {
+		return RecordHistoryTreeBuilder.build(records.collect(Collectors.toList()), store);
+	}
+
+	/**
+	 * Build a history tree containing the records, in order
+	 * @param records
+	 * @param store - the (empty) store for the tree
+	 * @param hashAlgorithm - the hash algorithm of the tree's aggregator
+	 * @param pool - the pool used to calculate the hashes
+	 * @return
+	 */
+	public static RecordHistoryTree build(List<? extends Record> records,
+			ArrayStore<RecordAggregation, Record> store, HashAlgorithm hashAlgorithm, ForkJoinPool pool) {
+		return RecordHistoryTreeBuilder.build(records, store, new CryptographicRecordAggregator(hashAlgorithm, true),
+				pool);
+	}
+
+	/**
+	 * Build a history tree containing the records, in order, that
+	 * uses the aggregator (which should defer hashing)
+	 * @param records
+	 * @param store - the (empty) store for the tree
+	 * @param aggregator - the aggregator of the tree
+	 * @param pool - the pool used to calculate the hashes
+	 * @return
+	 */
+	public static RecordHistoryTree build(List<? extends Record> records,
+			ArrayStore<RecordAggregation, Record> store, CryptographicRecordAggregator aggregator,
+			ForkJoinPool pool) {
+		HashAlgorithm hashAlgorithm = aggregator.getHashAlgorithm();
+		RecordAggregation[] leaves = RecordHistoryTreeBuilder.calculateLeaves(records.size(),
+				i -> new RecordAggregation(records.get(i), hashAlgorithm), pool);
+		return RecordHistoryTreeBuilder.build(records, leaves, store, aggregator, pool);
+	}
+
+	/**
+	 * Build a history tree containing the records of the batch, in order.
+	 * The leaf aggregations are calculated straight from the columns of the batch.
+	 * @param batch
+	 * @param store - the (empty) store for the tree
+	 * @param aggregator - the aggregator of the tree (which should defer hashing)
+	 * @param pool - the pool used to calculate the hashes
+	 * @return
+	 */
+	public static RecordHistoryTree build(RecordBatch batch,
+			ArrayStore<RecordAggregation, Record> store, CryptographicRecordAggregator aggregator,
+			ForkJoinPool pool) {
+		HashAlgorithm hashAlgorithm = aggregator.getHashAlgorithm();
+		RecordAggregation[] leaves = RecordHistoryTreeBuilder.calculateLeaves(batch.size(),
+				i -> new RecordAggregation(batch, i, hashAlgorithm), pool);
+		return RecordHistoryTreeBuilder.build(batch.toRecords(), leaves, store, aggregator, pool);
+	}
+
+	private static RecordAggregation[] calculateLeaves(int numberOfRecords,
+			IntFunction<RecordAggregation> leaf, ForkJoinPool pool) {
+		RecordAggregation[] leaves = new RecordAggregation[numberOfRecords];
+		try {
+			pool.submit(() -> IntStream.range(0, numberOfRecords).parallel().forEach(
+					i -> leaves[i] = leaf.apply(i))).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not calculate leaf aggregations");
+		}
+		return leaves;
+	}
+
+	private static RecordHistoryTree build(List<? extends Record> records,
+			RecordAggregation[] leaves, ArrayStore<RecordAggregation, Record> store,
+			CryptographicRecordAggregator aggregator, ForkJoinPool pool) {
+		RecordHistoryTree histtree = new RecordHistoryTree(aggregator, store);
+		aggregator.precomputeLeaves(records, leaves);
+		try {
+			for(Record r : records) {
+				histtree.append(r);
+			}
+		} finally {
+			aggregator.clearPrecomputedLeaves();
+		}
+
+		if(records.size() > 0) {
+			int height = 32 - Integer.numberOfLeadingZeros(records.size() - 1);
+			pool.invoke(new HashTask(histtree.agg(), height));
+		}
+		return histtree;
+	}
+
+	/**
+	 * Calculates the deferred hashes of an aggregation and everything
+	 * below it, hashing the left and right subtrees in parallel
+	 */
+	private static class HashTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RecordAggregation agg;
+		private final int height;
+
+		HashTask(RecordAggregation agg, int height) {
+			this.agg = agg;
+			this.height = height;
+		}
+
+		@Override
+		protected void compute() {
+			if(this.height > SEQUENTIAL_HEIGHT) {
+				RecordAggregation left = this.agg.getPendingLeft();
+				RecordAggregation right = this.agg.getPendingRight();
+				if(left != null && right != null) {
+					invokeAll(new HashTask(left, this.height - 1), new HashTask(right, this.height - 1));
+				}else if(left != null) {
+					new HashTask(left, this.height - 1).compute();
+				}
+			}
+			this.agg.ensureHashed();
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.bverify.aggregators;
+
+import org.bverify.records.Record;
+import org.bverify.util.LruCache;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A size-bounded cache of the decoded leaves (record and leaf aggregation)
+ * of a history tree, keyed by leaf index. Constructing proofs reads the same
+ * leaves over and over; reading a leaf from the tree walks down from the root
+ * and, for a serialized store, decodes the value again.
+ *
+ * Leaves of a history tree never change once appended so cached entries
+ * never need to be invalidated - but a cache must not be reused for a different
+ * tree. The least recently used entry is evicted when the cache is full.
+ *
+ * The cache is thread safe.
+ *
+ */
+public class RecordLeafCache {
+
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private final HistoryTree<RecordAggregation, Record> tree;
+	private final LruCache<Integer, Leaf> leaves;
+
+	private long hits;
+	private long misses;
+
+	public RecordLeafCache(HistoryTree<RecordAggregation, Record> tree) {
+		this(tree, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param tree - the tree to read leaves from
+	 * @param capacity - maximum number of leaves to cache
+	 */
+	public RecordLeafCache(HistoryTree<RecordAggregation, Record> tree, int capacity) {
+		this.tree = tree;
+		this.leaves = new LruCache<Integer, Leaf>(capacity);
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Returns the record stored at the leaf. To read both the record
+	 * and the aggregation use {@link #getLeaf(int)} - a single lookup.
+	 * @param leafIdx
+	 * @return the record or null if the tree does not contain it (e.g. pruned)
+	 */
+	public Record getVal(int leafIdx) {
+		Leaf leaf = this.getLeaf(leafIdx);
+		return leaf == null ? null : leaf.val;
+	}
+
+	/**
+	 * Returns the aggregation of the leaf. To read both the record
+	 * and the aggregation use {@link #getLeaf(int)} - a single lookup.
+	 * @param leafIdx
+	 * @return the aggregation or null if the tree does not contain it (e.g. pruned)
+	 */
+	public RecordAggregation getAgg(int leafIdx) {
+		Leaf leaf = this.getLeaf(leafIdx);
+		return leaf == null ? null : leaf.agg;
+	}
+
+	/**
+	 * Returns the aggregation and the record of the leaf
+	 * @param leafIdx
+	 * @return the leaf or null if the tree does not contain it, the
+	 * 		record or aggregation may be null if the tree is pruned
+	 */
+	public Leaf getLeaf(int leafIdx) {
+		synchronized(this) {
+			Leaf leaf = this.leaves.get(leafIdx);
+			if(leaf != null) {
+				this.hits++;
+				return leaf;
+			}
+			this.misses++;
+		}
+		// read from the tree without holding the lock
+		NodeCursor<RecordAggregation, Record> cursor = this.tree.leaf(leafIdx);
+		if(cursor == null) {
+			return null;
+		}
+		Leaf leaf = new Leaf(cursor.getAgg(), cursor.getVal());
+		// only complete leaves are cached
+		if(leaf.agg != null && leaf.val != null) {
+			synchronized(this) {
+				this.leaves.put(leafIdx, leaf);
+			}
+		}
+		return leaf;
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized int size() {
+		return this.leaves.size();
+	}
+
+	public int getCapacity() {
+		return this.leaves.getCapacity();
+	}
+
+	public synchronized void clear() {
+		this.leaves.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "<RecordLeafCache: size "+this.leaves.size()+"/"+this.leaves.getCapacity()+
+				" hits: "+this.hits+" misses: "+this.misses+">";
+	}
+
+	/**
+	 * The aggregation and record of a leaf
+	 */
+	public static final class Leaf {
+		private final RecordAggregation agg;
+		private final Record val;
+
+		Leaf(RecordAggregation agg, Record val) {
+			this.agg = agg;
+			this.val = val;
+		}
+
+		public RecordAggregation getAgg() {
+			return this.agg;
+		}
+
+		public Record getVal() {
+			return this.val;
+		}
+	}
+
+}
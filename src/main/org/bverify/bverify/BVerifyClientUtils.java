@@ -1,12 +1,20 @@
 package org.bverify.bverify;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
 
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
 import org.bverify.proofs.AggregationProof;
+import org.bverify.proofs.CategoricalQueryProof;
 import org.bverify.proofs.ConsistencyProof;
+import org.bverify.proofs.MultiRecordProof;
+import org.bverify.proofs.Proof;
 import org.bverify.proofs.RecordProof;
+import org.bverify.records.CategoricalAttributes;
 import org.bverify.records.Record;
 import org.catena.client.CatenaClient;
 import org.catena.common.CatenaStatement;
@@ -27,6 +35,9 @@ public class BVerifyClientUtils {
 	
 	private CatenaClient  bitcoinTxReader; 
 	private BVerifyServerUtils bverifyserver;
+	
+	// proofs using any other algorithm are rejected
+	private final HashAlgorithm hashAlgorithm;
 		
 	private ArrayList<byte[]> commitmentHashes;
 	private ArrayList<Boolean> verifiedCommitmentHashes;
@@ -35,8 +46,20 @@ public class BVerifyClientUtils {
 	private static final Logger log = LoggerFactory.getLogger(BVerifyClientUtils.class);
 	
 	public BVerifyClientUtils(CatenaClient client, BVerifyServerUtils bverifyserver) {
+		this(client, bverifyserver, HashAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * @param client
+	 * @param bverifyserver
+	 * @param hashAlgorithm - the hash algorithm the server is expected to use, 
+	 * 			proofs calculated with any other algorithm are rejected
+	 */
+	public BVerifyClientUtils(CatenaClient client, BVerifyServerUtils bverifyserver, 
+			HashAlgorithm hashAlgorithm) {
 		this.bitcoinTxReader = client;
 		this.bverifyserver = bverifyserver;
+		this.hashAlgorithm = hashAlgorithm;
 		this.commitmentHashes = new ArrayList<byte[]>();
 		this.verifiedCommitmentHashes = new ArrayList<Boolean>();
 		this.currentCommitmentNumber = -1;
@@ -82,6 +105,7 @@ public class BVerifyClientUtils {
 		ConsistencyProof proof = this.bverifyserver.constructConsistencyProof(
 				startIndex, endIndex);	
 		boolean proofCorrect = proof.checkProof(commitmentHashes.subList(startIndex, endIndex+1));
+		this.checkHashAlgorithm(proof);
 		if(!proofCorrect) {
 			throw new ProofError("Consistency Proof Invalid - Some Records Have Been Ommitted");
 		}else {
@@ -124,6 +148,7 @@ public class BVerifyClientUtils {
 	public Record getAndVerifyRecord(int recordNumber) throws ProofError {
 		RecordProof proof = 
 				this.bverifyserver.constructRecordProof(recordNumber, this.currentCommitmentNumber);
+		this.checkHashAlgorithm(proof);
 		Record record = proof.getRecord();
 		
 		// look up the latest commitment hash 
@@ -138,9 +163,86 @@ public class BVerifyClientUtils {
 		
 	}
 	
+	/**
+	 * Requests a set of records from the server along with a single proof 
+	 * that they are all authentic. Much cheaper than requesting each record 
+	 * with {@link #getAndVerifyRecord(int)} since the records share the 
+	 * paths to the root.
+	 * @param recordNumbers - The record numbers, in any order
+	 * @return The records, in order of their record numbers
+	 * @throws ProofError - Throws a ProofError if any of the records is not authentic 
+	 * 						/ if the proof is incorrect.
+	 */
+	public List<Record> getAndVerifyRecords(Collection<Integer> recordNumbers) throws ProofError {
+		MultiRecordProof proof = 
+				this.bverifyserver.constructMultiRecordProof(recordNumbers, this.currentCommitmentNumber);
+		return this.checkRecords(proof, new ArrayList<Integer>(new TreeSet<Integer>(recordNumbers)));
+	}
+	
+	/**
+	 * Requests the records firstRecordNumber, ... , lastRecordNumber (inclusive)
+	 * along with a single proof that they are all authentic
+	 * @see #getAndVerifyRecords(Collection)
+	 */
+	public List<Record> getAndVerifyRecords(int firstRecordNumber, int lastRecordNumber) throws ProofError {
+		MultiRecordProof proof = this.bverifyserver.constructMultiRecordProof(firstRecordNumber, 
+				lastRecordNumber, this.currentCommitmentNumber);
+		List<Integer> recordNumbers = new ArrayList<Integer>();
+		for(int recordNumber = firstRecordNumber; recordNumber <= lastRecordNumber; recordNumber++) {
+			recordNumbers.add(recordNumber);
+		}
+		return this.checkRecords(proof, recordNumbers);
+	}
+	
+	private List<Record> checkRecords(MultiRecordProof proof, List<Integer> requestedRecordNumbers) 
+			throws ProofError {
+		this.checkHashAlgorithm(proof);
+		// the server must prove exactly the requested records
+		if(!proof.getRecordNumbers().equals(requestedRecordNumbers)) {
+			throw new ProofError("The Proof Does Not Contain The Requested Records");
+		}
+		byte[] latestCommitmentHash = this.getCommitment(this.currentCommitmentNumber);
+		if(!proof.checkProof(latestCommitmentHash)) {
+			throw new ProofError("These Records Are Inconsistent And Have Been Modified or Reordered");
+		}
+		return proof.getRecords();
+	}
+	
+	/**
+	 * Searches the records firstRecordNumber, ... , lastRecordNumber (inclusive) 
+	 * for the records that have at least the attributes of the filter. The server 
+	 * proves that no matching record in the range has been omitted.
+	 * @param filter
+	 * @param firstRecordNumber
+	 * @param lastRecordNumber
+	 * @return The matching records, in order of their record numbers
+	 * @throws ProofError - Throws a ProofError if the server did not search exactly 
+	 * 						the requested records / if the proof is incorrect.
+	 */
+	public List<Record> getAndVerifyRecordsByFilter(CategoricalAttributes filter, int firstRecordNumber, 
+			int lastRecordNumber) throws ProofError {
+		CategoricalQueryProof proof = this.bverifyserver.queryRecordsByFilter(filter, firstRecordNumber, 
+				lastRecordNumber);
+		this.checkHashAlgorithm(proof);
+		if(!proof.getFilter().equals(filter)) {
+			throw new ProofError("The Proof Does Not Answer The Requested Query");
+		}
+		if(proof.getCommitmentNumber() < 0 || proof.getCommitmentNumber() >= this.getTotalCommitments()) {
+			throw new ProofError("The Proof Is For An Unknown Commitment");
+		}
+		// the proof must search exactly the requested range
+		boolean proofCorrect = proof.checkProof(this.getCommitment(proof.getCommitmentNumber()), 
+				firstRecordNumber, lastRecordNumber);
+		if(!proofCorrect) {
+			throw new ProofError("Matching Records Have Been Omitted Or Modified");
+		}
+		return proof.getRecords();
+	}
+	
 	public RecordAggregation getAndCheckAggregation(int commitmentNumber) throws ProofError {
 		AggregationProof aggProof = 
 				this.bverifyserver.constructAggregationProof(commitmentNumber);
+		this.checkHashAlgorithm(aggProof);
 		boolean proofCorrect =  aggProof.checkProof(getCommitment(commitmentNumber));
 		if(!proofCorrect) {
 			throw new ProofError("This Record Aggregation Is Invalid");
@@ -149,6 +251,17 @@ public class BVerifyClientUtils {
 
 	}
 	
+	/**
+	 * The server must not choose the hash algorithm, otherwise it 
+	 * could answer with proofs using a weaker one
+	 */
+	private void checkHashAlgorithm(Proof proof) throws ProofError {
+		if(proof.getHashAlgorithm() != this.hashAlgorithm) {
+			throw new ProofError("The Proof Uses Hash Algorithm "+proof.getHashAlgorithm().getName()+
+					" Instead Of "+this.hashAlgorithm.getName());
+		}
+	}
+	
 
 }
 
@@ -2,26 +2,33 @@ package org.bverify.bverify;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.core.Transaction;
 import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
+import org.bverify.aggregators.RecordHistoryTree;
+import org.bverify.aggregators.RecordHistoryTreeBuilder;
 import org.bverify.proofs.AggregationProof;
 import org.bverify.proofs.CategoricalQueryProof;
 import org.bverify.proofs.ConsistencyProof;
+import org.bverify.proofs.MultiRecordProof;
+import org.bverify.proofs.ProofCache;
 import org.bverify.proofs.RecordProof;
 import org.bverify.records.CategoricalAttributes;
 import org.bverify.records.Record;
+import org.bverify.records.RecordBatch;
 import org.catena.server.CatenaServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.AggWithChildren;
 import edu.rice.historytree.ProofError;
 import edu.rice.historytree.storage.ArrayStore;
@@ -43,7 +50,19 @@ public class BVerifyServerUtils {
 	private transient CatenaServer bitcoinTxPublisher;
 	private CryptographicRecordAggregator aggregator;
 	private ArrayStore<RecordAggregation, Record> store;
-	private HistoryTree<RecordAggregation, Record> histtree;
+	private RecordHistoryTree histtree;
+	
+	/**
+	 * Proofs against commitments that have already been constructed,
+	 * proofs against a commitment never change
+	 */
+	private final ProofCache proofCache;
+	
+	/**
+	 * Records with each categorical attribute, 
+	 * updated as records are added
+	 */
+	private CategoricalAttributeIndex attributeIndex;
 	
 	/**
 	 * Total records are the number of records -- committed 
@@ -90,9 +109,38 @@ public class BVerifyServerUtils {
 	private final ReadWriteLock readWriteLock;
 	
 	public BVerifyServerUtils(CatenaServer srvr, boolean commitToBitcoin, int commitInterval) {
-        this.aggregator = new CryptographicRecordAggregator();
+		this(srvr, commitToBitcoin, commitInterval, HashAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * @param srvr
+	 * @param commitToBitcoin
+	 * @param commitInterval
+	 * @param hashAlgorithm - the hash function used for the history tree, 
+	 * 			the commitments are hashes of this algorithm
+	 */
+	public BVerifyServerUtils(CatenaServer srvr, boolean commitToBitcoin, int commitInterval, 
+			HashAlgorithm hashAlgorithm) {
+		this(srvr, commitToBitcoin, commitInterval, hashAlgorithm, new ProofCache());
+	}
+	
+	/**
+	 * @param srvr
+	 * @param commitToBitcoin
+	 * @param commitInterval
+	 * @param hashAlgorithm
+	 * @param proofCache - cache of the record, aggregation and consistency proofs 
+	 * 			constructed by the server
+	 */
+	public BVerifyServerUtils(CatenaServer srvr, boolean commitToBitcoin, int commitInterval, 
+			HashAlgorithm hashAlgorithm, ProofCache proofCache) {
+		// hashes of internal nodes are only needed when committing 
+		// or constructing proofs, so defer calculating them
+        this.aggregator = new CryptographicRecordAggregator(hashAlgorithm, true);
 		this.store = new ArrayStore<RecordAggregation,Record>();    
-		this.histtree = new HistoryTree<RecordAggregation, Record>(aggregator, store);
+		this.histtree = new RecordHistoryTree(aggregator, store);
+		this.proofCache = proofCache;
+		this.attributeIndex = new CategoricalAttributeIndex();
 		this.bitcoinTxPublisher = srvr;
 		this.totalRecords = 0;
 		this.totalCommittedRecords = 0;
@@ -113,7 +161,54 @@ public class BVerifyServerUtils {
 	public void addRecord(Record r) throws InsufficientMoneyException {
 		// write lock needed!
 		this.readWriteLock.writeLock().lock();
+		try {
+			this.appendRecord(r);
+		} finally {
+			this.readWriteLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds the records of the batch, in order. Same as adding the 
+	 * records one at a time (including when commitments are made) but 
+	 * the leaf hashes are calculated from the columns of the batch 
+	 * before the write lock is taken. 
+	 * @param batch
+	 * @throws InsufficientMoneyException
+	 */
+	public void addRecords(RecordBatch batch) throws InsufficientMoneyException {
+		HashAlgorithm hashAlgorithm = this.aggregator.getHashAlgorithm();
+		RecordAggregation[] leaves = new RecordAggregation[batch.size()];
+		for(int i = 0; i < leaves.length; i++) {
+			leaves[i] = new RecordAggregation(batch, i, hashAlgorithm);
+		}
+		this.addRecords(batch.toRecords(), leaves);
+	}
+	
+	/**
+	 * Adds the records, in order, with their leaf aggregations already 
+	 * calculated (with {@link #getHashAlgorithm()}), under a single 
+	 * acquisition of the write lock
+	 * @param records
+	 * @param leaves - leaves[i] is the aggregation of records[i]
+	 * @throws InsufficientMoneyException
+	 */
+	void addRecords(List<Record> records, RecordAggregation[] leaves) throws InsufficientMoneyException {
+		this.readWriteLock.writeLock().lock();
+		try {
+			this.aggregator.precomputeLeaves(records, leaves);
+			for(Record r : records) {
+				this.appendRecord(r);
+			}
+		} finally {
+			this.aggregator.clearPrecomputedLeaves();
+			this.readWriteLock.writeLock().unlock();
+		}
+	}
+	
+	private void appendRecord(Record r) throws InsufficientMoneyException {
 		this.histtree.append(r);
+		this.attributeIndex.addRecord(r.getCategoricalAttributes());
 		this.totalRecords++;
 		int outstanding_records = totalRecords - totalCommittedRecords;
 		
@@ -136,33 +231,114 @@ public class BVerifyServerUtils {
 			this.commitmentNumberToVersionNumber.put(currentCommitmentNumber, currentVersion);
 			this.totalCommittedRecords = this.totalRecords;
 		}
-		this.readWriteLock.writeLock().unlock();
 	}
 	
 	public ConsistencyProof constructConsistencyProof(int startingCommitNumber, int endingCommitNumber) 
 			throws ProofError{
 		this.readWriteLock.readLock().lock();
+		try {
+			return this.proofCache.getConsistencyProof(startingCommitNumber, endingCommitNumber, 
+					() -> this.buildConsistencyProof(startingCommitNumber, endingCommitNumber));
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * The consistency proof in the protobuf wire format, the encoding 
+	 * is cached if the proof cache caches serialized proofs
+	 * @see #constructConsistencyProof(int, int)
+	 */
+	public byte[] constructSerializedConsistencyProof(int startingCommitNumber, int endingCommitNumber) 
+			throws ProofError{
+		this.readWriteLock.readLock().lock();
+		try {
+			return this.proofCache.getSerializedConsistencyProof(startingCommitNumber, endingCommitNumber, 
+					() -> this.buildConsistencyProof(startingCommitNumber, endingCommitNumber));
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	private ConsistencyProof buildConsistencyProof(int startingCommitNumber, int endingCommitNumber) 
+			throws ProofError {
 		List<Integer> cmtRecordNumbers = new ArrayList<>();
 		for(int cmtNumber = startingCommitNumber; cmtNumber <= endingCommitNumber; cmtNumber++) {
 			int cmtRecordNumber = this.commitmentNumberToRecordNumber(cmtNumber);
 			cmtRecordNumbers.add(cmtRecordNumber);
 		}
-		ConsistencyProof proof = new ConsistencyProof(startingCommitNumber, cmtRecordNumbers, this.histtree);
-		this.readWriteLock.readLock().unlock();
-		return proof;
+		return new ConsistencyProof(startingCommitNumber, cmtRecordNumbers, this.histtree);
 	}
 	
 	public RecordProof constructRecordProof(int recordNumber, int commitmentNumber) throws ProofError {
 		this.readWriteLock.readLock().lock();
+		try {
+			return this.proofCache.getRecordProof(recordNumber, commitmentNumber, 
+					() -> this.buildRecordProof(recordNumber, commitmentNumber));
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * The record proof in the protobuf wire format, the encoding 
+	 * is cached if the proof cache caches serialized proofs
+	 * @see #constructRecordProof(int, int)
+	 */
+	public byte[] constructSerializedRecordProof(int recordNumber, int commitmentNumber) throws ProofError {
+		this.readWriteLock.readLock().lock();
+		try {
+			return this.proofCache.getSerializedRecordProof(recordNumber, commitmentNumber, 
+					() -> this.buildRecordProof(recordNumber, commitmentNumber));
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	private RecordProof buildRecordProof(int recordNumber, int commitmentNumber) throws ProofError {
 		if(this.totalCommittedRecords <= recordNumber) {
 			throw new ProofError(String.format("Record #{} has not been commited yet. So far only commited up to "
 					+ "Record #{}", 
 					recordNumber, this.getTotalNumberOfCommitments()-1));
 		}
 		int commitmentRecordNumber = this.commitmentNumberToRecordNumber(commitmentNumber);
-		RecordProof proof = new RecordProof(recordNumber, commitmentNumber, commitmentRecordNumber, this.histtree);
-		this.readWriteLock.readLock().unlock();
-		return proof;
+		return new RecordProof(recordNumber, commitmentNumber, commitmentRecordNumber, this.histtree);
+	}
+	
+	/**
+	 * Construct a single proof for a set of records, the records share 
+	 * the paths to the root of the commitment
+	 * @param recordNumbers - the records to prove
+	 * @param commitmentNumber - the commitment to prove them against
+	 * @return
+	 * @throws ProofError - if a record has not been committed yet
+	 */
+	public MultiRecordProof constructMultiRecordProof(Collection<Integer> recordNumbers, int commitmentNumber) 
+			throws ProofError {
+		this.readWriteLock.readLock().lock();
+		try {
+			int commitmentRecordNumber = this.commitmentNumberToRecordNumber(commitmentNumber);
+			return new MultiRecordProof(recordNumbers, commitmentNumber, commitmentRecordNumber, this.histtree);
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Construct a single proof for the records firstRecordNumber, ... , lastRecordNumber
+	 * (inclusive)
+	 * @see #constructMultiRecordProof(Collection, int)
+	 */
+	public MultiRecordProof constructMultiRecordProof(int firstRecordNumber, int lastRecordNumber, 
+			int commitmentNumber) throws ProofError {
+		this.readWriteLock.readLock().lock();
+		try {
+			int commitmentRecordNumber = this.commitmentNumberToRecordNumber(commitmentNumber);
+			return MultiRecordProof.forRange(firstRecordNumber, lastRecordNumber, commitmentNumber, 
+					commitmentRecordNumber, this.histtree);
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
 	}
 	
 	/**
@@ -175,14 +351,42 @@ public class BVerifyServerUtils {
 	 */
 	public AggregationProof constructAggregationProof(int commitNumber) {
 		this.readWriteLock.readLock().lock();
+		try {
+			return this.proofCache.getAggregationProof(commitNumber, 
+					() -> this.buildAggregationProof(commitNumber));
+		} catch (ProofError e) {
+			// constructing an aggregation proof never fails
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not construct aggregation proof");
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * The aggregation proof in the protobuf wire format, the encoding 
+	 * is cached if the proof cache caches serialized proofs
+	 * @see #constructAggregationProof(int)
+	 */
+	public byte[] constructSerializedAggregationProof(int commitNumber) {
+		this.readWriteLock.readLock().lock();
+		try {
+			return this.proofCache.getSerializedAggregationProof(commitNumber, 
+					() -> this.buildAggregationProof(commitNumber));
+		} catch (ProofError e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not construct aggregation proof");
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	private AggregationProof buildAggregationProof(int commitNumber) {
 		int versionNumber = this.commitmentNumberToRecordNumber(commitNumber);
 		AggWithChildren<RecordAggregation> aggPlusChildren = this.histtree.aggVWithChildren(versionNumber);
-		AggregationProof aggProof = new AggregationProof(aggPlusChildren.getMain(),
+		return new AggregationProof(aggPlusChildren.getMain(),
 				aggPlusChildren.getLeft().getHash(), aggPlusChildren.getRight().getHash(),
 				commitNumber);
-		this.readWriteLock.readLock().unlock();
-		return aggProof;
-		
 	}
 	
 	/**
@@ -196,10 +400,109 @@ public class BVerifyServerUtils {
 	public CategoricalQueryProof queryRecordsByFilter(CategoricalAttributes filter) throws ProofError
 	{
 		this.readWriteLock.readLock().lock();
-		CategoricalQueryProof proof = new CategoricalQueryProof(filter, this.histtree, this.getCurrentCommitmentNumber(),
-					this.commitmentNumberToRecordNumber(this.getCurrentCommitmentNumber()));
-		this.readWriteLock.readLock().unlock();
-		return proof;
+		try {
+			int commitmentNumber = this.getCurrentCommitmentNumber();
+			int recordCommitmentNumber = this.commitmentNumberToRecordNumber(commitmentNumber);
+			// the index finds the matching records without searching the tree
+			List<Integer> matchingRecordNumbers = this.attributeIndex.getMatchingRecordNumbers(filter, 
+					recordCommitmentNumber);
+			return CategoricalQueryProof.fromMatchingRecords(filter, this.histtree, matchingRecordNumbers, 
+					commitmentNumber, recordCommitmentNumber);
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Query the records firstRecordNumber, ... , lastRecordNumber (inclusive) 
+	 * using the filter and construct a proof, against the current commitment, 
+	 * that no matching record in the range was omitted. The size of the proof 
+	 * and the time to construct it scale with the range rather than the whole log.
+	 * @param filter - Categorical Attribute filter - find records that have 
+	 * at least these attributes.
+	 * @param firstRecordNumber
+	 * @param lastRecordNumber - must be committed
+	 * @return
+	 * @throws ProofError - if the range has not been committed yet
+	 */
+	public CategoricalQueryProof queryRecordsByFilter(CategoricalAttributes filter, int firstRecordNumber, 
+			int lastRecordNumber) throws ProofError {
+		this.readWriteLock.readLock().lock();
+		try {
+			int commitmentNumber = this.getCurrentCommitmentNumber();
+			if(commitmentNumber < 0) {
+				throw new ProofError("No records have been committed yet");
+			}
+			int recordCommitmentNumber = this.commitmentNumberToRecordNumber(commitmentNumber);
+			List<Integer> matchingRecordNumbers = this.attributeIndex.getMatchingRecordNumbers(filter, 
+					firstRecordNumber, lastRecordNumber);
+			// the range is checked when constructing the proof
+			return CategoricalQueryProof.fromMatchingRecords(filter, this.histtree, matchingRecordNumbers, 
+					firstRecordNumber, lastRecordNumber, commitmentNumber, recordCommitmentNumber);
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Query the records committed since (after) the commitment using the filter
+	 * @see #queryRecordsByFilter(CategoricalAttributes, int, int)
+	 */
+	public CategoricalQueryProof queryRecordsByFilterSinceCommitment(CategoricalAttributes filter, 
+			int commitmentNumber) throws ProofError {
+		this.readWriteLock.readLock().lock();
+		try {
+			int currentCommitmentNumber = this.getCurrentCommitmentNumber();
+			if(commitmentNumber < 0 || commitmentNumber >= currentCommitmentNumber) {
+				throw new ProofError(String.format("No records committed since commitment #%d", 
+						commitmentNumber));
+			}
+			return this.queryRecordsByFilter(filter, this.commitmentNumberToRecordNumber(commitmentNumber) + 1, 
+					this.commitmentNumberToRecordNumber(currentCommitmentNumber));
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Count the records (committed or not) that have at least 
+	 * the attributes of the filter. Answered from the index, 
+	 * there is no proof.
+	 * @param filter
+	 * @return
+	 */
+	public int countRecordsByFilter(CategoricalAttributes filter) {
+		this.readWriteLock.readLock().lock();
+		try {
+			return this.attributeIndex.countMatchingRecords(filter);
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Find the records (committed or not) that have at least 
+	 * the attributes of the filter. Answered from the index, 
+	 * there is no proof - use {@link #queryRecordsByFilter(CategoricalAttributes)} 
+	 * for a verifiable answer.
+	 * @param filter
+	 * @return the record numbers, in increasing order
+	 */
+	public List<Integer> findRecordsByFilter(CategoricalAttributes filter) {
+		this.readWriteLock.readLock().lock();
+		try {
+			return this.attributeIndex.getMatchingRecordNumbers(filter, this.totalRecords - 1);
+		}finally {
+			this.readWriteLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * The hash algorithm of the history tree
+	 * @return
+	 */
+	public HashAlgorithm getHashAlgorithm() {
+		return this.aggregator.getHashAlgorithm();
 	}
 	
 	public int commitmentHashToVersion(byte[] commitHash) {
@@ -237,6 +540,14 @@ public class BVerifyServerUtils {
 		return this.getCommitment(currentCommitmentNumber);
 	}
 	
+	/**
+	 * Returns the cache of constructed proofs (e.g. to inspect hit rates)
+	 * @return
+	 */
+	public ProofCache getProofCache() {
+		return this.proofCache;
+	}
+	
 	public void printTree() {
 		System.out.println(this.histtree.toString());
 	}
@@ -254,25 +565,33 @@ public class BVerifyServerUtils {
 	 */
 	public void changeRecord(int recordNumber, Record newRecord) {
 		this.readWriteLock.writeLock().lock();
-        CryptographicRecordAggregator newAggregator = new CryptographicRecordAggregator();
-		ArrayStore<RecordAggregation, Record> newStore = new ArrayStore<RecordAggregation,Record>();    
-		HistoryTree<RecordAggregation, Record> newHisttree = new HistoryTree<RecordAggregation, Record>(newAggregator, newStore);
-		// this algorithm recomputes the entire tree, rather than just the necessary hashes, 
-		// but since for testing use only this is not a big problem
-		for(int i = 0; i <= this.histtree.version(); i++) {
-			Record r;
-			if( i == (recordNumber)) {
-				r = newRecord;
+		try {
+			ArrayStore<RecordAggregation, Record> newStore = new ArrayStore<RecordAggregation,Record>();    
+			// this algorithm recomputes the entire tree, rather than just the necessary hashes, 
+			// but since for testing use only this is not a big problem
+			List<Record> records = new ArrayList<Record>();
+			for(int i = 0; i <= this.histtree.version(); i++) {
+				Record r;
+				if( i == (recordNumber)) {
+					r = newRecord;
+				}
+				else {
+					r = this.histtree.leaf(i).getVal();	
+				}	
+				records.add(r);
+			}
+			this.store = newStore;
+			this.histtree = RecordHistoryTreeBuilder.build(records, newStore, this.aggregator, 
+					ForkJoinPool.commonPool());
+			this.attributeIndex = new CategoricalAttributeIndex();
+			for(Record r : records) {
+				this.attributeIndex.addRecord(r.getCategoricalAttributes());
 			}
-			else {
-				r = this.histtree.leaf(i).getVal();	
-			}	
-			newHisttree.append(r);
+			// the cached proofs are of the old records
+			this.proofCache.clear();
+		} finally {
+			this.readWriteLock.writeLock().unlock();
 		}
-		this.aggregator = newAggregator;
-		this.store = newStore;
-		this.histtree = newHisttree;
-		this.readWriteLock.writeLock().unlock();
 
 	}
 		
@@ -0,0 +1,407 @@
+package org.bverify.bverify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bverify.aggregators.HashAlgorithm;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.records.CategoricalAttributes;
+import org.bverify.records.NumericalAttributes;
+import org.bverify.records.Record;
+import org.bverify.records.SignatureVerificationService;
+import org.bverify.records.SimpleRecord;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Imports large numbers of records (e.g. back-filling historical
+ * inventory movements) into a server as a pipeline:
+ *
+ * 		1. a reader thread reads the input into chunks of raw records
+ * 		2. worker threads decode the records of a chunk, validate them
+ * 			(including their signatures, see {@link SignatureVerificationService})
+ * 			and calculate their leaf aggregations (leaf hashes)
+ * 		3. the calling thread appends the chunks, in input order, to the server -
+ * 			only this stage holds the server's write lock and it
+ * 			only adds up attributes
+ *
+ * At most queueCapacity chunks are in the pipeline at a time,
+ * so memory is bounded however large the input is. Invalid records are
+ * not appended and are counted as rejected. The result is the same as
+ * adding the valid records one at a time with {@link BVerifyServerUtils#addRecord(Record)}.
+ *
+ * Progress and throughput can be read while a load is running,
+ * from any thread. A loader runs one load at a time.
+ *
+ */
+public class BulkRecordLoader {
+
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+	private final BVerifyServerUtils server;
+	private final int threads;
+	private final int chunkSize;
+	private final int queueCapacity;
+	private final SignatureVerificationService verifier;
+
+	private final AtomicLong recordsRead;
+	private final AtomicLong recordsDecoded;
+	private final AtomicLong recordsRejected;
+	private final AtomicLong recordsAppended;
+	private volatile long startTime;
+	private volatile long endTime;
+	private volatile Semaphore inFlight;
+
+	public BulkRecordLoader(BVerifyServerUtils server) {
+		this(server, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param server - the server to add the records to
+	 * @param threads - number of threads decoding, validating and hashing records
+	 * @param chunkSize - number of records handed between stages at a time
+	 * @param queueCapacity - maximum number of chunks in the pipeline
+	 */
+	public BulkRecordLoader(BVerifyServerUtils server, int threads, int chunkSize, int queueCapacity) {
+		if(threads < 1 || chunkSize < 1 || queueCapacity < 1) {
+			throw new RuntimeException("Error - threads, chunk size and queue capacity must be positive");
+		}
+		this.server = server;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+		this.queueCapacity = queueCapacity;
+		// signatures are verified in the worker threads
+		this.verifier = new SignatureVerificationService(1, SignatureVerificationService.DEFAULT_CACHE_CAPACITY);
+		this.recordsRead = new AtomicLong();
+		this.recordsDecoded = new AtomicLong();
+		this.recordsRejected = new AtomicLong();
+		this.recordsAppended = new AtomicLong();
+	}
+
+	/**
+	 * Loads length-delimited serialized records (each record is
+	 * preceded by its length as a varint, see {@link #writeDelimited(Iterable, OutputStream)})
+	 * @param in
+	 * @return the number of records appended
+	 * @throws IOException - if the input cannot be read or a record cannot be parsed,
+	 * 			records before it may have been appended
+	 * @throws InsufficientMoneyException - if a commitment could not be published
+	 */
+	public long loadDelimited(InputStream in) throws IOException, InsufficientMoneyException {
+		CodedInputStream input = CodedInputStream.newInstance(in);
+		return this.<byte[]>load(() -> {
+			if(input.isAtEnd()) {
+				return null;
+			}
+			byte[] data = input.readByteArray();
+			// the size limit applies to each record, not to the whole input
+			input.resetSizeCounter();
+			return data;
+		}, Record::parseRecord);
+	}
+
+	/**
+	 * Loads records from CSV
+	 * @param in
+	 * @param format
+	 * @param parser - converts a CSV row into a record,
+	 * 			see {@link #simpleRecordParser(int, int)}
+	 * @return the number of records appended
+	 * @throws IOException - if the input cannot be read or a row cannot be parsed,
+	 * 			records before it may have been appended
+	 * @throws InsufficientMoneyException - if a commitment could not be published
+	 */
+	public long loadCsv(Reader in, CSVFormat format, Function<CSVRecord, Record> parser)
+			throws IOException, InsufficientMoneyException {
+		try(CSVParser csvParser = new CSVParser(in, format)) {
+			Iterator<CSVRecord> rows = csvParser.iterator();
+			return this.<CSVRecord>load(() -> rows.hasNext() ? rows.next() : null, row -> parser.apply(row));
+		}
+	}
+
+	/**
+	 * Parses CSV rows of simple records:
+	 *
+	 * 		date created (milliseconds) | numerical attribute 0 | ... |
+	 * 			numerical attribute (n-1) | categorical attributes
+	 *
+	 * where the last column lists the indices of the categorical
+	 * attributes that are set, separated by spaces
+	 * @param numberOfNumericalAttributes
+	 * @param numberOfCategoricalAttributes
+	 * @return
+	 */
+	public static Function<CSVRecord, Record> simpleRecordParser(int numberOfNumericalAttributes,
+			int numberOfCategoricalAttributes) {
+		return row -> {
+			if(row.size() != numberOfNumericalAttributes + 2) {
+				throw new IllegalArgumentException("Expected "+(numberOfNumericalAttributes + 2)+
+						" columns in row "+row.getRecordNumber());
+			}
+			NumericalAttributes numericalAttributes = new NumericalAttributes(numberOfNumericalAttributes);
+			for(int i = 0; i < numberOfNumericalAttributes; i++) {
+				numericalAttributes.setAttribute(i, Integer.parseInt(row.get(i + 1).trim()));
+			}
+			CategoricalAttributes categoricalAttributes = new CategoricalAttributes(numberOfCategoricalAttributes);
+			for(String idx : row.get(numberOfNumericalAttributes + 1).trim().split(" +")) {
+				if(!idx.isEmpty()) {
+					categoricalAttributes.setAttribute(Integer.parseInt(idx), true);
+				}
+			}
+			SimpleRecord record = new SimpleRecord(categoricalAttributes, numericalAttributes);
+			record.setDateCreated(new Date(Long.parseLong(row.get(0).trim())));
+			return record;
+		};
+	}
+
+	/**
+	 * Writes the records length-delimited, in the format read
+	 * by {@link #loadDelimited(InputStream)}
+	 * @param records
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void writeDelimited(Iterable<? extends Record> records, OutputStream out) throws IOException {
+		CodedOutputStream output = CodedOutputStream.newInstance(out);
+		for(Record r : records) {
+			output.writeByteArrayNoTag(r.serializeRecord());
+		}
+		output.flush();
+	}
+
+	/**
+	 * Reads the next raw record, or null at the end of the input
+	 */
+	private interface Source<T> {
+		T next() throws IOException;
+	}
+
+	/**
+	 * Decodes a raw record
+	 */
+	private interface Decoder<T> {
+		Record decode(T raw) throws Exception;
+	}
+
+	/**
+	 * A chunk of records passed between the stages. The chunk
+	 * with sequence number = number of chunks marks the end of the input.
+	 */
+	private static class Chunk {
+		final long sequenceNumber;
+		final List<Object> raw;
+		List<Record> records;
+		RecordAggregation[] leaves;
+		// anything thrown while reading or processing - including 
+		// Errors, the appender must never wait for a chunk that is not coming
+		Throwable error;
+
+		Chunk(long sequenceNumber, List<Object> raw) {
+			this.sequenceNumber = sequenceNumber;
+			this.raw = raw;
+		}
+	}
+
+	private <T> long load(Source<T> source, Decoder<T> decoder) throws IOException, InsufficientMoneyException {
+		this.recordsRead.set(0);
+		this.recordsDecoded.set(0);
+		this.recordsRejected.set(0);
+		this.recordsAppended.set(0);
+		this.startTime = System.nanoTime();
+		this.endTime = 0;
+		Semaphore inFlight = new Semaphore(this.queueCapacity);
+		this.inFlight = inFlight;
+		BlockingQueue<Chunk> processed = new LinkedBlockingQueue<Chunk>();
+		HashAlgorithm hashAlgorithm = this.server.getHashAlgorithm();
+		ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		try {
+			reader.submit(() -> {
+				long sequenceNumber = 0;
+				try {
+					while(true) {
+						List<Object> raw = new ArrayList<Object>(this.chunkSize);
+						T next;
+						while(raw.size() < this.chunkSize && (next = source.next()) != null) {
+							raw.add(next);
+						}
+						this.recordsRead.addAndGet(raw.size());
+						if(raw.isEmpty()) {
+							break;
+						}
+						inFlight.acquire();
+						Chunk chunk = new Chunk(sequenceNumber++, raw);
+						workers.execute(() -> {
+							try {
+								this.process(chunk, decoder, hashAlgorithm);
+							} catch (Throwable e) {
+								chunk.error = e;
+							} finally {
+								processed.add(chunk);
+							}
+						});
+					}
+					processed.add(new Chunk(sequenceNumber, null));
+				} catch (InterruptedException e) {
+					// the load was abandoned
+				} catch (Throwable e) {
+					Chunk failed = new Chunk(sequenceNumber, null);
+					failed.error = e;
+					processed.add(failed);
+				}
+				return null;
+			});
+			return this.append(processed, inFlight);
+		} finally {
+			reader.shutdownNow();
+			workers.shutdownNow();
+			this.endTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Decode, validate and hash the records of the chunk
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void process(Chunk chunk, Decoder<T> decoder, HashAlgorithm hashAlgorithm) throws Exception {
+		List<Record> records = new ArrayList<Record>(chunk.raw.size());
+		for(Object raw : chunk.raw) {
+			records.add(decoder.decode((T) raw));
+		}
+		this.recordsDecoded.addAndGet(records.size());
+		List<Record> valid = new ArrayList<Record>(records.size());
+		for(Record r : records) {
+			if(this.verifier.validate(r)) {
+				valid.add(r);
+			}
+		}
+		this.recordsRejected.addAndGet(records.size() - valid.size());
+		RecordAggregation[] leaves = new RecordAggregation[valid.size()];
+		for(int i = 0; i < leaves.length; i++) {
+			leaves[i] = new RecordAggregation(valid.get(i), hashAlgorithm);
+		}
+		chunk.records = valid;
+		chunk.leaves = leaves;
+	}
+
+	/**
+	 * Append the processed chunks in order
+	 */
+	private long append(BlockingQueue<Chunk> processed, Semaphore inFlight)
+			throws IOException, InsufficientMoneyException {
+		Map<Long, Chunk> waiting = new HashMap<Long, Chunk>();
+		long next = 0;
+		try {
+			while(true) {
+				Chunk chunk = waiting.remove(next);
+				if(chunk == null) {
+					chunk = processed.take();
+					if(chunk.sequenceNumber != next) {
+						waiting.put(chunk.sequenceNumber, chunk);
+						continue;
+					}
+				}
+				if(chunk.error instanceof Error) {
+					throw (Error) chunk.error;
+				}
+				if(chunk.error != null) {
+					throw new IOException("Error - could not load record", chunk.error);
+				}
+				if(chunk.raw == null) {
+					return this.recordsAppended.get();
+				}
+				if(!chunk.records.isEmpty()) {
+					this.server.addRecords(chunk.records, chunk.leaves);
+				}
+				this.recordsAppended.addAndGet(chunk.records.size());
+				inFlight.release();
+				next++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Error - interrupted while loading records", e);
+		}
+	}
+
+	/**
+	 * Number of records read from the input so far
+	 * @return
+	 */
+	public long getRecordsRead() {
+		return this.recordsRead.get();
+	}
+
+	public long getRecordsDecoded() {
+		return this.recordsDecoded.get();
+	}
+
+	/**
+	 * Number of records that were not valid (and were not appended)
+	 * @return
+	 */
+	public long getRecordsRejected() {
+		return this.recordsRejected.get();
+	}
+
+	public long getRecordsAppended() {
+		return this.recordsAppended.get();
+	}
+
+	/**
+	 * Number of chunks that have been read but not yet appended
+	 * @return
+	 */
+	public int getChunksInFlight() {
+		Semaphore inFlight = this.inFlight;
+		return inFlight == null ? 0 : this.queueCapacity - inFlight.availablePermits();
+	}
+
+	/**
+	 * Time spent on the current (or last) load in nanoseconds
+	 * @return
+	 */
+	public long getElapsedTime() {
+		if(this.startTime == 0) {
+			return 0;
+		}
+		return (this.endTime != 0 ? this.endTime : System.nanoTime()) - this.startTime;
+	}
+
+	/**
+	 * Records appended per second in the current (or last) load
+	 * @return
+	 */
+	public double getRecordsPerSecond() {
+		long elapsed = this.getElapsedTime();
+		return elapsed == 0 ? 0 : this.getRecordsAppended() / (elapsed / 1e9);
+	}
+
+	/**
+	 * Stops the signature verification threads
+	 */
+	public void shutdown() {
+		this.verifier.shutdown();
+	}
+
+}
@@ -0,0 +1,254 @@
+package org.bverify.bverify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bverify.records.CategoricalAttributes;
+import org.bverify.records.RecordNumberBitmap;
+
+/**
+ * An inverted index from each categorical attribute to the records that
+ * have it, kept as compressed bitmaps of record numbers
+ * ({@link RecordNumberBitmap}). Updated as records are appended, so the
+ * records matching a filter are found by ANDing the bitmaps of the
+ * attributes of the filter, without reading the history tree.
+ *
+ * The index is not a proof - clients can not verify its answers - but
+ * the matches can be used to construct a
+ * {@link org.bverify.proofs.CategoricalQueryProof}.
+ *
+ * Every record must have the same number of categorical attributes, and 
+ * the queries throw an IllegalArgumentException for a filter of a 
+ * different width.
+ *
+ * Not thread safe, the server guards it with its read / write lock.
+ *
+ */
+public class CategoricalAttributeIndex {
+
+	// returned by getSmallestPosting
+	private static final int EMPTY_FILTER = -1;
+	private static final int NO_RECORDS = -2;
+
+	// postings[i] are the records with attribute i,
+	// null if no record has it
+	private RecordNumberBitmap[] postings;
+	private int numberOfRecords;
+	// number of categorical attributes of every record,
+	// -1 until the first record is added
+	private int numberOfAttributes;
+
+	public CategoricalAttributeIndex() {
+		this.postings = new RecordNumberBitmap[0];
+		this.numberOfRecords = 0;
+		this.numberOfAttributes = -1;
+	}
+
+	/**
+	 * Index the attributes of the next record,
+	 * record numbers are assigned in order
+	 * @param attributes
+	 * @throws IllegalArgumentException - if the record has a different 
+	 * 			number of attributes than the records already indexed
+	 */
+	public void addRecord(CategoricalAttributes attributes) {
+		if(this.numberOfAttributes < 0) {
+			this.numberOfAttributes = attributes.numberOfAttributes();
+		}
+		this.checkNumberOfAttributes(attributes);
+		int recordNumber = this.numberOfRecords;
+		for(int i = attributes.nextSetAttribute(0); i >= 0; i = attributes.nextSetAttribute(i+1)) {
+			if(i >= this.postings.length) {
+				this.postings = Arrays.copyOf(this.postings, Math.max(i + 1, 2 * this.postings.length));
+			}
+			if(this.postings[i] == null) {
+				this.postings[i] = new RecordNumberBitmap();
+			}
+			this.postings[i].add(recordNumber);
+		}
+		this.numberOfRecords++;
+	}
+
+	public int getNumberOfRecords() {
+		return this.numberOfRecords;
+	}
+
+	/**
+	 * Returns the records that have at least the attributes of the filter
+	 * @param filter
+	 * @return
+	 */
+	public RecordNumberBitmap getMatchingRecords(CategoricalAttributes filter) {
+		this.checkNumberOfAttributes(filter);
+		RecordNumberBitmap res = this.match(filter);
+		if(res == null) {
+			// every record matches an empty filter
+			return RecordNumberBitmap.allRecords(this.numberOfRecords);
+		}
+		// do not return the index's own bitmap
+		return this.isPosting(res) ? new RecordNumberBitmap(res) : res;
+	}
+
+	/**
+	 * Returns the record numbers, at most lastRecordNumber, of the records that
+	 * have at least the attributes of the filter, in increasing order
+	 * @param filter
+	 * @param lastRecordNumber
+	 * @return
+	 */
+	public List<Integer> getMatchingRecordNumbers(CategoricalAttributes filter, int lastRecordNumber) {
+		return this.getMatchingRecordNumbers(filter, 0, lastRecordNumber);
+	}
+
+	/**
+	 * Returns the record numbers in [firstRecordNumber, lastRecordNumber] of the
+	 * records that have at least the attributes of the filter, in increasing order.
+	 * Only the records of the smallest bitmap in the range are intersected.
+	 * @param filter
+	 * @param firstRecordNumber
+	 * @param lastRecordNumber
+	 * @return
+	 */
+	public List<Integer> getMatchingRecordNumbers(CategoricalAttributes filter, int firstRecordNumber,
+			int lastRecordNumber) {
+		this.checkNumberOfAttributes(filter);
+		List<Integer> res = new ArrayList<Integer>();
+		int smallest = this.getSmallestPosting(filter);
+		int recordNumber = Math.max(0, firstRecordNumber);
+		if(smallest == NO_RECORDS) {
+			return res;
+		}
+		if(smallest == EMPTY_FILTER) {
+			for(; recordNumber < this.numberOfRecords && recordNumber <= lastRecordNumber; recordNumber++) {
+				res.add(recordNumber);
+			}
+			return res;
+		}
+		RecordNumberBitmap posting = this.postings[smallest];
+		for(recordNumber = posting.nextRecordNumber(recordNumber); recordNumber >= 0 &&
+				recordNumber <= lastRecordNumber; recordNumber = recordNumber == Integer.MAX_VALUE ? -1 :
+					posting.nextRecordNumber(recordNumber + 1)) {
+			if(this.hasOtherAttributes(filter, smallest, recordNumber)) {
+				res.add(recordNumber);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the number of records that have at least the attributes of the filter.
+	 * Does not allocate - for more than two attributes the records of the smallest
+	 * bitmap are looked up in the others, so it takes time proportional to the
+	 * number of records with the rarest attribute.
+	 * @param filter
+	 * @return
+	 */
+	public int countMatchingRecords(CategoricalAttributes filter) {
+		this.checkNumberOfAttributes(filter);
+		int smallest = this.getSmallestPosting(filter);
+		if(smallest == NO_RECORDS) {
+			return 0;
+		}
+		if(smallest == EMPTY_FILTER) {
+			return this.numberOfRecords;
+		}
+		RecordNumberBitmap posting = this.postings[smallest];
+		int other = -1;
+		int numberOfOthers = 0;
+		for(int i = filter.nextSetAttribute(0); i >= 0; i = filter.nextSetAttribute(i+1)) {
+			if(i != smallest) {
+				other = i;
+				numberOfOthers++;
+			}
+		}
+		if(numberOfOthers == 0) {
+			return posting.cardinality();
+		}
+		if(numberOfOthers == 1) {
+			return posting.andCardinality(this.postings[other]);
+		}
+		int res = 0;
+		for(int recordNumber = posting.nextRecordNumber(0); recordNumber >= 0; 
+				recordNumber = recordNumber == Integer.MAX_VALUE ? -1 : posting.nextRecordNumber(recordNumber + 1)) {
+			if(this.hasOtherAttributes(filter, smallest, recordNumber)) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * ANDs the bitmaps of the attributes of the filter, smallest first so the
+	 * intermediate results stay small. Returns null for an empty filter, the
+	 * result may be one of the index's own bitmaps.
+	 */
+	private RecordNumberBitmap match(CategoricalAttributes filter) {
+		int smallest = this.getSmallestPosting(filter);
+		if(smallest == NO_RECORDS) {
+			return new RecordNumberBitmap();
+		}
+		if(smallest == EMPTY_FILTER) {
+			return null;
+		}
+		RecordNumberBitmap res = this.postings[smallest];
+		for(int i = filter.nextSetAttribute(0); i >= 0 && !res.isEmpty(); i = filter.nextSetAttribute(i+1)) {
+			if(i != smallest) {
+				res = res.and(this.postings[i]);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Attributes that are too wide or too narrow would probe the wrong 
+	 * postings and give a wrong (but plausible) answer
+	 */
+	private void checkNumberOfAttributes(CategoricalAttributes attributes) {
+		if(this.numberOfAttributes >= 0 && attributes.numberOfAttributes() != this.numberOfAttributes) {
+			throw new IllegalArgumentException("Expected "+this.numberOfAttributes+
+					" categorical attributes but got "+attributes.numberOfAttributes());
+		}
+	}
+
+	private boolean isPosting(RecordNumberBitmap bitmap) {
+		for(RecordNumberBitmap posting : this.postings) {
+			if(posting == bitmap) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the attribute of the filter with the fewest records, 
+	 * EMPTY_FILTER if the filter has no attributes or NO_RECORDS if
+	 * no record has one of the attributes
+	 */
+	private int getSmallestPosting(CategoricalAttributes filter) {
+		int res = EMPTY_FILTER;
+		for(int i = filter.nextSetAttribute(0); i >= 0; i = filter.nextSetAttribute(i+1)) {
+			if(i >= this.postings.length || this.postings[i] == null) {
+				return NO_RECORDS;
+			}
+			if(res == EMPTY_FILTER || this.postings[i].cardinality() < this.postings[res].cardinality()) {
+				res = i;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Whether the record has every attribute of the filter other than skip,
+	 * every attribute of the filter must have a bitmap
+	 */
+	private boolean hasOtherAttributes(CategoricalAttributes filter, int skip, int recordNumber) {
+		for(int i = filter.nextSetAttribute(0); i >= 0; i = filter.nextSetAttribute(i+1)) {
+			if(i != skip && !this.postings[i].contains(recordNumber)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -1,19 +1,41 @@
 package org.bverify.proofs;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
-import org.apache.commons.lang3.SerializationUtils;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
 
 public class AggregationProof implements Proof {
 	
-	private static final long serialVersionUID = 1L;
-	private final RecordAggregation mainAgg;
-	private final byte[] leftPreImageHash;
-	private final byte[] rightPreImageHash;
-	private final int commitmentNumber;
+	private static final long serialVersionUID = 2L;
+	
+	// wire format tags of the fields
+	// tag = (field number << 3) | wire type
+	private static final int AGGREGATION_TAG = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int HASH_ALGORITHM_TAG = (2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int LEFT_PRE_IMAGE_HASH_TAG = (3 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int RIGHT_PRE_IMAGE_HASH_TAG = (4 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int COMMITMENT_NUMBER_TAG = (5 << 3) | WireFormat.WIRETYPE_VARINT;
 	
+	// not final so the proof can be read in readObject
+	private RecordAggregation mainAgg;
+	private byte[] leftPreImageHash;
+	private byte[] rightPreImageHash;
+	private int commitmentNumber;
+	
+	private AggregationProof() {
+	}
 
 	public AggregationProof(RecordAggregation main, 
 			byte[] leftPreImageHash, byte[] rightPreImageHash,
@@ -28,6 +50,7 @@ public class AggregationProof implements Proof {
 		// STEP 1 - verify the final preimage 
 		// 			correctly reproduces the hash
 		byte[] hashRes = RecordAggregation.calculateHash(
+				this.mainAgg.getHashAlgorithm(),
 				this.mainAgg.getNumericalAttributes(), 
 				this.mainAgg.getCategoricalAttributes(),
 				this.leftPreImageHash, this.rightPreImageHash);
@@ -53,10 +76,140 @@ public class AggregationProof implements Proof {
 	public int getCommitmentNumber() {
 		return this.commitmentNumber;
 	}
+	
+	@Override
+	public HashAlgorithm getHashAlgorithm() {
+		return this.mainAgg.getHashAlgorithm();
+	}
 
 	@Override
 	public int getSizeInBytes() {
-		return SerializationUtils.serialize(this).length;
+		return this.getSizeInBytes(this.mainAgg.serializatRecordAggregation(), this.hashAlgorithmName());
+	}
+	
+	private int getSizeInBytes(byte[] aggregation, byte[] hashAlgorithmName) {
+		int size = CodedOutputStream.computeByteArraySize(1, aggregation) + 
+				CodedOutputStream.computeUInt32Size(5, this.commitmentNumber);
+		if(hashAlgorithmName != null) {
+			size += CodedOutputStream.computeByteArraySize(2, hashAlgorithmName);
+		}
+		if(this.leftPreImageHash != null) {
+			size += CodedOutputStream.computeByteArraySize(3, this.leftPreImageHash);
+		}
+		if(this.rightPreImageHash != null) {
+			size += CodedOutputStream.computeByteArraySize(4, this.rightPreImageHash);
+		}
+		return size;
+	}
+	
+	@Override
+	public byte[] serializeProof() {
+		byte[] aggregation = this.mainAgg.serializatRecordAggregation();
+		byte[] hashAlgorithmName = this.hashAlgorithmName();
+		byte[] res = new byte[this.getSizeInBytes(aggregation, hashAlgorithmName)];
+		CodedOutputStream out = CodedOutputStream.newInstance(res);
+		try {
+			out.writeByteArray(1, aggregation);
+			if(hashAlgorithmName != null) {
+				out.writeByteArray(2, hashAlgorithmName);
+			}
+			if(this.leftPreImageHash != null) {
+				out.writeByteArray(3, this.leftPreImageHash);
+			}
+			if(this.rightPreImageHash != null) {
+				out.writeByteArray(4, this.rightPreImageHash);
+			}
+			out.writeUInt32(5, this.commitmentNumber);
+			out.checkNoSpaceLeft();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not serialize proof");
+		}
+		return res;
+	}
+	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}.
+	 * The proof must use the default hash algorithm, see 
+	 * {@link #parseProof(byte[], HashAlgorithm)}.
+	 * @param data
+	 * @return
+	 * @throws InvalidProtocolBufferException
+	 */
+	public static AggregationProof parseProof(byte[] data) throws InvalidProtocolBufferException {
+		return AggregationProof.parseProof(data, HashAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}, 
+	 * rejecting it if it was not hashed with the expected algorithm
+	 * @param data
+	 * @param hashAlgorithm - the algorithm the client uses
+	 * @return
+	 * @throws InvalidProtocolBufferException - also if the proof uses another hash algorithm
+	 */
+	public static AggregationProof parseProof(byte[] data, HashAlgorithm hashAlgorithm) 
+			throws InvalidProtocolBufferException {
+		AggregationProof proof = new AggregationProof();
+		try {
+			proof.readFrom(CodedInputStream.newInstance(data), hashAlgorithm);
+		} catch (IOException e) {
+			throw ProofEncoding.asParseError(e);
+		}
+		return proof;
+	}
+	
+	private void readFrom(CodedInputStream input, HashAlgorithm expected) throws IOException {
+		ByteString aggregation = null;
+		HashAlgorithm hashAlgorithm = HashAlgorithm.DEFAULT;
+		boolean hasCommitmentNumber = false;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == AGGREGATION_TAG) {
+				aggregation = input.readBytes();
+			}else if(tag == HASH_ALGORITHM_TAG) {
+				hashAlgorithm = ProofEncoding.readHashAlgorithm(input);
+			}else if(tag == LEFT_PRE_IMAGE_HASH_TAG) {
+				this.leftPreImageHash = input.readByteArray();
+			}else if(tag == RIGHT_PRE_IMAGE_HASH_TAG) {
+				this.rightPreImageHash = input.readByteArray();
+			}else if(tag == COMMITMENT_NUMBER_TAG) {
+				this.commitmentNumber = input.readUInt32();
+				hasCommitmentNumber = true;
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		if(aggregation == null || !hasCommitmentNumber) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
+		}
+		ProofEncoding.checkHashAlgorithm(expected, hashAlgorithm);
+		// the hash size depends on the algorithm, which may follow the aggregation
+		this.mainAgg = RecordAggregation.readFrom(aggregation.newCodedInput(), hashAlgorithm);
+	}
+	
+	/**
+	 * The name of the hash algorithm, null if it is the default 
+	 * (the default is not written)
+	 */
+	private byte[] hashAlgorithmName() {
+		HashAlgorithm hashAlgorithm = this.mainAgg.getHashAlgorithm();
+		if(hashAlgorithm == HashAlgorithm.DEFAULT) {
+			return null;
+		}
+		return hashAlgorithm.getName().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private void writeObject(ObjectOutputStream oos) throws IOException {
+		byte[] data = this.serializeProof();
+		oos.writeInt(data.length);
+		oos.write(data);
+	}
+	
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+		byte[] data = ProofEncoding.readSerializedProof(ois);
+		// there is no configuration here, the verifier checks getHashAlgorithm()
+		this.readFrom(CodedInputStream.newInstance(data), null);
 	}
 	
 	@Override 
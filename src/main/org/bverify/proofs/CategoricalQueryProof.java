@@ -7,11 +7,18 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.bouncycastle.util.Arrays;
-import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
+import org.bverify.aggregators.RecordHistoryTree;
+import org.bverify.aggregators.RecordLeafCache;
 import org.bverify.records.CategoricalAttributes;
 import org.bverify.records.Record;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.NodeCursor;
 import edu.rice.historytree.ProofError;
@@ -26,7 +33,19 @@ import edu.rice.historytree.storage.ArrayStore;
  */
 public class CategoricalQueryProof implements Proof {
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
+	
+	// wire format tags of the fields
+	// tag = (field number << 3) | wire type
+	private static final int FILTER_TAG = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int MATCHING_RECORD_NUMBERS_TAG = (2 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int MATCHING_RECORD_NUMBERS_PACKED_TAG = (2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int COMMITMENT_NUMBER_TAG = (3 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int RECORD_COMMITMENT_NUMBER_TAG = (4 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int PROOF_TREE_TAG = (5 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int FIRST_RECORD_NUMBER_TAG = (6 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int LAST_RECORD_NUMBER_TAG = (7 << 3) | WireFormat.WIRETYPE_VARINT;
+	
 	private HistoryTree<RecordAggregation, Record> proofTree;
 	private CategoricalAttributes filter;
 	
@@ -36,34 +55,229 @@ public class CategoricalQueryProof implements Proof {
 
 	private int commitmentNumber;
 	private int recordCommitmentNumber;
+	
+	// the records searched, [0, recordCommitmentNumber] 
+	// unless the query is restricted to a range
+	private int firstRecordNumber;
+	private int lastRecordNumber;
+	
+	// the encoded proof tree, calculated when first needed
+	private transient byte[] serializedTree;
+	
+	private CategoricalQueryProof() {
+	}
 
 	public CategoricalQueryProof(CategoricalAttributes filter, HistoryTree<RecordAggregation, Record> treeRep,
 			int commitmentNumber, int recordCommitmentNumber) throws ProofError {
-
+		this(filter, treeRep, null, commitmentNumber, recordCommitmentNumber);
+	}
+	
+	/**
+	 * Construct the proof reading the leaves through the cache
+	 * @param filter
+	 * @param treeRep
+	 * @param leafCache - cache of the leaves of treeRep, may be null
+	 * @param commitmentNumber
+	 * @param recordCommitmentNumber
+	 * @throws ProofError
+	 */
+	public CategoricalQueryProof(CategoricalAttributes filter, HistoryTree<RecordAggregation, Record> treeRep,
+			RecordLeafCache leafCache, int commitmentNumber, int recordCommitmentNumber) throws ProofError {
+		this(filter, treeRep, leafCache, 0, recordCommitmentNumber, commitmentNumber, recordCommitmentNumber);
+	}
+	
+	/**
+	 * Construct a proof for a search of only the records 
+	 * firstRecordNumber, ... , lastRecordNumber (inclusive). The proof 
+	 * only shows that no matching record in the range was omitted, so 
+	 * its size scales with the range rather than the whole log.
+	 * @param filter
+	 * @param treeRep
+	 * @param firstRecordNumber
+	 * @param lastRecordNumber - at most recordCommitmentNumber
+	 * @param commitmentNumber
+	 * @param recordCommitmentNumber
+	 * @throws ProofError - if the range is not part of the commitment
+	 */
+	public CategoricalQueryProof(CategoricalAttributes filter, HistoryTree<RecordAggregation, Record> treeRep,
+			int firstRecordNumber, int lastRecordNumber, int commitmentNumber, 
+			int recordCommitmentNumber) throws ProofError {
+		this(filter, treeRep, null, firstRecordNumber, lastRecordNumber, commitmentNumber, 
+				recordCommitmentNumber);
+	}
+	
+	/**
+	 * Construct the proof for a search of the records in the range. If the tree 
+	 * is a {@link RecordHistoryTree} only the subtrees that can contain a matching 
+	 * record are visited, otherwise every leaf in the range is read (through the cache)
+	 * @param filter
+	 * @param treeRep
+	 * @param leafCache - cache of the leaves of treeRep, may be null
+	 * @param firstRecordNumber
+	 * @param lastRecordNumber - at most recordCommitmentNumber
+	 * @param commitmentNumber
+	 * @param recordCommitmentNumber
+	 * @throws ProofError - if the range is not part of the commitment
+	 */
+	public CategoricalQueryProof(CategoricalAttributes filter, HistoryTree<RecordAggregation, Record> treeRep,
+			RecordLeafCache leafCache, int firstRecordNumber, int lastRecordNumber, int commitmentNumber, 
+			int recordCommitmentNumber) throws ProofError {
+		CategoricalQueryProof.checkRange(firstRecordNumber, lastRecordNumber, recordCommitmentNumber);
+		List<Integer> matching;
+		if(treeRep instanceof RecordHistoryTree) {
+			// a subtree can only contain a match if its (OR-ed) 
+			// attributes have the filter
+			matching = ((RecordHistoryTree) treeRep).getMatchingLeaves(
+					agg -> agg.hasCategoricalAttributes(filter), firstRecordNumber, lastRecordNumber);
+		}else {
+			matching = CategoricalQueryProof.scanLeaves(filter, treeRep, leafCache, 
+					firstRecordNumber, lastRecordNumber);
+		}
+		this.build(filter, treeRep, matching, firstRecordNumber, lastRecordNumber, commitmentNumber, 
+				recordCommitmentNumber);
+	}
+	
+	/**
+	 * Construct the proof from the records already known to match the filter 
+	 * (e.g. found with an index), without searching the tree. If a matching 
+	 * record is missing the proof will not check.
+	 * @param filter
+	 * @param treeRep
+	 * @param matchingRecordNumbers - every record in [0, recordCommitmentNumber] that 
+	 * 			has the filter, in increasing order
+	 * @param commitmentNumber
+	 * @param recordCommitmentNumber
+	 * @return
+	 * @throws ProofError
+	 */
+	public static CategoricalQueryProof fromMatchingRecords(CategoricalAttributes filter, 
+			HistoryTree<RecordAggregation, Record> treeRep, List<Integer> matchingRecordNumbers, 
+			int commitmentNumber, int recordCommitmentNumber) throws ProofError {
+		return CategoricalQueryProof.fromMatchingRecords(filter, treeRep, matchingRecordNumbers, 
+				0, recordCommitmentNumber, commitmentNumber, recordCommitmentNumber);
+	}
+	
+	/**
+	 * Construct the proof for a search of the records in the range from the 
+	 * records already known to match the filter
+	 * @param matchingRecordNumbers - every record in [firstRecordNumber, lastRecordNumber] 
+	 * 			that has the filter, in increasing order
+	 * @see #fromMatchingRecords(CategoricalAttributes, HistoryTree, List, int, int)
+	 */
+	public static CategoricalQueryProof fromMatchingRecords(CategoricalAttributes filter, 
+			HistoryTree<RecordAggregation, Record> treeRep, List<Integer> matchingRecordNumbers, 
+			int firstRecordNumber, int lastRecordNumber, int commitmentNumber, 
+			int recordCommitmentNumber) throws ProofError {
+		CategoricalQueryProof.checkRange(firstRecordNumber, lastRecordNumber, recordCommitmentNumber);
+		CategoricalQueryProof proof = new CategoricalQueryProof();
+		proof.build(filter, treeRep, new ArrayList<Integer>(matchingRecordNumbers), firstRecordNumber, 
+				lastRecordNumber, commitmentNumber, recordCommitmentNumber);
+		return proof;
+	}
+	
+	private static void checkRange(int firstRecordNumber, int lastRecordNumber, 
+			int recordCommitmentNumber) throws ProofError {
+		if(firstRecordNumber < 0 || firstRecordNumber > lastRecordNumber || 
+				lastRecordNumber > recordCommitmentNumber) {
+			throw new ProofError(String.format("Range [%d, %d] must be in [0, %d]", 
+					firstRecordNumber, lastRecordNumber, recordCommitmentNumber));
+		}
+	}
+	
+	private void build(CategoricalAttributes filter, HistoryTree<RecordAggregation, Record> treeRep, 
+			List<Integer> matching, int firstRecordNumber, int lastRecordNumber, int commitmentNumber, 
+			int recordCommitmentNumber) throws ProofError {
 		this.filter = new CategoricalAttributes(filter);
-		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
 		this.commitmentNumber = commitmentNumber;
 		this.recordCommitmentNumber = recordCommitmentNumber;
-		this.matchingRecordNumbers = new ArrayList<Integer>();
+		this.firstRecordNumber = firstRecordNumber;
+		this.lastRecordNumber = lastRecordNumber;
+		this.matchingRecordNumbers = matching;
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
 		this.proofTree = treeRep.makePruned(store, this.recordCommitmentNumber);
-		for (int recordNum = 0; recordNum <= recordCommitmentNumber; recordNum++) {
-			NodeCursor<RecordAggregation, Record> cursor = treeRep.leaf(recordNum);
-			RecordAggregation agg = cursor.getAgg();
-			Record rec = cursor.getVal();
+		// copy the paths to the ends of the range, so every stub 
+		// is either entirely inside or entirely outside the range
+		if(firstRecordNumber > 0) {
+			this.proofTree.copyV(treeRep, firstRecordNumber, false);
+		}
+		if(lastRecordNumber < recordCommitmentNumber) {
+			this.proofTree.copyV(treeRep, lastRecordNumber, false);
+		}
+		for (int recordNum : this.matchingRecordNumbers) {
+			// copy that record along with the path to the root into the tree
+			this.proofTree.copyV(treeRep, recordNum, true);
+		}
+	}
+	
+	/**
+	 * Reads every leaf [firstRecordNumber, lastRecordNumber] and 
+	 * returns the ones that have the filter
+	 */
+	private static List<Integer> scanLeaves(CategoricalAttributes filter, 
+			HistoryTree<RecordAggregation, Record> treeRep, RecordLeafCache leafCache, 
+			int firstRecordNumber, int lastRecordNumber) throws ProofError {
+		List<Integer> res = new ArrayList<Integer>();
+		for (int recordNum = firstRecordNumber; recordNum <= lastRecordNumber; recordNum++) {
+			RecordAggregation agg;
+			Record rec;
+			if(leafCache != null) {
+				// a single lookup for both
+				RecordLeafCache.Leaf leaf = leafCache.getLeaf(recordNum);
+				agg = leaf == null ? null : leaf.getAgg();
+				rec = leaf == null ? null : leaf.getVal();
+			}else {
+				NodeCursor<RecordAggregation, Record> cursor = treeRep.leaf(recordNum);
+				agg = cursor.getAgg();
+				rec = cursor.getVal();
+			}
 			if (rec == null || agg == null) {
 				throw new ProofError("Missing values in Tree");
 			}
 			// if the attribute has the filter, we need to add it to the tree
 			if (agg.hasCategoricalAttributes(filter)) {
-				// copy that record along with the path to the root into the tree
-				this.proofTree.copyV(treeRep, recordNum, true);
-				// also keep track of that record number
-				this.matchingRecordNumbers.add(recordNum);
+				res.add(recordNum);
 			}
 		}
+		return res;
 	}
 
+	/**
+	 * Checks the proof of a search of the whole log up to the commitment. 
+	 * A proof of a search of only some of the records is rejected, since 
+	 * it does not show that the records outside of its range were searched.
+	 * @see #checkProof(byte[], int, int)
+	 */
 	public boolean checkProof(byte[] commitmentHash) {
+		if(this.isRangeRestricted()) {
+			return false;
+		}
+		return this.checkSearchedRange(commitmentHash);
+	}
+	
+	/**
+	 * Checks the proof of a search of the records 
+	 * [expectedFirstRecordNumber, expectedLastRecordNumber] - the range the 
+	 * client asked for. The range is read from the proof, so it must 
+	 * be compared to the query: otherwise the server could answer with 
+	 * a narrower search and omit the matching records outside of it.
+	 * @param commitmentHash
+	 * @param expectedFirstRecordNumber
+	 * @param expectedLastRecordNumber
+	 * @return
+	 */
+	public boolean checkProof(byte[] commitmentHash, int expectedFirstRecordNumber, 
+			int expectedLastRecordNumber) {
+		if(this.firstRecordNumber != expectedFirstRecordNumber || 
+				this.lastRecordNumber != expectedLastRecordNumber) {
+			return false;
+		}
+		return this.checkSearchedRange(commitmentHash);
+	}
+	
+	/**
+	 * Checks that the proof is complete for the range it claims to search
+	 */
+	private boolean checkSearchedRange(byte[] commitmentHash) {
 		// First - check if the commitment hash matches
 		byte[] aggHash = this.proofTree.aggV(this.recordCommitmentNumber).getHash();
 		if (!Arrays.areEqual(commitmentHash, aggHash)) {
@@ -71,21 +285,31 @@ public class CategoricalQueryProof implements Proof {
 		}
 		// Now we need to walk the tree and check that stubs
 		// do not match the filter
-		boolean queryIsComplete = this.proofTree.checkStubs(agg -> {
-			// all the stubs must not match the categorical attributes
-			// (if they did than a record matching the query was
-			// omitted)
-			return !agg.hasCategoricalAttributes(filter);
-		});
+		boolean queryIsComplete;
+		if(this.isRangeRestricted()) {
+			// only the stubs in the range are checked, stubs 
+			// outside it may contain matching records
+			queryIsComplete = this.searchableProofTree().checkStubs(
+					agg -> !agg.hasCategoricalAttributes(filter), 
+					this.firstRecordNumber, this.lastRecordNumber);
+		}else {
+			queryIsComplete = this.proofTree.checkStubs(agg -> {
+				// all the stubs must not match the categorical attributes
+				// (if they did than a record matching the query was
+				// omitted)
+				return !agg.hasCategoricalAttributes(filter);
+			});
+		}
 		if (!queryIsComplete) {
 			return false;
 		}
 
 		// If the query is complete we check that none of the
-		// records in the tree are omitted
+		// records in the tree (in the range) are omitted
 		List<Integer> records = this.proofTree.getValueIndicies(agg -> {
 			return agg.hasCategoricalAttributes(filter);
 		});
+		records.removeIf(recordNum -> recordNum < this.firstRecordNumber || recordNum > this.lastRecordNumber);
 		if (!records.equals(this.matchingRecordNumbers)) {
 			return false;
 		}
@@ -111,13 +335,195 @@ public class CategoricalQueryProof implements Proof {
 		return res;
 	}
 
+	/**
+	 * The filter of the query
+	 * @return
+	 */
+	public CategoricalAttributes getFilter() {
+		return new CategoricalAttributes(this.filter);
+	}
+	
+	/**
+	 * The first record searched by the query
+	 * @return
+	 */
+	public int getFirstRecordNumber() {
+		return this.firstRecordNumber;
+	}
+	
+	/**
+	 * The last record searched by the query
+	 * @return
+	 */
+	public int getLastRecordNumber() {
+		return this.lastRecordNumber;
+	}
+	
+	/**
+	 * True if the query did not search the whole log up to the commitment
+	 * @return
+	 */
+	public boolean isRangeRestricted() {
+		return this.firstRecordNumber != 0 || this.lastRecordNumber != this.recordCommitmentNumber;
+	}
+	
+	/**
+	 * The proof tree as a {@link RecordHistoryTree}, so that the stubs 
+	 * can be checked for the range. Parsed proofs already are, a proof 
+	 * constructed locally is checked as the client would check it: 
+	 * by parsing its encoding.
+	 */
+	private RecordHistoryTree searchableProofTree() {
+		if(this.proofTree instanceof RecordHistoryTree) {
+			return (RecordHistoryTree) this.proofTree;
+		}
+		try {
+			return (RecordHistoryTree) ProofEncoding.readTree(
+					CodedInputStream.newInstance(this.serializedTree()), this.getHashAlgorithm());
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not parse proof tree");
+		}
+	}
+	
 	public int getCommitmentNumber() {
 		return this.commitmentNumber;
 	}
+	
+	@Override
+	public HashAlgorithm getHashAlgorithm() {
+		return this.proofTree.agg().getHashAlgorithm();
+	}
 
 	@Override
 	public int getSizeInBytes() {
-		return this.proofTree.serializeTree().length;
+		return CodedOutputStream.computeMessageSize(1, this.filter.serializeCategoricalAttributes()) + 
+				ProofEncoding.computeDeltasSize(2, this.matchingRecordNumbers) + 
+				CodedOutputStream.computeUInt32Size(3, this.commitmentNumber) + 
+				CodedOutputStream.computeUInt32Size(4, this.recordCommitmentNumber) + 
+				CodedOutputStream.computeByteArraySize(5, this.serializedTree()) + 
+				(this.firstRecordNumber != 0 ? 
+						CodedOutputStream.computeUInt32Size(6, this.firstRecordNumber) : 0) + 
+				(this.lastRecordNumber != this.recordCommitmentNumber ? 
+						CodedOutputStream.computeUInt32Size(7, this.lastRecordNumber) : 0);
+	}
+	
+	/**
+	 * The matching record numbers are increasing so they 
+	 * are delta encoded. The range is only written if the 
+	 * query is restricted to a range.
+	 */
+	@Override
+	public byte[] serializeProof() {
+		byte[] res = new byte[this.getSizeInBytes()];
+		CodedOutputStream out = CodedOutputStream.newInstance(res);
+		try {
+			out.writeMessage(1, this.filter.serializeCategoricalAttributes());
+			ProofEncoding.writeDeltas(out, 2, this.matchingRecordNumbers);
+			out.writeUInt32(3, this.commitmentNumber);
+			out.writeUInt32(4, this.recordCommitmentNumber);
+			out.writeByteArray(5, this.serializedTree());
+			if(this.firstRecordNumber != 0) {
+				out.writeUInt32(6, this.firstRecordNumber);
+			}
+			if(this.lastRecordNumber != this.recordCommitmentNumber) {
+				out.writeUInt32(7, this.lastRecordNumber);
+			}
+			out.checkNoSpaceLeft();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not serialize proof");
+		}
+		return res;
+	}
+	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}. The 
+	 * internal hashes of the proof tree are recalculated.
+	 * The proof must use the default hash algorithm, see 
+	 * {@link #parseProof(byte[], HashAlgorithm)}.
+	 * @param data
+	 * @return
+	 * @throws InvalidProtocolBufferException
+	 */
+	public static CategoricalQueryProof parseProof(byte[] data) throws InvalidProtocolBufferException {
+		return CategoricalQueryProof.parseProof(data, HashAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}, 
+	 * rejecting it if it was not hashed with the expected algorithm
+	 * @param data
+	 * @param hashAlgorithm - the algorithm the client uses
+	 * @return
+	 * @throws InvalidProtocolBufferException - also if the proof uses another hash algorithm
+	 */
+	public static CategoricalQueryProof parseProof(byte[] data, HashAlgorithm hashAlgorithm) 
+			throws InvalidProtocolBufferException {
+		CategoricalQueryProof proof = new CategoricalQueryProof();
+		try {
+			proof.readFrom(CodedInputStream.newInstance(data), hashAlgorithm);
+		} catch (IOException e) {
+			throw ProofEncoding.asParseError(e);
+		}
+		return proof;
+	}
+	
+	private void readFrom(CodedInputStream input, HashAlgorithm expected) throws IOException {
+		CategoricalAttributes filter = null;
+		List<Integer> recordNumbers = new ArrayList<Integer>();
+		boolean hasCommitmentNumber = false;
+		boolean hasRecordCommitmentNumber = false;
+		int first = 0;
+		Integer last = null;
+		HistoryTree<RecordAggregation, Record> tree = null;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == FILTER_TAG) {
+				int oldLimit = input.pushLimit(input.readRawVarint32());
+				filter = CategoricalAttributes.readFrom(input);
+				input.popLimit(oldLimit);
+			}else if(tag == MATCHING_RECORD_NUMBERS_PACKED_TAG) {
+				ProofEncoding.readDeltas(input, recordNumbers);
+			}else if(tag == MATCHING_RECORD_NUMBERS_TAG) {
+				ProofEncoding.readDelta(input, recordNumbers);
+			}else if(tag == COMMITMENT_NUMBER_TAG) {
+				this.commitmentNumber = input.readUInt32();
+				hasCommitmentNumber = true;
+			}else if(tag == RECORD_COMMITMENT_NUMBER_TAG) {
+				this.recordCommitmentNumber = input.readUInt32();
+				hasRecordCommitmentNumber = true;
+			}else if(tag == PROOF_TREE_TAG) {
+				tree = ProofEncoding.readNestedTree(input, expected);
+			}else if(tag == FIRST_RECORD_NUMBER_TAG) {
+				first = input.readUInt32();
+			}else if(tag == LAST_RECORD_NUMBER_TAG) {
+				last = input.readUInt32();
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		if(filter == null || !hasCommitmentNumber || !hasRecordCommitmentNumber || tree == null) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
+		}
+		// absent for a search of the whole log
+		this.firstRecordNumber = first;
+		this.lastRecordNumber = last == null ? this.recordCommitmentNumber : last;
+		if(this.firstRecordNumber < 0 || this.firstRecordNumber > this.lastRecordNumber || 
+				this.lastRecordNumber > this.recordCommitmentNumber) {
+			throw new InvalidProtocolBufferException("Invalid record range");
+		}
+		this.filter = filter;
+		this.matchingRecordNumbers = recordNumbers;
+		this.proofTree = tree;
+		this.serializedTree = null;
+	}
+	
+	private byte[] serializedTree() {
+		if(this.serializedTree == null) {
+			this.serializedTree = ProofEncoding.serializeTree(this.proofTree);
+		}
+		return this.serializedTree;
 	}
 	
 
@@ -146,34 +552,24 @@ public class CategoricalQueryProof implements Proof {
 
 	/**
 	 * Special Serilization is needed so we don't send the whole proof tree.
-	 * Any value that can be recalculated on the client side 
-	 * is committed - this reduces the space required for the proof AND 
-	 * makes sure that the client recomputes the values to check the validity 
-	 * of the proof.
+	 * The proof is written in its protobuf wire format 
+	 * (see {@link #serializeProof()}), any value that can be recalculated 
+	 * on the client side is omitted - this reduces the space required for 
+	 * the proof AND makes sure that the client recomputes the values to 
+	 * check the validity of the proof.
 	 * @param oos
 	 * @throws IOException
 	 */
 	private void writeObject(ObjectOutputStream oos) throws IOException {
-		oos.writeObject(this.filter);
-		oos.writeObject(this.matchingRecordNumbers);
-		oos.writeObject(this.recordCommitmentNumber);
-		oos.writeObject(this.commitmentNumber);
-		// now we don't want to send the actual proof tree 
-		// because it contains values that will be recalculated on the client side 
-		oos.writeObject(this.proofTree.serializeTree());
+		byte[] data = this.serializeProof();
+		oos.writeInt(data.length);
+		oos.write(data);
 	}
 	
 	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
-		this.filter = (CategoricalAttributes) ois.readObject();
-		this.matchingRecordNumbers = (List<Integer>) ois.readObject();
-		this.recordCommitmentNumber = (int) ois.readObject();
-		this.commitmentNumber = (int) ois.readObject();
-		
-		// read in the serialized tree 
-		this.proofTree = new HistoryTree<RecordAggregation, Record>(
-				new CryptographicRecordAggregator(), new ArrayStore<RecordAggregation, Record>());
-		this.proofTree.parseTree((byte[]) ois.readObject());
-		
+		byte[] data = ProofEncoding.readSerializedProof(ois);
+		// there is no configuration here, the verifier checks getHashAlgorithm()
+		this.readFrom(CodedInputStream.newInstance(data), null);
 	}
 	
 	public String proofTreeToString() {
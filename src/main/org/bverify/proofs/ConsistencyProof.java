@@ -7,11 +7,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import org.apache.commons.lang3.SerializationUtils;
-import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
 import org.bverify.records.Record;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.ProofError;
 import edu.rice.historytree.storage.ArrayStore;
@@ -24,11 +28,25 @@ import edu.rice.historytree.storage.ArrayStore;
  */
 public class ConsistencyProof implements Proof {
 	
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
+	
+	// wire format tags of the fields
+	// tag = (field number << 3) | wire type
+	private static final int STARTING_COMMITMENT_NUMBER_TAG = (1 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int CMT_RECORD_NUMBERS_TAG = (2 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int CMT_RECORD_NUMBERS_PACKED_TAG = (2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int PROOF_TREE_TAG = (3 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	
 	private int startingCommitmentNumber;
 	private List<Integer> cmtRecordNumbers;
 	private HistoryTree<RecordAggregation, Record> proofTree;
 	
+	// the encoded proof tree, calculated when first needed
+	private transient byte[] serializedTree;
+	
+	private ConsistencyProof() {
+	}
+	
 	public ConsistencyProof(int startingCommitmentNumber,
 			List<Integer> commitmentRecordNumbers, 
 			HistoryTree<RecordAggregation,
@@ -68,6 +86,11 @@ public class ConsistencyProof implements Proof {
 		return this.startingCommitmentNumber;
 	}
 	
+	@Override
+	public HashAlgorithm getHashAlgorithm() {
+		return this.proofTree.agg().getHashAlgorithm();
+	}
+	
 	public int getEndingCommitmentNumber() {
 		return this.startingCommitmentNumber + this.cmtRecordNumbers.size() - 1;
 	}
@@ -81,35 +104,117 @@ public class ConsistencyProof implements Proof {
 	
 	@Override
 	public int getSizeInBytes() {
-		return SerializationUtils.serialize(this).length;
+		return CodedOutputStream.computeUInt32Size(1, this.startingCommitmentNumber) + 
+				ProofEncoding.computeDeltasSize(2, this.cmtRecordNumbers) + 
+				CodedOutputStream.computeByteArraySize(3, this.serializedTree());
+	}
+	
+	/**
+	 * The commitment record numbers are increasing so they 
+	 * are delta encoded
+	 */
+	@Override
+	public byte[] serializeProof() {
+		byte[] res = new byte[this.getSizeInBytes()];
+		CodedOutputStream out = CodedOutputStream.newInstance(res);
+		try {
+			out.writeUInt32(1, this.startingCommitmentNumber);
+			ProofEncoding.writeDeltas(out, 2, this.cmtRecordNumbers);
+			out.writeByteArray(3, this.serializedTree());
+			out.checkNoSpaceLeft();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not serialize proof");
+		}
+		return res;
 	}
-
 	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}. The 
+	 * internal hashes of the proof tree are recalculated.
+	 * The proof must use the default hash algorithm, see 
+	 * {@link #parseProof(byte[], HashAlgorithm)}.
+	 * @param data
+	 * @return
+	 * @throws InvalidProtocolBufferException
+	 */
+	public static ConsistencyProof parseProof(byte[] data) throws InvalidProtocolBufferException {
+		return ConsistencyProof.parseProof(data, HashAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}, 
+	 * rejecting it if it was not hashed with the expected algorithm
+	 * @param data
+	 * @param hashAlgorithm - the algorithm the client uses
+	 * @return
+	 * @throws InvalidProtocolBufferException - also if the proof uses another hash algorithm
+	 */
+	public static ConsistencyProof parseProof(byte[] data, HashAlgorithm hashAlgorithm) 
+			throws InvalidProtocolBufferException {
+		ConsistencyProof proof = new ConsistencyProof();
+		try {
+			proof.readFrom(CodedInputStream.newInstance(data), hashAlgorithm);
+		} catch (IOException e) {
+			throw ProofEncoding.asParseError(e);
+		}
+		return proof;
+	}
+	
+	private void readFrom(CodedInputStream input, HashAlgorithm expected) throws IOException {
+		boolean hasStartingCommitmentNumber = false;
+		List<Integer> recordNumbers = new ArrayList<Integer>();
+		HistoryTree<RecordAggregation, Record> tree = null;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == STARTING_COMMITMENT_NUMBER_TAG) {
+				this.startingCommitmentNumber = input.readUInt32();
+				hasStartingCommitmentNumber = true;
+			}else if(tag == CMT_RECORD_NUMBERS_PACKED_TAG) {
+				ProofEncoding.readDeltas(input, recordNumbers);
+			}else if(tag == CMT_RECORD_NUMBERS_TAG) {
+				ProofEncoding.readDelta(input, recordNumbers);
+			}else if(tag == PROOF_TREE_TAG) {
+				tree = ProofEncoding.readNestedTree(input, expected);
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		if(!hasStartingCommitmentNumber || recordNumbers.isEmpty() || tree == null) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
+		}
+		this.cmtRecordNumbers = recordNumbers;
+		this.proofTree = tree;
+		this.serializedTree = null;
+	}
+	
+	private byte[] serializedTree() {
+		if(this.serializedTree == null) {
+			this.serializedTree = ProofEncoding.serializeTree(this.proofTree);
+		}
+		return this.serializedTree;
+	}
 
 	/**
 	 * Special Serilization is needed so we don't send the whole proof tree.
-	 * Any value that can be recalculated on the client side 
-	 * is committed - this reduces the space required for the proof AND 
-	 * makes sure that the client recomputes the values to check the validity 
-	 * of the proof.
+	 * The proof is written in its protobuf wire format 
+	 * (see {@link #serializeProof()}), any value that can be recalculated 
+	 * on the client side is omitted - this reduces the space required for 
+	 * the proof AND makes sure that the client recomputes the values to 
+	 * check the validity of the proof.
 	 * @param oos
 	 * @throws IOException
 	 */
 	private void writeObject(ObjectOutputStream oos) throws IOException {
-		oos.writeObject(this.startingCommitmentNumber);
-		oos.writeObject(this.cmtRecordNumbers);
-		// now we don't want to send the actual proof tree 
-		// because it contains values that will be recalculated on the client side 
-		oos.writeObject(this.proofTree.serializeTree());
+		byte[] data = this.serializeProof();
+		oos.writeInt(data.length);
+		oos.write(data);
 	}
 	
 	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
-		this.startingCommitmentNumber = (int) ois.readObject();
-		this.cmtRecordNumbers = (List<Integer>) ois.readObject();
-		// read in the serialized tree 
-		this.proofTree = new HistoryTree<RecordAggregation, Record>(
-				new CryptographicRecordAggregator(), new ArrayStore<RecordAggregation, Record>());
-		this.proofTree.parseTree((byte[]) ois.readObject());
+		byte[] data = ProofEncoding.readSerializedProof(ois);
+		// there is no configuration here, the verifier checks getHashAlgorithm()
+		this.readFrom(CodedInputStream.newInstance(data), null);
 	}
 
 }
@@ -0,0 +1,290 @@
+package org.bverify.proofs;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.bverify.aggregators.HashAlgorithm;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.records.Record;
+import org.spongycastle.util.Arrays;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.ProofError;
+import edu.rice.historytree.storage.ArrayStore;
+
+/**
+ * Proves that a set of records are authentic with respect to a single
+ * commitment. All the records are copied into one pruned tree, so
+ * the paths to the root they share are only included once: k records
+ * out of n cost O(k log(n/k)) nodes rather than k independent
+ * O(log n) {@link RecordProof}s, and the proof is checked with a
+ * single root hash comparison.
+ *
+ */
+public class MultiRecordProof implements Proof {
+
+	private static final long serialVersionUID = 1L;
+
+	// wire format tags of the fields
+	// tag = (field number << 3) | wire type
+	private static final int RECORD_NUMBERS_TAG = (1 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int RECORD_NUMBERS_PACKED_TAG = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int COMMITMENT_NUMBER_TAG = (2 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int COMMITMENT_RECORD_NUMBER_TAG = (3 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int PROOF_TREE_TAG = (4 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+	// sorted, no duplicates
+	private List<Integer> recordNumbers;
+	private int commitmentNumber;
+	private int commitmentRecordNumber;
+	private HistoryTree<RecordAggregation, Record> proofTree;
+
+	// the encoded proof tree, calculated when first needed
+	private transient byte[] serializedTree;
+
+	private MultiRecordProof() {
+	}
+
+	/**
+	 * Construct a proof for the records
+	 * @param recordNumbers - the records to include, in any order
+	 * 			(duplicates are ignored)
+	 * @param commitmentNumber
+	 * @param commitmentRecordNumber - the last record of the commitment
+	 * @param recordTree
+	 * @throws ProofError - if a record is not part of the commitment
+	 */
+	public MultiRecordProof(Collection<Integer> recordNumbers, int commitmentNumber,
+			int commitmentRecordNumber, HistoryTree<RecordAggregation, Record> recordTree) throws ProofError {
+		this.recordNumbers = new ArrayList<Integer>(new TreeSet<Integer>(recordNumbers));
+		if(this.recordNumbers.isEmpty()) {
+			throw new ProofError("No records to prove");
+		}
+		int first = this.recordNumbers.get(0);
+		int last = this.recordNumbers.get(this.recordNumbers.size()-1);
+		if(first < 0 || last > commitmentRecordNumber) {
+			throw new ProofError(String.format("Records must be in [0, %d]", commitmentRecordNumber));
+		}
+		this.commitmentNumber = commitmentNumber;
+		this.commitmentRecordNumber = commitmentRecordNumber;
+		ArrayStore<RecordAggregation, Record> newdatastore = new ArrayStore<RecordAggregation, Record>();
+		this.proofTree = recordTree.makePruned(newdatastore, commitmentRecordNumber);
+		for(int recordNumber : this.recordNumbers) {
+			this.proofTree.copyV(recordTree, recordNumber, true);
+		}
+	}
+
+	/**
+	 * Construct a proof for the records firstRecordNumber, ... , lastRecordNumber
+	 * (inclusive)
+	 * @throws ProofError - if a record is not part of the commitment
+	 */
+	public static MultiRecordProof forRange(int firstRecordNumber, int lastRecordNumber, int commitmentNumber,
+			int commitmentRecordNumber, HistoryTree<RecordAggregation, Record> recordTree) throws ProofError {
+		List<Integer> recordNumbers = new ArrayList<Integer>();
+		for(int recordNumber = firstRecordNumber; recordNumber <= lastRecordNumber; recordNumber++) {
+			recordNumbers.add(recordNumber);
+		}
+		return new MultiRecordProof(recordNumbers, commitmentNumber, commitmentRecordNumber, recordTree);
+	}
+
+	/**
+	 * Checks that the root of the proof tree matches the commitment and
+	 * that the records in the tree are exactly the records the proof 
+	 * claims to contain.
+	 * The internal hashes are recalculated when the proof is
+	 * deserialized, so the records are authenticated by this one
+	 * comparison.
+	 * @param commitmentHash
+	 * @return
+	 */
+	public boolean checkProof(byte[] commitmentHash) {
+		byte[] calculatedHash = this.proofTree.aggV(this.commitmentRecordNumber).getHash();
+		if(!Arrays.areEqual(commitmentHash, calculatedHash)) {
+			return false;
+		}
+		// both are in increasing order, so the tree must reveal
+		// exactly the records of the proof
+		List<Integer> recordsInTree = this.proofTree.getValueIndicies(agg -> true);
+		return recordsInTree.equals(this.recordNumbers);
+	}
+
+	/**
+	 * Returns the record, which must be one of the records of this proof
+	 * @param recordNumber
+	 * @return
+	 */
+	public Record getRecord(int recordNumber) {
+		if(Collections.binarySearch(this.recordNumbers, recordNumber) < 0) {
+			throw new RuntimeException("Error - record #"+recordNumber+" is not part of this proof");
+		}
+		return this.proofTree.leaf(recordNumber).getVal();
+	}
+
+	/**
+	 * Returns the records, in order of their record numbers
+	 * @return
+	 */
+	public List<Record> getRecords() {
+		List<Record> res = new ArrayList<Record>();
+		for(int recordNumber : this.recordNumbers) {
+			res.add(this.proofTree.leaf(recordNumber).getVal());
+		}
+		return res;
+	}
+
+	public List<Integer> getRecordNumbers() {
+		return new ArrayList<Integer>(this.recordNumbers);
+	}
+
+	public int getCommitmentNumber() {
+		return this.commitmentNumber;
+	}
+	
+	@Override
+	public HashAlgorithm getHashAlgorithm() {
+		return this.proofTree.agg().getHashAlgorithm();
+	}
+
+	@Override
+	public String toString() {
+		String message = String.format("MultiRecordProof - for %d records and commitment num: %d",
+				this.recordNumbers.size(), this.getCommitmentNumber());
+		return message;
+	}
+
+	@Override
+	public int getSizeInBytes() {
+		return ProofEncoding.computeDeltasSize(1, this.recordNumbers) +
+				CodedOutputStream.computeUInt32Size(2, this.commitmentNumber) +
+				CodedOutputStream.computeUInt32Size(3, this.commitmentRecordNumber) +
+				CodedOutputStream.computeByteArraySize(4, this.serializedTree());
+	}
+
+	/**
+	 * The record numbers are increasing so they are delta encoded,
+	 * a range of records costs 1 byte per record
+	 */
+	@Override
+	public byte[] serializeProof() {
+		byte[] res = new byte[this.getSizeInBytes()];
+		CodedOutputStream out = CodedOutputStream.newInstance(res);
+		try {
+			ProofEncoding.writeDeltas(out, 1, this.recordNumbers);
+			out.writeUInt32(2, this.commitmentNumber);
+			out.writeUInt32(3, this.commitmentRecordNumber);
+			out.writeByteArray(4, this.serializedTree());
+			out.checkNoSpaceLeft();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not serialize proof");
+		}
+		return res;
+	}
+
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}. The
+	 * internal hashes of the proof tree are recalculated.
+	 * The proof must use the default hash algorithm, see 
+	 * {@link #parseProof(byte[], HashAlgorithm)}.
+	 * @param data
+	 * @return
+	 * @throws InvalidProtocolBufferException
+	 */
+	public static MultiRecordProof parseProof(byte[] data) throws InvalidProtocolBufferException {
+		return MultiRecordProof.parseProof(data, HashAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}, 
+	 * rejecting it if it was not hashed with the expected algorithm
+	 * @param data
+	 * @param hashAlgorithm - the algorithm the client uses
+	 * @return
+	 * @throws InvalidProtocolBufferException - also if the proof uses another hash algorithm
+	 */
+	public static MultiRecordProof parseProof(byte[] data, HashAlgorithm hashAlgorithm) 
+			throws InvalidProtocolBufferException {
+		MultiRecordProof proof = new MultiRecordProof();
+		try {
+			proof.readFrom(CodedInputStream.newInstance(data), hashAlgorithm);
+		} catch (IOException e) {
+			throw ProofEncoding.asParseError(e);
+		}
+		return proof;
+	}
+
+	private void readFrom(CodedInputStream input, HashAlgorithm expected) throws IOException {
+		List<Integer> numbers = new ArrayList<Integer>();
+		boolean hasCommitmentNumber = false;
+		boolean hasCommitmentRecordNumber = false;
+		HistoryTree<RecordAggregation, Record> tree = null;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == RECORD_NUMBERS_PACKED_TAG) {
+				ProofEncoding.readDeltas(input, numbers);
+			}else if(tag == RECORD_NUMBERS_TAG) {
+				ProofEncoding.readDelta(input, numbers);
+			}else if(tag == COMMITMENT_NUMBER_TAG) {
+				this.commitmentNumber = input.readUInt32();
+				hasCommitmentNumber = true;
+			}else if(tag == COMMITMENT_RECORD_NUMBER_TAG) {
+				this.commitmentRecordNumber = input.readUInt32();
+				hasCommitmentRecordNumber = true;
+			}else if(tag == PROOF_TREE_TAG) {
+				tree = ProofEncoding.readNestedTree(input, expected);
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		if(numbers.isEmpty() || !hasCommitmentNumber || !hasCommitmentRecordNumber || tree == null) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
+		}
+		// record numbers are strictly increasing
+		for(int i = 1; i < numbers.size(); i++) {
+			if(numbers.get(i) <= numbers.get(i-1)) {
+				throw new InvalidProtocolBufferException("Duplicate record number");
+			}
+		}
+		this.recordNumbers = numbers;
+		this.proofTree = tree;
+		this.serializedTree = null;
+	}
+
+	private byte[] serializedTree() {
+		if(this.serializedTree == null) {
+			this.serializedTree = ProofEncoding.serializeTree(this.proofTree);
+		}
+		return this.serializedTree;
+	}
+
+	/**
+	 * Written in the protobuf wire format (see {@link #serializeProof()})
+	 * so the client recalculates the internal hashes
+	 * @param oos
+	 * @throws IOException
+	 */
+	private void writeObject(ObjectOutputStream oos) throws IOException {
+		byte[] data = this.serializeProof();
+		oos.writeInt(data.length);
+		oos.write(data);
+	}
+
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+		byte[] data = ProofEncoding.readSerializedProof(ois);
+		// there is no configuration here, the verifier checks getHashAlgorithm()
+		this.readFrom(CodedInputStream.newInstance(data), null);
+	}
+
+}
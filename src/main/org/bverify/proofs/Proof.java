@@ -2,13 +2,33 @@ package org.bverify.proofs;
 
 import java.io.Serializable;
 
+import org.bverify.aggregators.HashAlgorithm;
+
 public interface Proof extends Serializable {
 	
 	/**
 	 * Get the size of the proof in Bytes 
+	 * (the length of {@link #serializeProof()}, calculated 
+	 * without encoding the proof)
 	 * This will be useful for benchmarking
 	 * @return 
 	 */
 	public int getSizeInBytes();
 	
+	/**
+	 * Serialize the proof in its protobuf wire format 
+	 * (see the proof messages in serialization.proto). Values 
+	 * the client recalculates are not included.
+	 * @return
+	 */
+	public byte[] serializeProof();
+	
+	/**
+	 * The hash algorithm the proof was calculated with. The client 
+	 * must check that this is the algorithm it expects, otherwise 
+	 * the server could answer with a proof using a weaker algorithm.
+	 * @return
+	 */
+	public HashAlgorithm getHashAlgorithm();
+	
 }
@@ -0,0 +1,231 @@
+package org.bverify.proofs;
+
+import org.bverify.util.LruCache;
+
+import edu.rice.historytree.ProofError;
+
+/**
+ * A size-bounded cache of constructed proofs, keyed by the kind of proof
+ * and the record and commitment numbers it is for. The same proofs are
+ * requested over and over (e.g. the latest records of a popular account)
+ * and constructing one prunes and copies paths of the history tree.
+ *
+ * Committed versions of the history tree never change, so a proof against
+ * a commitment never goes stale and only the capacity matters: the least
+ * recently used proof is evicted when the cache is full. If the committed
+ * history is rewritten (only done in testing) the cache must be
+ * {@link #clear()}ed.
+ *
+ * Optionally the serialized proof (see {@link Proof#serializeProof()}) is
+ * cached along with it, so serving a cached proof to a client does not
+ * encode it again.
+ *
+ * The cache is thread safe. Proofs are constructed without holding the
+ * lock of the cache, so concurrent misses for the same proof may both
+ * construct it.
+ *
+ */
+public class ProofCache {
+
+	public static final int DEFAULT_CAPACITY = 1 << 12;
+
+	/**
+	 * Constructs a proof on a cache miss
+	 */
+	@FunctionalInterface
+	public interface ProofConstructor<P extends Proof> {
+		public P construct() throws ProofError;
+	}
+
+	private static final int RECORD_PROOF = 0;
+	private static final int AGGREGATION_PROOF = 1;
+	private static final int CONSISTENCY_PROOF = 2;
+
+	private final boolean cacheSerializedProofs;
+	private final LruCache<Key, Entry> entries;
+
+	private long hits;
+	private long misses;
+
+	public ProofCache() {
+		this(DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * @param capacity - maximum number of proofs to cache
+	 * @param cacheSerializedProofs - if true the serialized proofs are also cached
+	 */
+	public ProofCache(int capacity, boolean cacheSerializedProofs) {
+		this.cacheSerializedProofs = cacheSerializedProofs;
+		this.entries = new LruCache<Key, Entry>(capacity);
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Returns the proof of the record against the commitment,
+	 * constructing it if it is not cached
+	 * @param recordNumber
+	 * @param commitmentNumber
+	 * @param constructor
+	 * @return
+	 * @throws ProofError - if the proof can not be constructed
+	 */
+	public RecordProof getRecordProof(int recordNumber, int commitmentNumber,
+			ProofConstructor<RecordProof> constructor) throws ProofError {
+		return (RecordProof) this.getEntry(new Key(RECORD_PROOF, recordNumber, commitmentNumber),
+				constructor).proof;
+	}
+
+	/**
+	 * Returns the proof of the aggregation of the commitment,
+	 * constructing it if it is not cached
+	 */
+	public AggregationProof getAggregationProof(int commitmentNumber,
+			ProofConstructor<AggregationProof> constructor) throws ProofError {
+		return (AggregationProof) this.getEntry(new Key(AGGREGATION_PROOF, commitmentNumber, commitmentNumber),
+				constructor).proof;
+	}
+
+	/**
+	 * Returns the proof that the commitments are consistent,
+	 * constructing it if it is not cached
+	 */
+	public ConsistencyProof getConsistencyProof(int startingCommitmentNumber, int endingCommitmentNumber,
+			ProofConstructor<ConsistencyProof> constructor) throws ProofError {
+		return (ConsistencyProof) this.getEntry(new Key(CONSISTENCY_PROOF, startingCommitmentNumber,
+				endingCommitmentNumber), constructor).proof;
+	}
+
+	/**
+	 * Returns the serialized proof of the record against the commitment
+	 * @see #getRecordProof(int, int, ProofConstructor)
+	 */
+	public byte[] getSerializedRecordProof(int recordNumber, int commitmentNumber,
+			ProofConstructor<RecordProof> constructor) throws ProofError {
+		return this.getEntry(new Key(RECORD_PROOF, recordNumber, commitmentNumber),
+				constructor).serializeProof();
+	}
+
+	/**
+	 * Returns the serialized proof of the aggregation of the commitment
+	 * @see #getAggregationProof(int, ProofConstructor)
+	 */
+	public byte[] getSerializedAggregationProof(int commitmentNumber,
+			ProofConstructor<AggregationProof> constructor) throws ProofError {
+		return this.getEntry(new Key(AGGREGATION_PROOF, commitmentNumber, commitmentNumber),
+				constructor).serializeProof();
+	}
+
+	/**
+	 * Returns the serialized proof that the commitments are consistent
+	 * @see #getConsistencyProof(int, int, ProofConstructor)
+	 */
+	public byte[] getSerializedConsistencyProof(int startingCommitmentNumber, int endingCommitmentNumber,
+			ProofConstructor<ConsistencyProof> constructor) throws ProofError {
+		return this.getEntry(new Key(CONSISTENCY_PROOF, startingCommitmentNumber,
+				endingCommitmentNumber), constructor).serializeProof();
+	}
+
+	private Entry getEntry(Key key, ProofConstructor<? extends Proof> constructor) throws ProofError {
+		synchronized(this) {
+			Entry entry = this.entries.get(key);
+			if(entry != null) {
+				this.hits++;
+				return entry;
+			}
+			this.misses++;
+		}
+		// construct the proof without holding the lock
+		Entry entry = new Entry(constructor.construct(), this.cacheSerializedProofs);
+		synchronized(this) {
+			this.entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Remove all cached proofs
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * Fraction of lookups that were served from the cache,
+	 * 0 if there have been no lookups
+	 * @return
+	 */
+	public synchronized double getHitRate() {
+		long lookups = this.hits + this.misses;
+		return lookups == 0 ? 0 : (double) this.hits / lookups;
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	public int getCapacity() {
+		return this.entries.getCapacity();
+	}
+
+	public boolean cachesSerializedProofs() {
+		return this.cacheSerializedProofs;
+	}
+
+	private static final class Key {
+		private final int kind;
+		private final int first;
+		private final int second;
+
+		Key(int kind, int first, int second) {
+			this.kind = kind;
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if(other instanceof Key) {
+				Key key = (Key) other;
+				return this.kind == key.kind && this.first == key.first && this.second == key.second;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * this.kind + this.first) + this.second;
+		}
+	}
+
+	private static final class Entry {
+		private final Proof proof;
+		private final byte[] serialized;
+
+		Entry(Proof proof, boolean serialize) {
+			this.proof = proof;
+			this.serialized = serialize ? proof.serializeProof() : null;
+		}
+
+		/**
+		 * Returns the serialized proof, a copy of the
+		 * cached bytes if they are cached
+		 */
+		byte[] serializeProof() {
+			if(this.serialized == null) {
+				return this.proof.serializeProof();
+			}
+			return this.serialized.clone();
+		}
+	}
+
+}
@@ -0,0 +1,285 @@
+package org.bverify.proofs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.aggregators.RecordHistoryTree;
+import org.bverify.records.Record;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.storage.ArrayStore;
+
+/**
+ * Protobuf wire format of the proofs (see the proof messages in
+ * serialization.proto), written and read directly with
+ * {@link CodedOutputStream} and {@link CodedInputStream} so that no
+ * intermediate message objects are created and the size of a
+ * proof can be calculated without encoding it.
+ *
+ * The pruned history tree of a proof is encoded as a ProofTree message:
+ * the configuration of the aggregator (the hash algorithm) is written
+ * along with the tree so that the client recalculates the hashes
+ * with the same algorithm the server used.
+ *
+ */
+final class ProofEncoding {
+
+	// wire format tags of the ProofTree fields
+	// tag = (field number << 3) | wire type
+	private static final int HASH_ALGORITHM_TAG = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int TREE_TAG = (2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+	/** The largest proof that is accepted from java serialization (64 MiB) */
+	static final int MAX_SERIALIZED_PROOF_SIZE = 64 << 20;
+	
+	// read in chunks so that a bogus length does not allocate memory up front
+	private static final int READ_CHUNK_SIZE = 1 << 16;
+
+	private ProofEncoding() {
+	}
+
+	/**
+	 * Reads a proof written by a proof's writeObject - its length followed 
+	 * by its wire format. The length is checked before anything is allocated.
+	 * @param ois
+	 * @return the wire format of the proof
+	 * @throws IOException - if the length is negative or too large,
+	 * 			or the stream ends early
+	 */
+	static byte[] readSerializedProof(ObjectInputStream ois) throws IOException {
+		int length = ois.readInt();
+		if(length < 0 || length > MAX_SERIALIZED_PROOF_SIZE) {
+			throw new InvalidObjectException("Invalid proof length: "+length);
+		}
+		if(length <= READ_CHUNK_SIZE) {
+			byte[] data = new byte[length];
+			ois.readFully(data);
+			return data;
+		}
+		ByteArrayOutputStream data = new ByteArrayOutputStream(READ_CHUNK_SIZE);
+		byte[] chunk = new byte[READ_CHUNK_SIZE];
+		for(int remaining = length; remaining > 0; ) {
+			int read = Math.min(remaining, READ_CHUNK_SIZE);
+			ois.readFully(chunk, 0, read);
+			data.write(chunk, 0, read);
+			remaining -= read;
+		}
+		return data.toByteArray();
+	}
+
+	/**
+	 * Encodes the tree as a ProofTree message
+	 * @param proofTree
+	 * @return
+	 */
+	static byte[] serializeTree(HistoryTree<RecordAggregation, Record> proofTree) {
+		HashAlgorithm hashAlgorithm = proofTree.agg().getHashAlgorithm();
+		byte[] tree = proofTree.serializeTree();
+		int size = CodedOutputStream.computeByteArraySize(2, tree);
+		byte[] name = null;
+		if(hashAlgorithm != HashAlgorithm.DEFAULT) {
+			name = hashAlgorithm.getName().getBytes(StandardCharsets.UTF_8);
+			size += CodedOutputStream.computeByteArraySize(1, name);
+		}
+		byte[] res = new byte[size];
+		CodedOutputStream out = CodedOutputStream.newInstance(res);
+		try {
+			if(name != null) {
+				out.writeByteArray(1, name);
+			}
+			out.writeByteArray(2, tree);
+			out.checkNoSpaceLeft();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not serialize proof tree");
+		}
+		return res;
+	}
+
+	/**
+	 * Parses a ProofTree message, recalculating the internal
+	 * hashes of the tree
+	 * @param input - the message must extend to the end of the stream or current limit
+	 * @param expected - the hash algorithm the client uses, a tree hashed with 
+	 * 			any other algorithm is rejected so that the server cannot choose 
+	 * 			a weaker one. If null the tree is read with the algorithm it was 
+	 * 			written with and the caller must check it.
+	 * @return
+	 * @throws IOException
+	 */
+	static HistoryTree<RecordAggregation, Record> readTree(CodedInputStream input, 
+			HashAlgorithm expected) throws IOException {
+		HashAlgorithm hashAlgorithm = HashAlgorithm.DEFAULT;
+		byte[] tree = null;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == HASH_ALGORITHM_TAG) {
+				hashAlgorithm = ProofEncoding.readHashAlgorithm(input);
+			}else if(tag == TREE_TAG) {
+				tree = input.readByteArray();
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		if(tree == null) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
+		}
+		ProofEncoding.checkHashAlgorithm(expected, hashAlgorithm);
+		// searchable, so the stubs of a range can be checked
+		HistoryTree<RecordAggregation, Record> proofTree = new RecordHistoryTree(
+				new CryptographicRecordAggregator(hashAlgorithm), new ArrayStore<RecordAggregation, Record>());
+		proofTree.parseTree(tree);
+		return proofTree;
+	}
+
+	/**
+	 * Reads a length delimited nested ProofTree message
+	 */
+	static HistoryTree<RecordAggregation, Record> readNestedTree(CodedInputStream input, 
+			HashAlgorithm expected) throws IOException {
+		int oldLimit = input.pushLimit(input.readRawVarint32());
+		HistoryTree<RecordAggregation, Record> proofTree = ProofEncoding.readTree(input, expected);
+		input.popLimit(oldLimit);
+		return proofTree;
+	}
+
+	/**
+	 * Reads the name of a hash algorithm (a string field)
+	 */
+	static HashAlgorithm readHashAlgorithm(CodedInputStream input) throws IOException {
+		String name = input.readString();
+		for(HashAlgorithm algorithm : HashAlgorithm.values()) {
+			if(algorithm.getName().equals(name)) {
+				return algorithm;
+			}
+		}
+		throw new InvalidProtocolBufferException("Unknown hash algorithm: "+name);
+	}
+
+	/**
+	 * Rejects a proof that was not hashed with the expected algorithm
+	 * @param expected - null to accept any algorithm
+	 * @param actual - the algorithm the proof was written with
+	 * @throws InvalidProtocolBufferException
+	 */
+	static void checkHashAlgorithm(HashAlgorithm expected, HashAlgorithm actual) 
+			throws InvalidProtocolBufferException {
+		if(expected != null && expected != actual) {
+			throw new InvalidProtocolBufferException("Expected hash algorithm "+expected.getName()+
+					" but the proof uses "+actual.getName());
+		}
+	}
+
+	/**
+	 * Size of the packed, delta encoded numbers
+	 * (without the tag and length)
+	 * @param increasing - strictly increasing, non-negative numbers
+	 * @return
+	 * @throws RuntimeException - if the numbers are not increasing or are negative 
+	 * 			(a negative delta would be written, which the client rejects)
+	 */
+	static int computeDeltasSizeNoTag(List<Integer> increasing) {
+		int size = 0;
+		int previous = -1;
+		for(int number : increasing) {
+			ProofEncoding.checkIncreasing(previous, number);
+			size += CodedOutputStream.computeUInt32SizeNoTag(previous < 0 ? number : number - previous);
+			previous = number;
+		}
+		return size;
+	}
+	
+	private static void checkIncreasing(int previous, int number) {
+		if(number < 0 || number <= previous) {
+			throw new RuntimeException("Error - record numbers must be non-negative and increasing, "
+					+number+" follows "+previous);
+		}
+	}
+
+	/**
+	 * Size of the packed, delta encoded field, 0 if the list is empty
+	 * (empty packed fields are not written)
+	 */
+	static int computeDeltasSize(int fieldNumber, List<Integer> increasing) {
+		if(increasing.isEmpty()) {
+			return 0;
+		}
+		int dataSize = ProofEncoding.computeDeltasSizeNoTag(increasing);
+		return CodedOutputStream.computeTagSize(fieldNumber) +
+				CodedOutputStream.computeUInt32SizeNoTag(dataSize) + dataSize;
+	}
+
+	static void writeDeltas(CodedOutputStream out, int fieldNumber, List<Integer> increasing)
+			throws IOException {
+		if(increasing.isEmpty()) {
+			return;
+		}
+		out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+		// checks the numbers before anything is written
+		out.writeUInt32NoTag(ProofEncoding.computeDeltasSizeNoTag(increasing));
+		int previous = 0;
+		for(int number : increasing) {
+			out.writeUInt32NoTag(number - previous);
+			previous = number;
+		}
+	}
+
+	/**
+	 * Reads a packed field of delta encoded numbers, appending the
+	 * numbers to the list (a field may be split into multiple parts)
+	 * @param input - positioned after the tag
+	 * @param res
+	 * @throws IOException - if the numbers overflow
+	 */
+	static void readDeltas(CodedInputStream input, List<Integer> res) throws IOException {
+		int oldLimit = input.pushLimit(input.readRawVarint32());
+		long number = res.isEmpty() ? 0 : res.get(res.size()-1);
+		while(input.getBytesUntilLimit() > 0) {
+			int delta = input.readUInt32();
+			// deltas are unsigned
+			number += delta & 0xFFFFFFFFL;
+			if(number > Integer.MAX_VALUE) {
+				throw new InvalidProtocolBufferException("Record number out of range");
+			}
+			res.add((int) number);
+		}
+		input.popLimit(oldLimit);
+	}
+
+	/**
+	 * Reads a single unpacked delta encoded number
+	 * (parsers must accept unpacked repeated fields)
+	 */
+	static void readDelta(CodedInputStream input, List<Integer> res) throws IOException {
+		long number = res.isEmpty() ? 0 : res.get(res.size()-1);
+		number += input.readUInt32() & 0xFFFFFFFFL;
+		if(number > Integer.MAX_VALUE) {
+			throw new InvalidProtocolBufferException("Record number out of range");
+		}
+		res.add((int) number);
+	}
+
+	/**
+	 * Wraps the IOExceptions (other than parse errors) thrown while
+	 * reading from an in-memory stream
+	 */
+	static InvalidProtocolBufferException asParseError(IOException e) {
+		if(e instanceof InvalidProtocolBufferException) {
+			return (InvalidProtocolBufferException) e;
+		}
+		return new InvalidProtocolBufferException(e.getMessage());
+	}
+
+}
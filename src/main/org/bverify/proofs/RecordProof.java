@@ -4,23 +4,41 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
-import org.apache.commons.lang3.SerializationUtils;
-import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
 import org.bverify.records.Record;
 import org.spongycastle.util.Arrays;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.ProofError;
 import edu.rice.historytree.storage.ArrayStore;
 
 public class RecordProof implements Proof {
 	
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
+	
+	// wire format tags of the fields
+	// tag = (field number << 3) | wire type
+	private static final int RECORD_NUMBER_TAG = (1 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int COMMITMENT_NUMBER_TAG = (2 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int COMMITMENT_RECORD_NUMBER_TAG = (3 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int PROOF_TREE_TAG = (4 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	
 	private int recordNumber;
 	private int commitmentNumber;
 	private int commitmentRecordNumber;
 	private HistoryTree<RecordAggregation, Record> proofTree;
+	
+	// the encoded proof tree, calculated when first needed
+	private transient byte[] serializedTree;
+	
+	private RecordProof() {
+	}
 
 	public RecordProof(int recordNumber, int commitmentNumber, 
 			int commitmentRecordNumber, HistoryTree<RecordAggregation, Record> recordTree) throws ProofError {
@@ -58,6 +76,11 @@ public class RecordProof implements Proof {
 		return this.commitmentNumber;
 	}
 	
+	@Override
+	public HashAlgorithm getHashAlgorithm() {
+		return this.proofTree.agg().getHashAlgorithm();
+	}
+	
 	
 	@Override
 	public String toString() {
@@ -69,38 +92,117 @@ public class RecordProof implements Proof {
 	
 	@Override
 	public int getSizeInBytes() {
-		return SerializationUtils.serialize(this).length;
+		return CodedOutputStream.computeUInt32Size(1, this.recordNumber) + 
+				CodedOutputStream.computeUInt32Size(2, this.commitmentNumber) + 
+				CodedOutputStream.computeUInt32Size(3, this.commitmentRecordNumber) + 
+				CodedOutputStream.computeByteArraySize(4, this.serializedTree());
+	}
+	
+	@Override
+	public byte[] serializeProof() {
+		byte[] res = new byte[this.getSizeInBytes()];
+		CodedOutputStream out = CodedOutputStream.newInstance(res);
+		try {
+			out.writeUInt32(1, this.recordNumber);
+			out.writeUInt32(2, this.commitmentNumber);
+			out.writeUInt32(3, this.commitmentRecordNumber);
+			out.writeByteArray(4, this.serializedTree());
+			out.checkNoSpaceLeft();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not serialize proof");
+		}
+		return res;
 	}
 	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}. The 
+	 * internal hashes of the proof tree are recalculated.
+	 * The proof must use the default hash algorithm, see 
+	 * {@link #parseProof(byte[], HashAlgorithm)}.
+	 * @param data
+	 * @return
+	 * @throws InvalidProtocolBufferException
+	 */
+	public static RecordProof parseProof(byte[] data) throws InvalidProtocolBufferException {
+		return RecordProof.parseProof(data, HashAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * Parse a proof serialized with {@link #serializeProof()}, 
+	 * rejecting it if it was not hashed with the expected algorithm
+	 * @param data
+	 * @param hashAlgorithm - the algorithm the client uses
+	 * @return
+	 * @throws InvalidProtocolBufferException - also if the proof uses another hash algorithm
+	 */
+	public static RecordProof parseProof(byte[] data, HashAlgorithm hashAlgorithm) 
+			throws InvalidProtocolBufferException {
+		RecordProof proof = new RecordProof();
+		try {
+			proof.readFrom(CodedInputStream.newInstance(data), hashAlgorithm);
+		} catch (IOException e) {
+			throw ProofEncoding.asParseError(e);
+		}
+		return proof;
+	}
+	
+	private void readFrom(CodedInputStream input, HashAlgorithm expected) throws IOException {
+		boolean hasRecordNumber = false;
+		boolean hasCommitmentNumber = false;
+		boolean hasCommitmentRecordNumber = false;
+		HistoryTree<RecordAggregation, Record> tree = null;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == RECORD_NUMBER_TAG) {
+				this.recordNumber = input.readUInt32();
+				hasRecordNumber = true;
+			}else if(tag == COMMITMENT_NUMBER_TAG) {
+				this.commitmentNumber = input.readUInt32();
+				hasCommitmentNumber = true;
+			}else if(tag == COMMITMENT_RECORD_NUMBER_TAG) {
+				this.commitmentRecordNumber = input.readUInt32();
+				hasCommitmentRecordNumber = true;
+			}else if(tag == PROOF_TREE_TAG) {
+				tree = ProofEncoding.readNestedTree(input, expected);
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		if(!hasRecordNumber || !hasCommitmentNumber || !hasCommitmentRecordNumber || tree == null) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
+		}
+		this.proofTree = tree;
+		this.serializedTree = null;
+	}
+	
+	private byte[] serializedTree() {
+		if(this.serializedTree == null) {
+			this.serializedTree = ProofEncoding.serializeTree(this.proofTree);
+		}
+		return this.serializedTree;
+	}
 
 	/**
 	 * Special Serilization is needed so we don't send the whole proof tree.
-	 * Any value that can be recalculated on the client side 
-	 * is committed - this reduces the space required for the proof AND 
-	 * makes sure that the client recomputes the values to check the validity 
-	 * of the proof.
+	 * The proof is written in its protobuf wire format 
+	 * (see {@link #serializeProof()}), any value that can be recalculated 
+	 * on the client side is omitted - this reduces the space required for 
+	 * the proof AND makes sure that the client recomputes the values to 
+	 * check the validity of the proof.
 	 * @param oos
 	 * @throws IOException
 	 */
 	private void writeObject(ObjectOutputStream oos) throws IOException {
-		oos.writeObject(this.recordNumber);
-		oos.writeObject(this.commitmentNumber);
-		oos.writeObject(this.commitmentRecordNumber);
-		// now we don't want to send the actual proof tree 
-		// because it contains values that will be recalculated on the client side 
-		oos.writeObject(this.proofTree.serializeTree());
+		byte[] data = this.serializeProof();
+		oos.writeInt(data.length);
+		oos.write(data);
 	}
 	
 	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
-		this.recordNumber = (int) ois.readObject();
-		this.commitmentNumber = (int) ois.readObject();
-		this.commitmentRecordNumber = (int) ois.readObject();
-		
-		// read in the serialized tree 
-		this.proofTree = new HistoryTree<RecordAggregation, Record>(
-				new CryptographicRecordAggregator(), new ArrayStore<RecordAggregation, Record>());
-		this.proofTree.parseTree((byte[]) ois.readObject());
-		
+		byte[] data = ProofEncoding.readSerializedProof(ois);
+		// there is no configuration here, the verifier checks getHashAlgorithm()
+		this.readFrom(CodedInputStream.newInstance(data), null);
 	}
 
 }
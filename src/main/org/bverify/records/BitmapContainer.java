@@ -0,0 +1,367 @@
+package org.bverify.records;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The set indices of one chunk of a Roaring-style compressed bitmap
+ * (see {@link CompressedCategoricalAttributes} and {@link RecordNumberBitmap}),
+ * stored as a sorted array when there are at most {@link #arrayLimit()}
+ * of them and as a bitmap otherwise
+ */
+final class BitmapContainer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// number of indices covered
+	final int width;
+	// exactly one of values (array container) or bits (bitmap container)
+	// is not null, values may have spare capacity
+	char[] values;
+	long[] bits;
+	int cardinality;
+
+	BitmapContainer(int width) {
+		this.width = width;
+		this.values = new char[4];
+		this.bits = null;
+		this.cardinality = 0;
+	}
+
+	int bitmapWords() {
+		return (this.width + 63) >>> 6;
+	}
+
+	/**
+	 * Maximum cardinality of an array container - above
+	 * this the bitmap is smaller
+	 */
+	int arrayLimit() {
+		return 4 * this.bitmapWords();
+	}
+
+	int payloadSize() {
+		return this.bits == null ? 2 * this.cardinality : 8 * this.bits.length;
+	}
+
+	boolean contains(int low) {
+		if(this.bits != null) {
+			return (this.bits[low >>> 6] & (1L << low)) != 0;
+		}
+		return Arrays.binarySearch(this.values, 0, this.cardinality, (char) low) >= 0;
+	}
+
+	void add(int low) {
+		if(this.bits != null) {
+			long word = this.bits[low >>> 6];
+			this.bits[low >>> 6] = word | (1L << low);
+			if(word != this.bits[low >>> 6]) {
+				this.cardinality++;
+			}
+			return;
+		}
+		int idx = Arrays.binarySearch(this.values, 0, this.cardinality, (char) low);
+		if(idx >= 0) {
+			return;
+		}
+		idx = -idx - 1;
+		if(this.cardinality == this.arrayLimit()) {
+			this.toBitmap();
+			this.add(low);
+			return;
+		}
+		if(this.cardinality == this.values.length) {
+			this.values = Arrays.copyOf(this.values, Math.min(2 * this.values.length, this.arrayLimit()));
+		}
+		System.arraycopy(this.values, idx, this.values, idx + 1, this.cardinality - idx);
+		this.values[idx] = (char) low;
+		this.cardinality++;
+	}
+
+	void remove(int low) {
+		if(this.bits != null) {
+			long word = this.bits[low >>> 6];
+			this.bits[low >>> 6] = word & ~(1L << low);
+			if(word != this.bits[low >>> 6]) {
+				this.cardinality--;
+				if(this.cardinality == this.arrayLimit()) {
+					this.toArray();
+				}
+			}
+			return;
+		}
+		int idx = Arrays.binarySearch(this.values, 0, this.cardinality, (char) low);
+		if(idx >= 0) {
+			System.arraycopy(this.values, idx + 1, this.values, idx, this.cardinality - idx - 1);
+			this.cardinality--;
+		}
+	}
+
+	/**
+	 * First set index at or after low, or -1
+	 */
+	int nextSet(int low) {
+		if(low >= this.width) {
+			return -1;
+		}
+		if(this.bits != null) {
+			int w = low >>> 6;
+			long word = this.bits[w] & (-1L << low);
+			while(true) {
+				if(word != 0) {
+					return 64*w + Long.numberOfTrailingZeros(word);
+				}
+				if(++w == this.bits.length) {
+					return -1;
+				}
+				word = this.bits[w];
+			}
+		}
+		int idx = Arrays.binarySearch(this.values, 0, this.cardinality, (char) low);
+		if(idx < 0) {
+			idx = -idx - 1;
+		}
+		return idx < this.cardinality ? this.values[idx] : -1;
+	}
+
+	boolean containsAll(BitmapContainer filter) {
+		if(filter.cardinality > this.cardinality) {
+			return false;
+		}
+		if(this.bits != null) {
+			if(filter.bits != null) {
+				for(int w = 0; w < this.bits.length; w++) {
+					if((filter.bits[w] & ~this.bits[w]) != 0) {
+						return false;
+					}
+				}
+				return true;
+			}
+			for(int v = 0; v < filter.cardinality; v++) {
+				if((this.bits[filter.values[v] >>> 6] & (1L << filter.values[v])) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// this is an array, so the filter (with no larger cardinality) is too
+		int i = 0;
+		for(int v = 0; v < filter.cardinality; v++) {
+			char value = filter.values[v];
+			while(i < this.cardinality && this.values[i] < value) {
+				i++;
+			}
+			if(i == this.cardinality || this.values[i] != value) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean intersects(BitmapContainer other) {
+		if(this.bits != null && other.bits != null) {
+			for(int w = 0; w < this.bits.length; w++) {
+				if((this.bits[w] & other.bits[w]) != 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if(this.bits == null && other.bits == null) {
+			int i = 0;
+			int j = 0;
+			while(i < this.cardinality && j < other.cardinality) {
+				if(this.values[i] < other.values[j]) {
+					i++;
+				}else if(this.values[i] > other.values[j]) {
+					j++;
+				}else {
+					return true;
+				}
+			}
+			return false;
+		}
+		BitmapContainer array = this.bits == null ? this : other;
+		BitmapContainer bitmap = this.bits == null ? other : this;
+		for(int v = 0; v < array.cardinality; v++) {
+			if((bitmap.bits[array.values[v] >>> 6] & (1L << array.values[v])) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a new container of the indices set in both this and
+	 * the other, or null if there are none
+	 */
+	BitmapContainer and(BitmapContainer other) {
+		BitmapContainer res = new BitmapContainer(this.width);
+		if(this.bits != null && other.bits != null) {
+			res.values = null;
+			res.bits = new long[this.bits.length];
+			for(int w = 0; w < this.bits.length; w++) {
+				res.bits[w] = this.bits[w] & other.bits[w];
+			}
+			res.cardinality = res.countBits();
+			if(res.cardinality <= res.arrayLimit()) {
+				res.toArray();
+			}
+		}else {
+			BitmapContainer array = this.bits == null ? this : other;
+			BitmapContainer test = this.bits == null ? other : this;
+			res.values = new char[Math.max(1, Math.min(array.cardinality, test.cardinality))];
+			for(int v = 0; v < array.cardinality; v++) {
+				if(test.contains(array.values[v])) {
+					res.values[res.cardinality++] = array.values[v];
+				}
+			}
+		}
+		return res.cardinality == 0 ? null : res;
+	}
+
+	/**
+	 * The number of indices set in both this and the other.
+	 * Does not allocate.
+	 */
+	int andCardinality(BitmapContainer other) {
+		int res = 0;
+		if(this.bits != null && other.bits != null) {
+			for(int w = 0; w < this.bits.length; w++) {
+				res += Long.bitCount(this.bits[w] & other.bits[w]);
+			}
+			return res;
+		}
+		BitmapContainer array = this.bits == null ? this : other;
+		BitmapContainer test = this.bits == null ? other : this;
+		for(int v = 0; v < array.cardinality; v++) {
+			if(test.contains(array.values[v])) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	void orWith(BitmapContainer other) {
+		if(this.bits == null && other.bits == null) {
+			char[] merged = new char[this.cardinality + other.cardinality];
+			int i = 0;
+			int j = 0;
+			int n = 0;
+			while(i < this.cardinality || j < other.cardinality) {
+				if(j == other.cardinality || (i < this.cardinality && this.values[i] < other.values[j])) {
+					merged[n++] = this.values[i++];
+				}else if(i == this.cardinality || other.values[j] < this.values[i]) {
+					merged[n++] = other.values[j++];
+				}else {
+					merged[n++] = this.values[i++];
+					j++;
+				}
+			}
+			this.values = merged;
+			this.cardinality = n;
+			if(n > this.arrayLimit()) {
+				this.toBitmap();
+			}
+			return;
+		}
+		if(this.bits == null) {
+			this.toBitmap();
+		}
+		if(other.bits != null) {
+			for(int w = 0; w < this.bits.length; w++) {
+				this.bits[w] |= other.bits[w];
+			}
+		}else {
+			for(int v = 0; v < other.cardinality; v++) {
+				this.bits[other.values[v] >>> 6] |= 1L << other.values[v];
+			}
+		}
+		this.cardinality = this.countBits();
+	}
+
+	int countBits() {
+		int res = 0;
+		for(long word : this.bits) {
+			res += Long.bitCount(word);
+		}
+		return res;
+	}
+
+	private void toBitmap() {
+		this.bits = new long[this.bitmapWords()];
+		for(int v = 0; v < this.cardinality; v++) {
+			this.bits[this.values[v] >>> 6] |= 1L << this.values[v];
+		}
+		this.values = null;
+	}
+
+	private void toArray() {
+		char[] values = new char[this.cardinality];
+		int n = 0;
+		for(int w = 0; w < this.bits.length; w++) {
+			long word = this.bits[w];
+			while(word != 0) {
+				values[n++] = (char) (64*w + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+		this.values = values;
+		this.bits = null;
+	}
+
+	BitmapContainer copy() {
+		BitmapContainer res = new BitmapContainer(this.width);
+		res.values = this.values == null ? null : Arrays.copyOf(this.values, Math.max(1, this.cardinality));
+		res.bits = this.bits == null ? null : this.bits.clone();
+		res.cardinality = this.cardinality;
+		return res;
+	}
+
+	void writeTo(EncodingBuffer out) {
+		if(this.bits != null) {
+			for(long word : this.bits) {
+				out.writeLong(word);
+			}
+			return;
+		}
+		for(int v = 0; v < this.cardinality; v++) {
+			out.writeByte(this.values[v] >>> 8);
+			out.writeByte(this.values[v]);
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		if(this.bits != null) {
+			return Arrays.hashCode(this.bits);
+		}
+		int h = 1;
+		for(int v = 0; v < this.cardinality; v++) {
+			h = 31 * h + this.values[v];
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object arg0) {
+		if(!(arg0 instanceof BitmapContainer)) {
+			return false;
+		}
+		BitmapContainer other = (BitmapContainer) arg0;
+		// containers are canonical, so equal contents have the same type
+		if(this.cardinality != other.cardinality || (this.bits == null) != (other.bits == null)) {
+			return false;
+		}
+		if(this.bits != null) {
+			return Arrays.equals(this.bits, other.bits);
+		}
+		for(int v = 0; v < this.cardinality; v++) {
+			if(this.values[v] != other.values[v]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -1,82 +1,230 @@
 package org.bverify.records;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.BitSet;
+import java.util.Arrays;
 
 import org.bverify.serialization.BverifySerialization;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 
 /**
  * Wrapper class for manipulating categorical attributes
  * For now the categorical attributes are indexed by  
  *  [0, .... , NUM_ATTRIBUTES - 1]
+ *  
+ * The attributes are stored as a fixed width array of 
+ * ceil(NUM_ATTRIBUTES/64) words (attribute i is bit i%64 of word i/64) 
+ * so the predicate checks ({@link #containsAll(CategoricalAttributes)}, 
+ * {@link #intersects(CategoricalAttributes)}, ...) compare a word at a 
+ * time and do not allocate.
  * @author henryaspegren
  *
  */
 public class CategoricalAttributes implements Serializable {
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 
-	// Minimum possible representation size!
-	private final BitSet representation;
+	// bits at or above size are always zero
+	private final long[] words;
 	
 	// default number of categorical attributes
 	public static final int DEFAULT_NUM_CATEGORICAL_ATTRIBUTES = 64;
 	
 	private final int size;
 	
+	// wire format tags of the fields
+	// tag = (field number << 3) | wire type
+	private static final int ATTRIBUTES_TAG = 
+			(1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int SIZE_TAG = 
+			(2 << 3) | WireFormat.WIRETYPE_VARINT;
+	
 	/**
 	 * Creates the default categorical attributes 
 	 * which are all set to false
 	 */
 	public CategoricalAttributes() {
-		this.representation = new BitSet(DEFAULT_NUM_CATEGORICAL_ATTRIBUTES);
-		this.size = DEFAULT_NUM_CATEGORICAL_ATTRIBUTES;
+		this(DEFAULT_NUM_CATEGORICAL_ATTRIBUTES);
 	}
 	
 	public CategoricalAttributes(int numberAttributes) {
-		this.representation = new BitSet(numberAttributes);
+		if(numberAttributes < 0) {
+			throw new RuntimeException("Error - negative number of attributes");
+		}
+		this.words = new long[(numberAttributes + 63) >>> 6];
 		this.size = numberAttributes;
 	}
 	
 	public CategoricalAttributes(CategoricalAttributes copy) {
-		this.representation = (BitSet) copy.representation.clone();
+		this.words = copy.words.clone();
 		this.size = copy.size;
 	}
 	
 	public boolean getAttribute(int attributeIdx) {
-		return this.representation.get(attributeIdx);
+		if(attributeIdx < 0) {
+			throw new IndexOutOfBoundsException("Categorical attribute: "+attributeIdx);
+		}
+		if(attributeIdx >= this.size) {
+			return false;
+		}
+		return (this.words[attributeIdx >>> 6] & (1L << attributeIdx)) != 0;
 	}
 	
 	public void setAttribute(int attributeIdx, boolean value) {
-		this.representation.set(attributeIdx, value);
+		if(attributeIdx < 0 || attributeIdx >= this.size) {
+			throw new IndexOutOfBoundsException("Categorical attribute: "+attributeIdx);
+		}
+		if(value) {
+			this.words[attributeIdx >>> 6] |= 1L << attributeIdx;
+		}else {
+			this.words[attributeIdx >>> 6] &= ~(1L << attributeIdx);
+		}
 	}
 	
 	
 	public BverifySerialization.CategoricalAttributes serializeCategoricalAttributes(){
 		BverifySerialization.CategoricalAttributes.Builder res = BverifySerialization.CategoricalAttributes.newBuilder();
-		res.setAttributes(ByteString.copyFrom(this.representation.toByteArray()));
+		res.setAttributes(ByteString.copyFrom(this.toByteArray()));
 		res.setSize(this.size);
 		return res.build();
 	}
 	
 	public static CategoricalAttributes parseCategoricalAttributes(byte[] data) throws InvalidProtocolBufferException {
 		BverifySerialization.CategoricalAttributes message = BverifySerialization.CategoricalAttributes.parseFrom(data);
-		ByteString bitsetbytes = message.getAttributes();
-		BitSet bitset = BitSet.valueOf(bitsetbytes.toByteArray());
-		int size = message.getSize();
+		return CategoricalAttributes.fromBytes(message.getAttributes(), message.getSize());
+	}
+	
+	
+	/**
+	 * Parses a serialized CategoricalAttributes message directly from 
+	 * the stream in a single pass (no intermediate message objects)
+	 * @param input - positioned at the start of the message, the 
+	 * 			message must extend to the end of the stream or current limit
+	 * @return
+	 * @throws IOException
+	 */
+	public static CategoricalAttributes readFrom(CodedInputStream input) throws IOException {
+		ByteString bitsetbytes = null;
+		int size = -1;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == ATTRIBUTES_TAG) {
+				bitsetbytes = input.readBytes();
+			}else if(tag == SIZE_TAG) {
+				size = input.readInt32();
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		if(bitsetbytes == null || size < 0) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
+		}
+		return CategoricalAttributes.fromBytes(bitsetbytes, size);
+	}
+	
+	/**
+	 * Attribute i is bit i%8 of byte i/8, bits at or above size are ignored
+	 */
+	private static CategoricalAttributes fromBytes(ByteString bitsetbytes, int size) {
 		CategoricalAttributes res = new CategoricalAttributes(size);
-		for(int i = 0; i < res.numberOfAttributes(); i++) {
-			res.setAttribute(i, bitset.get(i));
+		int numBytes = Math.min(bitsetbytes.size(), (size + 7) / 8);
+		for(int i = 0; i < numBytes; i++) {
+			res.words[i >>> 3] |= (bitsetbytes.byteAt(i) & 0xffL) << (8 * (i & 7));
 		}
+		res.clearUnusedBits();
 		return res;
 	}
 	
+	private void clearUnusedBits() {
+		if((this.size & 63) != 0) {
+			this.words[this.words.length - 1] &= -1L >>> (64 - (this.size & 63));
+		}
+	}
+	
+	/**
+	 * Writes the canonical encoding of these attributes: the 
+	 * number of attributes followed by a fixed width bitmap of 
+	 * ceil(size/8) bytes (attribute i is bit i%8 of byte i/8).
+	 * Unlike {@link #toByteArray()} the width does not depend on 
+	 * which attributes are set.
+	 * @param out
+	 */
+	public void writeTo(EncodingBuffer out) {
+		out.writeInt(this.size);
+		int offset = out.reserve((this.size + 7) / 8);
+		this.orInto(out.array(), offset);
+	}
 	
+	/**
+	 * Writes the attributes as they are input into the hash of 
+	 * an internal node. Same layout as {@link #toByteArray()} (trailing 
+	 * zero bytes dropped) but written directly into the buffer and 
+	 * only including attributes in [0, size - 1]
+	 * @param out
+	 */
+	public void writeHashInput(EncodingBuffer out) {
+		int numBytes = this.numberOfSignificantBytes();
+		int offset = out.reserve(numBytes);
+		byte[] dst = out.array();
+		for(int i = 0; i < numBytes; i++) {
+			dst[offset + i] = (byte) (this.words[i >>> 3] >>> (8 * (i & 7)));
+		}
+	}
+	
+	/**
+	 * Number of bytes up to and including the last one 
+	 * with an attribute set
+	 */
+	private int numberOfSignificantBytes() {
+		for(int w = this.words.length - 1; w >= 0; w--) {
+			if(this.words[w] != 0) {
+				return 8*w + (64 - Long.numberOfLeadingZeros(this.words[w]) + 7) / 8;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Returns the index of the first attribute that is set (true) 
+	 * starting from (and including) fromIdx, or -1 if there is none
+	 * @param fromIdx
+	 * @return
+	 */
+	public int nextSetAttribute(int fromIdx) {
+		if(fromIdx < 0) {
+			throw new IndexOutOfBoundsException("Categorical attribute: "+fromIdx);
+		}
+		int w = fromIdx >>> 6;
+		if(w >= this.words.length) {
+			return -1;
+		}
+		long word = this.words[w] & (-1L << fromIdx);
+		while(true) {
+			if(word != 0) {
+				return 64*w + Long.numberOfTrailingZeros(word);
+			}
+			if(++w == this.words.length) {
+				return -1;
+			}
+			word = this.words[w];
+		}
+	}
+	
+	/**
+	 * The attributes as a bitmap (attribute i is bit i%8 of 
+	 * byte i/8) with trailing zero bytes dropped
+	 * @return
+	 */
 	public byte[] toByteArray() {
-		return this.representation.toByteArray();
+		byte[] res = new byte[this.numberOfSignificantBytes()];
+		for(int i = 0; i < res.length; i++) {
+			res[i] = (byte) (this.words[i >>> 3] >>> (8 * (i & 7)));
+		}
+		return res;
 	}
 	
 	/**
@@ -87,10 +235,127 @@ public class CategoricalAttributes implements Serializable {
 	 * @return
 	 */
 	public boolean hasAttributes(CategoricalAttributes filter) {
-		CategoricalAttributes andRes = this.and(filter);
-		// if and is equal to filter than this categorical attributes
-		// has 1 for all of the 1s in filters
-		return andRes.equals(filter);
+		return this.containsAll(filter);
+	}
+	
+	/**
+	 * Checks if every attribute set in the filter is also set in 
+	 * this. Does not allocate. Must have the same number of attributes 
+	 * or throws a runtime error.
+	 * @param filter
+	 * @return
+	 */
+	public boolean containsAll(CategoricalAttributes filter) {
+		this.checkSameSize(filter);
+		for(int i = 0; i < this.words.length; i++) {
+			if((filter.words[i] & ~this.words[i]) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks if any attribute is set in both this and 
+	 * the other. Does not allocate. Must have the same number 
+	 * of attributes or throws a runtime error.
+	 * @param other
+	 * @return
+	 */
+	public boolean intersects(CategoricalAttributes other) {
+		this.checkSameSize(other);
+		for(int i = 0; i < this.words.length; i++) {
+			if((this.words[i] & other.words[i]) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sets every attribute of the target that is set in this 
+	 * (target = target OR this). Mutates the target, not this. 
+	 * Must have the same number of attributes or throws a runtime error.
+	 * @param target
+	 */
+	public void orInto(CategoricalAttributes target) {
+		this.checkSameSize(target);
+		for(int i = 0; i < this.words.length; i++) {
+			target.words[i] |= this.words[i];
+		}
+	}
+	
+	/**
+	 * ORs these attributes into a bitmap laid out as in 
+	 * {@link #writeTo(EncodingBuffer)} (ceil(size/8) bytes 
+	 * starting at offset, attribute i is bit i%8 of byte i/8)
+	 * @param bitmap
+	 * @param offset
+	 */
+	public void orInto(byte[] bitmap, int offset) {
+		int numBytes = (this.size + 7) / 8;
+		for(int w = 0; w < this.words.length; w++) {
+			long word = this.words[w];
+			for(int i = 8*w; word != 0 && i < numBytes; i++) {
+				bitmap[offset + i] |= (byte) word;
+				word >>>= 8;
+			}
+		}
+	}
+	
+	/**
+	 * Checks if every attribute set in this is also set in the 
+	 * bitmap, laid out as in {@link #writeTo(EncodingBuffer)}. 
+	 * Does not allocate.
+	 * @param bitmap
+	 * @param offset
+	 * @return
+	 */
+	public boolean isContainedIn(byte[] bitmap, int offset) {
+		for(int w = 0; w < this.words.length; w++) {
+			long word = this.words[w];
+			if(word != 0 && (word & ~this.readWord(bitmap, offset, w)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks if exactly the attributes set in this are set in the 
+	 * bitmap, laid out as in {@link #writeTo(EncodingBuffer)}. 
+	 * Does not allocate.
+	 * @param bitmap
+	 * @param offset
+	 * @return
+	 */
+	public boolean equalsBitmap(byte[] bitmap, int offset) {
+		for(int w = 0; w < this.words.length; w++) {
+			if(this.words[w] != this.readWord(bitmap, offset, w)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads word w of a bitmap with ceil(size/8) bytes
+	 */
+	private long readWord(byte[] bitmap, int offset, int w) {
+		int start = offset + 8*w;
+		int end = Math.min(start + 8, offset + (this.size + 7) / 8);
+		long word = 0;
+		for(int i = end - 1; i >= start; i--) {
+			word = (word << 8) | (bitmap[i] & 0xffL);
+		}
+		return word;
+	}
+	
+	private void checkSameSize(CategoricalAttributes other) {
+		if(this.size != other.size) {
+			throw new RuntimeException("Error - Trying to compare two Categorical"
+					+ "Attributes with Different Numbers of Attributes!");
+		}
 	}
 	
 	/**
@@ -107,7 +372,7 @@ public class CategoricalAttributes implements Serializable {
 					+ "Attributes with Different Numbers of Attributes!");
 		}
 		CategoricalAttributes newcatatt = new CategoricalAttributes(this);
-		newcatatt.representation.or(other.representation);
+		other.orInto(newcatatt);
 		return newcatatt;
 	}
 	
@@ -127,7 +392,9 @@ public class CategoricalAttributes implements Serializable {
 					+ "Attributes with Different Numbers of Attributes!");	
 		}
 		CategoricalAttributes newcatatt = new CategoricalAttributes(this);
-		newcatatt.representation.and(other.representation);
+		for(int i = 0; i < newcatatt.words.length; i++) {
+			newcatatt.words[i] &= other.words[i];
+		}
 		return newcatatt;
 	}
 	
@@ -145,7 +412,9 @@ public class CategoricalAttributes implements Serializable {
 					+ "Attributes with Different Numbers of Attributes!");	
 		}
 		CategoricalAttributes newcatatt = new CategoricalAttributes(this);
-		newcatatt.representation.xor(other.representation);
+		for(int i = 0; i < newcatatt.words.length; i++) {
+			newcatatt.words[i] ^= other.words[i];
+		}
 		return newcatatt;
 	}	
 	public int numberOfAttributes() {
@@ -154,14 +423,19 @@ public class CategoricalAttributes implements Serializable {
 	
 	@Override
 	public int hashCode() {
-		return this.representation.hashCode();
+		// same as java.util.BitSet
+		long h = 1234;
+		for(int i = this.words.length; --i >= 0; ) {
+			h ^= this.words[i] * (i + 1);
+		}
+		return (int) ((h >> 32) ^ h);
 	}
 	
 	@Override
 	public boolean equals(Object arg0) {
 		if( arg0 instanceof CategoricalAttributes) {
 			CategoricalAttributes arg0cast = (CategoricalAttributes) arg0;
-			return this.representation.equals(arg0cast.representation) && 
+			return Arrays.equals(this.words, arg0cast.words) && 
 					this.size == arg0cast.size;
 		}
 		return false;
@@ -171,7 +445,14 @@ public class CategoricalAttributes implements Serializable {
 	public String toString() {
 		StringBuilder message = new StringBuilder();
 		message.append("<Categorical Attributes:");
-		message.append(this.representation);
+		message.append("{");
+		for(int i = this.nextSetAttribute(0); i >= 0; i = this.nextSetAttribute(i+1)) {
+			if(message.charAt(message.length() - 1) != '{') {
+				message.append(", ");
+			}
+			message.append(i);
+		}
+		message.append("}");
 		message.append(">");
 		return message.toString();
 	}
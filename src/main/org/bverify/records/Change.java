@@ -4,8 +4,13 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.util.Date;
 
 import org.bverify.accounts.Account;
+import org.bverify.serialization.BverifySerialization;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 
 public abstract class Change extends RecordBase{
@@ -47,7 +52,9 @@ public abstract class Change extends RecordBase{
 	 */
 	public void signEmployee() {
 		try {
-			this.employeeSignature = this.employee.sign(this.getSignedPortion());
+			EncodingBuffer message = RecordBase.signedMessageBuffer();
+			this.writeSignedPortion(message);
+			this.employeeSignature = this.employee.sign(message.array(), 0, message.size());
 		} catch (InvalidKeyException | NoSuchAlgorithmException | NoSuchProviderException
 				| SignatureException e) {
 			e.printStackTrace();
@@ -61,7 +68,9 @@ public abstract class Change extends RecordBase{
 	 */
 	public void signRecipient() {
 		try {
-			this.recepientSignature = this.recepient.sign(this.getSignedPortion());
+			EncodingBuffer message = RecordBase.signedMessageBuffer();
+			this.writeSignedPortion(message);
+			this.recepientSignature = this.recepient.sign(message.array(), 0, message.size());
 		} catch (InvalidKeyException | NoSuchAlgorithmException | NoSuchProviderException
 				| SignatureException e) {
 			e.printStackTrace();
@@ -72,10 +81,11 @@ public abstract class Change extends RecordBase{
 	@Override
 	public boolean isSigned() {
 		if(this.recepientSignature != null && this.employeeSignature != null) {
-			byte[] message = this.getSignedPortion();
+			EncodingBuffer message = RecordBase.signedMessageBuffer();
+			this.writeSignedPortion(message);
 			try {
-				return this.employee.checkSignature(message, this.employeeSignature) 
-						&& this.recepient.checkSignature(message, recepientSignature);
+				return this.employee.checkSignature(message.array(), 0, message.size(), this.employeeSignature) 
+						&& this.recepient.checkSignature(message.array(), 0, message.size(), recepientSignature);
 			} catch (InvalidKeyException | SignatureException e) {
 				e.printStackTrace();
 				return false;
@@ -86,6 +96,83 @@ public abstract class Change extends RecordBase{
 		}
 	}
 
+	@Override
+	public Account[] getSigners() {
+		return new Account[] {this.employee, this.recepient};
+	}
+	
+	@Override
+	public byte[][] getSignatures() {
+		return new byte[][] {this.employeeSignature, this.recepientSignature};
+	}
+
+	/**
+	 * Writes the canonical leaf encoding shared by deposits and withdrawals:
+	 * 		header | good type | recepient | employee | 
+	 * 		recepient signature | employee signature
+	 * (signatures are length prefixed, length -1 if not signed)
+	 * @param out
+	 * @param type
+	 */
+	protected void writeChangeLeafEncoding(EncodingBuffer out, BverifySerialization.Record.Type type) {
+		Record.writeLeafHeader(out, type, this.dateCreated, 
+				this.numericalAttributes, this.categoricalAttributes);
+		out.writeString(this.goodType);
+		RecordBase.writeAccount(out, this.recepient);
+		RecordBase.writeAccount(out, this.employee);
+		out.writeLengthPrefixedBytes(this.recepientSignature);
+		out.writeLengthPrefixedBytes(this.employeeSignature);
+	}
+	
+	/**
+	 * Serializes a deposit or withdrawal. The amounts and the date
+	 * are stored in the record fields, the accounts (public information only) 
+	 * and signatures in the change message.
+	 * @param type
+	 * @return
+	 */
+	protected byte[] serializeChangeRecord(BverifySerialization.Record.Type type) {
+		BverifySerialization.Change.Builder change = BverifySerialization.Change.newBuilder();
+		change.setGoodType(this.goodType);
+		change.setRecepient(this.recepient.serializeAccount());
+		change.setEmployee(this.employee.serializeAccount());
+		if(this.recepientSignature != null) {
+			change.setRecepientSignature(ByteString.copyFrom(this.recepientSignature));
+		}
+		if(this.employeeSignature != null) {
+			change.setEmployeeSignature(ByteString.copyFrom(this.employeeSignature));
+		}
+		BverifySerialization.Record.Builder builder = BverifySerialization.Record.newBuilder();
+		builder.setCategoricalAttributes(this.categoricalAttributes.serializeCategoricalAttributes());
+		builder.setNumericalAttributes(this.numericalAttributes.serializeNumericalAttributes());
+		builder.setDateCreated(this.dateCreated.getTime());
+		builder.setRecordType(type);
+		builder.setChange(change);
+		return builder.build().toByteArray();
+	}
+	
+	/**
+	 * Sets the fields of a parsed deposit or withdrawal, 
+	 * takes ownership of the attributes (no copies are made)
+	 * @param na
+	 * @param ca
+	 * @param date
+	 * @param change
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected void setParts(NumericalAttributes na, CategoricalAttributes ca, Date date,
+			BverifySerialization.Change change) throws InvalidProtocolBufferException {
+		this.numericalAttributes = na;
+		this.categoricalAttributes = ca;
+		this.dateCreated = date;
+		this.goodType = change.getGoodType();
+		this.recepient = Account.parseAccount(change.getRecepient());
+		this.employee = Account.parseAccount(change.getEmployee());
+		this.recepientSignature = change.hasRecepientSignature() ? 
+				change.getRecepientSignature().toByteArray() : null;
+		this.employeeSignature = change.hasEmployeeSignature() ? 
+				change.getEmployeeSignature().toByteArray() : null;
+	}
 	
 	protected StringBuilder getStringHelper() {
 		StringBuilder stringRep = new StringBuilder();
@@ -0,0 +1,461 @@
+package org.bverify.records;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Categorical attributes for very wide attribute schemas (thousands of
+ * SKU, location, lot ... attributes) where only a few attributes are
+ * set per record. Indexed like {@link CategoricalAttributes} by
+ * [0, .... , NUM_ATTRIBUTES - 1].
+ *
+ * The attributes are stored in a Roaring-style compressed bitmap:
+ * the index space is split into chunks of 2^16 attributes and each
+ * chunk with at least one attribute set is stored in a container,
+ * either as a sorted array of the set indices (2 bytes each) or as a
+ * bitmap of the whole chunk, whichever is smaller. Memory and the
+ * encoding grow with the number of attributes that are set rather
+ * than with the width of the schema.
+ *
+ * The choice of container only depends on the attributes that are
+ * set, so the encoding ({@link #writeTo(EncodingBuffer)}) is canonical
+ * and can be hashed: equal attributes always have the same bytes.
+ *
+ */
+public class CompressedCategoricalAttributes implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// attributes per chunk = 2^CHUNK_BITS
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final int size;
+
+	// containers sorted by key (index >>> CHUNK_BITS), empty
+	// containers are removed
+	private char[] keys;
+	private BitmapContainer[] containers;
+	private int numberOfContainers;
+
+	public CompressedCategoricalAttributes(int numberAttributes) {
+		if(numberAttributes < 0) {
+			throw new RuntimeException("Error - negative number of attributes");
+		}
+		this.size = numberAttributes;
+		this.keys = new char[1];
+		this.containers = new BitmapContainer[1];
+		this.numberOfContainers = 0;
+	}
+
+	public CompressedCategoricalAttributes(CompressedCategoricalAttributes copy) {
+		this.size = copy.size;
+		this.keys = Arrays.copyOf(copy.keys, Math.max(1, copy.numberOfContainers));
+		this.containers = new BitmapContainer[this.keys.length];
+		for(int i = 0; i < copy.numberOfContainers; i++) {
+			this.containers[i] = copy.containers[i].copy();
+		}
+		this.numberOfContainers = copy.numberOfContainers;
+	}
+
+	public static CompressedCategoricalAttributes fromCategoricalAttributes(CategoricalAttributes attributes) {
+		CompressedCategoricalAttributes res = new CompressedCategoricalAttributes(attributes.numberOfAttributes());
+		for(int i = attributes.nextSetAttribute(0); i >= 0; i = attributes.nextSetAttribute(i+1)) {
+			res.setAttribute(i, true);
+		}
+		return res;
+	}
+
+	public CategoricalAttributes toCategoricalAttributes() {
+		CategoricalAttributes res = new CategoricalAttributes(this.size);
+		for(int i = this.nextSetAttribute(0); i >= 0; i = this.nextSetAttribute(i+1)) {
+			res.setAttribute(i, true);
+		}
+		return res;
+	}
+
+	public int numberOfAttributes() {
+		return this.size;
+	}
+
+	/**
+	 * The number of attributes that are set (true)
+	 * @return
+	 */
+	public int cardinality() {
+		int res = 0;
+		for(int i = 0; i < this.numberOfContainers; i++) {
+			res += this.containers[i].cardinality;
+		}
+		return res;
+	}
+
+	public boolean getAttribute(int attributeIdx) {
+		if(attributeIdx < 0) {
+			throw new IndexOutOfBoundsException("Categorical attribute: "+attributeIdx);
+		}
+		if(attributeIdx >= this.size) {
+			return false;
+		}
+		int idx = this.findContainer(attributeIdx >>> CHUNK_BITS);
+		return idx >= 0 && this.containers[idx].contains(attributeIdx & CHUNK_MASK);
+	}
+
+	public void setAttribute(int attributeIdx, boolean value) {
+		if(attributeIdx < 0 || attributeIdx >= this.size) {
+			throw new IndexOutOfBoundsException("Categorical attribute: "+attributeIdx);
+		}
+		int key = attributeIdx >>> CHUNK_BITS;
+		int idx = this.findContainer(key);
+		if(value) {
+			if(idx < 0) {
+				idx = this.insertContainer(-idx - 1, key, new BitmapContainer(this.chunkWidth(key)));
+			}
+			this.containers[idx].add(attributeIdx & CHUNK_MASK);
+		}else if(idx >= 0) {
+			BitmapContainer container = this.containers[idx];
+			container.remove(attributeIdx & CHUNK_MASK);
+			if(container.cardinality == 0) {
+				this.removeContainer(idx);
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the first attribute that is set (true)
+	 * starting from (and including) fromIdx, or -1 if there is none
+	 * @param fromIdx
+	 * @return
+	 */
+	public int nextSetAttribute(int fromIdx) {
+		if(fromIdx < 0) {
+			throw new IndexOutOfBoundsException("Categorical attribute: "+fromIdx);
+		}
+		if(fromIdx >= this.size) {
+			return -1;
+		}
+		int key = fromIdx >>> CHUNK_BITS;
+		int idx = this.findContainer(key);
+		if(idx >= 0) {
+			int next = this.containers[idx].nextSet(fromIdx & CHUNK_MASK);
+			if(next >= 0) {
+				return (key << CHUNK_BITS) | next;
+			}
+			idx++;
+		}else {
+			idx = -idx - 1;
+		}
+		if(idx < this.numberOfContainers) {
+			// containers are never empty
+			return (this.keys[idx] << CHUNK_BITS) | this.containers[idx].nextSet(0);
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if every attribute set in the filter is also set in
+	 * this. Does not allocate. Must have the same number of attributes
+	 * or throws a runtime error.
+	 * @param filter
+	 * @return
+	 */
+	public boolean containsAll(CompressedCategoricalAttributes filter) {
+		this.checkSameSize(filter);
+		int i = 0;
+		for(int j = 0; j < filter.numberOfContainers; j++) {
+			char key = filter.keys[j];
+			while(i < this.numberOfContainers && this.keys[i] < key) {
+				i++;
+			}
+			if(i == this.numberOfContainers || this.keys[i] != key ||
+					!this.containers[i].containsAll(filter.containers[j])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if any attribute is set in both this and
+	 * the other. Does not allocate. Must have the same number
+	 * of attributes or throws a runtime error.
+	 * @param other
+	 * @return
+	 */
+	public boolean intersects(CompressedCategoricalAttributes other) {
+		this.checkSameSize(other);
+		int i = 0;
+		int j = 0;
+		while(i < this.numberOfContainers && j < other.numberOfContainers) {
+			if(this.keys[i] < other.keys[j]) {
+				i++;
+			}else if(this.keys[i] > other.keys[j]) {
+				j++;
+			}else {
+				if(this.containers[i].intersects(other.containers[j])) {
+					return true;
+				}
+				i++;
+				j++;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets every attribute of the target that is set in this
+	 * (target = target OR this). Mutates the target, not this.
+	 * Must have the same number of attributes or throws a runtime error.
+	 * @param target
+	 */
+	public void orInto(CompressedCategoricalAttributes target) {
+		this.checkSameSize(target);
+		int j = 0;
+		for(int i = 0; i < this.numberOfContainers; i++) {
+			char key = this.keys[i];
+			while(j < target.numberOfContainers && target.keys[j] < key) {
+				j++;
+			}
+			if(j < target.numberOfContainers && target.keys[j] == key) {
+				target.containers[j].orWith(this.containers[i]);
+			}else {
+				target.insertContainer(j, key, this.containers[i].copy());
+			}
+			j++;
+		}
+	}
+
+	/**
+	 * Creates new categorical attributes by logically ORing these
+	 * attributes with the other. Does NOT mutate this. Must have the
+	 * same number of attributes or throws a runtime error.
+	 * @param other
+	 * @return
+	 */
+	public CompressedCategoricalAttributes or(CompressedCategoricalAttributes other) {
+		CompressedCategoricalAttributes res = new CompressedCategoricalAttributes(this);
+		other.orInto(res);
+		return res;
+	}
+
+	/**
+	 * Writes the canonical encoding of these attributes:
+	 *
+	 * 		number of attributes (4 bytes) | number of containers (4 bytes) |
+	 * 		for each container, in increasing order of key:
+	 * 			key (2 bytes) | cardinality - 1 (2 bytes) |
+	 * 			the set indices in increasing order (2 bytes each)
+	 * 				if cardinality <= bitmap width / 16
+	 * 			otherwise a bitmap (ceil(chunk width / 64) words, 8 bytes each,
+	 * 				index i is bit i%64 of word i/64)
+	 *
+	 * where the chunk width is the number of attributes covered
+	 * by the container (2^16, except possibly for the last one).
+	 * All values are big-endian.
+	 * @param out
+	 */
+	public void writeTo(EncodingBuffer out) {
+		out.writeInt(this.size);
+		out.writeInt(this.numberOfContainers);
+		for(int i = 0; i < this.numberOfContainers; i++) {
+			BitmapContainer container = this.containers[i];
+			out.writeByte(this.keys[i] >>> 8);
+			out.writeByte(this.keys[i]);
+			out.writeByte((container.cardinality - 1) >>> 8);
+			out.writeByte(container.cardinality - 1);
+			container.writeTo(out);
+		}
+	}
+
+	/**
+	 * Size in bytes of the encoding written by {@link #writeTo(EncodingBuffer)}
+	 * @return
+	 */
+	public int getSerializedSize() {
+		int res = 8;
+		for(int i = 0; i < this.numberOfContainers; i++) {
+			res += 4 + this.containers[i].payloadSize();
+		}
+		return res;
+	}
+
+	public byte[] toByteArray() {
+		EncodingBuffer out = new EncodingBuffer(this.getSerializedSize());
+		this.writeTo(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parses the encoding written by {@link #writeTo(EncodingBuffer)}.
+	 * Only the canonical encoding is accepted.
+	 * @param data
+	 * @return
+	 * @throws InvalidProtocolBufferException - if the data is not
+	 * 			a canonical encoding
+	 */
+	public static CompressedCategoricalAttributes parseFrom(byte[] data) throws InvalidProtocolBufferException {
+		int[] position = new int[] {0};
+		int size = CompressedCategoricalAttributes.read(data, position, 4);
+		int numberOfContainers = CompressedCategoricalAttributes.read(data, position, 4);
+		if(size < 0 || numberOfContainers < 0 ||
+				numberOfContainers > (size + CHUNK_SIZE - 1) >>> CHUNK_BITS) {
+			throw new InvalidProtocolBufferException("Invalid compressed categorical attributes");
+		}
+		CompressedCategoricalAttributes res = new CompressedCategoricalAttributes(size);
+		int lastKey = -1;
+		for(int i = 0; i < numberOfContainers; i++) {
+			int key = CompressedCategoricalAttributes.read(data, position, 2);
+			int cardinality = CompressedCategoricalAttributes.read(data, position, 2) + 1;
+			if(key <= lastKey || ((long) key << CHUNK_BITS) >= size) {
+				throw new InvalidProtocolBufferException("Invalid compressed categorical attributes");
+			}
+			BitmapContainer container = new BitmapContainer(res.chunkWidth(key));
+			if(cardinality > container.width) {
+				throw new InvalidProtocolBufferException("Invalid compressed categorical attributes");
+			}
+			if(cardinality <= container.arrayLimit()) {
+				container.values = new char[cardinality];
+				int last = -1;
+				for(int v = 0; v < cardinality; v++) {
+					int value = CompressedCategoricalAttributes.read(data, position, 2);
+					if(value <= last || value >= container.width) {
+						throw new InvalidProtocolBufferException("Invalid compressed categorical attributes");
+					}
+					container.values[v] = (char) value;
+					last = value;
+				}
+			}else {
+				container.values = null;
+				container.bits = new long[container.bitmapWords()];
+				for(int w = 0; w < container.bits.length; w++) {
+					long word = ((long) CompressedCategoricalAttributes.read(data, position, 4) << 32) |
+							(CompressedCategoricalAttributes.read(data, position, 4) & 0xffffffffL);
+					container.bits[w] = word;
+				}
+				// no bits set at or above the width
+				if(container.countBits() != cardinality || ((container.width & 63) != 0 &&
+						(container.bits[container.bits.length - 1] >>> (container.width & 63)) != 0)) {
+					throw new InvalidProtocolBufferException("Invalid compressed categorical attributes");
+				}
+			}
+			container.cardinality = cardinality;
+			res.insertContainer(i, key, container);
+			lastKey = key;
+		}
+		if(position[0] != data.length) {
+			throw new InvalidProtocolBufferException("Invalid compressed categorical attributes");
+		}
+		return res;
+	}
+
+	/**
+	 * Reads a big-endian value of numberBytes bytes
+	 */
+	private static int read(byte[] data, int[] position, int numberBytes) throws InvalidProtocolBufferException {
+		if(position[0] + numberBytes > data.length) {
+			throw new InvalidProtocolBufferException("Truncated compressed categorical attributes");
+		}
+		int res = 0;
+		for(int i = 0; i < numberBytes; i++) {
+			res = (res << 8) | (data[position[0]++] & 0xff);
+		}
+		return res;
+	}
+
+	private int chunkWidth(int key) {
+		return Math.min(CHUNK_SIZE, this.size - (key << CHUNK_BITS));
+	}
+
+	/**
+	 * Binary search for the container with the key
+	 * @return the index of the container, or (-(insertion point) - 1)
+	 */
+	private int findContainer(int key) {
+		int low = 0;
+		int high = this.numberOfContainers - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int midKey = this.keys[mid];
+			if(midKey < key) {
+				low = mid + 1;
+			}else if(midKey > key) {
+				high = mid - 1;
+			}else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private int insertContainer(int idx, int key, BitmapContainer container) {
+		if(this.numberOfContainers == this.keys.length) {
+			this.keys = Arrays.copyOf(this.keys, 2 * this.keys.length);
+			this.containers = Arrays.copyOf(this.containers, 2 * this.containers.length);
+		}
+		System.arraycopy(this.keys, idx, this.keys, idx + 1, this.numberOfContainers - idx);
+		System.arraycopy(this.containers, idx, this.containers, idx + 1, this.numberOfContainers - idx);
+		this.keys[idx] = (char) key;
+		this.containers[idx] = container;
+		this.numberOfContainers++;
+		return idx;
+	}
+
+	private void removeContainer(int idx) {
+		System.arraycopy(this.keys, idx + 1, this.keys, idx, this.numberOfContainers - idx - 1);
+		System.arraycopy(this.containers, idx + 1, this.containers, idx, this.numberOfContainers - idx - 1);
+		this.numberOfContainers--;
+		this.containers[this.numberOfContainers] = null;
+	}
+
+	private void checkSameSize(CompressedCategoricalAttributes other) {
+		if(this.size != other.size) {
+			throw new RuntimeException("Error - Trying to compare two Categorical"
+					+ "Attributes with Different Numbers of Attributes!");
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		int h = this.size;
+		for(int i = 0; i < this.numberOfContainers; i++) {
+			h = 31 * h + this.keys[i];
+			h = 31 * h + this.containers[i].hashCode();
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object arg0) {
+		if(arg0 instanceof CompressedCategoricalAttributes) {
+			CompressedCategoricalAttributes arg0cast = (CompressedCategoricalAttributes) arg0;
+			if(this.size != arg0cast.size || this.numberOfContainers != arg0cast.numberOfContainers) {
+				return false;
+			}
+			for(int i = 0; i < this.numberOfContainers; i++) {
+				if(this.keys[i] != arg0cast.keys[i] || !this.containers[i].equals(arg0cast.containers[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder message = new StringBuilder();
+		message.append("<Compressed Categorical Attributes:{");
+		for(int i = this.nextSetAttribute(0); i >= 0; i = this.nextSetAttribute(i+1)) {
+			if(message.charAt(message.length() - 1) != '{') {
+				message.append(", ");
+			}
+			message.append(i);
+		}
+		message.append("}>");
+		return message.toString();
+	}
+
+}
@@ -0,0 +1,137 @@
+package org.bverify.records;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable, reusable byte buffer used to write the canonical
+ * (fixed-layout) encodings of records and attributes.
+ *
+ * All multi-byte values are written big-endian. Callers
+ * are expected to keep an instance around (e.g. one per thread)
+ * and {@link #reset()} it between uses so that encoding
+ * does not allocate once the buffer has grown to its working size.
+ *
+ */
+public final class EncodingBuffer {
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private byte[] buffer;
+	private int position;
+
+	public EncodingBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public EncodingBuffer(int initialCapacity) {
+		this.buffer = new byte[initialCapacity];
+		this.position = 0;
+	}
+
+	/**
+	 * Discards the contents of the buffer (but keeps
+	 * the underlying storage so it can be reused)
+	 * @return this buffer
+	 */
+	public EncodingBuffer reset() {
+		this.position = 0;
+		return this;
+	}
+
+	public void writeByte(int b) {
+		this.ensureCapacity(1);
+		this.buffer[this.position++] = (byte) b;
+	}
+
+	public void writeInt(int v) {
+		this.ensureCapacity(4);
+		this.buffer[this.position++] = (byte) (v >>> 24);
+		this.buffer[this.position++] = (byte) (v >>> 16);
+		this.buffer[this.position++] = (byte) (v >>> 8);
+		this.buffer[this.position++] = (byte) v;
+	}
+
+	public void writeLong(long v) {
+		this.writeInt((int) (v >>> 32));
+		this.writeInt((int) v);
+	}
+
+	public void writeBytes(byte[] data) {
+		this.writeBytes(data, 0, data.length);
+	}
+
+	public void writeBytes(byte[] data, int offset, int length) {
+		this.ensureCapacity(length);
+		System.arraycopy(data, offset, this.buffer, this.position, length);
+		this.position += length;
+	}
+
+	/**
+	 * Writes the length of the data followed by the data.
+	 * A null array is written as length -1 so that it
+	 * is distinguishable from an empty array.
+	 * @param data - may be null
+	 */
+	public void writeLengthPrefixedBytes(byte[] data) {
+		if(data == null) {
+			this.writeInt(-1);
+			return;
+		}
+		this.writeInt(data.length);
+		this.writeBytes(data);
+	}
+
+	/**
+	 * Writes the string as length prefixed UTF-8 bytes
+	 * @param s - may be null
+	 */
+	public void writeString(String s) {
+		this.writeLengthPrefixedBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reserves the next length bytes of the buffer,
+	 * zeroes them and returns the offset at which they start.
+	 * The caller can then write into {@link #array()} directly.
+	 * @param length
+	 * @return offset of the reserved region
+	 */
+	public int reserve(int length) {
+		this.ensureCapacity(length);
+		int offset = this.position;
+		Arrays.fill(this.buffer, offset, offset + length, (byte) 0);
+		this.position += length;
+		return offset;
+	}
+
+	/**
+	 * The underlying storage. Only the first {@link #size()}
+	 * bytes are valid. The reference is invalidated by
+	 * any subsequent write that grows the buffer.
+	 * @return
+	 */
+	public byte[] array() {
+		return this.buffer;
+	}
+
+	public int size() {
+		return this.position;
+	}
+
+	/**
+	 * Returns a copy of the valid contents of this buffer
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(this.buffer, this.position);
+	}
+
+	private void ensureCapacity(int extra) {
+		int required = this.position + extra;
+		if(required > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(required, 2*this.buffer.length));
+		}
+	}
+
+}
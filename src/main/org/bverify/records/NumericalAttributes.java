@@ -1,11 +1,14 @@
 package org.bverify.records;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 
 import org.bverify.serialization.BverifySerialization;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 
 /**
  * Wrapper class for manipulating numerical attributes
@@ -24,6 +27,13 @@ public class NumericalAttributes implements Serializable {
 	// default number of numerical attributes
 	public static final int DEFAULT_NUM_NUMERICAL_ATTRIBUTES = 2;
 	
+	// wire format tags of the attributes field (unpacked and packed)
+	// tag = (field number << 3) | wire type
+	private static final int ATTRIBUTES_TAG = 
+			(1 << 3) | WireFormat.WIRETYPE_VARINT;
+	private static final int ATTRIBUTES_PACKED_TAG = 
+			(1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	
 	/**
 	 * Creates the default numerical attributes 
 	 * (all 0)
@@ -89,6 +99,29 @@ public class NumericalAttributes implements Serializable {
 		return res.build();
 	}
 	
+	/**
+	 * Writes the canonical encoding of these attributes:
+	 * the number of attributes followed by each attribute (4 bytes each)
+	 * @param out
+	 */
+	public void writeTo(EncodingBuffer out) {
+		out.writeInt(this.representation.length);
+		for(int i = 0; i < this.representation.length; i++) {
+			out.writeInt(this.representation[i]);
+		}
+	}
+	
+	/**
+	 * Writes the attributes as they are input into the hash of 
+	 * an internal node: each attribute (4 bytes each), no length
+	 * @param out
+	 */
+	public void writeHashInput(EncodingBuffer out) {
+		for(int i = 0; i < this.representation.length; i++) {
+			out.writeInt(this.representation[i]);
+		}
+	}
+	
 	public static NumericalAttributes parseNumericalAttributes(byte[] data) throws InvalidProtocolBufferException {
 		BverifySerialization.NumericalAttributes message = BverifySerialization.NumericalAttributes.parseFrom(data);
 		int size  = message.getAttributesCount();
@@ -100,6 +133,43 @@ public class NumericalAttributes implements Serializable {
 
 	}
 	
+	/**
+	 * Parses a serialized NumericalAttributes message directly from the 
+	 * stream in a single pass (no intermediate message objects). 
+	 * Accepts both packed and unpacked attributes.
+	 * @param input - positioned at the start of the message, the 
+	 * 			message must extend to the end of the stream or current limit
+	 * @return
+	 * @throws IOException
+	 */
+	public static NumericalAttributes readFrom(CodedInputStream input) throws IOException {
+		int[] values = new int[DEFAULT_NUM_NUMERICAL_ATTRIBUTES];
+		int size = 0;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == ATTRIBUTES_TAG) {
+				if(size == values.length) {
+					values = Arrays.copyOf(values, 2*values.length);
+				}
+				values[size++] = input.readInt32();
+			}else if(tag == ATTRIBUTES_PACKED_TAG) {
+				int oldLimit = input.pushLimit(input.readRawVarint32());
+				while(input.getBytesUntilLimit() > 0) {
+					if(size == values.length) {
+						values = Arrays.copyOf(values, 2*values.length);
+					}
+					values[size++] = input.readInt32();
+				}
+				input.popLimit(oldLimit);
+			}else if(!input.skipField(tag)) {
+				break;
+			}
+		}
+		NumericalAttributes numAtts = new NumericalAttributes(size);
+		System.arraycopy(values, 0, numAtts.representation, 0, size);
+		return numAtts;
+	}
+	
 	@Override
 	/**
 	 * Two Numerical Attributes are equal if they have 
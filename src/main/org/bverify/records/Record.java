@@ -1,11 +1,15 @@
 package org.bverify.records;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
 
 import org.bverify.serialization.BverifySerialization;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 
 
 /**
@@ -66,6 +70,26 @@ public interface Record extends Serializable {
 	 */
 	public byte[] serializeRecord();
 	
+	/**
+	 * Version of the canonical leaf encoding. Leaf hashes are 
+	 * calculated over this encoding so this must be incremented 
+	 * whenever the layout changes.
+	 */
+	public static final byte LEAF_ENCODING_VERSION = 1;
+	
+	/**
+	 * Write the canonical, fixed-layout encoding of this record 
+	 * into the buffer. The leaf hash of the record is calculated over
+	 * this encoding (see {@link org.bverify.aggregators.RecordAggregation}).
+	 * 
+	 * The encoding starts with the header written by 
+	 * {@link #writeLeafHeader(EncodingBuffer, BverifySerialization.Record.Type, Date, 
+	 * NumericalAttributes, CategoricalAttributes)} followed by any fields 
+	 * specific to the record type.
+	 * @param out - the buffer to append the encoding to
+	 */
+	public void writeLeafEncoding(EncodingBuffer out);
+	
 	
 	/**
 	 * Parse the byte data (serialized record)
@@ -83,28 +107,134 @@ public interface Record extends Serializable {
 	 * @throws InvalidProtocolBufferException
 	 */
 	public static Record parseRecord(byte[] data) throws InvalidProtocolBufferException {
-		BverifySerialization.Record message = BverifySerialization.Record.parseFrom(data);
-		Record newRecord = null;
-		if(message.getRecordType().equals(BverifySerialization.Record.Type.SIMPLE_RECORD)) {
-			newRecord = new SimpleRecord();
-			newRecord.parseFrom(data);		
-		}
-		if(message.getRecordType().equals(BverifySerialization.Record.Type.DEPOSIT)) {
-			newRecord = new Deposit();
-			newRecord.parseFrom(data);	
+		try {
+			return Record.parseRecord(CodedInputStream.newInstance(data));
+		} catch (InvalidProtocolBufferException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new InvalidProtocolBufferException(e.getMessage());
 		}
-		if(message.getRecordType().equals(BverifySerialization.Record.Type.WITHDRAWAL)) {
-			newRecord = new Withdrawal();
-			newRecord.parseFrom(data);
+	}
+	
+	/**
+	 * Parses a serialized record in a single pass over the stream. 
+	 * The nested attribute messages are decoded in place and 
+	 * the record is constructed directly by the decoder registered 
+	 * for its type in the {@link RecordTypeRegistry}, rather than parsing the 
+	 * message once to find the type and then again in the subclass.
+	 * @param input - positioned at the start of the message, the 
+	 * 			message must extend to the end of the stream or current limit
+	 * @return
+	 * @throws IOException
+	 */
+	public static Record parseRecord(CodedInputStream input) throws IOException {
+		// wire format tags of the fields
+		// tag = (field number << 3) | wire type
+		final int numericalAttributesTag = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+		final int categoricalAttributesTag = (2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+		final int dateCreatedTag = (3 << 3) | WireFormat.WIRETYPE_VARINT;
+		final int recordTypeTag = (4 << 3) | WireFormat.WIRETYPE_VARINT;
+		final int otherDataTag = (5 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+		final int changeTag = (6 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+		final int transferTag = (7 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+		final int otherTypeTag = (8 << 3) | WireFormat.WIRETYPE_VARINT;
+		
+		NumericalAttributes numericalAttributes = null;
+		CategoricalAttributes categoricalAttributes = null;
+		Long dateCreated = null;
+		Integer recordType = null;
+		Integer otherType = null;
+		// the type specific data is handed to the decoder unparsed
+		ByteString otherData = null;
+		ByteString change = null;
+		ByteString transfer = null;
+		while(!input.isAtEnd()) {
+			int tag = input.readTag();
+			if(tag == numericalAttributesTag) {
+				int oldLimit = input.pushLimit(input.readRawVarint32());
+				numericalAttributes = NumericalAttributes.readFrom(input);
+				input.popLimit(oldLimit);
+			}else if(tag == categoricalAttributesTag) {
+				int oldLimit = input.pushLimit(input.readRawVarint32());
+				categoricalAttributes = CategoricalAttributes.readFrom(input);
+				input.popLimit(oldLimit);
+			}else if(tag == dateCreatedTag) {
+				dateCreated = input.readInt64();
+			}else if(tag == recordTypeTag) {
+				recordType = input.readEnum();
+			}else if(tag == otherDataTag) {
+				otherData = input.readBytes();
+			}else if(tag == changeTag) {
+				change = input.readBytes();
+			}else if(tag == transferTag) {
+				transfer = input.readBytes();
+			}else if(tag == otherTypeTag) {
+				otherType = input.readInt32();
+			}else if(!input.skipField(tag)) {
+				break;
+			}
 		}
-		if(message.getRecordType().equals(BverifySerialization.Record.Type.TRANSFER)) {
-			newRecord = new Transfer();
-			newRecord.parseFrom(data);
+		if(numericalAttributes == null || categoricalAttributes == null || 
+				dateCreated == null || recordType == null) {
+			throw new InvalidProtocolBufferException("Message missing required fields");
 		}
-		if(newRecord == null) {
-			throw new RuntimeException("No serialization defined");
+		ByteString data;
+		switch(recordType) {
+		case BverifySerialization.Record.Type.DEPOSIT_VALUE:
+		case BverifySerialization.Record.Type.WITHDRAWAL_VALUE:
+			data = change;
+			break;
+		case BverifySerialization.Record.Type.TRANSFER_VALUE:
+			data = transfer;
+			break;
+		case BverifySerialization.Record.Type.OTHER_VALUE:
+			if(otherType == null || otherType < RecordTypeRegistry.FIRST_APPLICATION_TYPE) {
+				throw new InvalidProtocolBufferException("Message missing record type");
+			}
+			recordType = otherType;
+			data = otherData;
+			break;
+		default:
+			data = otherData;
 		}
-		return newRecord;
+		return RecordTypeRegistry.decode(recordType, numericalAttributes, categoricalAttributes, 
+				new Date(dateCreated), data);
+	}
+	
+	/**
+	 * Writes the common part of the canonical leaf encoding:
+	 * 		version (1 byte) | record type (1 byte) | date created, epoch millis (8 bytes) |
+	 * 		numerical attributes | categorical attributes
+	 * @param out
+	 * @param type
+	 * @param dateCreated
+	 * @param numericalAttributes
+	 * @param categoricalAttributes
+	 */
+	public static void writeLeafHeader(EncodingBuffer out, BverifySerialization.Record.Type type, 
+			Date dateCreated, NumericalAttributes numericalAttributes, 
+			CategoricalAttributes categoricalAttributes) {
+		Record.writeLeafHeader(out, type.getNumber(), dateCreated, numericalAttributes, 
+				categoricalAttributes);
+	}
+	
+	/**
+	 * Writes the common part of the canonical leaf encoding for a record 
+	 * of an application defined type (see {@link RecordTypeRegistry})
+	 * @param out
+	 * @param type - the registered record type
+	 * @param dateCreated
+	 * @param numericalAttributes
+	 * @param categoricalAttributes
+	 */
+	public static void writeLeafHeader(EncodingBuffer out, int type, 
+			Date dateCreated, NumericalAttributes numericalAttributes, 
+			CategoricalAttributes categoricalAttributes) {
+		out.writeByte(LEAF_ENCODING_VERSION);
+		out.writeByte(type);
+		out.writeLong(dateCreated.getTime());
+		numericalAttributes.writeTo(out);
+		categoricalAttributes.writeTo(out);
 	}
 		
 }
@@ -2,6 +2,9 @@ package org.bverify.records;
 
 import java.util.Date;
 
+import org.bverify.accounts.Account;
+import org.bverify.serialization.BverifySerialization;
+
 /**
  * Abstract base class for creating records that provides
  * the attribute management that records must provide. 
@@ -11,6 +14,17 @@ import java.util.Date;
 public abstract class RecordBase implements Record {
 	
 	private static final long serialVersionUID = 3L;
+	
+	/**
+	 * Version of the canonical signed message. Signatures are 
+	 * made over this encoding so this must be incremented 
+	 * whenever the layout changes.
+	 */
+	public static final byte SIGNED_MESSAGE_VERSION = 1;
+	
+	/** Each thread writes the messages it signs and verifies into its own buffer */
+	private static final ThreadLocal<EncodingBuffer> SIGNED_MESSAGE_BUFFER = 
+			ThreadLocal.withInitial(EncodingBuffer::new);
 
 	// should be later moved over to a categorical attribute
 	protected String goodType; 
@@ -38,10 +52,49 @@ public abstract class RecordBase implements Record {
 
 	public abstract boolean isSigned();
 
-	@Override
-	public abstract boolean isValid();
+	/**
+	 * Returns true if the record is valid apart from its signatures 
+	 * @return
+	 */
+	public abstract boolean isWellFormed();
 	
-	public abstract byte[] getSignedPortion();
+	/**
+	 * Write the canonical message that the accounts sign into the buffer 
+	 * (see {@link #writeSignedMessage(EncodingBuffer, BverifySerialization.Record.Type, long, long)})
+	 * @param out - the buffer to append the message to
+	 */
+	public abstract void writeSignedPortion(EncodingBuffer out);
+	
+	/**
+	 * Returns a copy of the message that the accounts sign. Signing and 
+	 * verifying write the message into a reusable buffer instead 
+	 * (see {@link #writeSignedPortion(EncodingBuffer)}).
+	 * @return
+	 */
+	public byte[] getSignedPortion() {
+		EncodingBuffer out = new EncodingBuffer();
+		this.writeSignedPortion(out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Returns the accounts that must sign the record, 
+	 * in the same order as {@link #getSignatures()}
+	 * @return
+	 */
+	public abstract Account[] getSigners();
+	
+	/**
+	 * Returns the signatures of the signers 
+	 * (an entry is null if that account has not signed)
+	 * @return
+	 */
+	public abstract byte[][] getSignatures();
+	
+	@Override
+	public boolean isValid() {
+		return this.isWellFormed() && this.isSigned();
+	}
 	
 	@Override
 	public CategoricalAttributes getCategoricalAttributes() {
@@ -75,5 +128,49 @@ public abstract class RecordBase implements Record {
 	public void setDateCreated(Date date) {
 		this.dateCreated = date;
 	}
+	
+	/**
+	 * Writes the canonical message signed by the accounts of a record:
+	 * 		version (1 byte) | record type (1 byte) | date created, epoch millis (8 bytes) |
+	 * 		total amount (4 bytes) | good type (length prefixed UTF-8) | 
+	 * 		first account id (8 bytes) | second account id (8 bytes)
+	 * The encoding does not depend on the locale, time zone or 
+	 * default charset, so signatures can be verified on any JVM.
+	 * @param out
+	 * @param type
+	 * @param firstAccountId
+	 * @param secondAccountId
+	 */
+	protected void writeSignedMessage(EncodingBuffer out, BverifySerialization.Record.Type type,
+			long firstAccountId, long secondAccountId) {
+		out.writeByte(SIGNED_MESSAGE_VERSION);
+		out.writeByte(type.getNumber());
+		out.writeLong(this.dateCreated.getTime());
+		out.writeInt(this.getTotalAmount());
+		out.writeString(this.goodType);
+		out.writeLong(firstAccountId);
+		out.writeLong(secondAccountId);
+	}
+	
+	/**
+	 * Returns the current thread's buffer for signed messages, reset.
+	 * The contents are only valid until the next call on the same thread.
+	 * @return
+	 */
+	static EncodingBuffer signedMessageBuffer() {
+		return SIGNED_MESSAGE_BUFFER.get().reset();
+	}
+	
+	/**
+	 * Writes an account into a canonical leaf encoding:
+	 * 		account id (8 bytes) | length prefixed encoded public key
+	 * Only the public information about the account is included.
+	 * @param out
+	 * @param account
+	 */
+	protected static void writeAccount(EncodingBuffer out, Account account) {
+		out.writeLong(account.getId());
+		out.writeLengthPrefixedBytes(account.getPubKey().getEncoded());
+	}
 
 }
@@ -0,0 +1,338 @@
+package org.bverify.records;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bverify.serialization.BverifySerialization;
+
+/**
+ * A batch of records stored by column, used to ingest and scan
+ * many records at a time without a {@link Record} object (and its
+ * attribute wrappers and {@link Date}) per record:
+ * 			<li> numerical attribute j of every record is an int[] column </li>
+ * 			<li> categorical attribute j of every record is a bitmap column
+ * 				(record i is bit i%64 of word i/64) </li>
+ * 			<li> the creation dates are a long[] column (milliseconds) </li>
+ *
+ * All records in a batch have the same number of numerical and categorical
+ * attributes. Records of other types than {@link SimpleRecord} (e.g. signed
+ * {@link Deposit}s) have fields that are not stored in the columns, so they
+ * are kept alongside and used for their leaf encoding; their attributes are
+ * still stored in the columns and included in scans.
+ *
+ * Leaf encodings ({@link #writeLeafEncoding(int, EncodingBuffer)}) are
+ * identical to those of the records the batch was created from, so leaf
+ * hashes and trees built from a batch are the same as those built from
+ * the records.
+ *
+ */
+public class RecordBatch {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private final int numberOfNumericalAttributes;
+	private final int numberOfCategoricalAttributes;
+
+	private int size;
+	private int[][] numericalColumns;
+	private long[][] categoricalColumns;
+	private long[] dates;
+	// null for simple records
+	private Record[] typedRecords;
+
+	public RecordBatch(int numberOfNumericalAttributes, int numberOfCategoricalAttributes) {
+		this(numberOfNumericalAttributes, numberOfCategoricalAttributes, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param numberOfNumericalAttributes - of each record
+	 * @param numberOfCategoricalAttributes - of each record
+	 * @param capacity - expected number of records (the batch grows as needed)
+	 */
+	public RecordBatch(int numberOfNumericalAttributes, int numberOfCategoricalAttributes, int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.numberOfNumericalAttributes = numberOfNumericalAttributes;
+		this.numberOfCategoricalAttributes = numberOfCategoricalAttributes;
+		this.size = 0;
+		this.numericalColumns = new int[numberOfNumericalAttributes][capacity];
+		this.categoricalColumns = new long[numberOfCategoricalAttributes][(capacity + 63) >>> 6];
+		this.dates = new long[capacity];
+		this.typedRecords = new Record[capacity];
+	}
+
+	/**
+	 * Creates a batch holding the records, in order. The records must all
+	 * have the same number of numerical and categorical attributes.
+	 * @param records - at least one record
+	 * @return
+	 */
+	public static RecordBatch fromRecords(List<? extends Record> records) {
+		if(records.isEmpty()) {
+			throw new RuntimeException("Error - cannot infer attributes of an empty batch");
+		}
+		Record first = records.get(0);
+		RecordBatch batch = new RecordBatch(first.getNumericalAttributes().numberOfAttributes(),
+				first.getCategoricalAttributes().numberOfAttributes(), records.size());
+		for(Record r : records) {
+			batch.add(r);
+		}
+		return batch;
+	}
+
+	/**
+	 * Appends a record to the batch
+	 * @param record
+	 */
+	public void add(Record record) {
+		NumericalAttributes numericalAttributes = record.getNumericalAttributes();
+		CategoricalAttributes categoricalAttributes = record.getCategoricalAttributes();
+		if(numericalAttributes.numberOfAttributes() != this.numberOfNumericalAttributes ||
+				categoricalAttributes.numberOfAttributes() != this.numberOfCategoricalAttributes) {
+			throw new RuntimeException("Error - record has a different number of attributes"
+					+ " than the batch");
+		}
+		int row = this.addRow(record.dateCreated().getTime());
+		for(int j = 0; j < this.numberOfNumericalAttributes; j++) {
+			this.numericalColumns[j][row] = numericalAttributes.getAttribute(j);
+		}
+		for(int j = categoricalAttributes.nextSetAttribute(0); j >= 0;
+				j = categoricalAttributes.nextSetAttribute(j+1)) {
+			this.categoricalColumns[j][row >>> 6] |= 1L << row;
+		}
+		if(!(record instanceof SimpleRecord)) {
+			this.typedRecords[row] = record;
+		}
+	}
+
+	/**
+	 * Appends a simple record, given as its attributes,
+	 * without creating any objects
+	 * @param numericalAttributes - the numerical attributes of the record
+	 * @param categoricalAttributes - the indices of the categorical attributes
+	 * 			that are set
+	 * @param dateCreated - in milliseconds
+	 */
+	public void add(int[] numericalAttributes, int[] categoricalAttributes, long dateCreated) {
+		if(numericalAttributes.length != this.numberOfNumericalAttributes) {
+			throw new RuntimeException("Error - record has a different number of attributes"
+					+ " than the batch");
+		}
+		for(int j : categoricalAttributes) {
+			if(j < 0 || j >= this.numberOfCategoricalAttributes) {
+				throw new IndexOutOfBoundsException("Categorical attribute: "+j);
+			}
+		}
+		int row = this.addRow(dateCreated);
+		for(int j = 0; j < this.numberOfNumericalAttributes; j++) {
+			this.numericalColumns[j][row] = numericalAttributes[j];
+		}
+		for(int j : categoricalAttributes) {
+			this.categoricalColumns[j][row >>> 6] |= 1L << row;
+		}
+	}
+
+	private int addRow(long dateCreated) {
+		if(this.size == this.dates.length) {
+			int capacity = 2 * this.dates.length;
+			for(int j = 0; j < this.numberOfNumericalAttributes; j++) {
+				this.numericalColumns[j] = Arrays.copyOf(this.numericalColumns[j], capacity);
+			}
+			for(int j = 0; j < this.numberOfCategoricalAttributes; j++) {
+				this.categoricalColumns[j] = Arrays.copyOf(this.categoricalColumns[j], (capacity + 63) >>> 6);
+			}
+			this.dates = Arrays.copyOf(this.dates, capacity);
+			this.typedRecords = Arrays.copyOf(this.typedRecords, capacity);
+		}
+		this.dates[this.size] = dateCreated;
+		return this.size++;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public int numberOfNumericalAttributes() {
+		return this.numberOfNumericalAttributes;
+	}
+
+	public int numberOfCategoricalAttributes() {
+		return this.numberOfCategoricalAttributes;
+	}
+
+	public int getNumericalAttribute(int row, int attributeIdx) {
+		this.checkRow(row);
+		return this.numericalColumns[attributeIdx][row];
+	}
+
+	public boolean getCategoricalAttribute(int row, int attributeIdx) {
+		this.checkRow(row);
+		return (this.categoricalColumns[attributeIdx][row >>> 6] & (1L << row)) != 0;
+	}
+
+	/**
+	 * Creation date of the record in milliseconds
+	 * @param row
+	 * @return
+	 */
+	public long getDateCreated(int row) {
+		this.checkRow(row);
+		return this.dates[row];
+	}
+
+	/**
+	 * Returns the record. Simple records are created from the
+	 * columns, records of other types are the records that were added.
+	 * @param row
+	 * @return
+	 */
+	public Record getRecord(int row) {
+		this.checkRow(row);
+		if(this.typedRecords[row] != null) {
+			return this.typedRecords[row];
+		}
+		NumericalAttributes numericalAttributes = new NumericalAttributes(this.numberOfNumericalAttributes);
+		for(int j = 0; j < this.numberOfNumericalAttributes; j++) {
+			numericalAttributes.setAttribute(j, this.numericalColumns[j][row]);
+		}
+		CategoricalAttributes categoricalAttributes = new CategoricalAttributes(this.numberOfCategoricalAttributes);
+		for(int j = 0; j < this.numberOfCategoricalAttributes; j++) {
+			if((this.categoricalColumns[j][row >>> 6] & (1L << row)) != 0) {
+				categoricalAttributes.setAttribute(j, true);
+			}
+		}
+		return SimpleRecord.fromParts(numericalAttributes, categoricalAttributes, new Date(this.dates[row]));
+	}
+
+	public List<Record> toRecords() {
+		List<Record> res = new ArrayList<Record>(this.size);
+		for(int i = 0; i < this.size; i++) {
+			res.add(this.getRecord(i));
+		}
+		return res;
+	}
+
+	/**
+	 * Sum of a numerical attribute over every record in the batch
+	 * @param attributeIdx
+	 * @return
+	 */
+	public long sumNumericalAttribute(int attributeIdx) {
+		int[] column = this.numericalColumns[attributeIdx];
+		long sum = 0;
+		for(int i = 0; i < this.size; i++) {
+			sum += column[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the records that have all of the attributes in the
+	 * filter (see {@link CategoricalAttributes#containsAll(CategoricalAttributes)}),
+	 * as a bitmap (record i is bit i%64 of word i/64). The columns of
+	 * the attributes in the filter are ANDed a word (64 records) at a time.
+	 * @param filter
+	 * @return
+	 */
+	public long[] matchingRecords(CategoricalAttributes filter) {
+		if(filter.numberOfAttributes() != this.numberOfCategoricalAttributes) {
+			throw new RuntimeException("Error - Trying to AND two Categorical"
+					+ "Attributes with Different Numbers of Attributes!");
+		}
+		int numberOfWords = (this.size + 63) >>> 6;
+		long[] res = new long[numberOfWords];
+		Arrays.fill(res, -1L);
+		if((this.size & 63) != 0) {
+			res[numberOfWords - 1] = -1L >>> (64 - (this.size & 63));
+		}
+		for(int j = filter.nextSetAttribute(0); j >= 0; j = filter.nextSetAttribute(j+1)) {
+			long[] column = this.categoricalColumns[j];
+			for(int w = 0; w < numberOfWords; w++) {
+				res[w] &= column[w];
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Number of records that have all of the attributes in the filter
+	 * @param filter
+	 * @return
+	 */
+	public int countMatchingRecords(CategoricalAttributes filter) {
+		int count = 0;
+		for(long word : this.matchingRecords(filter)) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the numerical attributes of the record into b,
+	 * 4 bytes each (big-endian)
+	 * @param row
+	 * @param b
+	 * @param offset
+	 */
+	public void writeNumericalAttributes(int row, byte[] b, int offset) {
+		this.checkRow(row);
+		for(int j = 0; j < this.numberOfNumericalAttributes; j++) {
+			int v = this.numericalColumns[j][row];
+			b[offset++] = (byte) (v >>> 24);
+			b[offset++] = (byte) (v >>> 16);
+			b[offset++] = (byte) (v >>> 8);
+			b[offset++] = (byte) v;
+		}
+	}
+
+	/**
+	 * ORs the categorical attributes of the record into a bitmap laid out
+	 * as in {@link CategoricalAttributes#writeTo(EncodingBuffer)}
+	 * (attribute j is bit j%8 of byte j/8)
+	 * @param row
+	 * @param bitmap
+	 * @param offset
+	 */
+	public void orCategoricalAttributesInto(int row, byte[] bitmap, int offset) {
+		this.checkRow(row);
+		int word = row >>> 6;
+		long mask = 1L << row;
+		for(int j = 0; j < this.numberOfCategoricalAttributes; j++) {
+			if((this.categoricalColumns[j][word] & mask) != 0) {
+				bitmap[offset + (j >>> 3)] |= (byte) (1 << (j & 7));
+			}
+		}
+	}
+
+	/**
+	 * Writes the canonical leaf encoding of the record, identical to
+	 * {@link Record#writeLeafEncoding(EncodingBuffer)} of the record
+	 * @param row
+	 * @param out
+	 */
+	public void writeLeafEncoding(int row, EncodingBuffer out) {
+		this.checkRow(row);
+		if(this.typedRecords[row] != null) {
+			this.typedRecords[row].writeLeafEncoding(out);
+			return;
+		}
+		// same layout as Record.writeLeafHeader
+		out.writeByte(Record.LEAF_ENCODING_VERSION);
+		out.writeByte(BverifySerialization.Record.Type.SIMPLE_RECORD.getNumber());
+		out.writeLong(this.dates[row]);
+		out.writeInt(this.numberOfNumericalAttributes);
+		int offset = out.reserve(4 * this.numberOfNumericalAttributes);
+		this.writeNumericalAttributes(row, out.array(), offset);
+		out.writeInt(this.numberOfCategoricalAttributes);
+		offset = out.reserve((this.numberOfCategoricalAttributes + 7) / 8);
+		this.orCategoricalAttributesInto(row, out.array(), offset);
+	}
+
+	private void checkRow(int row) {
+		if(row < 0 || row >= this.size) {
+			throw new IndexOutOfBoundsException("Record: "+row);
+		}
+	}
+
+}
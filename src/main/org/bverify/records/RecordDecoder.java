@@ -0,0 +1,32 @@
+package org.bverify.records;
+
+import java.util.Date;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Constructs a record of a single type from the parts of an
+ * already parsed serialized record (see {@link Record#parseRecord(byte[])}).
+ * Decoders are registered by record type in the {@link RecordTypeRegistry}.
+ *
+ */
+@FunctionalInterface
+public interface RecordDecoder {
+
+	/**
+	 * Creates the record. The decoder takes ownership of the attributes.
+	 * @param numericalAttributes
+	 * @param categoricalAttributes
+	 * @param dateCreated
+	 * @param data - the serialized type specific data of the record
+	 * 			(the change or transfer message for the built in types,
+	 * 			the other data for application defined types), null if
+	 * 			the message does not contain it
+	 * @return
+	 * @throws InvalidProtocolBufferException - if the data is missing or malformed
+	 */
+	public Record decode(NumericalAttributes numericalAttributes, CategoricalAttributes categoricalAttributes,
+			Date dateCreated, ByteString data) throws InvalidProtocolBufferException;
+
+}
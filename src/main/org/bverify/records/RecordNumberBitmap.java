@@ -0,0 +1,269 @@
+package org.bverify.records;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of record numbers stored in a Roaring-style compressed bitmap,
+ * in the same way as {@link CompressedCategoricalAttributes}: the record
+ * numbers are split into chunks of 2^16 and each chunk with at least one
+ * record is stored either as a sorted array of the records (2 bytes each)
+ * or as a bitmap of the whole chunk, whichever is smaller. Memory grows
+ * with the number of records in the set, not with the size of the log.
+ *
+ * Records are appended in order, so record numbers are added in
+ * increasing order and the containers are only ever added at the end.
+ *
+ */
+public class RecordNumberBitmap {
+
+	// record numbers per chunk = 2^CHUNK_BITS
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	// containers sorted by key (record number >>> CHUNK_BITS),
+	// containers are never empty
+	private int[] keys;
+	private BitmapContainer[] containers;
+	private int numberOfContainers;
+	private int cardinality;
+
+	public RecordNumberBitmap() {
+		this.keys = new int[1];
+		this.containers = new BitmapContainer[1];
+		this.numberOfContainers = 0;
+		this.cardinality = 0;
+	}
+
+	public RecordNumberBitmap(RecordNumberBitmap copy) {
+		this.keys = Arrays.copyOf(copy.keys, Math.max(1, copy.numberOfContainers));
+		this.containers = new BitmapContainer[this.keys.length];
+		for(int i = 0; i < copy.numberOfContainers; i++) {
+			this.containers[i] = copy.containers[i].copy();
+		}
+		this.numberOfContainers = copy.numberOfContainers;
+		this.cardinality = copy.cardinality;
+	}
+
+	/**
+	 * Returns the set of record numbers [0, numberOfRecords - 1]
+	 * @param numberOfRecords
+	 * @return
+	 */
+	public static RecordNumberBitmap allRecords(int numberOfRecords) {
+		RecordNumberBitmap res = new RecordNumberBitmap();
+		for(int recordNumber = 0; recordNumber < numberOfRecords; recordNumber++) {
+			res.add(recordNumber);
+		}
+		return res;
+	}
+
+	/**
+	 * Add the record number, which must be at least as large
+	 * as every record number already in the set
+	 * @param recordNumber
+	 */
+	public void add(int recordNumber) {
+		if(recordNumber < 0) {
+			throw new IndexOutOfBoundsException("Record number: "+recordNumber);
+		}
+		int key = recordNumber >>> CHUNK_BITS;
+		int last = this.numberOfContainers - 1;
+		if(last >= 0 && this.keys[last] > key) {
+			throw new RuntimeException("Error - record numbers must be added in increasing order");
+		}
+		if(last < 0 || this.keys[last] != key) {
+			last = this.appendContainer(key, new BitmapContainer(CHUNK_SIZE));
+		}
+		BitmapContainer container = this.containers[last];
+		int before = container.cardinality;
+		container.add(recordNumber & CHUNK_MASK);
+		this.cardinality += container.cardinality - before;
+	}
+
+	public boolean contains(int recordNumber) {
+		if(recordNumber < 0) {
+			return false;
+		}
+		int idx = this.findContainer(recordNumber >>> CHUNK_BITS);
+		return idx >= 0 && this.containers[idx].contains(recordNumber & CHUNK_MASK);
+	}
+
+	/**
+	 * The number of records in the set
+	 * @return
+	 */
+	public int cardinality() {
+		return this.cardinality;
+	}
+
+	public boolean isEmpty() {
+		return this.cardinality == 0;
+	}
+
+	/**
+	 * Returns the first record number in the set starting from
+	 * (and including) fromRecordNumber, or -1 if there is none
+	 * @param fromRecordNumber
+	 * @return
+	 */
+	public int nextRecordNumber(int fromRecordNumber) {
+		if(fromRecordNumber < 0) {
+			throw new IndexOutOfBoundsException("Record number: "+fromRecordNumber);
+		}
+		int key = fromRecordNumber >>> CHUNK_BITS;
+		int idx = this.findContainer(key);
+		if(idx >= 0) {
+			int next = this.containers[idx].nextSet(fromRecordNumber & CHUNK_MASK);
+			if(next >= 0) {
+				return (key << CHUNK_BITS) | next;
+			}
+			idx++;
+		}else {
+			idx = -idx - 1;
+		}
+		if(idx < this.numberOfContainers) {
+			return (this.keys[idx] << CHUNK_BITS) | this.containers[idx].nextSet(0);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the record numbers in the set that are at most
+	 * lastRecordNumber, in increasing order
+	 * @param lastRecordNumber
+	 * @return
+	 */
+	public List<Integer> toList(int lastRecordNumber) {
+		List<Integer> res = new ArrayList<Integer>();
+		if(lastRecordNumber < 0) {
+			return res;
+		}
+		for(int i = this.nextRecordNumber(0); i >= 0 && i <= lastRecordNumber;
+				i = i == Integer.MAX_VALUE ? -1 : this.nextRecordNumber(i+1)) {
+			res.add(i);
+		}
+		return res;
+	}
+
+	public List<Integer> toList() {
+		return this.toList(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a new set of the records in both this and the
+	 * other. Does NOT mutate this.
+	 * @param other
+	 * @return
+	 */
+	public RecordNumberBitmap and(RecordNumberBitmap other) {
+		RecordNumberBitmap res = new RecordNumberBitmap();
+		int i = 0;
+		int j = 0;
+		while(i < this.numberOfContainers && j < other.numberOfContainers) {
+			if(this.keys[i] < other.keys[j]) {
+				i++;
+			}else if(this.keys[i] > other.keys[j]) {
+				j++;
+			}else {
+				BitmapContainer container = this.containers[i].and(other.containers[j]);
+				if(container != null) {
+					res.appendContainer(this.keys[i], container);
+					res.cardinality += container.cardinality;
+				}
+				i++;
+				j++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * The number of records in both this and the other.
+	 * Does not allocate.
+	 * @param other
+	 * @return
+	 */
+	public int andCardinality(RecordNumberBitmap other) {
+		int res = 0;
+		int i = 0;
+		int j = 0;
+		while(i < this.numberOfContainers && j < other.numberOfContainers) {
+			if(this.keys[i] < other.keys[j]) {
+				i++;
+			}else if(this.keys[i] > other.keys[j]) {
+				j++;
+			}else {
+				res += this.containers[i].andCardinality(other.containers[j]);
+				i++;
+				j++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Approximate size in bytes of the compressed containers
+	 * @return
+	 */
+	public int getSizeInBytes() {
+		int res = 0;
+		for(int i = 0; i < this.numberOfContainers; i++) {
+			res += 4 + this.containers[i].payloadSize();
+		}
+		return res;
+	}
+
+	/**
+	 * Binary search for the container with the key
+	 * @return the index of the container, or (-(insertion point) - 1)
+	 */
+	private int findContainer(int key) {
+		return Arrays.binarySearch(this.keys, 0, this.numberOfContainers, key);
+	}
+
+	private int appendContainer(int key, BitmapContainer container) {
+		if(this.numberOfContainers == this.keys.length) {
+			this.keys = Arrays.copyOf(this.keys, 2 * this.keys.length);
+			this.containers = Arrays.copyOf(this.containers, 2 * this.containers.length);
+		}
+		this.keys[this.numberOfContainers] = key;
+		this.containers[this.numberOfContainers] = container;
+		return this.numberOfContainers++;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = 1;
+		for(int i = 0; i < this.numberOfContainers; i++) {
+			h = 31 * h + this.keys[i];
+			h = 31 * h + this.containers[i].hashCode();
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object arg0) {
+		if(arg0 instanceof RecordNumberBitmap) {
+			RecordNumberBitmap arg0cast = (RecordNumberBitmap) arg0;
+			if(this.numberOfContainers != arg0cast.numberOfContainers) {
+				return false;
+			}
+			for(int i = 0; i < this.numberOfContainers; i++) {
+				if(this.keys[i] != arg0cast.keys[i] || !this.containers[i].equals(arg0cast.containers[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "<RecordNumberBitmap: "+this.cardinality+" records>";
+	}
+
+}
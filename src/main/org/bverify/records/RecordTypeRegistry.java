@@ -0,0 +1,162 @@
+package org.bverify.records;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bverify.serialization.BverifySerialization;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Maps record types to the {@link RecordDecoder} that constructs them,
+ * so that {@link Record#parseRecord(byte[])} dispatches on the type
+ * with a single array lookup.
+ *
+ * The built in types are registered under their
+ * {@link BverifySerialization.Record.Type} number. Applications can
+ * register their own record types, numbered from
+ * {@link #FIRST_APPLICATION_TYPE} up to {@link #MAX_TYPE}, without
+ * changing the serialization format: they are serialized with record
+ * type OTHER and their registered type and data in the otherType and
+ * otherData fields (see {@link #serializeRecord(int, NumericalAttributes,
+ * CategoricalAttributes, Date, byte[])}). The type is also the record
+ * type byte of the canonical leaf encoding (see
+ * {@link Record#writeLeafHeader(EncodingBuffer, int, Date, NumericalAttributes,
+ * CategoricalAttributes)}) so it must fit in a single byte.
+ *
+ * Lookups are lock free; registration copies the table and should
+ * happen once at startup, before records of the type are parsed.
+ *
+ */
+public final class RecordTypeRegistry {
+
+	public static final int FIRST_APPLICATION_TYPE = 16;
+	public static final int MAX_TYPE = 255;
+
+	private static volatile RecordDecoder[] decoders;
+
+	static {
+		RecordDecoder[] builtIn = new RecordDecoder[MAX_TYPE + 1];
+		builtIn[BverifySerialization.Record.Type.SIMPLE_RECORD_VALUE] =
+				(na, ca, date, data) -> SimpleRecord.fromParts(na, ca, date);
+		builtIn[BverifySerialization.Record.Type.DEPOSIT_VALUE] =
+				(na, ca, date, data) -> Deposit.fromParts(na, ca, date, parseChange(data));
+		builtIn[BverifySerialization.Record.Type.WITHDRAWAL_VALUE] =
+				(na, ca, date, data) -> Withdrawal.fromParts(na, ca, date, parseChange(data));
+		builtIn[BverifySerialization.Record.Type.TRANSFER_VALUE] =
+				(na, ca, date, data) -> Transfer.fromParts(na, ca, date, parseTransfer(data));
+		decoders = builtIn;
+	}
+
+	private RecordTypeRegistry() {
+	}
+
+	/**
+	 * Register the decoder for an application defined record type
+	 * @param type - in [FIRST_APPLICATION_TYPE, MAX_TYPE]
+	 * @param decoder
+	 * @throws IllegalArgumentException - if the type is out of range or
+	 * 			already has a decoder registered
+	 */
+	public static synchronized void register(int type, RecordDecoder decoder) {
+		checkApplicationType(type);
+		if(decoder == null) {
+			throw new NullPointerException();
+		}
+		if(decoders[type] != null) {
+			throw new IllegalArgumentException("Record type "+type+" is already registered");
+		}
+		RecordDecoder[] updated = Arrays.copyOf(decoders, decoders.length);
+		updated[type] = decoder;
+		decoders = updated;
+	}
+
+	/**
+	 * Remove the decoder of an application defined record type,
+	 * records of the type can no longer be parsed
+	 * @param type
+	 */
+	public static synchronized void unregister(int type) {
+		checkApplicationType(type);
+		RecordDecoder[] updated = Arrays.copyOf(decoders, decoders.length);
+		updated[type] = null;
+		decoders = updated;
+	}
+
+	/**
+	 * Returns the decoder registered for the type or null if there is none
+	 * @param type
+	 * @return
+	 */
+	public static RecordDecoder getDecoder(int type) {
+		if(type < 0 || type > MAX_TYPE) {
+			return null;
+		}
+		return decoders[type];
+	}
+
+	/**
+	 * Construct a record of the given type from its parsed parts
+	 * @throws InvalidProtocolBufferException - if no decoder is registered for the type
+	 */
+	public static Record decode(int type, NumericalAttributes numericalAttributes,
+			CategoricalAttributes categoricalAttributes, Date dateCreated, ByteString data)
+					throws InvalidProtocolBufferException {
+		RecordDecoder decoder = getDecoder(type);
+		if(decoder == null) {
+			throw new InvalidProtocolBufferException("Unknown record type: "+type);
+		}
+		return decoder.decode(numericalAttributes, categoricalAttributes, dateCreated, data);
+	}
+
+	/**
+	 * Serialize a record of an application defined type, the result
+	 * can be parsed with {@link Record#parseRecord(byte[])} once the
+	 * type is registered
+	 * @param type
+	 * @param numericalAttributes
+	 * @param categoricalAttributes
+	 * @param dateCreated
+	 * @param data - the type specific data passed to the decoder
+	 * @return
+	 */
+	public static byte[] serializeRecord(int type, NumericalAttributes numericalAttributes,
+			CategoricalAttributes categoricalAttributes, Date dateCreated, byte[] data) {
+		checkApplicationType(type);
+		BverifySerialization.Record.Builder builder = BverifySerialization.Record.newBuilder();
+		builder.setCategoricalAttributes(categoricalAttributes.serializeCategoricalAttributes());
+		builder.setNumericalAttributes(numericalAttributes.serializeNumericalAttributes());
+		builder.setDateCreated(dateCreated.getTime());
+		builder.setRecordType(BverifySerialization.Record.Type.OTHER);
+		builder.setOtherType(type);
+		if(data != null) {
+			builder.setOtherData(ByteString.copyFrom(data));
+		}
+		return builder.build().toByteArray();
+	}
+
+	private static void checkApplicationType(int type) {
+		if(type < FIRST_APPLICATION_TYPE || type > MAX_TYPE) {
+			throw new IllegalArgumentException("Application record types must be in ["+
+					FIRST_APPLICATION_TYPE+", "+MAX_TYPE+"], got "+type);
+		}
+	}
+
+	private static BverifySerialization.Change parseChange(ByteString data)
+			throws InvalidProtocolBufferException {
+		if(data == null) {
+			throw new InvalidProtocolBufferException("Message missing record data");
+		}
+		return BverifySerialization.Change.parseFrom(data);
+	}
+
+	private static BverifySerialization.Transfer parseTransfer(ByteString data)
+			throws InvalidProtocolBufferException {
+		if(data == null) {
+			throw new InvalidProtocolBufferException("Message missing record data");
+		}
+		return BverifySerialization.Transfer.parseFrom(data);
+	}
+
+}
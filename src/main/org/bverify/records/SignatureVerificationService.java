@@ -0,0 +1,205 @@
+package org.bverify.records;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.bverify.accounts.Account;
+import org.bverify.accounts.PrecomputedKeyCache;
+import org.bverify.util.LruCache;
+import org.bverify.util.Sha256;
+
+/**
+ * Verifies the signatures of batches of records across a pool of worker
+ * threads (see {@link Account#checkSignature(byte[], byte[])}, which is 
+ * thread safe). The signed message of a record is written once, into
+ * a reusable per-thread buffer, for all of its signatures.
+ *
+ * Signatures that have been verified are remembered in a size-bounded cache
+ * (least recently used entries are evicted) so re-validating the same record -
+ * e.g. when auditing or checking proofs - does not verify the signatures again.
+ * An entry is the hash of the signed portion, the signer's key fingerprint
+ * and the signature. Only valid signatures are cached.
+ *
+ * Optionally the service verifies the signatures of hot accounts with
+ * precomputed tables for their keys (see {@link PrecomputedKeyCache}).
+ *
+ * The service is thread safe. Records that are not signed
+ * (i.e. do not extend {@link RecordBase}) have no signatures to verify.
+ *
+ */
+public class SignatureVerificationService {
+
+	public static final int DEFAULT_CACHE_CAPACITY = 1 << 16;
+
+	private final ForkJoinPool pool;
+	private final LruCache<ByteBuffer, Boolean> verified;
+	// null if signatures are verified with the provider
+	private final PrecomputedKeyCache precomputedKeys;
+
+	private long hits;
+	private long misses;
+
+	public SignatureVerificationService() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CACHE_CAPACITY);
+	}
+
+	/**
+	 * @param threads - number of worker threads
+	 * @param cacheCapacity - maximum number of verified signatures to remember
+	 */
+	public SignatureVerificationService(int threads, int cacheCapacity) {
+		this(threads, cacheCapacity, null);
+	}
+	
+	/**
+	 * @param threads - number of worker threads
+	 * @param cacheCapacity - maximum number of verified signatures to remember
+	 * @param precomputedKeys - tables for the keys of hot accounts, 
+	 * 			null to verify all signatures with the provider
+	 */
+	public SignatureVerificationService(int threads, int cacheCapacity, PrecomputedKeyCache precomputedKeys) {
+		this.verified = new LruCache<ByteBuffer, Boolean>(cacheCapacity);
+		this.pool = new ForkJoinPool(threads);
+		this.precomputedKeys = precomputedKeys;
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Verifies the signatures of the records in parallel
+	 * @param records
+	 * @return for each record, true if it has all of its signatures
+	 * 			and they are valid (see {@link RecordBase#isSigned()})
+	 */
+	public boolean[] verifySignatures(List<? extends Record> records) {
+		boolean[] results = new boolean[records.size()];
+		this.forEach(records.size(), i -> results[i] = this.verifySignatures(records.get(i)));
+		return results;
+	}
+
+	/**
+	 * Validates the records in parallel
+	 * @param records
+	 * @return for each record, true if it is valid (see {@link Record#isValid()})
+	 */
+	public boolean[] validate(List<? extends Record> records) {
+		boolean[] results = new boolean[records.size()];
+		this.forEach(records.size(), i -> results[i] = this.validate(records.get(i)));
+		return results;
+	}
+
+	/**
+	 * Validates the record, in the calling thread
+	 * @param record
+	 * @return
+	 */
+	public boolean validate(Record record) {
+		if(record instanceof RecordBase) {
+			return ((RecordBase) record).isWellFormed() && this.verifySignatures(record);
+		}
+		return record.isValid();
+	}
+
+	/**
+	 * Verifies the signatures of the record, in the calling thread
+	 * @param record
+	 * @return
+	 */
+	public boolean verifySignatures(Record record) {
+		if(!(record instanceof RecordBase)) {
+			return true;
+		}
+		RecordBase signedRecord = (RecordBase) record;
+		Account[] signers = signedRecord.getSigners();
+		byte[][] signatures = signedRecord.getSignatures();
+		for(byte[] signature : signatures) {
+			if(signature == null) {
+				return false;
+			}
+		}
+		EncodingBuffer message = RecordBase.signedMessageBuffer();
+		signedRecord.writeSignedPortion(message);
+		MessageDigest digest = Sha256.digest();
+		digest.update(message.array(), 0, message.size());
+		byte[] messageHash = digest.digest();
+		for(int i = 0; i < signers.length; i++) {
+			digest.update(messageHash);
+			digest.update(signers[i].getFingerprint());
+			digest.update(signatures[i]);
+			ByteBuffer entry = ByteBuffer.wrap(digest.digest());
+			synchronized(this) {
+				if(this.verified.get(entry) != null) {
+					this.hits++;
+					continue;
+				}
+				this.misses++;
+			}
+			if(!this.verify(signers[i], message, signatures[i])) {
+				return false;
+			}
+			synchronized(this) {
+				this.verified.put(entry, Boolean.TRUE);
+			}
+		}
+		return true;
+	}
+
+	private boolean verify(Account signer, EncodingBuffer message, byte[] signature) {
+		try {
+			if(this.precomputedKeys != null) {
+				return this.precomputedKeys.checkSignature(signer, message.array(), 0, message.size(), signature);
+			}
+			return signer.checkSignature(message.array(), 0, message.size(), signature);
+		} catch (InvalidKeyException | SignatureException e) {
+			// malformed signature
+			return false;
+		}
+	}
+
+	private void forEach(int n, IntConsumer action) {
+		try {
+			this.pool.submit(() -> IntStream.range(0, n).parallel().forEach(action)).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error - could not verify signatures");
+		}
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized int cacheSize() {
+		return this.verified.size();
+	}
+
+	/**
+	 * @return the tables used for hot accounts, or null
+	 */
+	public PrecomputedKeyCache getPrecomputedKeys() {
+		return this.precomputedKeys;
+	}
+
+	public synchronized void clearCache() {
+		this.verified.clear();
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+
+}
@@ -95,6 +95,22 @@ public class SimpleRecord implements Record {
 	// creates an empty record
 	public SimpleRecord() {
 	}
+	
+	/**
+	 * Creates a record that takes ownership of the given attributes 
+	 * (no copies are made) - used when parsing 
+	 * @param na
+	 * @param ca
+	 * @param date
+	 * @return
+	 */
+	static SimpleRecord fromParts(NumericalAttributes na, CategoricalAttributes ca, Date date) {
+		SimpleRecord sr = new SimpleRecord();
+		sr.numericalAttributes = na;
+		sr.categoricalAttributes = ca;
+		sr.datecreated = date;
+		return sr;
+	}
 
 	@Override
 	public CategoricalAttributes getCategoricalAttributes() {
@@ -164,6 +180,12 @@ public class SimpleRecord implements Record {
 		return builder.build().toByteArray();
 	}
 
+	@Override
+	public void writeLeafEncoding(EncodingBuffer out) {
+		Record.writeLeafHeader(out, BverifySerialization.Record.Type.SIMPLE_RECORD, 
+				this.datecreated, this.numericalAttributes, this.categoricalAttributes);
+	}
+
 	@Override
 	public void parseFrom(byte[] data) throws InvalidProtocolBufferException {
 		BverifySerialization.Record message = BverifySerialization.Record.parseFrom(data);
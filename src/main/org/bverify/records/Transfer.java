@@ -1,19 +1,15 @@
 package org.bverify.records;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
 import java.util.Arrays;
+import java.util.Date;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.bverify.accounts.Account;
 import org.bverify.serialization.BverifySerialization;
 
-import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
@@ -40,7 +36,9 @@ public class Transfer extends RecordBase  {
 	
 	public void signSender() {
 		try {
-			this.senderSignature = this.sender.sign(this.getSignedPortion());
+			EncodingBuffer message = RecordBase.signedMessageBuffer();
+			this.writeSignedPortion(message);
+			this.senderSignature = this.sender.sign(message.array(), 0, message.size());
 		} catch (InvalidKeyException | NoSuchProviderException
 				| NoSuchAlgorithmException | SignatureException e) {
 			e.printStackTrace();
@@ -49,7 +47,9 @@ public class Transfer extends RecordBase  {
 	
 	public void signRecipient() {
 		try {
-			this.recepientSignature = this.recepient.sign(this.getSignedPortion());
+			EncodingBuffer message = RecordBase.signedMessageBuffer();
+			this.writeSignedPortion(message);
+			this.recepientSignature = this.recepient.sign(message.array(), 0, message.size());
 		} catch (InvalidKeyException | NoSuchProviderException
 				| NoSuchAlgorithmException | SignatureException e) {
 			e.printStackTrace();
@@ -59,10 +59,11 @@ public class Transfer extends RecordBase  {
 	@Override
 	public boolean isSigned() {
 		if(this.recepientSignature != null && this.senderSignature != null) {
-			byte[] message = this.getSignedPortion();
+			EncodingBuffer message = RecordBase.signedMessageBuffer();
+			this.writeSignedPortion(message);
 			try {
-				return this.sender.checkSignature(message, this.senderSignature) 
-						&& this.recepient.checkSignature(message, recepientSignature);
+				return this.sender.checkSignature(message.array(), 0, message.size(), this.senderSignature) 
+						&& this.recepient.checkSignature(message.array(), 0, message.size(), recepientSignature);
 			} catch (InvalidKeyException e) {
 				e.printStackTrace();
 				return false;
@@ -77,10 +78,10 @@ public class Transfer extends RecordBase  {
 	}
 
 	@Override
-	public boolean isValid() {
+	public boolean isWellFormed() {
 		if( this.getTotalAmount() > 0 
 				&& this.getNetChange()
-				== 0 && this.isSigned()) {
+				== 0) {
 			return true;
 		}
 		else {
@@ -88,6 +89,16 @@ public class Transfer extends RecordBase  {
 		}
 	}
 	
+	@Override
+	public Account[] getSigners() {
+		return new Account[] {this.sender, this.recepient};
+	}
+	
+	@Override
+	public byte[][] getSignatures() {
+		return new byte[][] {this.senderSignature, this.recepientSignature};
+	}
+	
 	public Account getSender() {
 		return this.sender;
 	}
@@ -96,34 +107,15 @@ public class Transfer extends RecordBase  {
 		return this.recepient;
 	}
 	
+	/**
+	 * Signed message: see {@link RecordBase#writeSignedMessage(EncodingBuffer, 
+	 * BverifySerialization.Record.Type, long, long)}, with the sender 
+	 * id followed by the recepient id
+	 */
 	@Override
-	public byte[] getSignedPortion(){
-		byte[] recordType = "TRANSFER".getBytes();
-		byte[] goodType = this.goodType.getBytes();
-		byte[] senderid = Longs.toByteArray(this.sender.getId());
-		byte[] accountid = Longs.toByteArray(this.recepient.getId());
-		byte[] amount = Ints.toByteArray(this.getTotalAmount());
-		byte[] date = this.dateCreated.toString().getBytes();
-
-		ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-		byte[] messageBytes;
-		try {
-			outputStream.write( recordType );
-			outputStream.write( goodType );
-			outputStream.write( senderid );
-			outputStream.write( accountid );
-			outputStream.write( amount );
-			outputStream.write( date );
-			messageBytes = outputStream.toByteArray( );	
-
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			messageBytes = "ERROR!!!!".getBytes();
-		}
-
-		return messageBytes;
-		
+	public void writeSignedPortion(EncodingBuffer out) {
+		this.writeSignedMessage(out, BverifySerialization.Record.Type.TRANSFER, 
+				this.sender.getId(), this.recepient.getId());
 	}
 	
 	@Override
@@ -181,22 +173,82 @@ public class Transfer extends RecordBase  {
 	}
 
 
+	/**
+	 * Serializes the transfer. The amount and the date
+	 * are stored in the record fields, the accounts (public information only) 
+	 * and signatures in the transfer message.
+	 */
 	@Override
 	public byte[] serializeRecord() {
+		BverifySerialization.Transfer.Builder transfer = BverifySerialization.Transfer.newBuilder();
+		transfer.setGoodType(this.goodType);
+		transfer.setSender(this.sender.serializeAccount());
+		transfer.setRecepient(this.recepient.serializeAccount());
+		if(this.senderSignature != null) {
+			transfer.setSenderSignature(ByteString.copyFrom(this.senderSignature));
+		}
+		if(this.recepientSignature != null) {
+			transfer.setRecepientSignature(ByteString.copyFrom(this.recepientSignature));
+		}
 		BverifySerialization.Record.Builder builder = BverifySerialization.Record.newBuilder();
 		builder.setCategoricalAttributes(this.categoricalAttributes.serializeCategoricalAttributes());
 		builder.setNumericalAttributes(this.numericalAttributes.serializeNumericalAttributes());
 		builder.setDateCreated(this.dateCreated.getTime());
 		builder.setRecordType(BverifySerialization.Record.Type.TRANSFER);
-		builder.setOtherData(ByteString.copyFrom(SerializationUtils.serialize(this)));
+		builder.setTransfer(transfer);
 		return builder.build().toByteArray();
 	}
 
+	/**
+	 * Creates a transfer from its parsed parts (see {@link Record#parseRecord(byte[])}),
+	 * takes ownership of the attributes (no copies are made)
+	 * @param na
+	 * @param ca
+	 * @param date
+	 * @param transfer
+	 * @return
+	 * @throws InvalidProtocolBufferException
+	 */
+	static Transfer fromParts(NumericalAttributes na, CategoricalAttributes ca, Date date,
+			BverifySerialization.Transfer transfer) throws InvalidProtocolBufferException {
+		Transfer tf = new Transfer();
+		tf.numericalAttributes = na;
+		tf.categoricalAttributes = ca;
+		tf.dateCreated = date;
+		tf.goodType = transfer.getGoodType();
+		tf.sender = Account.parseAccount(transfer.getSender());
+		tf.recepient = Account.parseAccount(transfer.getRecepient());
+		tf.senderSignature = transfer.hasSenderSignature() ? 
+				transfer.getSenderSignature().toByteArray() : null;
+		tf.recepientSignature = transfer.hasRecepientSignature() ? 
+				transfer.getRecepientSignature().toByteArray() : null;
+		return tf;
+	}
+
+	/**
+	 * Canonical leaf encoding of a transfer:
+	 * 		header | good type | sender | recepient | 
+	 * 		sender signature | recepient signature
+	 * (signatures are length prefixed, length -1 if not signed)
+	 */
+	@Override
+	public void writeLeafEncoding(EncodingBuffer out) {
+		Record.writeLeafHeader(out, BverifySerialization.Record.Type.TRANSFER, 
+				this.dateCreated, this.numericalAttributes, this.categoricalAttributes);
+		out.writeString(this.goodType);
+		RecordBase.writeAccount(out, this.sender);
+		RecordBase.writeAccount(out, this.recepient);
+		out.writeLengthPrefixedBytes(this.senderSignature);
+		out.writeLengthPrefixedBytes(this.recepientSignature);
+	}
 
 	@Override
 	public void parseFrom(byte[] data) throws InvalidProtocolBufferException {
-		BverifySerialization.Record message = BverifySerialization.Record.parseFrom(data);
-		Transfer tf = SerializationUtils.deserialize(message.getOtherData().toByteArray());
+		Record record = Record.parseRecord(data);
+		if(!(record instanceof Transfer)) {
+			throw new InvalidProtocolBufferException("Record is not a transfer");
+		}
+		Transfer tf = (Transfer) record;
 		this.categoricalAttributes = tf.categoricalAttributes;
 		this.dateCreated = tf.dateCreated;
 		this.sender = tf.sender;
@@ -1,16 +1,11 @@
 package org.bverify.records;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Arrays;
+import java.util.Date;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.bverify.accounts.Account;
 import org.bverify.serialization.BverifySerialization;
 
-import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
-import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 public class Withdrawal extends Change {
@@ -25,12 +20,11 @@ public class Withdrawal extends Change {
 	}
 
 	@Override
-	public boolean isValid() {
+	public boolean isWellFormed() {
 		// later can be made richer and possible depend on 
 		// current state, etc. 
 		if( this.getNetChange()< 0 &&
-				this.getTotalAmount()> 0 && 
-				this.isSigned()) {
+				this.getTotalAmount()> 0) {
 			return true;
 		}
 		else {
@@ -38,36 +32,15 @@ public class Withdrawal extends Change {
 		}
 	}
 
-	// TODO: Needs to be redone with Google protobuf
-	// this will implement the serialization and deserialization 
-	// for me!
+	/**
+	 * Signed message: see {@link RecordBase#writeSignedMessage(EncodingBuffer, 
+	 * BverifySerialization.Record.Type, long, long)}, with the employee 
+	 * id followed by the recepient id
+	 */
 	@Override
-	public byte[] getSignedPortion(){
-		byte[] recordType = "WITHDRAWAL".getBytes();
-		byte[] goodType = this.goodType.getBytes();
-		byte[] employeeid = Longs.toByteArray(this.employee.getId());
-		byte[] accountid = Longs.toByteArray(this.recepient.getId());
-		byte[] amount = Ints.toByteArray(this.getTotalAmount());
-		byte[] date = this.dateCreated.toString().getBytes();
-
-		ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-		byte[] messageBytes;
-		try {
-			outputStream.write( recordType );
-			outputStream.write( goodType );
-			outputStream.write( employeeid );
-			outputStream.write( accountid );
-			outputStream.write( amount );
-			outputStream.write( date );
-			messageBytes = outputStream.toByteArray( );	
-
-		} catch (IOException e) {
-			e.printStackTrace();
-			messageBytes = "ERROR!!!!".getBytes();
-		}
-
-		return messageBytes;
-		
+	public void writeSignedPortion(EncodingBuffer out) {
+		this.writeSignedMessage(out, BverifySerialization.Record.Type.WITHDRAWAL, 
+				this.employee.getId(), this.recepient.getId());
 	}
 	
 	@Override
@@ -109,20 +82,37 @@ public class Withdrawal extends Change {
 
 	@Override
 	public byte[] serializeRecord() {
-		BverifySerialization.Record.Builder builder = BverifySerialization.Record.newBuilder();
-		builder.setCategoricalAttributes(this.categoricalAttributes.serializeCategoricalAttributes());
-		builder.setNumericalAttributes(this.numericalAttributes.serializeNumericalAttributes());
-		builder.setDateCreated(this.dateCreated.getTime());
-		builder.setRecordType(BverifySerialization.Record.Type.WITHDRAWAL);
-		builder.setOtherData(ByteString.copyFrom(SerializationUtils.serialize(this)));
-		return builder.build().toByteArray();
+		return this.serializeChangeRecord(BverifySerialization.Record.Type.WITHDRAWAL);
+	}
+
+	/**
+	 * Creates a withdrawal from its parsed parts (see {@link Record#parseRecord(byte[])})
+	 * @param na
+	 * @param ca
+	 * @param date
+	 * @param change
+	 * @return
+	 * @throws InvalidProtocolBufferException
+	 */
+	static Withdrawal fromParts(NumericalAttributes na, CategoricalAttributes ca, Date date,
+			BverifySerialization.Change change) throws InvalidProtocolBufferException {
+		Withdrawal wd = new Withdrawal();
+		wd.setParts(na, ca, date, change);
+		return wd;
 	}
 
+	@Override
+	public void writeLeafEncoding(EncodingBuffer out) {
+		this.writeChangeLeafEncoding(out, BverifySerialization.Record.Type.WITHDRAWAL);
+	}
 
 	@Override
 	public void parseFrom(byte[] data) throws InvalidProtocolBufferException {
-		BverifySerialization.Record message = BverifySerialization.Record.parseFrom(data);
-		Withdrawal wd = SerializationUtils.deserialize(message.getOtherData().toByteArray());
+		Record record = Record.parseRecord(data);
+		if(!(record instanceof Withdrawal)) {
+			throw new InvalidProtocolBufferException("Record is not a withdrawal");
+		}
+		Withdrawal wd = (Withdrawal) record;
 		this.categoricalAttributes = wd.categoricalAttributes;
 		this.dateCreated = wd.dateCreated;
 		this.employee = wd.employee;
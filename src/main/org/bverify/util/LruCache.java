@@ -0,0 +1,44 @@
+package org.bverify.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded map that evicts the least recently used entry
+ * when an entry is added to a full map. Reading an entry
+ * ({@link #get(Object)}) makes it the most recently used.
+ *
+ * The cache is NOT thread safe - even reads modify it - so the
+ * caches in this project synchronize around every access.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int capacity;
+
+	/**
+	 * @param capacity - maximum number of entries
+	 */
+	public LruCache(int capacity) {
+		// access ordered, so iteration order is least to most recently used
+		super(16, 0.75f, true);
+		if(capacity < 1) {
+			throw new RuntimeException("Error - cache capacity must be positive");
+		}
+		this.capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+		return this.size() > this.capacity;
+	}
+
+}
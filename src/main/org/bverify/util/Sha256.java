@@ -0,0 +1,46 @@
+package org.bverify.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digests that are reused by each thread instead of
+ * looking up the provider for every hash. This is the hash of
+ * signatures and account fingerprints - the hashes of the history
+ * tree are configurable (see {@link org.bverify.aggregators.HashAlgorithm}).
+ *
+ */
+public final class Sha256 {
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			throw new RuntimeException("No SHA256 Provider");
+		}
+	});
+
+	private Sha256() {
+	}
+
+	/**
+	 * The digest of the current thread, which must be
+	 * completed before the digest is requested again.
+	 * It must never be shared with other threads.
+	 * @return
+	 */
+	public static MessageDigest digest() {
+		return DIGESTS.get();
+	}
+
+	/**
+	 * The SHA-256 hash of data
+	 * @param data
+	 * @return
+	 */
+	public static byte[] hash(byte[] data) {
+		return DIGESTS.get().digest(data);
+	}
+
+}
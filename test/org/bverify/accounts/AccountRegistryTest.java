@@ -0,0 +1,101 @@
+package org.bverify.accounts;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.bverify.records.Deposit;
+import org.bverify.records.Record;
+import org.bverify.records.Transfer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+public class AccountRegistryTest {
+
+	@Test
+	public void testResolveInternsAccounts() {
+		AccountRegistry registry = new AccountRegistry();
+		Account alice = new Account("Alice", 101);
+		try {
+			Account first = registry.resolve("Alice", 101, alice.getEncodedPubKey());
+			Account second = registry.resolve("Alice", 101, alice.getEncodedPubKey().clone());
+			Assert.assertSame(first, second);
+			Assert.assertEquals(alice, first);
+			Assert.assertFalse(first.canSign());
+			Assert.assertEquals(1, registry.size());
+
+			// an account is only shared with the same id, name and key
+			Account otherId = registry.resolve("Alice", 102, alice.getEncodedPubKey());
+			Assert.assertNotEquals(alice, otherId);
+			Account impostor = new Account("Alice", 101);
+			Account impostorResolved = registry.resolve("Alice", 101, impostor.getEncodedPubKey());
+			Assert.assertNotEquals(alice, impostorResolved);
+			Assert.assertEquals(alice, registry.resolve("Alice", 101, alice.getEncodedPubKey()));
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testResolvedAccountsAreBounded() {
+		AccountRegistry registry = new AccountRegistry(2);
+		try {
+			for(int i = 0; i < 5; i++) {
+				Account account = new Account("Account "+i, 400 + i);
+				registry.resolve(account.getName(), account.getId(), account.getEncodedPubKey());
+			}
+			Assert.assertEquals(2, registry.size());
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testRecordsShareAccounts() {
+		Account alice = new Account("Alice", 201);
+		Account bob = new Account("Bob", 202);
+		Transfer tf = new Transfer("CORN", 10, alice, bob);
+		tf.signSender();
+		tf.signRecipient();
+		Deposit dep = new Deposit("CORN", 10, bob, alice);
+		try {
+			Transfer tfFromBytes = (Transfer) Record.parseRecord(tf.serializeRecord());
+			Deposit depFromBytes = (Deposit) Record.parseRecord(dep.serializeRecord());
+			Assert.assertEquals(alice, tfFromBytes.getSender());
+			Assert.assertSame(tfFromBytes.getSender(), depFromBytes.getEmployeeAccount());
+			Assert.assertSame(tfFromBytes.getRecepient(), depFromBytes.getRecepientAccount());
+			Assert.assertFalse(tfFromBytes.getSender().canSign());
+			Assert.assertTrue(tfFromBytes.isValid());
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDeserializedAccountsAreInterned() {
+		Account dave = new Account("Dave", 401);
+		Deposit dep = new Deposit("CORN", 10, dave, dave);
+		try {
+			Deposit depFromBytes = (Deposit) Record.parseRecord(dep.serializeRecord());
+			Account parsed = depFromBytes.getRecepientAccount();
+			Account deserialized = SerializationUtils.deserialize(SerializationUtils.serialize(parsed));
+			Assert.assertSame(parsed, deserialized);
+			Deposit depCopy = SerializationUtils.deserialize(SerializationUtils.serialize(depFromBytes));
+			Assert.assertSame(parsed, depCopy.getEmployeeAccount());
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testSerializedAccountCanSign() {
+		Account carol = new Account("Carol", 301);
+		Account carolCopy = SerializationUtils.deserialize(SerializationUtils.serialize(carol));
+		Assert.assertEquals(carol, carolCopy);
+		Assert.assertTrue(carolCopy.canSign());
+	}
+
+}
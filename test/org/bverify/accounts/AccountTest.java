@@ -0,0 +1,129 @@
+package org.bverify.accounts;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AccountTest {
+
+	@Test
+	public void testConcurrentSigningAndVerification() throws Exception {
+		Account alice = new Account("Alice", 1);
+		Account bob = new Account("Bob", 2);
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for(int t = 0; t < threads; t++) {
+			byte[] message = ("message "+t).getBytes();
+			tasks.add(() -> {
+				for(int i = 0; i < 25; i++) {
+					byte[] signature = alice.sign(message);
+					if(!alice.checkSignature(message, signature) ||
+							bob.checkSignature(message, signature)) {
+						return false;
+					}
+				}
+				return true;
+			});
+		}
+		for(Future<Boolean> result : executor.invokeAll(tasks)) {
+			Assert.assertTrue(result.get());
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void testPrecomputedVerificationMatchesProvider() throws Exception {
+		Account alice = new Account("Alice", 1);
+		Account bob = new Account("Bob", 2);
+		Account carol = new Account("Carol", 3);
+		byte[] message = "transfer 10 CORN".getBytes();
+		byte[] otherMessage = "transfer 11 CORN".getBytes();
+		byte[] signature = alice.sign(message);
+		byte[] tampered = signature.clone();
+		tampered[tampered.length - 1] ^= 1;
+		byte[] notDer = new byte[] {1, 2, 3};
+		
+		Account[] accounts = new Account[] {alice, bob, carol};
+		byte[][] messages = new byte[][] {message, otherMessage};
+		byte[][] signatures = new byte[][] {signature, tampered, notDer};
+		String[] expected = new String[accounts.length * messages.length * signatures.length];
+		int idx = 0;
+		for(Account account : accounts) {
+			for(byte[] m : messages) {
+				for(byte[] sig : signatures) {
+					expected[idx++] = AccountTest.checkSignature(account, m, sig);
+				}
+			}
+		}
+		Assert.assertEquals("true", expected[0]);
+		
+		// capacity smaller than the number of accounts, so tables get evicted
+		PrecomputedKeyCache precomputedKeys = new PrecomputedKeyCache(2, 1);
+		for(int round = 0; round < 2; round++) {
+			idx = 0;
+			for(Account account : accounts) {
+				for(byte[] m : messages) {
+					for(byte[] sig : signatures) {
+						Assert.assertEquals(expected[idx++], 
+								AccountTest.checkSignature(precomputedKeys, account, m, sig));
+					}
+				}
+			}
+		}
+		Assert.assertEquals(2, precomputedKeys.size());
+		for(int i = 0; i < 10; i++) {
+			Assert.assertTrue(precomputedKeys.checkSignature(alice, message, alice.sign(message)));
+		}
+	}
+	
+	@Test
+	public void testPrecomputedTablesOnlyForHotAccounts() throws Exception {
+		byte[] message = "transfer 10 CORN".getBytes();
+		PrecomputedKeyCache precomputedKeys = new PrecomputedKeyCache(2, 3);
+		Account hot = new Account("Hot", 1);
+		byte[] hotSignature = hot.sign(message);
+		for(int i = 0; i < 2; i++) {
+			Assert.assertTrue(precomputedKeys.checkSignature(hot, message, hotSignature));
+		}
+		Assert.assertEquals(0, precomputedKeys.size());
+		// built on the third use
+		Assert.assertTrue(precomputedKeys.checkSignature(hot, message, hotSignature));
+		Assert.assertEquals(1, precomputedKeys.size());
+		
+		// accounts that are each seen once use the provider and do not evict the hot account's table
+		for(int i = 0; i < 10; i++) {
+			Account cold = new Account("Cold "+i, 100 + i);
+			Assert.assertTrue(precomputedKeys.checkSignature(cold, message, cold.sign(message)));
+		}
+		Assert.assertEquals(1, precomputedKeys.size());
+		long hits = precomputedKeys.getHits();
+		Assert.assertTrue(precomputedKeys.checkSignature(hot, message, hotSignature));
+		Assert.assertEquals(hits + 1, precomputedKeys.getHits());
+	}
+
+	private static String checkSignature(PrecomputedKeyCache precomputedKeys, Account account, 
+			byte[] message, byte[] signature) {
+		try {
+			return String.valueOf(precomputedKeys.checkSignature(account, message, signature));
+		} catch (GeneralSecurityException e) {
+			return e.getClass().getName();
+		}
+	}
+
+	private static String checkSignature(Account account, byte[] message, byte[] signature) {
+		try {
+			return String.valueOf(account.checkSignature(message, signature));
+		} catch (GeneralSecurityException e) {
+			return e.getClass().getName();
+		}
+	}
+
+}
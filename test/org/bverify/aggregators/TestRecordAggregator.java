@@ -1,18 +1,24 @@
 package org.bverify.aggregators;
 
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.security.NoSuchAlgorithmException;
 
 import org.apache.commons.lang3.SerializationUtils;
 import org.bverify.accounts.Account;
 import org.bverify.records.CategoricalAttributes;
 import org.bverify.records.Deposit;
+import org.bverify.records.EncodingBuffer;
 import org.bverify.records.NumericalAttributes;
+import org.bverify.records.Record;
 import org.bverify.records.SimpleRecord;
 import org.bverify.records.Transfer;
 import org.bverify.records.Withdrawal;
+import org.catena.common.SimpleWallet;
 import org.junit.Assert;
 
+import com.google.common.primitives.Ints;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import junit.framework.Test;
@@ -57,6 +63,12 @@ public class TestRecordAggregator extends TestCase {
     }
 	
 	
+	private static byte[] leafEncoding(Record record) {
+		EncodingBuffer buffer = new EncodingBuffer();
+		record.writeLeafEncoding(buffer);
+		return buffer.toByteArray();
+	}
+	
 	public void testEmptyAgg() {
 		CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
 		RecordAggregation recordagg = aggregator.emptyAgg();
@@ -74,7 +86,7 @@ public class TestRecordAggregator extends TestCase {
 		RecordAggregation recordagg = aggregator.aggVal(deposit);
 		
 		md.reset();
-		md.update(SerializationUtils.serialize(deposit));
+		md.update(leafEncoding(deposit));
 		byte[] correctHash = md.digest();
 		
 		Assert.assertArrayEquals(correctHash, recordagg.getHash());
@@ -89,7 +101,7 @@ public class TestRecordAggregator extends TestCase {
 		RecordAggregation recordagg = aggregator.aggVal(withdrawal);
 		
 		md.reset();
-		md.update(SerializationUtils.serialize(withdrawal));
+		md.update(leafEncoding(withdrawal));
 		byte[] correctHash = md.digest();
 		
 		System.out.println(withdrawal);
@@ -106,7 +118,7 @@ public class TestRecordAggregator extends TestCase {
 		RecordAggregation recordagg = aggregator.aggVal(transfer);
 		
 		md.reset();
-		md.update(SerializationUtils.serialize(transfer));
+		md.update(leafEncoding(transfer));
 		byte[] correctHash = md.digest();
 		
 		Assert.assertArrayEquals(correctHash, recordagg.getHash());
@@ -138,13 +150,13 @@ public class TestRecordAggregator extends TestCase {
 
 		
 		md.reset();
-		md.update(SerializationUtils.serialize(dep1));
+		md.update(leafEncoding(dep1));
 		byte[] hash1 = md.digest();
-		md.update(SerializationUtils.serialize(dep2));
+		md.update(leafEncoding(dep2));
 		byte[] hash2 = md.digest();
-		md.update(SerializationUtils.serialize(dep3));
+		md.update(leafEncoding(dep3));
 		byte[] hash3 = md.digest();
-		md.update(SerializationUtils.serialize(dep4));
+		md.update(leafEncoding(dep4));
 		byte[] hash4 = md.digest();
 		NumericalAttributes numl = new NumericalAttributes();
 		numl.setAttribute(1, 75);
@@ -325,6 +337,29 @@ CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
 		
 	}
 	
+	public void testRecordAggregationOrWide() {
+		NumericalAttributes n = new NumericalAttributes(3);
+		CategoricalAttributes c1 = new CategoricalAttributes(200);
+		CategoricalAttributes c2 = new CategoricalAttributes(200);
+		c1.setAttribute(3, true);
+		c1.setAttribute(130, true);
+		c2.setAttribute(70, true);
+		c2.setAttribute(199, true);
+		RecordAggregation agg = new RecordAggregation(new RecordAggregation(new SimpleRecord(c1, n)),
+				new RecordAggregation(new SimpleRecord(c2, n)));
+		CategoricalAttributes both = c1.or(c2);
+		Assert.assertEquals(both, agg.getCategoricalAttributes());
+		Assert.assertTrue(agg.hasCategoricalAttributes(c1));
+		Assert.assertTrue(agg.hasCategoricalAttributes(c2));
+		Assert.assertTrue(agg.matchesCategoricalAttributes(both));
+		Assert.assertFalse(agg.matchesCategoricalAttributes(c2));
+		
+		CategoricalAttributes filter = new CategoricalAttributes(200);
+		filter.setAttribute(199, true);
+		filter.setAttribute(198, true);
+		Assert.assertFalse(agg.hasCategoricalAttributes(filter));
+	}
+	
 	public void testRecordAggregationWithNulls() {
 		SimpleRecord sr = new SimpleRecord(100, 100);
 		RecordAggregation agg = new RecordAggregation(sr);
@@ -341,6 +376,83 @@ CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
 		
 	}
 	
+	public void testCalculateHashMatchesDefinition() {
+		NumericalAttributes num = new NumericalAttributes(3);
+		num.setAttribute(0, 17);
+		num.setAttribute(2, -5);
+		CategoricalAttributes cat = new CategoricalAttributes(20);
+		cat.setAttribute(3, true);
+		cat.setAttribute(12, true);
+		byte[] left = new byte[32];
+		byte[] right = new byte[32];
+		left[0] = 1;
+		right[31] = 2;
+		
+		md.reset();
+		for(int i = 0; i < num.numberOfAttributes(); i++) {
+			md.update(Ints.toByteArray(num.getAttribute(i)));
+		}
+		md.update(cat.toByteArray());
+		md.update(left);
+		md.update(right);
+		byte[] correctHash = md.digest();
+		
+		Assert.assertArrayEquals(correctHash, RecordAggregation.calculateHash(num, cat, left, right));
+		// engine is reused - must give the same answer again
+		Assert.assertArrayEquals(correctHash, RecordAggregation.calculateHash(num, cat, left, right));
+	}
+	
+	public void testHashingEnginePerThread() throws InterruptedException {
+		SimpleRecord sr = new SimpleRecord(10, 10);
+		byte[] correctHash = new RecordAggregation(sr).getHash();
+		byte[][] results = new byte[4][];
+		Thread[] threads = new Thread[results.length];
+		for(int i = 0; i < threads.length; i++) {
+			final int idx = i;
+			threads[i] = new Thread(() -> {
+				for(int j = 0; j < 1000; j++) {
+					results[idx] = new RecordAggregation(sr).getHash();
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		for(byte[] res : results) {
+			Assert.assertArrayEquals(correctHash, res);
+		}
+	}
+	
+	public void testRecordAggregationReadOnlyAccessors() {
+		SimpleRecord sr1 = new SimpleRecord(7, 13);
+		SimpleRecord sr2 = new SimpleRecord(7, 13);
+		RecordAggregation agg = new RecordAggregation(new RecordAggregation(sr1),
+				new RecordAggregation(sr2));
+		NumericalAttributes num = agg.getNumericalAttributes();
+		CategoricalAttributes cat = agg.getCategoricalAttributes();
+		
+		Assert.assertEquals(7, agg.numberOfNumericalAttributes());
+		Assert.assertEquals(13, agg.numberOfCategoricalAttributes());
+		for(int i = 0; i < 7; i++) {
+			Assert.assertEquals(num.getAttribute(i), agg.getNumericalAttribute(i));
+			Assert.assertEquals(sr1.getNumericalAttributes().getAttribute(i) + 
+					sr2.getNumericalAttributes().getAttribute(i), agg.getNumericalAttribute(i));
+		}
+		for(int i = 0; i < 13; i++) {
+			Assert.assertEquals(cat.getAttribute(i), agg.getCategoricalAttribute(i));
+		}
+		
+		// copies are safe to mutate
+		num.setAttribute(0, num.getAttribute(0) + 1);
+		cat.setAttribute(0, !cat.getAttribute(0));
+		Assert.assertNotEquals(num.getAttribute(0), agg.getNumericalAttribute(0));
+		Assert.assertNotEquals(cat.getAttribute(0), agg.getCategoricalAttribute(0));
+		byte[] hash = agg.getHash();
+		hash[0] = (byte) (hash[0] + 1);
+		Assert.assertFalse(Arrays.equals(hash, agg.getHash()));
+	}
+	
 	public void testRecordAggregationSerialization() {
 		SimpleRecord sr = new SimpleRecord(100, 100);
 		RecordAggregation agg = new RecordAggregation(sr);
@@ -355,5 +467,97 @@ CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
 		}
 	}
 	
+	public void testParseAggAndValFromByteString() {
+		CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
+		Account alice = new Account("Alice", 1);
+		Account bob = new Account("Bob", 2);
+		Transfer tf = new Transfer("CORN", 10, alice, bob);
+		tf.signSender();
+		tf.signRecipient();
+		Record[] records = {new SimpleRecord(5, 17), tf, new Deposit("WHEAT", 3, alice, bob)};
+		for(Record r : records) {
+			RecordAggregation agg = aggregator.aggVal(r);
+			Assert.assertEquals(agg, aggregator.parseAgg(aggregator.serializeAgg(agg)));
+			Assert.assertEquals(r, aggregator.parseVal(aggregator.serializeVal(r)));
+			
+			// parsing should also work when the value is a slice of a larger buffer
+			ByteString padding = ByteString.copyFrom(new byte[] {1, 2, 3});
+			ByteString slice = padding.concat(aggregator.serializeAgg(agg)).concat(padding)
+					.substring(3, 3 + aggregator.serializeAgg(agg).size());
+			Assert.assertEquals(agg, aggregator.parseAgg(slice));
+			slice = padding.concat(aggregator.serializeVal(r)).concat(padding)
+					.substring(3, 3 + aggregator.serializeVal(r).size());
+			Assert.assertEquals(r, aggregator.parseVal(slice));
+		}
+	}
+	
+	public void testHashAlgorithms() {
+		SimpleRecord sr1 = new SimpleRecord(3, 9);
+		SimpleRecord sr2 = new SimpleRecord(3, 9);
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			// commitments must fit in an OP_RETURN output
+			Assert.assertTrue(hashAlgorithm.hashSize() <= SimpleWallet.OP_RETURN_MAX_SIZE);
+			
+			CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator(hashAlgorithm);
+			Assert.assertEquals(hashAlgorithm, ((CryptographicRecordAggregator) 
+					new CryptographicRecordAggregator().setup(aggregator.getConfig())).getHashAlgorithm());
+			
+			RecordAggregation left = aggregator.aggVal(sr1);
+			RecordAggregation right = aggregator.aggVal(sr2);
+			RecordAggregation agg = aggregator.aggChildren(left, right);
+			Assert.assertEquals(hashAlgorithm, agg.getHashAlgorithm());
+			Assert.assertEquals(hashAlgorithm.hashSize(), agg.getHash().length);
+			Assert.assertArrayEquals(RecordAggregation.calculateHash(hashAlgorithm, 
+					agg.getNumericalAttributes(), agg.getCategoricalAttributes(), 
+					left.getHash(), right.getHash()), agg.getHash());
+			Assert.assertArrayEquals(new byte[hashAlgorithm.hashSize()], aggregator.emptyAgg().getHash());
+			Assert.assertEquals(agg, aggregator.parseAgg(aggregator.serializeAgg(agg)));
+			
+			// deferred hashing gives the same hash
+			Assert.assertEquals(agg, new CryptographicRecordAggregator(hashAlgorithm, true)
+					.aggChildren(left, right));
+			
+			if(hashAlgorithm != HashAlgorithm.DEFAULT) {
+				Assert.assertFalse(Arrays.equals(new RecordAggregation(sr1).getHash(), left.getHash()));
+				try {
+					new RecordAggregation(new RecordAggregation(sr1), right);
+					Assert.fail();
+				}catch(RuntimeException e) {
+				}
+			}
+		}
+		
+		// truncated variants are a prefix of the full hash
+		RecordAggregation full = new RecordAggregation(sr1, HashAlgorithm.SHA_256);
+		RecordAggregation truncated = new RecordAggregation(sr1, HashAlgorithm.SHA_256_TRUNCATED_160);
+		Assert.assertArrayEquals(Arrays.copyOf(full.getHash(), 20), truncated.getHash());
+	}
+	
+	public void testHashAccessors() {
+		SimpleRecord sr1 = new SimpleRecord(3, 9);
+		SimpleRecord sr2 = new SimpleRecord(3, 9);
+		RecordAggregation agg = new RecordAggregation(new RecordAggregation(sr1), new RecordAggregation(sr2));
+		byte[] hash = agg.getHash();
+		EncodingBuffer out = new EncodingBuffer();
+		agg.writeHashTo(out);
+		Assert.assertArrayEquals(hash, out.toByteArray());
+		
+		// the public accessor returns a copy
+		hash[0] ^= 1;
+		Assert.assertFalse(Arrays.equals(hash, agg.getHash()));
+		
+		// a pending hash must be calculated before it is written
+		RecordAggregation deferred = RecordAggregation.deferred(new RecordAggregation(sr1), 
+				new RecordAggregation(sr2));
+		try {
+			deferred.writeHashTo(new EncodingBuffer());
+			Assert.fail();
+		}catch(RuntimeException e) {
+		}
+		deferred.ensureHashed();
+		out.reset();
+		deferred.writeHashTo(out);
+		Assert.assertArrayEquals(agg.getHash(), out.toByteArray());
+	}
 	
 }
@@ -1,10 +1,18 @@
 package org.bverify.aggregators;
 
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import org.bverify.accounts.Account;
 import org.bverify.records.Withdrawal;
 import org.bverify.records.Transfer;
 import org.bverify.records.Deposit;
+import org.bverify.records.CategoricalAttributes;
 import org.bverify.records.Record;
+import org.bverify.records.RecordBatch;
+import org.bverify.records.SimpleRecord;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -105,4 +113,176 @@ public class TestRecordHistoryTree {
 		Assert.assertEquals(20, prunedHisttree.aggV(1).getNetAmount());
 		Assert.assertEquals(10, prunedHisttree.aggV(0).getNetAmount());
 	}
+	
+	@Test
+	public void testDeferredHashingMatchesEager() throws ProofError {
+		HistoryTree<RecordAggregation, Record> eager = new HistoryTree<RecordAggregation, Record>(
+				new CryptographicRecordAggregator(), new ArrayStore<RecordAggregation,Record>());
+		HistoryTree<RecordAggregation, Record> deferred = new HistoryTree<RecordAggregation, Record>(
+				new CryptographicRecordAggregator(true), new ArrayStore<RecordAggregation,Record>());
+		for(int i = 0; i < 37; i++) {
+			Record r = new SimpleRecord(3, 5);
+			eager.append(r);
+			deferred.append(r);
+			// the root hash is only calculated when asked for
+			Assert.assertTrue(deferred.agg().isHashPending() || i == 0);
+			if(i % 10 == 0) {
+				Assert.assertArrayEquals(eager.agg().getHash(), deferred.agg().getHash());
+				Assert.assertFalse(deferred.agg().isHashPending());
+			}
+		}
+		for(int v = 0; v <= eager.version(); v++) {
+			Assert.assertEquals(eager.aggV(v), deferred.aggV(v));
+		}
+		
+		// pruned copies and serialization see the calculated hashes
+		HistoryTree<RecordAggregation, Record> pruned = deferred.makePruned(
+				new ArrayStore<RecordAggregation,Record>());
+		pruned.copyV(deferred, 7, true);
+		Assert.assertEquals(eager.agg(), pruned.agg());
+		Assert.assertEquals(eager.leaf(7).getAgg(), pruned.leaf(7).getAgg());
+	}
+	
+	@Test
+	public void testBuilderMatchesSequentialAppends() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		for(int numberOfRecords : new int[] {1, 2, 7, 1024, 2500}) {
+			List<? extends Record> records = SimpleRecord.simpleRecordFacotry(numberOfRecords, 
+					numberOfRecords, 4, 6, new Date(1000));
+			HistoryTree<RecordAggregation, Record> sequential = new HistoryTree<RecordAggregation, Record>(
+					new CryptographicRecordAggregator(), new ArrayStore<RecordAggregation,Record>());
+			for(Record r : records) {
+				sequential.append(r);
+			}
+			HistoryTree<RecordAggregation, Record> bulk = RecordHistoryTreeBuilder.build(records, 
+					new ArrayStore<RecordAggregation,Record>(), pool);
+			
+			Assert.assertEquals(sequential.version(), bulk.version());
+			Assert.assertFalse(bulk.agg().isHashPending());
+			Assert.assertEquals(sequential.agg(), bulk.agg());
+			Assert.assertArrayEquals(sequential.serializeTree(), bulk.serializeTree());
+			
+			// the tree can still be appended to 
+			Record r = new SimpleRecord(4, 6);
+			sequential.append(r);
+			bulk.append(r);
+			Assert.assertEquals(sequential.agg(), bulk.agg());
+		}
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testPrecomputedLeavesAreNotShared() throws InterruptedException {
+		List<? extends Record> records = SimpleRecord.simpleRecordFacotry(5, 3, 4, 6, new Date(1000));
+		RecordAggregation[] leaves = new RecordAggregation[records.size()];
+		for(int i = 0; i < leaves.length; i++) {
+			leaves[i] = new RecordAggregation(records.get(i));
+		}
+		CryptographicRecordAggregator aggregator = new CryptographicRecordAggregator();
+		aggregator.precomputeLeaves(records, leaves);
+		try {
+			// copies of the aggregator and other threads do not use them
+			CryptographicRecordAggregator copy = (CryptographicRecordAggregator) aggregator.clone();
+			Assert.assertNotSame(aggregator, copy);
+			Assert.assertNotSame(leaves[0], copy.aggVal(records.get(0)));
+			RecordAggregation[] fromOtherThread = new RecordAggregation[1];
+			Thread other = new Thread(() -> fromOtherThread[0] = aggregator.aggVal(records.get(0)));
+			other.start();
+			other.join();
+			Assert.assertNotSame(leaves[0], fromOtherThread[0]);
+			Assert.assertEquals(leaves[0], fromOtherThread[0]);
+			
+			// so the appending thread still gets every precomputed leaf
+			for(int i = 0; i < leaves.length; i++) {
+				Assert.assertSame(leaves[i], aggregator.aggVal(records.get(i)));
+			}
+		} finally {
+			aggregator.clearPrecomputedLeaves();
+		}
+		Assert.assertNotSame(leaves[0], aggregator.aggVal(records.get(0)));
+	}
+	
+	@Test
+	public void testRecordBatch() {
+		List<? extends Record> records = SimpleRecord.simpleRecordFacotry(17, 300, 4, 6, new Date(1000));
+		RecordBatch batch = RecordBatch.fromRecords(records);
+		Assert.assertEquals(records.size(), batch.size());
+		Assert.assertEquals(records, batch.toRecords());
+		
+		long sum = 0;
+		for(int i = 0; i < records.size(); i++) {
+			Assert.assertEquals(new RecordAggregation(records.get(i)), 
+					new RecordAggregation(batch, i, HashAlgorithm.DEFAULT));
+			sum += records.get(i).getNumericalAttributes().getAttribute(2);
+		}
+		Assert.assertEquals(sum, batch.sumNumericalAttribute(2));
+		
+		CategoricalAttributes filter = new CategoricalAttributes(6);
+		filter.setAttribute(1, true);
+		filter.setAttribute(3, true);
+		long[] matching = batch.matchingRecords(filter);
+		int count = 0;
+		for(int i = 0; i < records.size(); i++) {
+			boolean matches = records.get(i).getCategoricalAttributes().containsAll(filter);
+			Assert.assertEquals(matches, (matching[i >>> 6] & (1L << i)) != 0);
+			count += matches ? 1 : 0;
+		}
+		Assert.assertEquals(count, batch.countMatchingRecords(filter));
+		Assert.assertEquals(records.size(), batch.countMatchingRecords(new CategoricalAttributes(6)));
+		
+		HistoryTree<RecordAggregation, Record> sequential = new HistoryTree<RecordAggregation, Record>(
+				new CryptographicRecordAggregator(), new ArrayStore<RecordAggregation,Record>());
+		for(Record r : records) {
+			sequential.append(r);
+		}
+		ForkJoinPool pool = new ForkJoinPool(2);
+		HistoryTree<RecordAggregation, Record> fromBatch = RecordHistoryTreeBuilder.build(batch, 
+				new ArrayStore<RecordAggregation,Record>(), new CryptographicRecordAggregator(true), pool);
+		pool.shutdown();
+		Assert.assertArrayEquals(sequential.serializeTree(), fromBatch.serializeTree());
+		
+		// signed records keep their own fields
+		Deposit deposit = new Deposit(goodCorn, 10, alice, bob);
+		deposit.signEmployee();
+		Withdrawal withdrawal = new Withdrawal(goodCorn, 5, bob, alice);
+		RecordBatch typed = RecordBatch.fromRecords(Arrays.asList(deposit, withdrawal));
+		Assert.assertSame(deposit, typed.getRecord(0));
+		Assert.assertEquals(new RecordAggregation(withdrawal), 
+				new RecordAggregation(typed, 1, HashAlgorithm.DEFAULT));
+		Assert.assertEquals(deposit.getTotalAmount() + withdrawal.getTotalAmount(),
+				typed.sumNumericalAttribute(0));
+	}
+	
+	@Test
+	public void testLeafCache() {
+		HistoryTree<RecordAggregation, Record> histtree = new HistoryTree<RecordAggregation, Record>(
+				new CryptographicRecordAggregator(), new ArrayStore<RecordAggregation,Record>());
+		for(int i = 0; i < 20; i++) {
+			histtree.append(new SimpleRecord(2, 4));
+		}
+		RecordLeafCache cache = new RecordLeafCache(histtree, 5);
+		for(int i = 0; i < 20; i++) {
+			RecordLeafCache.Leaf leaf = cache.getLeaf(i);
+			Assert.assertEquals(histtree.leaf(i).getVal(), leaf.getVal());
+			Assert.assertEquals(histtree.leaf(i).getAgg(), leaf.getAgg());
+		}
+		// one lookup per leaf
+		Assert.assertEquals(20, cache.getMisses());
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(histtree.leaf(19).getAgg(), cache.getAgg(19));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(5, cache.size());
+		
+		// the most recently used leaves are kept
+		cache.getVal(15);
+		Assert.assertEquals(20, cache.getMisses());
+		cache.getVal(0);
+		Assert.assertEquals(21, cache.getMisses());
+		// 16 was least recently used and has been evicted, 15 was not
+		cache.getVal(15);
+		Assert.assertEquals(21, cache.getMisses());
+		cache.getVal(16);
+		Assert.assertEquals(22, cache.getMisses());
+		Assert.assertEquals(5, cache.size());
+	}
 }
@@ -1,10 +1,12 @@
 package org.bverify.bverify;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bverify.proofs.AggregationProof;
+import org.bverify.records.CategoricalAttributes;
 import org.bverify.records.Record;
 import org.bverify.records.RecordUtils;
 import org.bverify.records.Transfer;
@@ -111,6 +113,35 @@ public class BVerifyClientTest extends BVerifyClientServerTest {
 		}
 	}
 	
+	@Test
+	public void testRecordsByFilterRange() {
+		try {
+			BVerifyServerUtils bverifyserver = new BVerifyServerUtils(this.catenaServer);
+	        Semaphore semAppended = new Semaphore(0);
+	        this.createSemaphoredCatenaClient(this.txid, semAppended, null);
+			BVerifyClientUtils bverifyclient = new BVerifyClientUtils(this.catenaClient, bverifyserver);
+			bverifyserver.addRecord(deposit);		// 0 
+			bverifyserver.addRecord(withdrawal);	// 1
+			bverifyserver.addRecord(transfer);		// 2
+			//										------
+			waitForBlock();
+	        waitForStatements(1, semAppended);
+	        bverifyclient.loadStatements();
+	        bverifyclient.verifyConsistency();
+	        
+	        CategoricalAttributes filter = new CategoricalAttributes(deposit.getCategoricalAttributes());
+	        List<Record> records = bverifyclient.getAndVerifyRecordsByFilter(filter, 1, 2);
+	        for(Record record : records) {
+	        	Assert.assertTrue(record.getCategoricalAttributes().containsAll(filter));
+	        }
+	        Assert.assertEquals(records.size(), bverifyserver.queryRecordsByFilter(filter, 1, 2)
+	        		.getRecordNumbers().size());
+		}catch(InsufficientMoneyException | IOException | InterruptedException | ProofError e){
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
 	@Test
 	public void testDetectTamperedRecordProof() {
 		try {
@@ -1,15 +1,22 @@
 package org.bverify.bverify;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
 import org.bverify.proofs.AggregationProof;
+import org.bverify.proofs.CategoricalQueryProof;
 import org.bverify.proofs.ConsistencyProof;
+import org.bverify.proofs.MultiRecordProof;
+import org.bverify.proofs.ProofCache;
 import org.bverify.proofs.RecordProof;
+import org.bverify.records.CategoricalAttributes;
 import org.bverify.records.Record;
+import org.bverify.records.RecordBatch;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -106,6 +113,181 @@ public class BVerifyServerTest extends BVerifyClientServerTest {
 	}
 
 	
+	@Test
+	public void testServerMultiRecordProof() {
+		try {
+			BVerifyServerUtils bverifyserver = new BVerifyServerUtils(catenaServer);
+			Record[] records = new Record[] {deposit, deposit, transfer, deposit, deposit, withdrawal, 
+					withdrawal, deposit, transfer, transfer, transfer};
+			for(Record r : records) {
+				bverifyserver.addRecord(r);
+			}
+			int commitmentNumber = bverifyserver.getCurrentCommitmentNumber();
+			MultiRecordProof proof = bverifyserver.constructMultiRecordProof(Arrays.asList(7, 1, 5), 
+					commitmentNumber);
+			Assert.assertEquals(Arrays.asList(records[1], records[5], records[7]), proof.getRecords());
+			Assert.assertTrue(proof.checkProof(bverifyserver.getCommitment(commitmentNumber)));
+			
+			MultiRecordProof range = bverifyserver.constructMultiRecordProof(2, 6, commitmentNumber);
+			Assert.assertEquals(Arrays.asList(records).subList(2, 7), range.getRecords());
+			Assert.assertTrue(range.checkProof(bverifyserver.getCommitment(commitmentNumber)));
+			
+			try {
+				// record 9 is not committed yet
+				bverifyserver.constructMultiRecordProof(Arrays.asList(1, 9), commitmentNumber);
+				Assert.fail();
+			}catch(ProofError e) {
+			}
+		}catch(InsufficientMoneyException | ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	@Test
+	public void testServerProofCache() {
+		try {
+			BVerifyServerUtils bverifyserver = new BVerifyServerUtils(catenaServer, true, 3, 
+					HashAlgorithm.DEFAULT, new ProofCache(16, true));
+			Record[] records = new Record[] {deposit, deposit, transfer, deposit, deposit, withdrawal};
+			for(Record r : records) {
+				bverifyserver.addRecord(r);
+			}
+			int commitmentNumber = bverifyserver.getCurrentCommitmentNumber();
+			RecordProof proof = bverifyserver.constructRecordProof(4, commitmentNumber);
+			Assert.assertSame(proof, bverifyserver.constructRecordProof(4, commitmentNumber));
+			Assert.assertArrayEquals(proof.serializeProof(), 
+					bverifyserver.constructSerializedRecordProof(4, commitmentNumber));
+			Assert.assertEquals(2, bverifyserver.getProofCache().getHits());
+			
+			byte[] aggProof = bverifyserver.constructSerializedAggregationProof(commitmentNumber);
+			Assert.assertArrayEquals(aggProof, 
+					bverifyserver.constructAggregationProof(commitmentNumber).serializeProof());
+			Assert.assertEquals(3, bverifyserver.getProofCache().getHits());
+			
+			// changing a record invalidates the cached proofs
+			bverifyserver.changeRecord(4, transfer);
+			Assert.assertEquals(0, bverifyserver.getProofCache().size());
+			Assert.assertEquals(transfer, bverifyserver.constructRecordProof(4, commitmentNumber).getRecord());
+		}catch(InsufficientMoneyException | ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	@Test
+	public void testServerAttributeIndex() {
+		try {
+			BVerifyServerUtils bverifyserver = new BVerifyServerUtils(catenaServer);
+			Record[] records = new Record[] {deposit, deposit, transfer, deposit, deposit, withdrawal, 
+					withdrawal, deposit};
+			for(Record r : records) {
+				bverifyserver.addRecord(r);
+			}
+			CategoricalAttributes filter = new CategoricalAttributes(deposit.getCategoricalAttributes());
+			List<Integer> matching = new ArrayList<Integer>();
+			for(int i = 0; i < records.length; i++) {
+				if(records[i].getCategoricalAttributes().containsAll(filter)) {
+					matching.add(i);
+				}
+			}
+			// uncommitted records are included
+			Assert.assertEquals(matching, bverifyserver.findRecordsByFilter(filter));
+			Assert.assertEquals(matching.size(), bverifyserver.countRecordsByFilter(filter));
+			
+			// the proof only covers the committed records
+			CategoricalQueryProof proof = bverifyserver.queryRecordsByFilter(filter);
+			List<Integer> committedMatching = new ArrayList<Integer>();
+			for(int i : matching) {
+				if(i < bverifyserver.getTotalNumberOfCommittedRecords()) {
+					committedMatching.add(i);
+				}
+			}
+			Assert.assertEquals(committedMatching, proof.getRecordNumbers());
+			Assert.assertTrue(proof.checkProof(bverifyserver.getCurrentCommitment()));
+		}catch(InsufficientMoneyException | ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	@Test
+	public void testServerRangeQuery() {
+		try {
+			BVerifyServerUtils bverifyserver = new BVerifyServerUtils(catenaServer);
+			Record[] records = new Record[] {deposit, deposit, transfer, deposit, deposit, withdrawal, 
+					withdrawal, deposit, transfer, deposit};
+			for(Record r : records) {
+				bverifyserver.addRecord(r);
+			}
+			CategoricalAttributes filter = new CategoricalAttributes(deposit.getCategoricalAttributes());
+			int lastCommitted = bverifyserver.getTotalNumberOfCommittedRecords() - 1;
+			for(int first = 0; first <= lastCommitted; first++) {
+				for(int last = first; last <= lastCommitted; last++) {
+					List<Integer> matching = new ArrayList<Integer>();
+					for(int i = first; i <= last; i++) {
+						if(records[i].getCategoricalAttributes().containsAll(filter)) {
+							matching.add(i);
+						}
+					}
+					CategoricalQueryProof proof = bverifyserver.queryRecordsByFilter(filter, first, last);
+					Assert.assertEquals(matching, proof.getRecordNumbers());
+					Assert.assertTrue(proof.checkProof(bverifyserver.getCurrentCommitment(), first, last));
+				}
+			}
+			// uncommitted records can not be queried
+			try {
+				bverifyserver.queryRecordsByFilter(filter, 0, lastCommitted + 1);
+				Assert.fail("Range includes uncommitted records");
+			}catch(ProofError e) {
+			}
+			
+			// the records since the first commitment
+			CategoricalQueryProof sinceFirst = bverifyserver.queryRecordsByFilterSinceCommitment(filter, 0);
+			Assert.assertEquals(bverifyserver.commitmentNumberToRecordNumber(0) + 1, 
+					sinceFirst.getFirstRecordNumber());
+			Assert.assertEquals(lastCommitted, sinceFirst.getLastRecordNumber());
+			Assert.assertTrue(sinceFirst.checkProof(bverifyserver.getCurrentCommitment(), 
+					bverifyserver.commitmentNumberToRecordNumber(0) + 1, lastCommitted));
+		}catch(InsufficientMoneyException | ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	@Test
+	public void testAddRecordBatch() {
+		try {
+			List<Record> records = new ArrayList<Record>();
+			for(Record r : new Record[] {deposit, deposit, transfer, deposit, deposit, withdrawal, 
+					withdrawal, deposit, transfer, transfer, transfer}) {
+				records.add(r);
+			}
+			BVerifyServerUtils oneAtATime = new BVerifyServerUtils(catenaServer);
+			for(Record r : records) {
+				oneAtATime.addRecord(r);
+			}
+			BVerifyServerUtils batched = new BVerifyServerUtils(catenaServer);
+			batched.addRecords(RecordBatch.fromRecords(records.subList(0, 4)));
+			batched.addRecords(RecordBatch.fromRecords(records.subList(4, records.size())));
+			
+			Assert.assertEquals(oneAtATime.getTotalNumberOfRecords(), batched.getTotalNumberOfRecords());
+			Assert.assertEquals(oneAtATime.getTotalNumberOfCommittedRecords(), 
+					batched.getTotalNumberOfCommittedRecords());
+			Assert.assertEquals(3, batched.getTotalNumberOfCommitments());
+			for(int i = 0; i < batched.getTotalNumberOfCommitments(); i++) {
+				Assert.assertArrayEquals(oneAtATime.getCommitment(i), batched.getCommitment(i));
+			}
+			// single records can still be added afterwards
+			oneAtATime.addRecord(deposit);
+			batched.addRecord(deposit);
+			Assert.assertArrayEquals(oneAtATime.getCurrentCommitment(), batched.getCurrentCommitment());
+		}catch(InsufficientMoneyException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
 	@Test
 	public void testServerCommitments(){
 		try {
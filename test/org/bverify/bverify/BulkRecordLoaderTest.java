@@ -0,0 +1,161 @@
+package org.bverify.bverify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bverify.accounts.Account;
+import org.bverify.records.Deposit;
+import org.bverify.records.Record;
+import org.bverify.records.SimpleRecord;
+import org.bverify.records.Transfer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BulkRecordLoaderTest {
+
+	private static Account alice = new Account("Alice", 1);
+	private static Account bob = new Account("Bob", 2);
+
+	@Test
+	public void testLoadDelimited() throws IOException, InsufficientMoneyException {
+		List<Record> records = new ArrayList<Record>();
+		List<Record> valid = new ArrayList<Record>();
+		for(int i = 0; i < 40; i++) {
+			Record r;
+			if(i % 3 == 0) {
+				Transfer tf = new Transfer("CORN", i + 1, alice, bob);
+				tf.signSender();
+				// every 5th transfer is missing a signature
+				if(i % 5 != 0) {
+					tf.signRecipient();
+				}
+				r = tf;
+			}else {
+				Deposit dep = new Deposit("CORN", i + 1, alice, bob);
+				dep.signEmployee();
+				dep.signRecipient();
+				r = dep;
+			}
+			records.add(r);
+			if(r.isValid()) {
+				valid.add(r);
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BulkRecordLoader.writeDelimited(records, out);
+
+		BVerifyServerUtils loaded = new BVerifyServerUtils(null, false, 4);
+		// small chunks and queue so chunks are processed out of order and the queue fills
+		BulkRecordLoader loader = new BulkRecordLoader(loaded, 3, 3, 2);
+		long appended = loader.loadDelimited(new ByteArrayInputStream(out.toByteArray()));
+		loader.shutdown();
+
+		BVerifyServerUtils oneAtATime = new BVerifyServerUtils(null, false, 4);
+		for(Record r : valid) {
+			oneAtATime.addRecord(Record.parseRecord(r.serializeRecord()));
+		}
+		Assert.assertEquals(valid.size(), appended);
+		Assert.assertEquals(records.size(), loader.getRecordsRead());
+		Assert.assertEquals(records.size(), loader.getRecordsDecoded());
+		Assert.assertEquals(records.size() - valid.size(), loader.getRecordsRejected());
+		Assert.assertEquals(valid.size(), loaded.getTotalNumberOfRecords());
+		Assert.assertEquals(0, loader.getChunksInFlight());
+		Assert.assertTrue(loader.getRecordsPerSecond() > 0);
+		Assert.assertEquals(oneAtATime.getTotalNumberOfCommitments(), loaded.getTotalNumberOfCommitments());
+		for(int i = 0; i < loaded.getTotalNumberOfCommitments(); i++) {
+			Assert.assertArrayEquals(oneAtATime.getCommitment(i), loaded.getCommitment(i));
+		}
+	}
+
+	@Test
+	public void testLoadCsv() throws IOException, InsufficientMoneyException {
+		List<SimpleRecord> records = SimpleRecord.simpleRecordFacotry(5, 100, 3, 3, new Date(1000));
+		StringBuilder csv = new StringBuilder("Date,N0,N1,N2,Categorical\n");
+		for(SimpleRecord r : records) {
+			csv.append(r.dateCreated().getTime());
+			for(int i = 0; i < 3; i++) {
+				csv.append(",").append(r.getNumericalAttributes().getAttribute(i));
+			}
+			csv.append(",");
+			for(int i = r.getCategoricalAttributes().nextSetAttribute(0); i >= 0;
+					i = r.getCategoricalAttributes().nextSetAttribute(i+1)) {
+				csv.append(i).append(" ");
+			}
+			csv.append("\n");
+		}
+		BVerifyServerUtils loaded = new BVerifyServerUtils(null, false, 10);
+		BulkRecordLoader loader = new BulkRecordLoader(loaded, 2, 16, 4);
+		loader.loadCsv(new StringReader(csv.toString()), CSVFormat.DEFAULT.withFirstRecordAsHeader(),
+				BulkRecordLoader.simpleRecordParser(3, 3));
+		loader.shutdown();
+
+		BVerifyServerUtils oneAtATime = new BVerifyServerUtils(null, false, 10);
+		for(Record r : records) {
+			oneAtATime.addRecord(r);
+		}
+		Assert.assertEquals(100, loader.getRecordsAppended());
+		Assert.assertEquals(10, loaded.getTotalNumberOfCommitments());
+		Assert.assertArrayEquals(oneAtATime.getCurrentCommitment(), loaded.getCurrentCommitment());
+	}
+
+	@Test
+	public void testLoadFailsOnCorruptInput() throws InsufficientMoneyException {
+		List<SimpleRecord> records = SimpleRecord.simpleRecordFacotry(7, 20, 3, 3, new Date(1000));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			BulkRecordLoader.writeDelimited(records, out);
+		} catch (IOException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		byte[] data = out.toByteArray();
+		// cut the last record short
+		byte[] truncated = Arrays.copyOf(data, data.length - 3);
+		BVerifyServerUtils server = new BVerifyServerUtils(null, false, 5);
+		BulkRecordLoader loader = new BulkRecordLoader(server, 2, 4, 2);
+		try {
+			loader.loadDelimited(new ByteArrayInputStream(truncated));
+			Assert.fail();
+		} catch (IOException e) {
+		}
+		loader.shutdown();
+		// the complete chunks before it were appended
+		Assert.assertEquals(16, server.getTotalNumberOfRecords());
+	}
+
+	@Test(timeout = 30000)
+	public void testLoadFailsOnWorkerError() throws IOException, InsufficientMoneyException {
+		StringBuilder csv = new StringBuilder("Date,N0,Categorical\n");
+		for(int i = 0; i < 50; i++) {
+			csv.append(i).append(",").append(i).append(",0\n");
+		}
+		Function<CSVRecord, Record> parser = BulkRecordLoader.simpleRecordParser(1, 1);
+		BVerifyServerUtils server = new BVerifyServerUtils(null, false, 5);
+		BulkRecordLoader loader = new BulkRecordLoader(server, 2, 4, 2);
+		try {
+			// an Error (not an Exception) in a worker must not leave the appender waiting
+			loader.loadCsv(new StringReader(csv.toString()), CSVFormat.DEFAULT.withFirstRecordAsHeader(), 
+					row -> {
+						if(row.getRecordNumber() == 30) {
+							throw new StackOverflowError();
+						}
+						return parser.apply(row);
+					});
+			Assert.fail();
+		} catch (StackOverflowError e) {
+		}
+		loader.shutdown();
+		Assert.assertTrue(server.getTotalNumberOfRecords() < 30);
+	}
+
+}
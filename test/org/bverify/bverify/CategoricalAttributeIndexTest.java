@@ -0,0 +1,141 @@
+package org.bverify.bverify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bverify.records.CategoricalAttributes;
+import org.bverify.records.RecordNumberBitmap;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CategoricalAttributeIndexTest {
+
+	private static final int NUMBER_ATTRIBUTES = 6;
+
+	/**
+	 * Random attributes, attribute i is set with probability 1 / 2^i so
+	 * the bitmaps range from dense (bitmap containers) to sparse
+	 * (array containers)
+	 */
+	private static List<CategoricalAttributes> randomAttributes(int numberOfRecords) {
+		Random prng = new Random(8812);
+		List<CategoricalAttributes> res = new ArrayList<CategoricalAttributes>();
+		for(int r = 0; r < numberOfRecords; r++) {
+			CategoricalAttributes cat = new CategoricalAttributes(NUMBER_ATTRIBUTES);
+			for(int i = 0; i < NUMBER_ATTRIBUTES; i++) {
+				cat.setAttribute(i, prng.nextInt(1 << i) == 0);
+			}
+			res.add(cat);
+		}
+		return res;
+	}
+
+	private static List<Integer> scan(List<CategoricalAttributes> attributes, CategoricalAttributes filter,
+			int lastRecordNumber) {
+		return scan(attributes, filter, 0, lastRecordNumber);
+	}
+
+	private static List<Integer> scan(List<CategoricalAttributes> attributes, CategoricalAttributes filter,
+			int firstRecordNumber, int lastRecordNumber) {
+		List<Integer> res = new ArrayList<Integer>();
+		for(int r = firstRecordNumber; r < attributes.size() && r <= lastRecordNumber; r++) {
+			if(attributes.get(r).containsAll(filter)) {
+				res.add(r);
+			}
+		}
+		return res;
+	}
+
+	@Test
+	public void testIndexMatchesScan() {
+		// spans several chunks of record numbers
+		List<CategoricalAttributes> attributes = randomAttributes(150000);
+		CategoricalAttributeIndex index = new CategoricalAttributeIndex();
+		for(CategoricalAttributes cat : attributes) {
+			index.addRecord(cat);
+		}
+		Assert.assertEquals(attributes.size(), index.getNumberOfRecords());
+		// every combination of attributes, including the empty filter
+		for(int mask = 0; mask < (1 << NUMBER_ATTRIBUTES); mask++) {
+			CategoricalAttributes filter = new CategoricalAttributes(NUMBER_ATTRIBUTES);
+			for(int i = 0; i < NUMBER_ATTRIBUTES; i++) {
+				filter.setAttribute(i, (mask & (1 << i)) != 0);
+			}
+			List<Integer> expected = scan(attributes, filter, attributes.size());
+			Assert.assertEquals(expected, index.getMatchingRecords(filter).toList());
+			Assert.assertEquals(expected.size(), index.countMatchingRecords(filter));
+			Assert.assertEquals(scan(attributes, filter, 70000), index.getMatchingRecordNumbers(filter, 70000));
+			Assert.assertEquals(scan(attributes, filter, 65530, 131080),
+					index.getMatchingRecordNumbers(filter, 65530, 131080));
+			Assert.assertEquals(scan(attributes, filter, 140000, 200000),
+					index.getMatchingRecordNumbers(filter, 140000, 200000));
+		}
+	}
+
+	@Test
+	public void testIndexUnknownAttribute() {
+		CategoricalAttributeIndex index = new CategoricalAttributeIndex();
+		for(CategoricalAttributes cat : randomAttributes(100)) {
+			cat.setAttribute(NUMBER_ATTRIBUTES - 1, false);
+			index.addRecord(cat);
+		}
+		CategoricalAttributes filter = new CategoricalAttributes(NUMBER_ATTRIBUTES);
+		filter.setAttribute(0, true);
+		filter.setAttribute(NUMBER_ATTRIBUTES - 1, true);
+		Assert.assertEquals(0, index.countMatchingRecords(filter));
+		Assert.assertTrue(index.getMatchingRecords(filter).isEmpty());
+		Assert.assertTrue(index.getMatchingRecordNumbers(filter, 99).isEmpty());
+	}
+
+	@Test
+	public void testIndexRejectsWrongWidth() {
+		CategoricalAttributeIndex index = new CategoricalAttributeIndex();
+		for(CategoricalAttributes cat : randomAttributes(100)) {
+			index.addRecord(cat);
+		}
+		for(int width : new int[] {NUMBER_ATTRIBUTES - 2, NUMBER_ATTRIBUTES + 4}) {
+			CategoricalAttributes filter = new CategoricalAttributes(width);
+			filter.setAttribute(0, true);
+			try {
+				index.countMatchingRecords(filter);
+				Assert.fail();
+			}catch(IllegalArgumentException e) {
+			}
+			try {
+				index.getMatchingRecords(filter);
+				Assert.fail();
+			}catch(IllegalArgumentException e) {
+			}
+			try {
+				index.getMatchingRecordNumbers(filter, 10, 50);
+				Assert.fail();
+			}catch(IllegalArgumentException e) {
+			}
+			try {
+				index.addRecord(filter);
+				Assert.fail();
+			}catch(IllegalArgumentException e) {
+			}
+		}
+		Assert.assertEquals(100, index.getNumberOfRecords());
+	}
+
+	@Test
+	public void testIndexResultsAreCopies() {
+		CategoricalAttributeIndex index = new CategoricalAttributeIndex();
+		CategoricalAttributes cat = new CategoricalAttributes(NUMBER_ATTRIBUTES);
+		cat.setAttribute(1, true);
+		index.addRecord(cat);
+		index.addRecord(new CategoricalAttributes(NUMBER_ATTRIBUTES));
+		CategoricalAttributes filter = new CategoricalAttributes(NUMBER_ATTRIBUTES);
+		filter.setAttribute(1, true);
+		RecordNumberBitmap matching = index.getMatchingRecords(filter);
+		matching.add(5);
+		Assert.assertEquals(1, index.countMatchingRecords(filter));
+		index.addRecord(cat);
+		Assert.assertEquals(2, index.countMatchingRecords(filter));
+		Assert.assertTrue(index.getMatchingRecords(filter).contains(2));
+	}
+
+}
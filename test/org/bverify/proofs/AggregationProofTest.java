@@ -2,11 +2,15 @@ package org.bverify.proofs;
 
 import java.util.Arrays;
 
+import org.apache.commons.lang3.SerializationUtils;
 import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
 import org.junit.Test;
 import org.junit.Assert;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
 public class AggregationProofTest extends ProofTestBase {
 	
 	@Test 
@@ -86,4 +90,52 @@ public class AggregationProofTest extends ProofTestBase {
 		Assert.assertFalse(aggProof.checkProof(mainAgg.getHash()));
 	}
 	
+	@Test 
+	public void testAggregationProofWireFormat() {
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			CryptographicRecordAggregator cgr = new CryptographicRecordAggregator(hashAlgorithm);
+			RecordAggregation leftAgg = cgr.aggVal(deposit);
+			RecordAggregation rightAgg = cgr.aggVal(withdrawal);
+			RecordAggregation mainAgg = cgr.aggChildren(leftAgg, rightAgg);
+			
+			AggregationProof aggProof = new AggregationProof(mainAgg, leftAgg.getHash(), 
+					rightAgg.getHash(), 7);
+			byte[] asBytes = aggProof.serializeProof();
+			Assert.assertEquals(aggProof.getSizeInBytes(), asBytes.length);
+			try {
+				AggregationProof fromBytes = AggregationProof.parseProof(asBytes, hashAlgorithm);
+				Assert.assertEquals(aggProof, fromBytes);
+				Assert.assertEquals(7, fromBytes.getCommitmentNumber());
+				Assert.assertTrue(fromBytes.checkProof(mainAgg.getHash()));
+				Assert.assertEquals(aggProof, SerializationUtils.deserialize(
+						SerializationUtils.serialize(aggProof)));
+			} catch (InvalidProtocolBufferException e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+	}
+	
+	@Test
+	public void testAggregationProofRejectsOtherHashAlgorithm() {
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			CryptographicRecordAggregator cgr = new CryptographicRecordAggregator(hashAlgorithm);
+			RecordAggregation leftAgg = cgr.aggVal(deposit);
+			RecordAggregation rightAgg = cgr.aggVal(withdrawal);
+			AggregationProof aggProof = new AggregationProof(cgr.aggChildren(leftAgg, rightAgg), 
+					leftAgg.getHash(), rightAgg.getHash(), 7);
+			byte[] asBytes = aggProof.serializeProof();
+			for(HashAlgorithm expected : HashAlgorithm.values()) {
+				if(expected == hashAlgorithm) {
+					continue;
+				}
+				try {
+					AggregationProof.parseProof(asBytes, expected);
+					Assert.fail();
+				} catch (InvalidProtocolBufferException e) {
+				}
+			}
+		}
+	}
+	
 }
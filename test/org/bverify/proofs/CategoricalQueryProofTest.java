@@ -1,11 +1,17 @@
 package org.bverify.proofs;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.lang3.SerializationUtils;
 import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
+import org.bverify.aggregators.RecordHistoryTree;
+import org.bverify.aggregators.RecordLeafCache;
 import org.bverify.records.CategoricalAttributes;
 import org.bverify.records.NumericalAttributes;
 import org.bverify.records.Record;
@@ -14,6 +20,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.Assert;
 
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.ProofError;
 import edu.rice.historytree.storage.ArrayStore;
@@ -202,5 +211,238 @@ public class CategoricalQueryProofTest {
 		}
 	}
 	
+	@Test
+	public void testCategoricalProofWithLeafCache() {
+		CryptographicRecordAggregator cgr = new CryptographicRecordAggregator();
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
+		HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, store);
+		for(SimpleRecord sr : simplerecords) {
+			tree.append(sr);
+		}
+		RecordLeafCache cache = new RecordLeafCache(tree);
+		CategoricalAttributes filter = new CategoricalAttributes(10);
+		filter.setAttribute(3, true);
+		try {
+			CategoricalQueryProof uncached = new CategoricalQueryProof(filter, tree, 1, 9);
+			for(int i = 0; i < 2; i++) {
+				CategoricalQueryProof catqproof = new CategoricalQueryProof(filter, tree, cache, 1, 9);
+				Assert.assertEquals(uncached.getRecordNumbers(), catqproof.getRecordNumbers());
+				Assert.assertEquals(uncached.getRecords(), catqproof.getRecords());
+				Assert.assertTrue(catqproof.checkProof(tree.aggV(9).getHash()));
+			}
+			// one lookup per leaf, the second proof is served entirely from the cache
+			Assert.assertEquals(10, cache.getMisses());
+			Assert.assertEquals(10, cache.getHits());
+		} catch (ProofError e) {
+			Assert.fail("Proof error");
+			e.printStackTrace();
+		}
+	}
+	
+	@Test
+	public void testCategoricalProofSubtreeDescent() {
+		List<SimpleRecord> records = SimpleRecord.simpleRecordFacotry(4321, 300, 2, 8, new Date(0));
+		CryptographicRecordAggregator cgr = new CryptographicRecordAggregator();
+		HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, 
+				new ArrayStore<RecordAggregation, Record>());
+		RecordHistoryTree searchableTree = new RecordHistoryTree(cgr, new ArrayStore<RecordAggregation, Record>());
+		for(SimpleRecord sr : records) {
+			tree.append(sr);
+			searchableTree.append(sr);
+		}
+		try {
+			for(int numberOfAttributes = 0; numberOfAttributes <= 4; numberOfAttributes++) {
+				CategoricalAttributes filter = new CategoricalAttributes(8);
+				for(int j = 0; j < numberOfAttributes; j++) {
+					filter.setAttribute(2*j, true);
+				}
+				// later records must not be included in proofs of earlier commitments
+				for(int recordCommitmentNumber : new int[] {0, 130, 255, 256, 299}) {
+					CategoricalQueryProof scanned = new CategoricalQueryProof(filter, tree, 1, 
+							recordCommitmentNumber);
+					CategoricalQueryProof descended = new CategoricalQueryProof(filter, searchableTree, 1, 
+							recordCommitmentNumber);
+					Assert.assertEquals(scanned.getRecordNumbers(), descended.getRecordNumbers());
+					Assert.assertArrayEquals(scanned.serializeProof(), descended.serializeProof());
+					Assert.assertTrue(descended.checkProof(tree.aggV(recordCommitmentNumber).getHash()));
+				}
+			}
+		} catch (ProofError e) {
+			Assert.fail("Proof error");
+			e.printStackTrace();
+		}
+	}
+	
+	@Test
+	public void testCategoricalProofWireFormat() {
+		CryptographicRecordAggregator cgr = new CryptographicRecordAggregator(HashAlgorithm.BLAKE2B_160);
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
+		HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, store);
+		for(SimpleRecord sr : simplerecords) {
+			tree.append(sr);
+		}
+		CategoricalAttributes filter = new CategoricalAttributes(10);
+		filter.setAttribute(4, true);
+		try {
+			CategoricalQueryProof catqproof = new CategoricalQueryProof(filter, tree, 1, 9);
+			byte[] asBytes = catqproof.serializeProof();
+			Assert.assertEquals(catqproof.getSizeInBytes(), asBytes.length);
+			CategoricalQueryProof fromBytes = CategoricalQueryProof.parseProof(asBytes, 
+					HashAlgorithm.BLAKE2B_160);
+			Assert.assertEquals(catqproof.getRecordNumbers(), fromBytes.getRecordNumbers());
+			Assert.assertEquals(catqproof.getRecords(), fromBytes.getRecords());
+			Assert.assertEquals(1, fromBytes.getCommitmentNumber());
+			Assert.assertTrue(fromBytes.checkProof(tree.aggV(9).getHash()));
+			Assert.assertArrayEquals(asBytes, fromBytes.serializeProof());
+		} catch (ProofError | InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	@Test
+	public void testCategoricalProofRange() {
+		List<SimpleRecord> records = SimpleRecord.simpleRecordFacotry(1234, 300, 8, 8, new Date(0));
+		CryptographicRecordAggregator cgr = new CryptographicRecordAggregator();
+		HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, 
+				new ArrayStore<RecordAggregation, Record>());
+		RecordHistoryTree searchableTree = new RecordHistoryTree(cgr, new ArrayStore<RecordAggregation, Record>());
+		for(SimpleRecord sr : records) {
+			tree.append(sr);
+			searchableTree.append(sr);
+		}
+		CategoricalAttributes filter = new CategoricalAttributes(8);
+		filter.setAttribute(2, true);
+		int recordCommitmentNumber = 299;
+		int[][] ranges = new int[][] {{0, 299}, {0, 0}, {299, 299}, {17, 17}, {0, 100}, 
+			{128, 255}, {127, 256}, {200, 299}, {33, 201}};
+		try {
+			CategoricalQueryProof full = new CategoricalQueryProof(filter, tree, 1, recordCommitmentNumber);
+			for(int[] range : ranges) {
+				List<Integer> expected = new ArrayList<Integer>();
+				for(int r = range[0]; r <= range[1]; r++) {
+					if(records.get(r).getCategoricalAttributes().hasAttributes(filter)) {
+						expected.add(r);
+					}
+				}
+				CategoricalQueryProof scanned = new CategoricalQueryProof(filter, tree, 
+						range[0], range[1], 1, recordCommitmentNumber);
+				CategoricalQueryProof descended = new CategoricalQueryProof(filter, searchableTree, 
+						range[0], range[1], 1, recordCommitmentNumber);
+				Assert.assertEquals(expected, scanned.getRecordNumbers());
+				Assert.assertEquals(expected, descended.getRecordNumbers());
+				Assert.assertArrayEquals(scanned.serializeProof(), descended.serializeProof());
+				Assert.assertTrue(descended.checkProof(tree.aggV(recordCommitmentNumber).getHash(), 
+						range[0], range[1]));
+				// a search of only some of the records does not answer a query of the whole log
+				Assert.assertEquals(!descended.isRangeRestricted(), 
+						descended.checkProof(tree.aggV(recordCommitmentNumber).getHash()));
+				Assert.assertEquals(range[0], descended.getFirstRecordNumber());
+				Assert.assertEquals(range[1], descended.getLastRecordNumber());
+				Assert.assertEquals(range[1] - range[0] < recordCommitmentNumber, descended.isRangeRestricted());
+				if(descended.isRangeRestricted()) {
+					Assert.assertTrue(descended.getSizeInBytes() < full.getSizeInBytes());
+				}
+				
+				CategoricalQueryProof fromBytes = CategoricalQueryProof.parseProof(descended.serializeProof());
+				Assert.assertEquals(range[0], fromBytes.getFirstRecordNumber());
+				Assert.assertEquals(range[1], fromBytes.getLastRecordNumber());
+				Assert.assertEquals(expected, fromBytes.getRecordNumbers());
+				Assert.assertTrue(fromBytes.checkProof(tree.aggV(recordCommitmentNumber).getHash(), 
+						range[0], range[1]));
+			}
+		} catch (ProofError | InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	@Test
+	public void testCategoricalProofRangeIncorrect() {
+		List<SimpleRecord> records = SimpleRecord.simpleRecordFacotry(1234, 300, 8, 8, new Date(0));
+		CryptographicRecordAggregator cgr = new CryptographicRecordAggregator();
+		RecordHistoryTree tree = new RecordHistoryTree(cgr, new ArrayStore<RecordAggregation, Record>());
+		for(SimpleRecord sr : records) {
+			tree.append(sr);
+		}
+		CategoricalAttributes filter = new CategoricalAttributes(8);
+		filter.setAttribute(2, true);
+		try {
+			List<Integer> matching = tree.getMatchingLeaves(agg -> agg.hasCategoricalAttributes(filter), 40, 180);
+			Assert.assertTrue(matching.size() > 2);
+			// omitting a matching record in the range
+			List<Integer> omitted = new ArrayList<Integer>(matching);
+			omitted.remove(1);
+			CategoricalQueryProof omittedProof = CategoricalQueryProof.fromMatchingRecords(filter, tree, 
+					omitted, 40, 180, 1, 299);
+			Assert.assertFalse(omittedProof.checkProof(tree.aggV(299).getHash(), 40, 180));
+			// including a matching record outside of the range
+			List<Integer> extra = new ArrayList<Integer>(matching);
+			extra.add(tree.getMatchingLeaves(agg -> agg.hasCategoricalAttributes(filter), 181, 299).get(0));
+			CategoricalQueryProof extraProof = CategoricalQueryProof.fromMatchingRecords(filter, tree, 
+					extra, 40, 180, 1, 299);
+			Assert.assertFalse(extraProof.checkProof(tree.aggV(299).getHash(), 40, 180));
+		} catch (ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		try {
+			new CategoricalQueryProof(filter, tree, 10, 300, 1, 299);
+			Assert.fail("Range outside of the commitment");
+		} catch (ProofError e) {
+		}
+	}
+	
+	@Test
+	public void testCategoricalProofRangeTampered() {
+		List<SimpleRecord> records = SimpleRecord.simpleRecordFacotry(1234, 300, 8, 8, new Date(0));
+		RecordHistoryTree tree = new RecordHistoryTree(new CryptographicRecordAggregator(), 
+				new ArrayStore<RecordAggregation, Record>());
+		for(SimpleRecord sr : records) {
+			tree.append(sr);
+		}
+		byte[] commitment = tree.aggV(299).getHash();
+		CategoricalAttributes filter = new CategoricalAttributes(8);
+		filter.setAttribute(2, true);
+		try {
+			// a search of the whole log narrowed to [50, 100] - the 
+			// matching records outside of the range are dropped
+			CategoricalQueryProof full = new CategoricalQueryProof(filter, tree, 1, 299);
+			CategoricalQueryProof narrowed = CategoricalQueryProof.parseProof(
+					withRange(full.serializeProof(), 50, 100));
+			Assert.assertTrue(narrowed.isRangeRestricted());
+			Assert.assertFalse(narrowed.checkProof(commitment));
+			Assert.assertFalse(narrowed.checkProof(commitment, 0, 299));
+			
+			// a search of [40, 180] claiming to be a search of the whole log
+			CategoricalQueryProof range = new CategoricalQueryProof(filter, tree, 40, 180, 1, 299);
+			Assert.assertTrue(range.checkProof(commitment, 40, 180));
+			Assert.assertFalse(range.checkProof(commitment));
+			Assert.assertFalse(range.checkProof(commitment, 0, 299));
+			CategoricalQueryProof widened = CategoricalQueryProof.parseProof(
+					withRange(range.serializeProof(), 0, 299));
+			Assert.assertFalse(widened.isRangeRestricted());
+			Assert.assertFalse(widened.checkProof(commitment));
+			Assert.assertFalse(widened.checkProof(commitment, 0, 299));
+		} catch (ProofError | IOException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	/**
+	 * Overwrites the range of an encoded proof - the 
+	 * last occurrence of a field is the one that is read
+	 */
+	private static byte[] withRange(byte[] proof, int firstRecordNumber, int lastRecordNumber) 
+			throws IOException {
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		res.write(proof);
+		CodedOutputStream output = CodedOutputStream.newInstance(res);
+		output.writeUInt32(6, firstRecordNumber);
+		output.writeUInt32(7, lastRecordNumber);
+		output.flush();
+		return res.toByteArray();
+	}
 	
 }
@@ -10,6 +10,8 @@ import org.bverify.records.Record;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.ProofError;
 import edu.rice.historytree.storage.ArrayStore;
@@ -138,4 +140,33 @@ public class ConsistencyProofTest extends ProofTestBase {
 		// TODO: think about how to test this
 	}
 	
+	@Test
+	public void testConsistencyProofWireFormat() {
+		CryptographicRecordAggregator cgr = new CryptographicRecordAggregator();
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
+		HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, store);
+		List<Integer> commitmentRecordNumbers = new ArrayList<Integer>();
+		List<byte[]> correctCommitmentHashes = new ArrayList<byte[]>();
+		for(int i = 0; i < 200; i++) {
+			tree.append(i % 2 == 0 ? deposit : transfer);
+			if(i % 10 == 9) {
+				commitmentRecordNumbers.add(i);
+				correctCommitmentHashes.add(tree.aggV(i).getHash());
+			}
+		}
+		try {
+			ConsistencyProof proof = new ConsistencyProof(3, commitmentRecordNumbers, tree);
+			byte[] asBytes = proof.serializeProof();
+			Assert.assertEquals(proof.getSizeInBytes(), asBytes.length);
+			ConsistencyProof fromBytes = ConsistencyProof.parseProof(asBytes);
+			Assert.assertEquals(3, fromBytes.getStartingCommitmentNumber());
+			Assert.assertEquals(22, fromBytes.getEndingCommitmentNumber());
+			Assert.assertTrue(fromBytes.checkProof(correctCommitmentHashes));
+			Assert.assertArrayEquals(asBytes, fromBytes.serializeProof());
+		} catch (ProofError | InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
 }
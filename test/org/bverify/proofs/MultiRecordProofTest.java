@@ -0,0 +1,183 @@
+package org.bverify.proofs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.records.Record;
+import org.bverify.serialization.BverifySerialization;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.ProofError;
+import edu.rice.historytree.storage.ArrayStore;
+
+public class MultiRecordProofTest extends ProofTestBase {
+
+	private static HistoryTree<RecordAggregation, Record> makeTree(HashAlgorithm hashAlgorithm,
+			List<Record> records, int numberOfRecords) {
+		CryptographicRecordAggregator cgr = new CryptographicRecordAggregator(hashAlgorithm);
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
+		HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, store);
+		for(int i = 0; i < numberOfRecords; i++) {
+			Record r = i % 3 == 0 ? deposit : (i % 3 == 1 ? withdrawal : transfer);
+			records.add(r);
+			tree.append(r);
+		}
+		return tree;
+	}
+
+	@Test
+	public void testMultiRecordProofValid() {
+		List<Record> records = new ArrayList<Record>();
+		HistoryTree<RecordAggregation, Record> tree = makeTree(HashAlgorithm.DEFAULT, records, 100);
+		try {
+			// out of order and with a duplicate
+			MultiRecordProof proof = new MultiRecordProof(Arrays.asList(57, 3, 4, 98, 3), 2, 99, tree);
+			Assert.assertEquals(Arrays.asList(3, 4, 57, 98), proof.getRecordNumbers());
+			Assert.assertEquals(Arrays.asList(records.get(3), records.get(4), records.get(57), records.get(98)),
+					proof.getRecords());
+			Assert.assertEquals(records.get(57), proof.getRecord(57));
+			Assert.assertEquals(2, proof.getCommitmentNumber());
+			Assert.assertTrue(proof.checkProof(tree.aggV(99).getHash()));
+			// against an earlier commitment
+			Assert.assertFalse(proof.checkProof(tree.aggV(98).getHash()));
+
+			MultiRecordProof earlier = new MultiRecordProof(Arrays.asList(10, 20), 1, 50, tree);
+			Assert.assertTrue(earlier.checkProof(tree.aggV(50).getHash()));
+			Assert.assertFalse(earlier.checkProof(tree.aggV(99).getHash()));
+		} catch (ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testMultiRecordProofNotCommitted() {
+		HistoryTree<RecordAggregation, Record> tree = makeTree(HashAlgorithm.DEFAULT,
+				new ArrayList<Record>(), 20);
+		try {
+			new MultiRecordProof(Arrays.asList(3, 15), 0, 10, tree);
+			Assert.fail();
+		} catch (ProofError e) {
+		}
+		try {
+			new MultiRecordProof(new ArrayList<Integer>(), 0, 10, tree);
+			Assert.fail();
+		} catch (ProofError e) {
+		}
+	}
+
+	@Test
+	public void testMultiRecordProofRangeSharesPaths() {
+		List<Record> records = new ArrayList<Record>();
+		HistoryTree<RecordAggregation, Record> tree = makeTree(HashAlgorithm.DEFAULT, records, 256);
+		try {
+			MultiRecordProof proof = MultiRecordProof.forRange(64, 127, 0, 255, tree);
+			Assert.assertEquals(records.subList(64, 128), proof.getRecords());
+			Assert.assertTrue(proof.checkProof(tree.aggV(255).getHash()));
+			int independentSize = 0;
+			for(int i = 64; i < 128; i++) {
+				independentSize += new RecordProof(i, 0, 255, tree).getSizeInBytes();
+			}
+			Assert.assertTrue(proof.getSizeInBytes() < independentSize / 2);
+		} catch (ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testMultiRecordProofWireFormat() {
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			List<Record> records = new ArrayList<Record>();
+			HistoryTree<RecordAggregation, Record> tree = makeTree(hashAlgorithm, records, 40);
+			try {
+				MultiRecordProof proof = new MultiRecordProof(Arrays.asList(0, 7, 8, 9, 33), 4, 39, tree);
+				byte[] asBytes = proof.serializeProof();
+				Assert.assertEquals(proof.getSizeInBytes(), asBytes.length);
+				MultiRecordProof fromBytes = MultiRecordProof.parseProof(asBytes, hashAlgorithm);
+				Assert.assertEquals(proof.getRecordNumbers(), fromBytes.getRecordNumbers());
+				Assert.assertEquals(proof.getRecords(), fromBytes.getRecords());
+				Assert.assertEquals(4, fromBytes.getCommitmentNumber());
+				Assert.assertTrue(fromBytes.checkProof(tree.aggV(39).getHash()));
+				Assert.assertArrayEquals(asBytes, fromBytes.serializeProof());
+
+				MultiRecordProof deserialized = (MultiRecordProof) SerializationUtils.deserialize(
+						SerializationUtils.serialize(proof));
+				Assert.assertTrue(deserialized.checkProof(tree.aggV(39).getHash()));
+			} catch (ProofError | InvalidProtocolBufferException e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+	}
+
+	@Test
+	public void testDeltasMustIncrease() {
+		Assert.assertEquals(4, ProofEncoding.computeDeltasSizeNoTag(Arrays.asList(0, 7, 300)));
+		for(List<Integer> numbers : Arrays.asList(Arrays.asList(7, 3), Arrays.asList(4, 4), 
+				Arrays.asList(-1, 2))) {
+			try {
+				ProofEncoding.writeDeltas(CodedOutputStream.newInstance(new byte[64]), 1, numbers);
+				Assert.fail();
+			} catch (RuntimeException e) {
+			} catch (IOException e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+	}
+
+	@Test
+	public void testSerializedProofLengthChecked() {
+		for(int length : new int[] {-1, Integer.MAX_VALUE}) {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(bytes);
+				oos.writeInt(length);
+				oos.close();
+				ProofEncoding.readSerializedProof(new ObjectInputStream(
+						new ByteArrayInputStream(bytes.toByteArray())));
+				Assert.fail();
+			} catch (InvalidObjectException e) {
+			} catch (IOException e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+	}
+
+	@Test
+	public void testMultiRecordProofRevealsOnlyRequestedRecords() {
+		List<Record> records = new ArrayList<Record>();
+		HistoryTree<RecordAggregation, Record> tree = makeTree(HashAlgorithm.DEFAULT, records, 20);
+		try {
+			MultiRecordProof proof = new MultiRecordProof(Arrays.asList(0, 7, 8), 2, 19, tree);
+			Assert.assertTrue(proof.checkProof(tree.aggV(19).getHash()));
+			// claim fewer records than the tree reveals
+			byte[] fewerRecords = BverifySerialization.MultiRecordProof.parseFrom(proof.serializeProof())
+					.toBuilder().clearRecordNumberDeltas().addRecordNumberDeltas(0).addRecordNumberDeltas(7)
+					.build().toByteArray();
+			Assert.assertFalse(MultiRecordProof.parseProof(fewerRecords).checkProof(tree.aggV(19).getHash()));
+		} catch (ProofError | InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.bverify.proofs;
+
+import java.util.Arrays;
+
+import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.records.Record;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.ProofError;
+import edu.rice.historytree.storage.ArrayStore;
+
+public class ProofCacheTest extends ProofTestBase {
+
+	private static HistoryTree<RecordAggregation, Record> makeTree(int numberOfRecords) {
+		CryptographicRecordAggregator cgr = new CryptographicRecordAggregator();
+		ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
+		HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, store);
+		for(int i = 0; i < numberOfRecords; i++) {
+			tree.append(i % 2 == 0 ? deposit : transfer);
+		}
+		return tree;
+	}
+
+	@Test
+	public void testProofCacheHitsAndMisses() {
+		HistoryTree<RecordAggregation, Record> tree = makeTree(20);
+		ProofCache cache = new ProofCache();
+		try {
+			RecordProof proof = cache.getRecordProof(3, 1, () -> new RecordProof(3, 1, 19, tree));
+			Assert.assertTrue(proof.checkProof(tree.aggV(19).getHash()));
+			Assert.assertEquals(0, cache.getHits());
+			Assert.assertEquals(1, cache.getMisses());
+			// a hit does not construct the proof
+			RecordProof cached = cache.getRecordProof(3, 1, () -> {
+				throw new ProofError("should not be constructed");
+			});
+			Assert.assertSame(proof, cached);
+			Assert.assertEquals(1, cache.getHits());
+			Assert.assertEquals(0.5, cache.getHitRate(), 0);
+
+			// keys of different kinds of proofs do not collide
+			AggregationProof aggProof = cache.getAggregationProof(1, () -> new AggregationProof(
+					tree.aggV(19), tree.aggV(15).getHash(), tree.aggV(19).getHash(), 1));
+			Assert.assertNotNull(aggProof);
+			Assert.assertEquals(2, cache.getMisses());
+			Assert.assertEquals(2, cache.size());
+		} catch (ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testProofCacheFailuresNotCached() {
+		ProofCache cache = new ProofCache();
+		try {
+			cache.getRecordProof(30, 0, () -> {
+				throw new ProofError("not committed");
+			});
+			Assert.fail();
+		} catch (ProofError e) {
+		}
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testProofCacheEviction() {
+		HistoryTree<RecordAggregation, Record> tree = makeTree(20);
+		ProofCache cache = new ProofCache(2, false);
+		try {
+			for(int i = 0; i < 3; i++) {
+				final int recordNumber = i;
+				cache.getRecordProof(recordNumber, 0, () -> new RecordProof(recordNumber, 0, 19, tree));
+			}
+			Assert.assertEquals(2, cache.size());
+			// record #0 was evicted as it was least recently used
+			cache.getRecordProof(2, 0, () -> new RecordProof(2, 0, 19, tree));
+			cache.getRecordProof(0, 0, () -> new RecordProof(0, 0, 19, tree));
+			Assert.assertEquals(1, cache.getHits());
+			Assert.assertEquals(4, cache.getMisses());
+
+			cache.clear();
+			Assert.assertEquals(0, cache.size());
+		} catch (ProofError e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		try {
+			new ProofCache(0, false);
+			Assert.fail();
+		} catch (RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void testProofCacheSerializedProofs() {
+		HistoryTree<RecordAggregation, Record> tree = makeTree(20);
+		for(boolean cacheSerializedProofs : new boolean[] {false, true}) {
+			ProofCache cache = new ProofCache(16, cacheSerializedProofs);
+			try {
+				byte[] serialized = cache.getSerializedConsistencyProof(0, 2,
+						() -> new ConsistencyProof(0, Arrays.asList(4, 9, 19), tree));
+				// the cached bytes can not be modified by the caller
+				serialized[0] ^= 1;
+				byte[] again = cache.getSerializedConsistencyProof(0, 2, () -> {
+					throw new ProofError("should not be constructed");
+				});
+				Assert.assertNotEquals(serialized[0], again[0]);
+				ConsistencyProof proof = cache.getConsistencyProof(0, 2, () -> {
+					throw new ProofError("should not be constructed");
+				});
+				Assert.assertArrayEquals(proof.serializeProof(), again);
+				Assert.assertTrue(ConsistencyProof.parseProof(again).checkProof(
+						Arrays.asList(tree.aggV(4).getHash(), tree.aggV(9).getHash(), tree.aggV(19).getHash())));
+			} catch (ProofError | InvalidProtocolBufferException e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,244 @@
+package org.bverify.proofs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
+import org.bverify.aggregators.RecordAggregation;
+import org.bverify.aggregators.RecordHistoryTree;
+import org.bverify.records.CategoricalAttributes;
+import org.bverify.records.Record;
+import org.bverify.records.SimpleRecord;
+import org.bverify.serialization.BverifySerialization;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.rice.historytree.AggWithChildren;
+import edu.rice.historytree.ProofError;
+import edu.rice.historytree.storage.ArrayStore;
+
+/**
+ * The proofs are encoded by hand (see {@link ProofEncoding}), these tests
+ * check that the encoding is the wire format of the proof messages in
+ * serialization.proto - proofs written by hand are parsed by the
+ * generated messages and proofs written by the generated messages are
+ * parsed by hand.
+ */
+public class ProofWireFormatTest {
+
+	private static final int NUMBER_OF_RECORDS = 40;
+
+	private static List<Record> records;
+
+	private static RecordHistoryTree makeTree(HashAlgorithm hashAlgorithm) {
+		if(records == null) {
+			records = new ArrayList<Record>(SimpleRecord.simpleRecordFacotry(77, NUMBER_OF_RECORDS,
+					2, 4, new Date(1000)));
+		}
+		RecordHistoryTree tree = new RecordHistoryTree(new CryptographicRecordAggregator(hashAlgorithm),
+				new ArrayStore<RecordAggregation, Record>());
+		for(Record r : records) {
+			tree.append(r);
+		}
+		return tree;
+	}
+
+	private static List<Integer> deltas(List<Integer> increasing) {
+		List<Integer> res = new ArrayList<Integer>();
+		int previous = 0;
+		for(int number : increasing) {
+			res.add(number - previous);
+			previous = number;
+		}
+		return res;
+	}
+
+	/**
+	 * The ProofTree message the generated code would write for the tree of the proof
+	 */
+	private static BverifySerialization.ProofTree proofTree(BverifySerialization.ProofTree parsed,
+			HashAlgorithm hashAlgorithm) {
+		Assert.assertEquals(hashAlgorithm != HashAlgorithm.DEFAULT, parsed.hasHashAlgorithm());
+		if(parsed.hasHashAlgorithm()) {
+			Assert.assertEquals(hashAlgorithm.getName(), parsed.getHashAlgorithm());
+		}
+		BverifySerialization.ProofTree.Builder builder = BverifySerialization.ProofTree.newBuilder()
+				.setTree(parsed.getTree());
+		if(hashAlgorithm != HashAlgorithm.DEFAULT) {
+			builder.setHashAlgorithm(hashAlgorithm.getName());
+		}
+		return builder.build();
+	}
+
+	@Test
+	public void testRecordProofWireFormat() throws InvalidProtocolBufferException, ProofError {
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			RecordHistoryTree tree = makeTree(hashAlgorithm);
+			RecordProof proof = new RecordProof(13, 5, 30, tree);
+			byte[] handWritten = proof.serializeProof();
+
+			BverifySerialization.RecordProof parsed = BverifySerialization.RecordProof.parseFrom(handWritten);
+			Assert.assertEquals(13, parsed.getRecordNumber());
+			Assert.assertEquals(5, parsed.getCommitmentNumber());
+			Assert.assertEquals(30, parsed.getCommitmentRecordNumber());
+			Assert.assertArrayEquals(handWritten, parsed.toByteArray());
+
+			byte[] generated = BverifySerialization.RecordProof.newBuilder()
+					.setRecordNumber(13)
+					.setCommitmentNumber(5)
+					.setCommitmentRecordNumber(30)
+					.setProofTree(proofTree(parsed.getProofTree(), hashAlgorithm))
+					.build().toByteArray();
+			RecordProof fromGenerated = RecordProof.parseProof(generated, hashAlgorithm);
+			Assert.assertEquals(13, fromGenerated.getRecordNumber());
+			Assert.assertEquals(records.get(13), fromGenerated.getRecord());
+			Assert.assertTrue(fromGenerated.checkProof(tree.aggV(30).getHash()));
+			Assert.assertArrayEquals(handWritten, fromGenerated.serializeProof());
+		}
+	}
+
+	@Test
+	public void testMultiRecordProofWireFormat() throws InvalidProtocolBufferException, ProofError {
+		List<Integer> recordNumbers = Arrays.asList(0, 3, 4, 5, 20, 39);
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			RecordHistoryTree tree = makeTree(hashAlgorithm);
+			MultiRecordProof proof = new MultiRecordProof(recordNumbers, 7, 39, tree);
+			byte[] handWritten = proof.serializeProof();
+
+			BverifySerialization.MultiRecordProof parsed = BverifySerialization.MultiRecordProof
+					.parseFrom(handWritten);
+			Assert.assertEquals(deltas(proof.getRecordNumbers()), parsed.getRecordNumberDeltasList());
+			Assert.assertEquals(7, parsed.getCommitmentNumber());
+			Assert.assertEquals(39, parsed.getCommitmentRecordNumber());
+			Assert.assertArrayEquals(handWritten, parsed.toByteArray());
+
+			byte[] generated = BverifySerialization.MultiRecordProof.newBuilder()
+					.addAllRecordNumberDeltas(deltas(proof.getRecordNumbers()))
+					.setCommitmentNumber(7)
+					.setCommitmentRecordNumber(39)
+					.setProofTree(proofTree(parsed.getProofTree(), hashAlgorithm))
+					.build().toByteArray();
+			MultiRecordProof fromGenerated = MultiRecordProof.parseProof(generated, hashAlgorithm);
+			Assert.assertEquals(proof.getRecordNumbers(), fromGenerated.getRecordNumbers());
+			Assert.assertEquals(proof.getRecords(), fromGenerated.getRecords());
+			Assert.assertTrue(fromGenerated.checkProof(tree.aggV(39).getHash()));
+			Assert.assertArrayEquals(handWritten, fromGenerated.serializeProof());
+		}
+	}
+
+	@Test
+	public void testConsistencyProofWireFormat() throws InvalidProtocolBufferException, ProofError {
+		List<Integer> commitmentRecordNumbers = Arrays.asList(4, 9, 21, 39);
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			RecordHistoryTree tree = makeTree(hashAlgorithm);
+			List<byte[]> commitments = new ArrayList<byte[]>();
+			for(int recordNumber : commitmentRecordNumbers) {
+				commitments.add(tree.aggV(recordNumber).getHash());
+			}
+			ConsistencyProof proof = new ConsistencyProof(2, commitmentRecordNumbers, tree);
+			byte[] handWritten = proof.serializeProof();
+
+			BverifySerialization.ConsistencyProof parsed = BverifySerialization.ConsistencyProof
+					.parseFrom(handWritten);
+			Assert.assertEquals(2, parsed.getStartingCommitmentNumber());
+			Assert.assertEquals(deltas(commitmentRecordNumbers), parsed.getCommitmentRecordNumberDeltasList());
+			Assert.assertArrayEquals(handWritten, parsed.toByteArray());
+
+			byte[] generated = BverifySerialization.ConsistencyProof.newBuilder()
+					.setStartingCommitmentNumber(2)
+					.addAllCommitmentRecordNumberDeltas(deltas(commitmentRecordNumbers))
+					.setProofTree(proofTree(parsed.getProofTree(), hashAlgorithm))
+					.build().toByteArray();
+			ConsistencyProof fromGenerated = ConsistencyProof.parseProof(generated, hashAlgorithm);
+			Assert.assertEquals(2, fromGenerated.getStartingCommitmentNumber());
+			Assert.assertEquals(5, fromGenerated.getEndingCommitmentNumber());
+			Assert.assertTrue(fromGenerated.checkProof(commitments));
+			Assert.assertArrayEquals(handWritten, fromGenerated.serializeProof());
+		}
+	}
+
+	@Test
+	public void testCategoricalQueryProofWireFormat() throws InvalidProtocolBufferException, ProofError {
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			RecordHistoryTree tree = makeTree(hashAlgorithm);
+			CategoricalAttributes filter = new CategoricalAttributes(records.get(0).getCategoricalAttributes());
+			for(int[] range : new int[][] {{0, 39}, {10, 30}}) {
+				CategoricalQueryProof proof = new CategoricalQueryProof(filter, tree, range[0], range[1],
+						3, 39);
+				byte[] handWritten = proof.serializeProof();
+				boolean rangeRestricted = range[0] != 0 || range[1] != 39;
+
+				BverifySerialization.CategoricalQueryProof parsed = BverifySerialization.CategoricalQueryProof
+						.parseFrom(handWritten);
+				Assert.assertEquals(filter.serializeCategoricalAttributes(), parsed.getFilter());
+				Assert.assertEquals(deltas(proof.getRecordNumbers()), parsed.getMatchingRecordNumberDeltasList());
+				Assert.assertEquals(3, parsed.getCommitmentNumber());
+				Assert.assertEquals(39, parsed.getRecordCommitmentNumber());
+				Assert.assertEquals(rangeRestricted, parsed.hasFirstRecordNumber());
+				Assert.assertEquals(rangeRestricted, parsed.hasLastRecordNumber());
+				Assert.assertArrayEquals(handWritten, parsed.toByteArray());
+
+				BverifySerialization.CategoricalQueryProof.Builder builder =
+						BverifySerialization.CategoricalQueryProof.newBuilder()
+						.setFilter(filter.serializeCategoricalAttributes())
+						.addAllMatchingRecordNumberDeltas(deltas(proof.getRecordNumbers()))
+						.setCommitmentNumber(3)
+						.setRecordCommitmentNumber(39)
+						.setProofTree(proofTree(parsed.getProofTree(), hashAlgorithm));
+				if(rangeRestricted) {
+					builder.setFirstRecordNumber(range[0]).setLastRecordNumber(range[1]);
+				}
+				CategoricalQueryProof fromGenerated = CategoricalQueryProof.parseProof(
+						builder.build().toByteArray(), hashAlgorithm);
+				Assert.assertEquals(proof.getRecordNumbers(), fromGenerated.getRecordNumbers());
+				Assert.assertEquals(filter, fromGenerated.getFilter());
+				Assert.assertTrue(fromGenerated.checkProof(tree.aggV(39).getHash(), range[0], range[1]));
+				Assert.assertArrayEquals(handWritten, fromGenerated.serializeProof());
+			}
+		}
+	}
+
+	@Test
+	public void testAggregationProofWireFormat() throws InvalidProtocolBufferException {
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			RecordHistoryTree tree = makeTree(hashAlgorithm);
+			AggWithChildren<RecordAggregation> aggPlusChildren = tree.aggVWithChildren(25);
+			byte[] left = aggPlusChildren.getLeft().getHash();
+			byte[] right = aggPlusChildren.getRight().getHash();
+			AggregationProof proof = new AggregationProof(aggPlusChildren.getMain(), left, right, 6);
+			byte[] handWritten = proof.serializeProof();
+
+			BverifySerialization.AggregationProof parsed = BverifySerialization.AggregationProof
+					.parseFrom(handWritten);
+			Assert.assertEquals(hashAlgorithm != HashAlgorithm.DEFAULT, parsed.hasHashAlgorithm());
+			Assert.assertEquals(ByteString.copyFrom(left), parsed.getLeftPreImageHash());
+			Assert.assertEquals(ByteString.copyFrom(right), parsed.getRightPreImageHash());
+			Assert.assertEquals(6, parsed.getCommitmentNumber());
+			Assert.assertArrayEquals(handWritten, parsed.toByteArray());
+
+			BverifySerialization.AggregationProof.Builder builder = BverifySerialization.AggregationProof
+					.newBuilder()
+					.setAggregation(BverifySerialization.RecordAggregation.parseFrom(
+							aggPlusChildren.getMain().serializatRecordAggregation()))
+					.setLeftPreImageHash(ByteString.copyFrom(left))
+					.setRightPreImageHash(ByteString.copyFrom(right))
+					.setCommitmentNumber(6);
+			if(hashAlgorithm != HashAlgorithm.DEFAULT) {
+				builder.setHashAlgorithm(hashAlgorithm.getName());
+			}
+			AggregationProof fromGenerated = AggregationProof.parseProof(builder.build().toByteArray(),
+					hashAlgorithm);
+			Assert.assertEquals(aggPlusChildren.getMain(), fromGenerated.getAggregation());
+			Assert.assertEquals(6, fromGenerated.getCommitmentNumber());
+			Assert.assertTrue(fromGenerated.checkProof(tree.aggV(25).getHash()));
+			Assert.assertArrayEquals(handWritten, fromGenerated.serializeProof());
+		}
+	}
+
+}
@@ -1,12 +1,17 @@
 package org.bverify.proofs;
 
+import java.util.Arrays;
+
 import org.apache.commons.lang3.SerializationUtils;
 import org.bverify.aggregators.CryptographicRecordAggregator;
+import org.bverify.aggregators.HashAlgorithm;
 import org.bverify.aggregators.RecordAggregation;
 import org.bverify.records.Record;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.ProofError;
 import edu.rice.historytree.storage.ArrayStore;
@@ -83,5 +88,99 @@ public class RecordProofTest extends ProofTestBase{
 		}
 	}
 	
+	@Test 
+	public void testRecordProofSerializationOtherHashAlgorithms(){
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			CryptographicRecordAggregator cgr = new CryptographicRecordAggregator(hashAlgorithm);
+			ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
+			HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, store);
+			tree.append(deposit);				// 0
+			tree.append(withdrawal);			// 1
+			tree.append(transfer);				// 2
+			tree.append(deposit);				// 3
+			tree.append(deposit);				// 4
+			try {
+				Assert.assertEquals(hashAlgorithm.hashSize(), tree.aggV(4).getHash().length);
+				RecordProof validProof = new RecordProof(1, 0, 4, tree);
+				byte[] asBytes = SerializationUtils.serialize(validProof);
+				RecordProof fromBytes = (RecordProof) SerializationUtils.deserialize(asBytes);
+				Assert.assertEquals(fromBytes.getRecord(), withdrawal);
+				Assert.assertTrue(fromBytes.checkProof(tree.aggV(4).getHash()));
+			} catch (ProofError e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+	}
+	
+	@Test 
+	public void testRecordProofWireFormat(){
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			CryptographicRecordAggregator cgr = new CryptographicRecordAggregator(hashAlgorithm);
+			ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
+			HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, store);
+			tree.append(deposit);				// 0
+			tree.append(withdrawal);			// 1
+			tree.append(transfer);				// 2
+			tree.append(deposit);				// 3
+			tree.append(deposit);				// 4
+			try {
+				RecordProof validProof = new RecordProof(2, 1, 4, tree);
+				byte[] asBytes = validProof.serializeProof();
+				Assert.assertEquals(validProof.getSizeInBytes(), asBytes.length);
+				RecordProof fromBytes = RecordProof.parseProof(asBytes, hashAlgorithm);
+				Assert.assertEquals(2, fromBytes.getRecordNumber());
+				Assert.assertEquals(1, fromBytes.getCommitmentNumber());
+				Assert.assertEquals(transfer, fromBytes.getRecord());
+				Assert.assertTrue(fromBytes.checkProof(tree.aggV(4).getHash()));
+				Assert.assertArrayEquals(asBytes, fromBytes.serializeProof());
+				try {
+					RecordProof.parseProof(Arrays.copyOf(asBytes, asBytes.length - 1), hashAlgorithm);
+					Assert.fail();
+				}catch(InvalidProtocolBufferException e) {
+				}
+			} catch (ProofError | InvalidProtocolBufferException e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+	}
+	
+	@Test 
+	public void testRecordProofRejectsOtherHashAlgorithm(){
+		for(HashAlgorithm hashAlgorithm : HashAlgorithm.values()) {
+			CryptographicRecordAggregator cgr = new CryptographicRecordAggregator(hashAlgorithm);
+			ArrayStore<RecordAggregation, Record> store = new ArrayStore<RecordAggregation, Record>();
+			HistoryTree<RecordAggregation, Record> tree = new HistoryTree<RecordAggregation, Record>(cgr, store);
+			tree.append(deposit);				// 0
+			tree.append(withdrawal);			// 1
+			tree.append(transfer);				// 2
+			try {
+				byte[] asBytes = new RecordProof(1, 0, 2, tree).serializeProof();
+				// a proof with the default algorithm does not name it
+				if(hashAlgorithm != HashAlgorithm.DEFAULT) {
+					try {
+						RecordProof.parseProof(asBytes);
+						Assert.fail();
+					}catch(InvalidProtocolBufferException e) {
+					}
+				}
+				for(HashAlgorithm expected : HashAlgorithm.values()) {
+					if(expected == hashAlgorithm) {
+						continue;
+					}
+					try {
+						RecordProof.parseProof(asBytes, expected);
+						Assert.fail();
+					}catch(InvalidProtocolBufferException e) {
+					}
+				}
+				Assert.assertEquals(hashAlgorithm, RecordProof.parseProof(asBytes, hashAlgorithm).getHashAlgorithm());
+			} catch (ProofError | InvalidProtocolBufferException e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+	}
 	
 }
@@ -1,10 +1,17 @@
 package org.bverify.records;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
 
 import org.apache.commons.lang3.SerializationUtils;
 import org.bverify.accounts.Account;
+import org.bverify.accounts.PrecomputedKeyCache;
+import org.bverify.serialization.BverifySerialization;
 
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -88,6 +95,146 @@ public class RecordTest extends TestCase {
 		Assert.assertEquals(rec, tf);	
 	}
 	
+	public void testProtobufSerializationChanges() {
+		try {
+			Deposit dep = new Deposit(goodCorn, 100, alice, bob);
+			dep.signEmployee();
+			dep.signRecipient();
+			Record depFromBytes = Record.parseRecord(dep.serializeRecord());
+			Assert.assertTrue(depFromBytes instanceof Deposit);
+			Assert.assertEquals(dep, depFromBytes);
+			// signatures can be checked with the parsed public keys
+			Assert.assertTrue(depFromBytes.isValid());
+			
+			Withdrawal wd = new Withdrawal(goodWheat, 10, charlie, bob);
+			wd.signEmployee();
+			Withdrawal wdFromBytes = new Withdrawal();
+			wdFromBytes.parseFrom(wd.serializeRecord());
+			Assert.assertEquals(wd, wdFromBytes);
+			Assert.assertFalse(wdFromBytes.isSigned());
+			Assert.assertArrayEquals(leafEncoding(wd), leafEncoding(wdFromBytes));
+			
+			// the encoding is much smaller than java serialization 
+			Assert.assertTrue(dep.serializeRecord().length * 4 < SerializationUtils.serialize(dep).length);
+		}catch(InvalidProtocolBufferException e ) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	public void testProtobufSerializationTransfer() {
+		try {
+			Transfer tf = new Transfer(goodCorn, 10, alice, charlie);
+			tf.signSender();
+			tf.signRecipient();
+			Transfer tfFromBytes = new Transfer();
+			tfFromBytes.parseFrom(tf.serializeRecord());
+			Assert.assertEquals(tf, tfFromBytes);
+			Assert.assertTrue(tfFromBytes.isValid());
+			
+			// parsed accounts have no private key
+			try {
+				tfFromBytes.getSender().sign(tf.getSignedPortion());
+				Assert.fail();
+			}catch(Exception e) {
+			}
+			
+			// not a deposit 
+			try {
+				new Deposit().parseFrom(tf.serializeRecord());
+				Assert.fail();
+			}catch(InvalidProtocolBufferException e) {
+			}
+		}catch(InvalidProtocolBufferException e ) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	public void testSignatureVerificationService() {
+		Deposit dep = new Deposit(goodCorn, 100, alice, bob);
+		dep.signEmployee();
+		dep.signRecipient();
+		Withdrawal unsigned = new Withdrawal(goodCorn, 100, alice, bob);
+		unsigned.signRecipient();
+		Transfer tf = new Transfer(goodWheat, 10, alice, charlie);
+		tf.signSender();
+		tf.signRecipient();
+		Transfer invalidAmount = new Transfer(goodWheat, -10, alice, charlie);
+		invalidAmount.signSender();
+		invalidAmount.signRecipient();
+		// signatures no longer match after the record is changed
+		Transfer modified = new Transfer(goodWheat, 10, alice, charlie);
+		modified.signSender();
+		modified.signRecipient();
+		modified.setDateCreated(new Date(0));
+		List<Record> records = Arrays.asList(dep, unsigned, tf, invalidAmount, 
+				new SimpleRecord(3, 3), modified);
+		
+		SignatureVerificationService service = new SignatureVerificationService(4, 16);
+		boolean[] signed = service.verifySignatures(records);
+		boolean[] valid = service.validate(records);
+		for(int i = 0; i < records.size(); i++) {
+			Record r = records.get(i);
+			Assert.assertEquals(r.isValid(), valid[i]);
+			if(r instanceof RecordBase) {
+				Assert.assertEquals(((RecordBase) r).isSigned(), signed[i]);
+			}
+		}
+		Assert.assertArrayEquals(new boolean[] {true, false, true, true, true, false}, signed);
+		Assert.assertArrayEquals(new boolean[] {true, false, true, false, true, false}, valid);
+		
+		// the valid signatures are cached
+		long misses = service.getMisses();
+		Assert.assertTrue(service.verifySignatures(dep));
+		Assert.assertTrue(service.verifySignatures(tf));
+		Assert.assertEquals(misses, service.getMisses());
+		Assert.assertTrue(service.getHits() >= 4);
+		Assert.assertTrue(service.cacheSize() <= 16);
+		service.shutdown();
+		
+		// verifying with tables for the keys does not change the results
+		PrecomputedKeyCache precomputedKeys = new PrecomputedKeyCache(2, 1);
+		SignatureVerificationService precomputedService = new SignatureVerificationService(4, 16, precomputedKeys);
+		Assert.assertArrayEquals(signed, precomputedService.verifySignatures(records));
+		Assert.assertArrayEquals(valid, precomputedService.validate(records));
+		Assert.assertTrue(precomputedKeys.getHits() > 0);
+		precomputedService.shutdown();
+	}
+	
+	public void testSignedPortionCanonical() {
+		Transfer tf = new Transfer("MAÏS", 10, alice, charlie);
+		tf.signSender();
+		tf.signRecipient();
+		byte[] message = tf.getSignedPortion();
+		Assert.assertEquals(RecordBase.SIGNED_MESSAGE_VERSION, message[0]);
+		// version | type | date | amount | good type | 2 account ids
+		Assert.assertEquals(1 + 1 + 8 + 4 + 4 + "MAÏS".getBytes(StandardCharsets.UTF_8).length + 8 + 8, 
+				message.length);
+		
+		// does not depend on the time zone (or locale) of the JVM
+		TimeZone defaultTimeZone = TimeZone.getDefault();
+		try {
+			TimeZone.setDefault(TimeZone.getTimeZone("Pacific/Kiritimati"));
+			Assert.assertArrayEquals(message, tf.getSignedPortion());
+			Assert.assertTrue(tf.isSigned());
+		}finally {
+			TimeZone.setDefault(defaultTimeZone);
+		}
+		
+		// writing into a reused buffer produces the same message
+		EncodingBuffer buffer = new EncodingBuffer(1);
+		new Deposit(goodCorn, 100, alice, bob).writeSignedPortion(buffer);
+		tf.writeSignedPortion(buffer.reset());
+		Assert.assertArrayEquals(message, buffer.toByteArray());
+		
+		// the type of record is signed
+		Deposit dep = new Deposit(goodCorn, 100, alice, bob);
+		Withdrawal wd = new Withdrawal(goodCorn, 100, alice, bob);
+		wd.setDateCreated(dep.dateCreated());
+		Assert.assertFalse(Arrays.equals(dep.getSignedPortion(), wd.getSignedPortion()));
+	}
+	
 	public void testPrintRecord() {
 		Deposit dep = new Deposit(goodCorn, 100, alice, bob);
 		dep.signEmployee();
@@ -116,6 +263,132 @@ public class RecordTest extends TestCase {
 		}
 	}
 	
+	public void testCategoricalAttributesPredicates() {
+		// spans several words, last one partially used
+		CategoricalAttributes catats = new CategoricalAttributes(150);
+		CategoricalAttributes filter = new CategoricalAttributes(150);
+		CategoricalAttributes other = new CategoricalAttributes(150);
+		for(int i : new int[] {0, 63, 64, 100, 149}) {
+			catats.setAttribute(i, true);
+		}
+		filter.setAttribute(63, true);
+		filter.setAttribute(149, true);
+		other.setAttribute(1, true);
+		other.setAttribute(65, true);
+		
+		Assert.assertTrue(catats.containsAll(filter));
+		Assert.assertTrue(catats.hasAttributes(filter));
+		Assert.assertFalse(filter.containsAll(catats));
+		Assert.assertTrue(catats.containsAll(new CategoricalAttributes(150)));
+		Assert.assertTrue(catats.intersects(filter));
+		Assert.assertFalse(catats.intersects(other));
+		
+		CategoricalAttributes target = new CategoricalAttributes(other);
+		catats.orInto(target);
+		Assert.assertEquals(catats.or(other), target);
+		Assert.assertTrue(target.containsAll(catats));
+		Assert.assertTrue(target.containsAll(other));
+		
+		// same encodings and formatting as java.util.BitSet 
+		BitSet bitset = new BitSet();
+		for(int i = catats.nextSetAttribute(0); i >= 0; i = catats.nextSetAttribute(i+1)) {
+			bitset.set(i);
+		}
+		Assert.assertTrue(Arrays.equals(bitset.toByteArray(), catats.toByteArray()));
+		Assert.assertEquals(bitset.hashCode(), catats.hashCode());
+		Assert.assertEquals("<Categorical Attributes:"+bitset+">", catats.toString());
+		Assert.assertEquals(-1, catats.nextSetAttribute(150));
+		Assert.assertFalse(catats.getAttribute(200));
+		
+		try {
+			catats.containsAll(new CategoricalAttributes(10));
+			Assert.fail();
+		}catch(RuntimeException e) {
+		}
+		try {
+			catats.setAttribute(150, true);
+			Assert.fail();
+		}catch(IndexOutOfBoundsException e) {
+		}
+	}
+	
+	public void testCompressedCategoricalAttributes() {
+		// two chunks, the second one partially used
+		int size = 70000;
+		Random prng = new Random(1234);
+		CategoricalAttributes[] dense = new CategoricalAttributes[4];
+		CompressedCategoricalAttributes[] compressed = new CompressedCategoricalAttributes[4];
+		// sparse (array containers) and dense (bitmap containers)
+		double[] p = new double[] {0.0005, 0.001, 0.3, 0.5};
+		for(int k = 0; k < dense.length; k++) {
+			dense[k] = new CategoricalAttributes(size);
+			for(int i = 0; i < size; i++) {
+				if(prng.nextDouble() < p[k]) {
+					dense[k].setAttribute(i, true);
+				}
+			}
+			compressed[k] = CompressedCategoricalAttributes.fromCategoricalAttributes(dense[k]);
+			Assert.assertEquals(dense[k], compressed[k].toCategoricalAttributes());
+		}
+		Assert.assertTrue(compressed[0].getSerializedSize() < (size + 7) / 8);
+		for(int a = 0; a < dense.length; a++) {
+			for(int b = 0; b < dense.length; b++) {
+				CategoricalAttributes denseOr = dense[a].or(dense[b]);
+				CompressedCategoricalAttributes compressedOr = compressed[a].or(compressed[b]);
+				Assert.assertEquals(denseOr, compressedOr.toCategoricalAttributes());
+				Assert.assertEquals(CompressedCategoricalAttributes.fromCategoricalAttributes(denseOr), 
+						compressedOr);
+				Assert.assertEquals(dense[a].containsAll(dense[b]), compressed[a].containsAll(compressed[b]));
+				Assert.assertEquals(dense[a].intersects(dense[b]), compressed[a].intersects(compressed[b]));
+				Assert.assertTrue(compressedOr.containsAll(compressed[b]));
+			}
+		}
+		
+		try {
+			for(CompressedCategoricalAttributes atts : compressed) {
+				byte[] encoding = atts.toByteArray();
+				Assert.assertEquals(atts.getSerializedSize(), encoding.length);
+				Assert.assertEquals(atts, CompressedCategoricalAttributes.parseFrom(encoding));
+			}
+		}catch(InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		
+		// the encoding only depends on which attributes are set
+		CompressedCategoricalAttributes grown = new CompressedCategoricalAttributes(compressed[3]);
+		CompressedCategoricalAttributes sparse = new CompressedCategoricalAttributes(size);
+		for(int i = grown.nextSetAttribute(0); i >= 0; i = grown.nextSetAttribute(i+1)) {
+			if(i % 1000 != 0) {
+				grown.setAttribute(i, false);
+			}else {
+				sparse.setAttribute(i, true);
+			}
+		}
+		Assert.assertEquals(sparse, grown);
+		Assert.assertTrue(Arrays.equals(sparse.toByteArray(), grown.toByteArray()));
+		
+		// non-canonical encodings are rejected
+		byte[] encoding = compressed[0].toByteArray();
+		try {
+			CompressedCategoricalAttributes.parseFrom(Arrays.copyOf(encoding, encoding.length - 1));
+			Assert.fail();
+		}catch(InvalidProtocolBufferException e) {
+		}
+		// swap the first two set indices
+		byte[] unsorted = encoding.clone();
+		for(int i = 0; i < 2; i++) {
+			byte tmp = unsorted[12 + i];
+			unsorted[12 + i] = unsorted[14 + i];
+			unsorted[14 + i] = tmp;
+		}
+		try {
+			CompressedCategoricalAttributes.parseFrom(unsorted);
+			Assert.fail();
+		}catch(InvalidProtocolBufferException e) {
+		}
+	}
+	
 	public void testNumericalAttributesSerialization() {
 		try {
 			NumericalAttributes numatts = new NumericalAttributes(13);
@@ -158,4 +431,165 @@ public class RecordTest extends TestCase {
 		Assert.assertNotEquals(res, res3);
 	}
 	
+	private static byte[] leafEncoding(Record record) {
+		EncodingBuffer buffer = new EncodingBuffer();
+		record.writeLeafEncoding(buffer);
+		return buffer.toByteArray();
+	}
+	
+	public void testLeafEncodingCanonical() {
+		try {
+			SimpleRecord sr = new SimpleRecord(13, 13);
+			Record srFromBytes = Record.parseRecord(sr.serializeRecord());
+			Assert.assertArrayEquals(leafEncoding(sr), leafEncoding(srFromBytes));
+			
+			Transfer tf = new Transfer(goodCorn, 10, alice, charlie);
+			tf.signSender();
+			tf.signRecipient();
+			Record tfFromBytes = Record.parseRecord(tf.serializeRecord());
+			Assert.assertArrayEquals(leafEncoding(tf), leafEncoding(tfFromBytes));
+			Assert.assertEquals(Record.LEAF_ENCODING_VERSION, leafEncoding(tf)[0]);
+		}catch(InvalidProtocolBufferException e ) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+	
+	public void testLeafEncodingDistinguishesRecords() {
+		Date date = new Date();
+		Deposit dep = new Deposit(goodCorn, 100, alice, bob);
+		Deposit depOtherAmount = new Deposit(goodCorn, 99, alice, bob);
+		Withdrawal wd = new Withdrawal(goodCorn, 100, alice, bob);
+		dep.setDateCreated(date);
+		depOtherAmount.setDateCreated(date);
+		wd.setDateCreated(date);
+		
+		byte[] unsigned = leafEncoding(dep);
+		Assert.assertFalse(Arrays.equals(unsigned, leafEncoding(depOtherAmount)));
+		Assert.assertFalse(Arrays.equals(unsigned, leafEncoding(wd)));
+		
+		// reusing a buffer produces the same encoding
+		EncodingBuffer buffer = new EncodingBuffer(1);
+		wd.writeLeafEncoding(buffer);
+		dep.writeLeafEncoding(buffer.reset());
+		Assert.assertArrayEquals(unsigned, buffer.toByteArray());
+		
+		// signatures are committed to
+		dep.signEmployee();
+		dep.signRecipient();
+		Assert.assertFalse(Arrays.equals(unsigned, leafEncoding(dep)));
+	}
+	
+	/**
+	 * An application defined record type, a simple record 
+	 * tagged with a lot number
+	 */
+	private static class LotRecord implements Record {
+		
+		private static final long serialVersionUID = 1L;
+		private static final int TYPE = RecordTypeRegistry.FIRST_APPLICATION_TYPE + 4;
+		
+		private NumericalAttributes numericalAttributes;
+		private CategoricalAttributes categoricalAttributes;
+		private Date dateCreated;
+		private String lot;
+		
+		LotRecord(NumericalAttributes na, CategoricalAttributes ca, Date date, String lot) {
+			this.numericalAttributes = na;
+			this.categoricalAttributes = ca;
+			this.dateCreated = date;
+			this.lot = lot;
+		}
+		
+		@Override
+		public Record deepCopy() {
+			return new LotRecord(this.getNumericalAttributes(), this.getCategoricalAttributes(), 
+					new Date(this.dateCreated.getTime()), this.lot);
+		}
+		@Override
+		public CategoricalAttributes getCategoricalAttributes() {
+			return new CategoricalAttributes(this.categoricalAttributes);
+		}
+		@Override
+		public NumericalAttributes getNumericalAttributes() {
+			return new NumericalAttributes(this.numericalAttributes);
+		}
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+		@Override
+		public Date dateCreated() {
+			return this.dateCreated;
+		}
+		@Override
+		public void setDateCreated(Date date) {
+			this.dateCreated = date;
+		}
+		@Override
+		public byte[] serializeRecord() {
+			return RecordTypeRegistry.serializeRecord(TYPE, this.numericalAttributes, 
+					this.categoricalAttributes, this.dateCreated, this.lot.getBytes(StandardCharsets.UTF_8));
+		}
+		@Override
+		public void writeLeafEncoding(EncodingBuffer out) {
+			Record.writeLeafHeader(out, TYPE, this.dateCreated, this.numericalAttributes, 
+					this.categoricalAttributes);
+			out.writeString(this.lot);
+		}
+		@Override
+		public void parseFrom(byte[] data) throws InvalidProtocolBufferException {
+			LotRecord lr = (LotRecord) Record.parseRecord(data);
+			this.numericalAttributes = lr.numericalAttributes;
+			this.categoricalAttributes = lr.categoricalAttributes;
+			this.dateCreated = lr.dateCreated;
+			this.lot = lr.lot;
+		}
+	}
+	
+	public void testRecordTypeRegistry() {
+		NumericalAttributes na = new NumericalAttributes(2);
+		na.setAttribute(0, 7);
+		CategoricalAttributes ca = new CategoricalAttributes(3);
+		ca.setAttribute(1, true);
+		LotRecord lr = new LotRecord(na, ca, new Date(1000), "LOT-17");
+		byte[] serialized = lr.serializeRecord();
+		try {
+			Record.parseRecord(serialized);
+			Assert.fail();
+		}catch(InvalidProtocolBufferException e) {
+		}
+		RecordTypeRegistry.register(LotRecord.TYPE, (numerical, categorical, date, data) -> 
+			new LotRecord(numerical, categorical, date, data.toStringUtf8()));
+		try {
+			RecordTypeRegistry.register(LotRecord.TYPE, (numerical, categorical, date, data) -> null);
+			Assert.fail();
+		}catch(IllegalArgumentException e) {
+		}
+		try {
+			// built in types can not be replaced
+			RecordTypeRegistry.register(BverifySerialization.Record.Type.DEPOSIT_VALUE, (numerical, categorical, date, data) -> null);
+			Assert.fail();
+		}catch(IllegalArgumentException e) {
+		}
+		try {
+			Record fromBytes = Record.parseRecord(serialized);
+			Assert.assertTrue(fromBytes instanceof LotRecord);
+			Assert.assertEquals("LOT-17", ((LotRecord) fromBytes).lot);
+			Assert.assertEquals(lr.getNumericalAttributes(), fromBytes.getNumericalAttributes());
+			Assert.assertEquals(lr.getCategoricalAttributes(), fromBytes.getCategoricalAttributes());
+			Assert.assertEquals(lr.dateCreated(), fromBytes.dateCreated());
+			Assert.assertArrayEquals(leafEncoding(lr), leafEncoding(fromBytes));
+			Assert.assertEquals(LotRecord.TYPE, leafEncoding(lr)[1]);
+			// the built in types are still dispatched
+			Deposit dep = new Deposit(goodCorn, 100, alice, bob);
+			Assert.assertEquals(dep, Record.parseRecord(dep.serializeRecord()));
+		}catch(InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}finally {
+			RecordTypeRegistry.unregister(LotRecord.TYPE);
+		}
+	}
+	
 }
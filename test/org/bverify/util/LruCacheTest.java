@@ -0,0 +1,30 @@
+package org.bverify.util;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LruCacheTest {
+
+	@Test
+	public void testLruCacheEvictsLeastRecentlyUsed() {
+		LruCache<Integer, String> cache = new LruCache<Integer, String>(3);
+		cache.put(1, "one");
+		cache.put(2, "two");
+		cache.put(3, "three");
+		// reading 1 makes 2 the least recently used
+		Assert.assertEquals("one", cache.get(1));
+		cache.put(4, "four");
+		Assert.assertEquals(3, cache.size());
+		Assert.assertNull(cache.get(2));
+		Assert.assertEquals(Arrays.asList(3, 1, 4), Arrays.asList(cache.keySet().toArray()));
+		Assert.assertEquals(3, cache.getCapacity());
+		try {
+			new LruCache<Integer, String>(0);
+			Assert.fail();
+		} catch (RuntimeException e) {
+		}
+	}
+
+}
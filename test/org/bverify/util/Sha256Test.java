@@ -0,0 +1,21 @@
+package org.bverify.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Sha256Test {
+
+	@Test
+	public void testSha256() {
+		// SHA-256("abc")
+		byte[] expected = new byte[] {
+				(byte) 0xba, (byte) 0x78, (byte) 0x16, (byte) 0xbf, (byte) 0x8f, (byte) 0x01, (byte) 0xcf, (byte) 0xea,
+				(byte) 0x41, (byte) 0x41, (byte) 0x40, (byte) 0xde, (byte) 0x5d, (byte) 0xae, (byte) 0x22, (byte) 0x23,
+				(byte) 0xb0, (byte) 0x03, (byte) 0x61, (byte) 0xa3, (byte) 0x96, (byte) 0x17, (byte) 0x7a, (byte) 0x9c,
+				(byte) 0xb4, (byte) 0x10, (byte) 0xff, (byte) 0x61, (byte) 0xf2, (byte) 0x00, (byte) 0x15, (byte) 0xad};
+		Assert.assertArrayEquals(expected, Sha256.hash("abc".getBytes()));
+		// the digest of the thread is reset after each hash
+		Assert.assertArrayEquals(expected, Sha256.hash("abc".getBytes()));
+	}
+
+}